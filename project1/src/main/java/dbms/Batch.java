@@ -0,0 +1,403 @@
+package dbms;
+/************************************************************************************
+ * @file Batch.java
+ */
+
+import java.util.*;
+
+/************************************************************************************
+ * The Batch class provides the batch-at-a-time kernels used by select, project and
+ * the equi-join probe.  Rather than calling a comparison per tuple, an operator cuts
+ * its input into chunks of SIZE tuples, gathers the column it tests into a primitive
+ * array (int [] for an Integer column, long [] for a Long or Short one, double [] for
+ * a Double or Float one) or a value array, and runs a tight loop over it
+ * that writes the positions of the qualifying tuples into a selection vector.  The
+ * loops are branch-free on the comparison, so the JIT compiles them to straight-line
+ * (and, where it can, SIMD) code.
+ * <p>
+ * The comparisons mean what compareWithStringOp means (e.g., ">=" compares as ">"), so
+ * the batched operators return exactly the rows of the tuple-at-a-time ones, in the
+ * same order.  A kernel that does not apply (e.g., a column holding values of another
+ * type than its domain) makes the operator fall back to the tuple-at-a-time loop.
+ */
+final class Batch
+{
+    /** The number of tuples in a chunk
+     */
+    static final int SIZE = 1024;
+
+    /********************************************************************************
+     * The comparison operators, as compareWithStringOp interprets them.
+     */
+    enum Op
+    {
+        LT, GT, EQ, NONE;
+
+        /****************************************************************************
+         * Return the operator compareWithStringOp applies for the given string.
+         * @param op  the operator string (e.g., "<" or "==")
+         * @return  the operator
+         */
+        static Op of (String op)
+        {
+            if (op.isEmpty ()) return NONE;
+            if (op.charAt (0) == '>') return GT;
+            if (op.charAt (0) == '<') return LT;
+            return (op.length () > 1 && op.charAt (1) == '=') ? EQ : NONE;
+        } // of
+
+        /****************************************************************************
+         * Return the test of whether a block whose values lie between min and max may
+         * hold a value v with v op c (for skipping blocks by their zone maps).
+         * @param c  the constant
+         * @return  the range test
+         */
+        @SuppressWarnings ("unchecked")
+        TupleStore.Range range (Comparable c)
+        {
+            return switch (this) {
+            case LT   -> (min, max) -> min.compareTo (c) < 0;
+            case GT   -> (min, max) -> max.compareTo (c) > 0;
+            case EQ   -> (min, max) -> min.compareTo (c) <= 0 && max.compareTo (c) >= 0;
+            case NONE -> (min, max) -> false;
+            }; // switch
+        } // range
+
+    } // Op enum
+
+    /********************************************************************************
+     * Don't instantiate.
+     */
+    private Batch () { }
+
+    //----------------------------------------------------------------------------------
+    // Operators
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Select the tuples whose value in a column compares to a constant by the
+     * operator, a chunk at a time.
+     * @param tups   the tuples
+     * @param col    the column position
+     * @param op     the operator
+     * @param value  the constant (of the column's numeric domain, an Integer or a
+     *               String, as select parses it)
+     * @return  the qualifying tuples in order, or null if no kernel applies
+     */
+    static List <Comparable []> select (List <Comparable []> tups, int col, Op op, Comparable value)
+    {
+        var rows = QueryContext.rows ();
+        var sel  = new int [SIZE];
+        var ints = new int [SIZE];
+        var objs = new Comparable [SIZE];
+        var lngs = (value instanceof Long || value instanceof Short) ? new long [SIZE] : null;
+        var dbls = (value instanceof Double || value instanceof Float) ? new double [SIZE] : null;
+        for (var from = 0; from < tups.size (); from += SIZE) {
+            QueryContext.check ();
+            var n = Math.min (SIZE, tups.size () - from);
+            int k;
+            if (value instanceof Integer c && gather (tups, from, n, col, ints)) {
+                k = select (ints, n, op, c, sel);
+            } else if (lngs != null && gather (tups, from, n, col, lngs, value.getClass ())) {
+                k = select (lngs, n, op, ((Number) value).longValue (), sel);
+            } else if (dbls != null && gather (tups, from, n, col, dbls, value.getClass ())) {
+                k = select (dbls, n, op, ((Number) value).doubleValue (), sel);
+            } else if (value instanceof String && gather (tups, from, n, col, objs, String.class)) {
+                k = select (objs, n, op, value, sel);
+            } else {
+                return null;
+            } // if
+            for (var i = 0; i < k; i++) rows.add (tups.get (from + sel [i]));
+        } // for
+        return rows;
+    } // select
+
+    /********************************************************************************
+     * Project the tuples onto the given columns, a chunk and a column at a time.
+     * @param tups  the tuples
+     * @param cols  the column positions to keep
+     * @return  the projected tuples in order
+     */
+    static List <Comparable []> project (List <Comparable []> tups, int [] cols)
+    {
+        var rows  = QueryContext.rows ();
+        var chunk = new Comparable [SIZE][];
+        for (var from = 0; from < tups.size (); from += SIZE) {
+            QueryContext.check ();
+            var n = Math.min (SIZE, tups.size () - from);
+            for (var i = 0; i < n; i++) chunk [i] = new Comparable [cols.length];
+            for (var j = 0; j < cols.length; j++) {
+                var c = cols [j];
+                for (var i = 0; i < n; i++) chunk [i][j] = tups.get (from + i) [c];
+            } // for
+            for (var i = 0; i < n; i++) rows.add (chunk [i]);
+        } // for
+        return rows;
+    } // project
+
+    /********************************************************************************
+     * Probe the build tuples with each probe tuple, adding the concatenation of each
+     * pair whose join columns are equal (in probe order, then build order).  The build
+     * side's join columns are gathered once; each probe value is then compared against
+     * a whole column, narrowing a selection vector column by column.  The gathered
+     * columns are reserved from the running query's budget while the probe runs.
+     * @param probe  the probe tuples
+     * @param pCols  the probe side's join column positions
+     * @param build  the build tuples
+     * @param bCols  the build side's join column positions
+     * @param rows   the list to add the joined tuples to
+     */
+    static void probe (List <Comparable []> probe, int [] pCols, List <Comparable []> build, int [] bCols,
+                       List <Comparable []> rows)
+    {
+        var m    = build.size ();
+        var held = (4L + 8L * bCols.length) * m;                            // the columns and selection vector
+        QueryContext.reserve (held);
+        try {
+            probe (probe, pCols, build, bCols, rows, m);
+        } finally {
+            QueryContext.release (held);
+        } // try
+    } // probe
+
+    /********************************************************************************
+     * Probe m build tuples (see above).
+     */
+    private static void probe (List <Comparable []> probe, int [] pCols, List <Comparable []> build, int [] bCols,
+                               List <Comparable []> rows, int m)
+    {
+        var ints  = new int [bCols.length][];
+        var lngs  = new long [bCols.length][];
+        var dbls  = new double [bCols.length][];
+        var objs  = new Comparable [bCols.length][];
+        var types = new Class <?> [bCols.length];
+        for (var j = 0; j < bCols.length; j++) {
+            var first = (m == 0) ? null : build.get (0) [bCols [j]];
+            types [j] = (first == null) ? null : first.getClass ();
+            if (types [j] == Integer.class && gather (build, 0, m, bCols [j], ints [j] = new int [m])) continue;
+            ints [j] = null;
+            if ((types [j] == Long.class || types [j] == Short.class)
+                    && gather (build, 0, m, bCols [j], lngs [j] = new long [m], types [j])) continue;
+            lngs [j] = null;
+            if ((types [j] == Double.class || types [j] == Float.class)
+                    && gather (build, 0, m, bCols [j], dbls [j] = new double [m], types [j])) continue;
+            dbls [j] = null;
+            objs [j] = new Comparable [m];
+            for (var i = 0; i < m; i++) objs [j][i] = build.get (i) [bCols [j]];
+        } // for
+        var sel = new int [m];
+        for (var t : probe) {
+            QueryContext.check ();
+            var k = m;
+            for (var i = 0; i < m; i++) sel [i] = i;
+            for (var j = 0; j < bCols.length && k > 0; j++) {
+                var v    = t [pCols [j]];
+                var same = v != null && v.getClass () == types [j];         // equals holds only within a class
+                if (lngs [j] != null) {
+                    k = same ? equal (lngs [j], ((Number) v).longValue (), sel, k) : 0;
+                } else if (dbls [j] != null) {
+                    k = same ? equal (dbls [j], ((Number) v).doubleValue (), sel, k) : 0;
+                } else {
+                    k = (ints [j] != null && v instanceof Integer c) ? equal (ints [j], c, sel, k)
+                                                                     : equal (objs [j], ints [j], v, sel, k);
+                } // if
+            } // for
+            for (var i = 0; i < k; i++) rows.add (Table.concat (t, build.get (sel [i])));
+        } // for
+    } // probe
+
+    //----------------------------------------------------------------------------------
+    // Kernels
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Write the positions i < n where col [i] op c holds into sel, returning how many.
+     * @param col  the column values
+     * @param n    the number of values
+     * @param op   the operator
+     * @param c    the constant
+     * @param sel  the selection vector to fill
+     * @return  the number of selected positions
+     */
+    static int select (int [] col, int n, Op op, int c, int [] sel)
+    {
+        var k = 0;
+        switch (op) {
+        case LT -> { for (var i = 0; i < n; i++) { sel [k] = i; k += (col [i] < c) ? 1 : 0; } }
+        case GT -> { for (var i = 0; i < n; i++) { sel [k] = i; k += (col [i] > c) ? 1 : 0; } }
+        case EQ -> { for (var i = 0; i < n; i++) { sel [k] = i; k += (col [i] == c) ? 1 : 0; } }
+        case NONE -> { }
+        } // switch
+        return k;
+    } // select
+
+    /********************************************************************************
+     * Write the positions i < n where col [i] op c holds into sel, returning how many.
+     * @param col  the column values (of a Long or Short column)
+     * @param n    the number of values
+     * @param op   the operator
+     * @param c    the constant
+     * @param sel  the selection vector to fill
+     * @return  the number of selected positions
+     */
+    static int select (long [] col, int n, Op op, long c, int [] sel)
+    {
+        var k = 0;
+        switch (op) {
+        case LT -> { for (var i = 0; i < n; i++) { sel [k] = i; k += (col [i] < c) ? 1 : 0; } }
+        case GT -> { for (var i = 0; i < n; i++) { sel [k] = i; k += (col [i] > c) ? 1 : 0; } }
+        case EQ -> { for (var i = 0; i < n; i++) { sel [k] = i; k += (col [i] == c) ? 1 : 0; } }
+        case NONE -> { }
+        } // switch
+        return k;
+    } // select
+
+    /********************************************************************************
+     * Write the positions i < n where col [i] op c holds into sel, returning how many
+     * (comparing by Double.compare, which orders NaN and -0.0 as compareTo and equals
+     * do).
+     * @param col  the column values (of a Double or Float column)
+     * @param n    the number of values
+     * @param op   the operator
+     * @param c    the constant
+     * @param sel  the selection vector to fill
+     * @return  the number of selected positions
+     */
+    static int select (double [] col, int n, Op op, double c, int [] sel)
+    {
+        var k = 0;
+        switch (op) {
+        case LT -> { for (var i = 0; i < n; i++) { sel [k] = i; k += (Double.compare (col [i], c) < 0) ? 1 : 0; } }
+        case GT -> { for (var i = 0; i < n; i++) { sel [k] = i; k += (Double.compare (col [i], c) > 0) ? 1 : 0; } }
+        case EQ -> { for (var i = 0; i < n; i++) { sel [k] = i; k += (Double.compare (col [i], c) == 0) ? 1 : 0; } }
+        case NONE -> { }
+        } // switch
+        return k;
+    } // select
+
+    /********************************************************************************
+     * Write the positions i < n where col [i] op c holds into sel, returning how many
+     * (comparing values by compareTo and equals).
+     * @param col  the column values
+     * @param n    the number of values
+     * @param op   the operator
+     * @param c    the constant
+     * @param sel  the selection vector to fill
+     * @return  the number of selected positions
+     */
+    @SuppressWarnings ("unchecked")
+    static int select (Comparable [] col, int n, Op op, Comparable c, int [] sel)
+    {
+        var k = 0;
+        switch (op) {
+        case LT -> { for (var i = 0; i < n; i++) { sel [k] = i; k += (col [i].compareTo (c) < 0) ? 1 : 0; } }
+        case GT -> { for (var i = 0; i < n; i++) { sel [k] = i; k += (col [i].compareTo (c) > 0) ? 1 : 0; } }
+        case EQ -> { for (var i = 0; i < n; i++) { sel [k] = i; k += col [i].equals (c) ? 1 : 0; } }
+        case NONE -> { }
+        } // switch
+        return k;
+    } // select
+
+    /********************************************************************************
+     * Narrow the first k positions of sel to those where col equals c.
+     */
+    private static int equal (int [] col, int c, int [] sel, int k)
+    {
+        var m = 0;
+        for (var i = 0; i < k; i++) { var s = sel [i]; sel [m] = s; m += (col [s] == c) ? 1 : 0; }
+        return m;
+    } // equal
+
+    /********************************************************************************
+     * Narrow the first k positions of sel to those where col equals c.
+     */
+    private static int equal (long [] col, long c, int [] sel, int k)
+    {
+        var m = 0;
+        for (var i = 0; i < k; i++) { var s = sel [i]; sel [m] = s; m += (col [s] == c) ? 1 : 0; }
+        return m;
+    } // equal
+
+    /********************************************************************************
+     * Narrow the first k positions of sel to those where col equals c (as equals
+     * compares Doubles).
+     */
+    private static int equal (double [] col, double c, int [] sel, int k)
+    {
+        var m = 0;
+        for (var i = 0; i < k; i++) { var s = sel [i]; sel [m] = s; m += (Double.compare (col [s], c) == 0) ? 1 : 0; }
+        return m;
+    } // equal
+
+    /********************************************************************************
+     * Narrow the first k positions of sel to those where the column (held either as
+     * values or as ints) equals v.
+     */
+    private static int equal (Comparable [] col, int [] ints, Comparable v, int [] sel, int k)
+    {
+        var m = 0;
+        for (var i = 0; i < k; i++) {
+            var s = sel [i];
+            sel [m] = s;
+            m += (col != null ? v.equals (col [s]) : v.equals (ints [s])) ? 1 : 0;
+        } // for
+        return m;
+    } // equal
+
+    /********************************************************************************
+     * Gather n values of an Integer column starting at tuple from into an int array,
+     * returning false if a value is not an Integer.
+     */
+    private static boolean gather (List <Comparable []> tups, int from, int n, int col, int [] into)
+    {
+        for (var i = 0; i < n; i++) {
+            if (! (tups.get (from + i) [col] instanceof Integer v)) return false;
+            into [i] = v;
+        } // for
+        return true;
+    } // gather
+
+    /********************************************************************************
+     * Gather n values of a Long or Short column starting at tuple from into a long
+     * array, returning false if a value is not of the given type.
+     */
+    private static boolean gather (List <Comparable []> tups, int from, int n, int col, long [] into, Class <?> type)
+    {
+        for (var i = 0; i < n; i++) {
+            var v = tups.get (from + i) [col];
+            if (! type.isInstance (v)) return false;
+            into [i] = ((Number) v).longValue ();
+        } // for
+        return true;
+    } // gather
+
+    /********************************************************************************
+     * Gather n values of a Double or Float column starting at tuple from into a double
+     * array, returning false if a value is not of the given type.
+     */
+    private static boolean gather (List <Comparable []> tups, int from, int n, int col, double [] into, Class <?> type)
+    {
+        for (var i = 0; i < n; i++) {
+            var v = tups.get (from + i) [col];
+            if (! type.isInstance (v)) return false;
+            into [i] = ((Number) v).doubleValue ();
+        } // for
+        return true;
+    } // gather
+
+    /********************************************************************************
+     * Gather n values of a column starting at tuple from, returning false if a value
+     * is not of the given type.
+     */
+    private static boolean gather (List <Comparable []> tups, int from, int n, int col, Comparable [] into,
+                                   Class <?> type)
+    {
+        for (var i = 0; i < n; i++) {
+            var v = tups.get (from + i) [col];
+            if (! type.isInstance (v)) return false;
+            into [i] = v;
+        } // for
+        return true;
+    } // gather
+
+} // Batch class
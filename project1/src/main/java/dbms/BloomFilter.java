@@ -0,0 +1,202 @@
+package dbms;
+/************************************************************************************
+ * @file BloomFilter.java
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+
+/************************************************************************************
+ * The BloomFilter class is a blocked Bloom filter of keys:  a compact set that may
+ * report a key it does not hold (a false positive) but never misses one it does.
+ * Each key sets K bits within one 512-bit block (a cache line) chosen by its hash, so
+ * adding or testing a key touches a single block.  With the default 10 bits per key
+ * about 1% of the keys not added pass the filter.
+ * <p>
+ * Joins use a filter built on the join attributes of one table (the build side) to
+ * drop the tuples of the other (the probe side) that cannot match, before the more
+ * expensive nested-loop comparisons or index lookups.  Keys are hashed by KeyType's
+ * 64-bit hash, which is the same in every process, so a filter may be shipped.
+ *
+ * #usage var filter = new BloomFilter (1000);
+ *        filter.add (new KeyType ("Star_Wars", 1977));
+ *        filter.mightContain (new KeyType ("Rocky", 1985))                // false (most likely)
+ */
+public class BloomFilter
+       implements Serializable
+{
+    /** The default number of bits per expected key
+     */
+    static final int BITS_PER_KEY = 10;
+
+    /** The number of bits set per key
+     */
+    private static final int K = 7;
+
+    /** The number of 64-bit words in a block (512 bits)
+     */
+    private static final int WORDS = 8;
+
+    /** The bits, WORDS words per block
+     */
+    private final long [] bits;
+
+    /** The number of blocks
+     */
+    private final int blocks;
+
+    /** The number of keys added
+     */
+    private int count = 0;
+
+    /********************************************************************************
+     * Construct an empty filter sized for the expected number of keys.
+     * @param expected  the expected number of keys
+     */
+    public BloomFilter (int expected)
+    {
+        this (expected, BITS_PER_KEY);
+    } // constructor
+
+    /********************************************************************************
+     * Construct an empty filter sized for the expected number of keys, with the given
+     * number of bits per key (more bits, fewer false positives).
+     * @param expected    the expected number of keys
+     * @param bitsPerKey  the bits per key
+     */
+    public BloomFilter (int expected, int bitsPerKey)
+    {
+        blocks = (int) Math.max (1, ((long) Math.max (expected, 1) * bitsPerKey + 511) / 512);
+        bits   = new long [blocks * WORDS];
+    } // constructor
+
+    /********************************************************************************
+     * Construct a filter from its bits (see read).
+     */
+    private BloomFilter (long [] _bits, int _count)
+    {
+        bits   = _bits;
+        blocks = bits.length / WORDS;
+        count  = _count;
+    } // constructor
+
+    /********************************************************************************
+     * Add a key to the filter.
+     * @param key  the key
+     */
+    public void add (KeyType key)
+    {
+        add (key.hash64 ());
+    } // add
+
+    /********************************************************************************
+     * Add a key given its KeyType 64-bit hash.
+     * @param h  the hash of the key
+     */
+    void add (long h)
+    {
+        var base = block (h);
+        for (var i = 0; i < K; i++) {
+            h = rehash (h);
+            var bit = (int) (h >>> 55);                                      // 0 .. 511
+            bits [base + (bit >>> 6)] |= 1L << bit;
+        } // for
+        count++;
+    } // add
+
+    /********************************************************************************
+     * Return whether the key may have been added (false means it certainly was not).
+     * @param key  the key
+     * @return  whether the key may be in the filter
+     */
+    public boolean mightContain (KeyType key)
+    {
+        return mightContain (key.hash64 ());
+    } // mightContain
+
+    /********************************************************************************
+     * Return whether the key with the given KeyType 64-bit hash may have been added.
+     * @param h  the hash of the key
+     * @return  whether the key may be in the filter
+     */
+    boolean mightContain (long h)
+    {
+        var base = block (h);
+        for (var i = 0; i < K; i++) {
+            h = rehash (h);
+            var bit = (int) (h >>> 55);
+            if ((bits [base + (bit >>> 6)] & (1L << bit)) == 0) return false;
+        } // for
+        return true;
+    } // mightContain
+
+    /********************************************************************************
+     * Return the number of keys added.
+     * @return  the key count
+     */
+    public int count ()
+    {
+        return count;
+    } // count
+
+    /********************************************************************************
+     * Return the size of the filter in bits.
+     * @return  the number of bits
+     */
+    public int bits ()
+    {
+        return bits.length * 64;
+    } // bits
+
+    /********************************************************************************
+     * Write the filter (its key count, length in words and bits).
+     * @param dos  the stream to write to
+     * @throws IOException  if the stream fails
+     */
+    void write (DataOutputStream dos)
+        throws IOException
+    {
+        dos.writeInt (count);
+        dos.writeInt (bits.length);
+        for (var w : bits) dos.writeLong (w);
+    } // write
+
+    /********************************************************************************
+     * Read a filter written by write.
+     * @param dis  the stream to read from
+     * @return  the filter
+     * @throws IOException  if the stream fails
+     */
+    static BloomFilter read (DataInputStream dis)
+        throws IOException
+    {
+        var n    = dis.readInt ();
+        var bits = new long [dis.readInt ()];
+        for (var i = 0; i < bits.length; i++) bits [i] = dis.readLong ();
+        return new BloomFilter (bits, n);
+    } // read
+
+    //----------------------------------------------------------------------------------
+    // Private Methods
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Return the first word of the block for a hash (from its high bits).
+     */
+    private int block (long h)
+    {
+        return (int) (((h >>> 32) * blocks) >>> 32) * WORDS;
+    } // block
+
+    /********************************************************************************
+     * Derive the next hash for choosing a bit (a multiply-xorshift step).
+     */
+    private static long rehash (long h)
+    {
+        h *= 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    } // rehash
+
+} // BloomFilter class
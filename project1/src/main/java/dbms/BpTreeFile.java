@@ -0,0 +1,781 @@
+package dbms;
+/************************************************************************************
+ * @file BpTreeFile.java
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import static java.lang.System.out;
+import java.util.*;
+
+/************************************************************************************
+ * This class provides a disk-resident B+-tree index mapping keys to tuples, stored in
+ * 4 KB pages of the file "base.bpt" and accessed through a bounded page cache.
+ * <p>
+ * Keys and tuples use the KeyType binary encoding, so keys compare as unsigned bytes.
+ * Every node stores the longest prefix common to its keys once, followed by a slot
+ * directory and the key suffixes, which lets a lookup binary search a page in place.
+ * Separator keys pushed up from leaf splits are truncated to the shortest byte string
+ * that separates the two leaves.  Leaves are linked left to right for range scans, and
+ * 'bulkLoad' builds the tree bottom-up from sorted input with packed leaves.
+ * <p>
+ * Deletion removes the entry from its leaf without rebalancing (underfull leaves are
+ * left in place).  Only the base path is serialized, so a table brought back by
+ * Table.load reopens its index file instead of rebuilding the index.
+ */
+public class BpTreeFile
+       extends AbstractMap <KeyType, Comparable []>
+       implements Serializable, Closeable, Flushable
+{
+    /** The size of a page in bytes
+     */
+    private static final int PAGE = 4096;
+
+    /** The number of pages the page cache may hold
+     */
+    private static final int CACHE_PAGES = 512;
+
+    /** The largest encoded key plus tuple allowed (so a split always yields two pages)
+     */
+    private static final int MAX_ENTRY = PAGE / 4;
+
+    /** The fraction of a page filled by bulk loading
+     */
+    private static final double FILL = .9;
+
+    /** Marker identifying an index file
+     */
+    private static final int MAGIC = 0x42505431;                           // "BPT1"
+
+    /** Node layout: type, key count, link (next leaf or leftmost child), prefix length
+     */
+    private static final int TYPE = 0, N_KEYS = 1, LINK = 3, PREFIX = 7, HEADER = 9;
+
+    /** The base path of the index file (without extension)
+     */
+    private final String base;
+
+    /** The cache over the index file
+     */
+    private transient PageCache file;
+
+    /** Whether this map was newly constructed (so an old file must be discarded)
+     */
+    private transient boolean fresh;
+
+    /** The page number of the root node
+     */
+    private transient int root;
+
+    /** The counter for the total number of keys in the index
+     */
+    private transient int keyCount;
+
+    /** Counter for the number of pages accessed by 'get' (for performance testing).
+     */
+    private transient long count = 0;
+
+    /********************************************************************************
+     * This inner class holds a node decoded from its page for modification.  For an
+     * internal node, kid [i] is the child for keys >= key [i] and 'link' is the child
+     * for keys below key [0]; for a leaf, 'link' is the next leaf (0 => none).
+     */
+    private static final class Node
+    {
+        boolean        leaf;
+        int            link;
+        List <byte []> key = new ArrayList <> ();
+        List <byte []> val = new ArrayList <> ();                           // leaf only
+        List <Integer> kid = new ArrayList <> ();                           // internal only
+
+        Node (boolean _leaf, int _link)
+        {
+            leaf = _leaf;
+            link = _link;
+        } // constructor
+
+        int entrySize (int i)
+        {
+            return 2 + 2 + key.get (i).length + (leaf ? 2 + val.get (i).length : 4);
+        } // entrySize
+
+        int bytes ()
+        {
+            var pl = prefix (key).length;
+            var sz = HEADER + pl;
+            for (var i = 0; i < key.size (); i++) sz += entrySize (i) - pl;
+            return sz;
+        } // bytes
+
+    } // Node inner class
+
+    /********************************************************************************
+     * Construct an empty disk-resident B+-tree index.
+     * @param _base  the base path of the index file (e.g., "store/movie")
+     */
+    public BpTreeFile (String _base)
+    {
+        base  = _base;
+        fresh = true;
+    } // constructor
+
+    /********************************************************************************
+     * Return a set containing all the entries in key order.
+     * @return  the set view of the map
+     */
+    public Set <Map.Entry <KeyType, Comparable []>> entrySet ()
+    {
+        var enSet = new LinkedHashSet <Map.Entry <KeyType, Comparable []>> ();
+        for (var it = scan (null, null); it.hasNext (); ) enSet.add (it.next ());
+        return enSet;
+    } // entrySet
+
+    /********************************************************************************
+     * Given the key, look up the tuple by descending from the root, searching each page
+     * in place.
+     * @param key  the key used for look up
+     * @return  the tuple associated with the key, null if none
+     */
+    public Comparable [] get (Object key)
+    {
+        if (! (key instanceof KeyType k) || ! open (false)) return null;
+        var kb = bytes (k);
+        var pg = root;
+        while (true) {
+            count++;
+            var buf = file.page (pg);
+            var i   = upper (buf, kb);                                      // # keys <= kb
+            if (buf.get (TYPE) == 1) {
+                pg = (i == 0) ? buf.getInt (LINK) : child (buf, i - 1);
+                continue;
+            } // if
+            if (i > 0 && compare (buf, i - 1, kb) == 0) return KeyType.decode (value (buf, i - 1));
+            return null;
+        } // while
+    } // get
+
+    /********************************************************************************
+     * Determine whether the index contains the given key.
+     * @param key  the key to look for
+     * @return  whether the key is present
+     */
+    public boolean containsKey (Object key)
+    {
+        return get (key) != null;
+    } // containsKey
+
+    /********************************************************************************
+     * Put the key-tuple pair in the index, replacing any previous tuple for the key.
+     * @param key    the key to insert
+     * @param value  the tuple to insert
+     * @return  the old/previous tuple, null if none
+     */
+    public Comparable [] put (KeyType key, Comparable [] value)
+    {
+        open (true);
+        var kb = bytes (key);
+        var vb = encodeTuple (key, value);
+
+        var old   = new byte [1][];
+        var split = insert (root, kb, vb, old);
+        if (split != null) {                                                 // grow a new root
+            var nr = new Node (false, root);
+            nr.key.add ((byte []) split [0]);
+            nr.kid.add ((Integer) split [1]);
+            root = file.allocate ();
+            write (root, nr);
+        } // if
+        if (old [0] == null) keyCount++;
+        writeHeader ();
+        return (old [0] == null) ? null : KeyType.decode (old [0]);
+    } // put
+
+    /********************************************************************************
+     * Remove the key (and its tuple) from the index.  The leaf is not rebalanced.
+     * @param key  the key to remove
+     * @return  the removed tuple, null if the key was not present
+     */
+    public Comparable [] remove (Object key)
+    {
+        if (! (key instanceof KeyType k) || ! open (false)) return null;
+        var kb = bytes (k);
+        var pg = leafFor (kb);
+        var nd = read (pg);
+        var i  = Collections.binarySearch (nd.key, kb, Arrays::compareUnsigned);
+        if (i < 0) return null;
+
+        var oldV = nd.val.get (i);
+        nd.key.remove (i);
+        nd.val.remove (i);
+        write (pg, nd);
+        keyCount--;
+        writeHeader ();
+        return KeyType.decode (oldV);
+    } // remove
+
+    /********************************************************************************
+     * Return the number of keys stored in the index.
+     * @return  the size of the index
+     */
+    public int size ()
+    {
+        return open (false) ? keyCount : 0;
+    } // size
+
+    /********************************************************************************
+     * Return an iterator over the entries with lo <= key < hi in key order, following
+     * the leaf links.  A null bound means unbounded on that side.
+     * @param lo  the inclusive lower bound (or null)
+     * @param hi  the exclusive upper bound (or null)
+     * @return  an iterator over the entries in the range
+     */
+    public Iterator <Map.Entry <KeyType, Comparable []>> scan (KeyType lo, KeyType hi)
+    {
+        if (! open (false)) return Collections.emptyIterator ();
+        var lb = (lo == null) ? new byte [0] : bytes (lo);
+        var hb = (hi == null) ? null : bytes (hi);
+
+        return new Iterator <> () {
+            int  pg = leafFor (lb);
+            Node nd = read (pg);
+            int  i  = lowerIndex (nd, lb);
+
+            public boolean hasNext ()
+            {
+                while (i == nd.key.size ()) {                               // move to next leaf
+                    if (nd.link == 0) return false;
+                    pg = nd.link;
+                    nd = read (pg);
+                    i  = 0;
+                } // while
+                return hb == null || Arrays.compareUnsigned (nd.key.get (i), hb) < 0;
+            } // hasNext
+
+            public Map.Entry <KeyType, Comparable []> next ()
+            {
+                if (! hasNext ()) throw new NoSuchElementException ();
+                var e = Map.entry (KeyType.fromBytes (nd.key.get (i)), KeyType.decode (nd.val.get (i)));
+                i++;
+                return e;
+            } // next
+        };
+    } // scan
+
+    /********************************************************************************
+     * Replace the contents of the index by building it bottom-up from entries sorted by
+     * strictly increasing key:  leaves are packed to the FILL factor and linked, then
+     * each level of internal nodes is built over the one below until a single root is
+     * left.
+     * @param sorted  the entries in key order
+     */
+    public void bulkLoad (Iterator <Map.Entry <KeyType, Comparable []>> sorted)
+    {
+        fresh = true;
+        closeFile ();
+        open (true);
+
+        var level  = new ArrayList <Object []> ();                           // (separator, page) pairs
+        var leaf   = new Node (true, 0);
+        var leafPg = root;                                                  // reuse the empty root leaf
+        byte [] prev = null, sep = null;
+        keyCount = 0;
+
+        while (sorted.hasNext ()) {
+            var e  = sorted.next ();
+            var kb = bytes (e.getKey ());
+            var vb = encodeTuple (e.getKey (), e.getValue ());
+            if (prev != null && Arrays.compareUnsigned (prev, kb) >= 0) {
+                throw new IllegalArgumentException ("bulkLoad: keys not in increasing order at " + e.getKey ());
+            } // if
+
+            leaf.key.add (kb);
+            leaf.val.add (vb);
+            if (leaf.bytes () > FILL * PAGE && leaf.key.size () > 1) {     // close the leaf without kb
+                leaf.key.remove (leaf.key.size () - 1);
+                leaf.val.remove (leaf.val.size () - 1);
+                var nextPg = file.allocate ();
+                leaf.link = nextPg;
+                write (leafPg, leaf);
+                level.add (new Object [] { sep, leafPg });
+                sep    = separator (prev, kb);
+                leaf   = new Node (true, 0);
+                leafPg = nextPg;
+                leaf.key.add (kb);
+                leaf.val.add (vb);
+            } // if
+            prev = kb;
+            keyCount++;
+        } // while
+        write (leafPg, leaf);
+        level.add (new Object [] { sep, leafPg });
+
+        while (level.size () > 1) {                                         // build internal levels
+            var up = new ArrayList <Object []> ();
+            Node nd   = null;
+            var  ndPg = 0;
+            for (var e : level) {
+                if (nd != null && nd.bytes () + 8 + ((byte []) e [0]).length > FILL * PAGE) {
+                    write (ndPg, nd);
+                    nd = null;
+                } // if
+                if (nd == null) {
+                    nd   = new Node (false, (Integer) e [1]);
+                    ndPg = file.allocate ();
+                    up.add (new Object [] { e [0], ndPg });
+                } else {
+                    nd.key.add ((byte []) e [0]);
+                    nd.kid.add ((Integer) e [1]);
+                } // if
+            } // for
+            write (ndPg, nd);
+            level = up;
+        } // while
+        root = (Integer) level.get (0) [1];
+        writeHeader ();
+    } // bulkLoad
+
+    /********************************************************************************
+     * Write all modified pages to the index file.
+     */
+    public void flush ()
+    {
+        if (file == null) return;
+        writeHeader ();
+        file.flush ();
+    } // flush
+
+    /********************************************************************************
+     * Flush and close the index file (it is reopened on next use).
+     * @throws IOException  if the file cannot be closed
+     */
+    public void close ()
+        throws IOException
+    {
+        if (file == null) return;
+        flush ();
+        file.close ();
+        file = null;
+    } // close
+
+    /********************************************************************************
+     * Print the tree level by level (key counts and bytes used per node).
+     */
+    public void print ()
+    {
+        out.println ("BpTreeFile " + base);
+        out.println ("-------------------------------------------");
+        if (open (false)) {
+            var lvl = List.of (root);
+            for (var d = 0; ! lvl.isEmpty (); d++) {
+                var below = new ArrayList <Integer> ();
+                out.print ("level " + d + ":");
+                for (var pg : lvl) {
+                    var nd = read (pg);
+                    out.print (" [" + nd.key.size () + " keys, " + nd.bytes () + " bytes]");
+                    if (! nd.leaf) { below.add (nd.link); below.addAll (nd.kid); }
+                } // for
+                out.println ();
+                lvl = below;
+            } // for
+            out.println (file.stats ());
+        } // if
+        out.println ("-------------------------------------------");
+    } // print
+
+    /********************************************************************************
+     * Return the average number of pages read per 'get' so far, given the number of
+     * lookups made.
+     * @param lookups  the number of lookups made
+     * @return  pages accessed per lookup
+     */
+    public double pagesPerLookup (long lookups)
+    {
+        return count / (double) lookups;
+    } // pagesPerLookup
+
+    //-------------------------------------------------------------------------------
+    // Tree operations on decoded nodes
+    //-------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Insert the entry into the subtree rooted at page pg.
+     * @param pg   the page of the subtree root
+     * @param kb   the encoded key
+     * @param vb   the encoded tuple
+     * @param old  receives the encoded tuple that was replaced, if any
+     * @return  null, or { separator, new right page } if the node split
+     */
+    private Object [] insert (int pg, byte [] kb, byte [] vb, byte [][] old)
+    {
+        var nd = read (pg);
+        var i  = Collections.binarySearch (nd.key, kb, Arrays::compareUnsigned);
+
+        if (nd.leaf) {
+            if (i >= 0) {
+                old [0] = nd.val.get (i);
+                nd.val.set (i, vb);
+            } else {
+                nd.key.add (-i - 1, kb);
+                nd.val.add (-i - 1, vb);
+            } // if
+        } else {
+            var c     = (i >= 0) ? i + 1 : -i - 1;                          // # keys <= kb
+            var split = insert ((c == 0) ? nd.link : nd.kid.get (c - 1), kb, vb, old);
+            if (split == null) return null;
+            nd.key.add (c, (byte []) split [0]);
+            nd.kid.add (c, (Integer) split [1]);
+        } // if
+
+        if (nd.bytes () <= PAGE) {
+            write (pg, nd);
+            return null;
+        } // if
+        return splitNode (pg, nd);
+    } // insert
+
+    /********************************************************************************
+     * Split an overfull node into itself and a new right sibling of about equal size.
+     * A leaf split pushes up the shortest separator of the two leaves; an internal split
+     * moves its middle key up.
+     * @return  { separator, new right page }
+     */
+    private Object [] splitNode (int pg, Node nd)
+    {
+        var n    = nd.key.size ();
+        var half = nd.bytes () / 2;
+        var m    = 0;
+        for (var sz = HEADER; m < n - 1 && sz < half; m++) sz += nd.entrySize (m);
+        m = Math.max (nd.leaf ? m : Math.min (m, n - 2), 1);
+
+        var rPg = file.allocate ();
+        Node right;
+        byte [] sep;
+        if (nd.leaf) {
+            right = new Node (true, nd.link);
+            right.key.addAll (nd.key.subList (m, n));
+            right.val.addAll (nd.val.subList (m, n));
+            sep = separator (nd.key.get (m - 1), nd.key.get (m));
+            nd.link = rPg;
+            nd.key.subList (m, n).clear ();
+            nd.val.subList (m, n).clear ();
+        } else {
+            right = new Node (false, nd.kid.get (m));
+            right.key.addAll (nd.key.subList (m + 1, n));
+            right.kid.addAll (nd.kid.subList (m + 1, n));
+            sep = nd.key.get (m);
+            nd.key.subList (m, n).clear ();
+            nd.kid.subList (m, n).clear ();
+        } // if
+        write (pg, nd);
+        write (rPg, right);
+        return new Object [] { sep, rPg };
+    } // splitNode
+
+    /********************************************************************************
+     * Return the shortest byte string s with left < s <= right (left < right).
+     */
+    private static byte [] separator (byte [] left, byte [] right)
+    {
+        var l = Arrays.mismatch (left, right);
+        return Arrays.copyOf (right, Math.min (l + 1, right.length));
+    } // separator
+
+    /********************************************************************************
+     * Return the page of the leaf that would hold the key.
+     */
+    private int leafFor (byte [] kb)
+    {
+        var pg = root;
+        while (true) {
+            var buf = file.page (pg);
+            if (buf.get (TYPE) == 0) return pg;
+            var i = upper (buf, kb);
+            pg = (i == 0) ? buf.getInt (LINK) : child (buf, i - 1);
+        } // while
+    } // leafFor
+
+    /********************************************************************************
+     * Return the position of the first key >= kb in a leaf.
+     */
+    private static int lowerIndex (Node nd, byte [] kb)
+    {
+        var i = Collections.binarySearch (nd.key, kb, Arrays::compareUnsigned);
+        return (i >= 0) ? i : -i - 1;
+    } // lowerIndex
+
+    /********************************************************************************
+     * Return the longest common prefix of the keys (empty if there are none).
+     */
+    private static byte [] prefix (List <byte []> keys)
+    {
+        if (keys.isEmpty ()) return new byte [0];
+        var first = keys.get (0);
+        var last  = keys.get (keys.size () - 1);                            // keys are sorted
+        var l     = Arrays.mismatch (first, last);
+        return Arrays.copyOf (first, (l < 0) ? first.length : l);
+    } // prefix
+
+    //-------------------------------------------------------------------------------
+    // Page format
+    //-------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Decode the node stored in page pg.
+     */
+    private Node read (int pg)
+    {
+        var buf = file.page (pg);
+        var nd  = new Node (buf.get (TYPE) == 0, buf.getInt (LINK));
+        var n   = buf.getShort (N_KEYS);
+        for (var i = 0; i < n; i++) {
+            nd.key.add (key (buf, i));
+            if (nd.leaf) nd.val.add (value (buf, i));
+            else         nd.kid.add (child (buf, i));
+        } // for
+        return nd;
+    } // read
+
+    /********************************************************************************
+     * Encode the node into page pg:  header, common prefix, slot directory of entry
+     * offsets, then entries (suffix length, suffix, and tuple length + tuple for a leaf
+     * or child page for an internal node).
+     */
+    private void write (int pg, Node nd)
+    {
+        var buf = file.page (pg);
+        var pre = prefix (nd.key);
+        var n   = nd.key.size ();
+        buf.put (TYPE, (byte) (nd.leaf ? 0 : 1));
+        buf.putShort (N_KEYS, (short) n);
+        buf.putInt (LINK, nd.link);
+        buf.putShort (PREFIX, (short) pre.length);
+        buf.put (HEADER, pre);
+
+        var slots = HEADER + pre.length;
+        var off   = slots + 2 * n;
+        for (var i = 0; i < n; i++) {
+            var k = nd.key.get (i);
+            buf.putShort (slots + 2 * i, (short) off);
+            buf.putShort (off, (short) (k.length - pre.length));
+            buf.put (off + 2, k, pre.length, k.length - pre.length);
+            off += 2 + k.length - pre.length;
+            if (nd.leaf) {
+                var v = nd.val.get (i);
+                buf.putShort (off, (short) v.length);
+                buf.put (off + 2, v);
+                off += 2 + v.length;
+            } else {
+                buf.putInt (off, nd.kid.get (i));
+                off += 4;
+            } // if
+        } // for
+        file.put (pg, buf);
+    } // write
+
+    /********************************************************************************
+     * Return the offset of entry i in the page.
+     */
+    private static int entry (ByteBuffer buf, int i)
+    {
+        return buf.getShort (HEADER + buf.getShort (PREFIX) + 2 * i);
+    } // entry
+
+    /********************************************************************************
+     * Return the full key i of the page (prefix + suffix).
+     */
+    private static byte [] key (ByteBuffer buf, int i)
+    {
+        var pl  = buf.getShort (PREFIX);
+        var off = entry (buf, i);
+        var sl  = buf.getShort (off);
+        var k   = new byte [pl + sl];
+        buf.get (HEADER, k, 0, pl);
+        buf.get (off + 2, k, pl, sl);
+        return k;
+    } // key
+
+    /********************************************************************************
+     * Return the encoded tuple of leaf entry i.
+     */
+    private static byte [] value (ByteBuffer buf, int i)
+    {
+        var off = entry (buf, i);
+        off += 2 + buf.getShort (off);
+        var v = new byte [buf.getShort (off)];
+        buf.get (off + 2, v);
+        return v;
+    } // value
+
+    /********************************************************************************
+     * Return the child page of internal entry i.
+     */
+    private static int child (ByteBuffer buf, int i)
+    {
+        var off = entry (buf, i);
+        return buf.getInt (off + 2 + buf.getShort (off));
+    } // child
+
+    /********************************************************************************
+     * Compare the full key i of the page with kb.
+     */
+    private static int compare (ByteBuffer buf, int i, byte [] kb)
+    {
+        var a   = buf.array ();
+        var pl  = buf.getShort (PREFIX);
+        var c   = Arrays.compareUnsigned (a, HEADER, HEADER + Math.min (pl, kb.length), kb, 0, Math.min (pl, kb.length));
+        if (c != 0) return c;
+        if (kb.length < pl) return 1;
+        var off = entry (buf, i);
+        return Arrays.compareUnsigned (a, off + 2, off + 2 + buf.getShort (off), kb, pl, kb.length);
+    } // compare
+
+    /********************************************************************************
+     * Return the number of keys in the page that are <= kb, by binary search in place.
+     * When kb falls outside the page's common prefix, every key compares the same way.
+     */
+    private static int upper (ByteBuffer buf, byte [] kb)
+    {
+        var n  = buf.getShort (N_KEYS);
+        var pl = buf.getShort (PREFIX);
+        var m  = Math.min (pl, kb.length);
+        var c  = Arrays.compareUnsigned (buf.array (), HEADER, HEADER + m, kb, 0, m);
+        if (c < 0) return n;                                                 // all keys < kb
+        if (c > 0 || kb.length < pl) return 0;                              // all keys > kb
+
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            var mid = (lo + hi) >>> 1;
+            if (compare (buf, mid, kb) <= 0) lo = mid + 1; else hi = mid;
+        } // while
+        return lo;
+    } // upper
+
+    /********************************************************************************
+     * Return the binary encoding of a key, which the index requires.
+     */
+    private static byte [] bytes (KeyType k)
+    {
+        var kb = k.toBytes ();
+        if (kb == null) throw new IllegalArgumentException ("BpTreeFile: key " + k + " has no binary encoding");
+        return kb;
+    } // bytes
+
+    /********************************************************************************
+     * Encode a tuple, checking that the entry is small enough for a page.
+     */
+    private static byte [] encodeTuple (KeyType key, Comparable [] value)
+    {
+        var vb = KeyType.encode (value);
+        if (vb == null) throw new IllegalArgumentException ("BpTreeFile: tuple has a value with no binary encoding");
+        if (key.toBytes ().length + vb.length > MAX_ENTRY) {
+            throw new IllegalArgumentException ("BpTreeFile: entry for " + key + " exceeds " + MAX_ENTRY + " bytes");
+        } // if
+        return vb;
+    } // encodeTuple
+
+    //-------------------------------------------------------------------------------
+    // Opening the file and the header page
+    //-------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Open the index file if it is not open yet.  A fresh map discards an old file
+     * (only once something is written); a deserialized map reads its header.
+     * @param create  whether to create the file if it does not exist
+     * @return  whether the index file is open
+     */
+    private boolean open (boolean create)
+    {
+        if (file != null) return true;
+        var path   = Paths.get (base + ".bpt");
+        var exists = Files.exists (path);
+        if (! create && (fresh || ! exists)) return false;
+
+        try {
+            file = new PageCache (path, PAGE, CACHE_PAGES);
+        } catch (IOException ex) {
+            throw new UncheckedIOException ("BpTreeFile: cannot open " + base, ex);
+        } // try
+
+        var hdr = file.page (0);
+        if (fresh || ! exists || hdr.getInt (0) != MAGIC) {                 // start a new tree
+            file.clear ();
+            file.allocate ();
+            root     = file.allocate ();
+            keyCount = 0;
+            write (root, new Node (true, 0));
+            fresh = false;
+            writeHeader ();
+        } else {
+            root     = hdr.getInt (4);
+            keyCount = hdr.getInt (8);
+        } // if
+        return true;
+    } // open
+
+    /********************************************************************************
+     * Close the page cache (used before a rebuild discards the file).
+     */
+    private void closeFile ()
+    {
+        if (file == null) return;
+        try {
+            file.close ();
+        } catch (IOException ex) {
+            throw new UncheckedIOException ("BpTreeFile: cannot close " + base, ex);
+        } // try
+        file = null;
+    } // closeFile
+
+    /********************************************************************************
+     * Write the root page and key count to page 0.
+     */
+    private void writeHeader ()
+    {
+        var hdr = file.page (0);
+        hdr.putInt (0, MAGIC);
+        hdr.putInt (4, root);
+        hdr.putInt (8, keyCount);
+        file.put (0, hdr);
+    } // writeHeader
+
+    /********************************************************************************
+     * Flush the index file along with the object that refers to it.
+     */
+    private void writeObject (ObjectOutputStream oos)
+        throws IOException
+    {
+        flush ();
+        oos.defaultWriteObject ();
+    } // writeObject
+
+    /********************************************************************************
+     * The main method used for testing.
+     * @param  args the command-line arguments (args [0] gives number of keys to insert)
+     */
+    public static void main (String [] args)
+        throws IOException
+    {
+        var totalKeys = (args.length == 1) ? Integer.valueOf (args [0]) : 10000;
+
+        var bt = new BpTreeFile ("store" + File.separator + "BpTreeFileTest");
+        var rng = new Random ();
+        for (var i = 1; i <= totalKeys; i++) {
+            var k = rng.nextInt (2 * totalKeys);
+            bt.put (new KeyType ("movie_" + k), new Comparable [] { "movie_" + k, k });
+        } // for
+        bt.close ();
+
+        for (var i = 0; i < totalKeys; i++) bt.get (new KeyType ("movie_" + i));
+        bt.print ();
+        out.println ("Average number of pages accessed = " + bt.pagesPerLookup (totalKeys));
+
+        out.println ("Range [movie_1000, movie_10005):");
+        for (var it = bt.scan (new KeyType ("movie_1000"), new KeyType ("movie_10005")); it.hasNext (); ) {
+            var e = it.next ();
+            out.println ("  " + e.getKey () + " -> " + Arrays.toString (e.getValue ()));
+        } // for
+    } // main
+
+} // BpTreeFile class
+
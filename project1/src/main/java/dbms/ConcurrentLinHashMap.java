@@ -0,0 +1,441 @@
+package dbms;
+/************************************************************************************
+ * @file ConcurrentLinHashMap.java
+ */
+
+import java.io.*;
+import static java.lang.System.out;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/************************************************************************************
+ * This class provides thread-safe hash maps that use the Linear Hashing algorithm.
+ * <p>
+ * Buckets are immutable:  a writer builds a new bucket with its change and installs it
+ * in the bucket array, so a reader always sees a complete bucket, old or new.  Writers
+ * hold the shared mode of a StampedLock plus a striped lock for their bucket, so writers
+ * to different buckets run in parallel.  A split takes the exclusive mode while it moves
+ * the single bucket 'isplit' into two.  Readers normally take no lock:  they read
+ * under an optimistic stamp and retry if a split happened in the meantime, and only
+ * after TRIES failed attempts (splits keep overlapping the read) do they fall back to
+ * the shared mode, waiting for the split in progress to finish.
+ */
+public class ConcurrentLinHashMap <K, V>
+       extends AbstractMap <K, V>
+       implements Serializable, Map <K, V>
+{
+    /** The threshold/upper bound on the load factor (keys per bucket)
+     */
+    private static final double THRESHOLD = 3.;
+
+    /** The number of striped locks for writers (a power of 2).
+     */
+    private static final int STRIPES = 64;
+
+    /** The number of optimistic attempts a reader makes before locking.
+     */
+    private static final int TRIES = 8;
+
+    /********************************************************************************
+     * This inner class defines the immutable buckets stored in the hash table.
+     */
+    private static final class Bucket
+            implements Serializable
+    {
+        static final Bucket EMPTY = new Bucket (new long [0], new Object [0], new Object [0]);
+
+        final long []   hash;
+        final Object [] key;
+        final Object [] value;
+
+        Bucket (long [] _hash, Object [] _key, Object [] _value)
+        {
+            hash  = _hash;
+            key   = _key;
+            value = _value;
+        } // constructor
+
+        int indexOf (Object k, long h)
+        {
+            for (var j = 0; j < hash.length; j++) if (hash [j] == h && key [j].equals (k)) return j;
+            return -1;
+        } // indexOf
+
+        Bucket add (Object k, Object v, long h)
+        {
+            var n  = hash.length;
+            var nh = Arrays.copyOf (hash, n + 1);
+            var nk = Arrays.copyOf (key, n + 1);
+            var nv = Arrays.copyOf (value, n + 1);
+            nh [n] = h; nk [n] = k; nv [n] = v;
+            return new Bucket (nh, nk, nv);
+        } // add
+
+        Bucket replace (int j, Object v)
+        {
+            var nv = value.clone ();
+            nv [j] = v;
+            return new Bucket (hash, key, nv);
+        } // replace
+
+        Bucket remove (int j)
+        {
+            var n  = hash.length - 1;
+            var nh = new long [n];
+            var nk = new Object [n];
+            var nv = new Object [n];
+            System.arraycopy (hash, 0, nh, 0, j);      System.arraycopy (hash, j + 1, nh, j, n - j);
+            System.arraycopy (key, 0, nk, 0, j);       System.arraycopy (key, j + 1, nk, j, n - j);
+            System.arraycopy (value, 0, nv, 0, j);     System.arraycopy (value, j + 1, nv, j, n - j);
+            return new Bucket (nh, nk, nv);
+        } // remove
+
+        Bucket filter (long mask, long want, boolean keep)
+        {
+            var n = 0;
+            for (var h : hash) if (((h & mask) == want) == keep) n++;
+            var nh = new long [n];
+            var nk = new Object [n];
+            var nv = new Object [n];
+            n = 0;
+            for (var j = 0; j < hash.length; j++) {
+                if (((hash [j] & mask) == want) == keep) {
+                    nh [n] = hash [j]; nk [n] = key [j]; nv [n] = value [j]; n++;
+                } // if
+            } // for
+            return new Bucket (nh, nk, nv);
+        } // filter
+
+    } // Bucket inner class
+
+    /********************************************************************************
+     * This inner class holds the addressing state (the two moduli, the split pointer
+     * and the bucket array) so that it can be replaced as a unit.
+     */
+    private static final class Level
+            implements Serializable
+    {
+        final int mod1;
+        final int mod2;
+        final int isplit;
+        final AtomicReferenceArray <Bucket> hTable;
+
+        Level (int _mod1, int _isplit, AtomicReferenceArray <Bucket> _hTable)
+        {
+            mod1   = _mod1;
+            mod2   = 2 * _mod1;
+            isplit = _isplit;
+            hTable = _hTable;
+        } // constructor
+
+        int address (long h)
+        {
+            var i = (int) (h & (mod1 - 1));
+            return (i < isplit) ? (int) (h & (mod2 - 1)) : i;
+        } // address
+
+    } // Level inner class
+
+    /** The current addressing state (replaced by splits)
+     */
+    private volatile Level level;
+
+    /** Exclusive mode is held by a split; shared mode by writers (readers are optimistic)
+     */
+    private final StampedLock splitLock = new StampedLock ();
+
+    /** The striped locks serialising writers to the same bucket
+     */
+    private final ReentrantLock [] stripe = new ReentrantLock [STRIPES];
+
+    /** The counter for the total number of keys in the map
+     */
+    private final LongAdder keyCount = new LongAdder ();
+
+    /** Counter for optimistic reads that had to be retried (for performance testing).
+     */
+    private final LongAdder retries = new LongAdder ();
+
+    /********************************************************************************
+     * Construct a concurrent hash table that uses Linear Hashing.
+     * @param _classK  the class for keys (K)
+     * @param _classV  the class for values (V)
+     */
+    public ConcurrentLinHashMap (Class <K> _classK, Class <V> _classV)
+    {
+        var mod1   = 4;                                                      // initial size
+        var hTable = new AtomicReferenceArray <Bucket> (2 * mod1);
+        for (var i = 0; i < hTable.length (); i++) hTable.set (i, Bucket.EMPTY);
+        level = new Level (mod1, 0, hTable);
+        for (var i = 0; i < STRIPES; i++) stripe [i] = new ReentrantLock ();
+    } // constructor
+
+    /********************************************************************************
+     * Return a set containing all the entries as pairs of keys and values.  The set is
+     * a copy taken while splits are held off.
+     * @return  the set view of the map
+     */
+    @SuppressWarnings("unchecked")
+    public Set <Map.Entry <K, V>> entrySet ()
+    {
+        var enSet = new HashSet <Map.Entry <K, V>> ();
+        var stamp = splitLock.readLock ();
+        try {
+            var lv = level;
+            for (var i = 0; i < lv.mod1 + lv.isplit; i++) {
+                var b = lv.hTable.get (i);
+                for (var j = 0; j < b.key.length; j++) enSet.add (Map.entry ((K) b.key [j], (V) b.value [j]));
+            } // for
+        } finally {
+            splitLock.unlockRead (stamp);
+        } // try
+        return enSet;
+    } // entrySet
+
+    /********************************************************************************
+     * Given the key, look up the value in the hash table without locking.
+     * @param k  the key used for look up
+     * @return  the value associated with the key
+     */
+    @SuppressWarnings("unchecked")
+    public V get (Object k)
+    {
+        var h = hash (k);
+        for (var t = 0; t < TRIES; t++) {
+            var stamp = splitLock.tryOptimisticRead ();
+            if (stamp != 0) {
+                var v = find (level, k, h);
+                if (splitLock.validate (stamp)) return (V) v;
+            } // if
+            retries.increment ();
+            Thread.onSpinWait ();
+        } // for
+
+        var stamp = splitLock.readLock ();                                   // give up on optimism
+        try {
+            return (V) find (level, k, h);
+        } finally {
+            splitLock.unlockRead (stamp);
+        } // try
+    } // get
+
+    /********************************************************************************
+     * Determine whether the hash table contains the given key.
+     * @param k  the key to look for
+     * @return  whether the key is present
+     */
+    public boolean containsKey (Object k)
+    {
+        return get (k) != null;
+    } // containsKey
+
+    /********************************************************************************
+     * Put the key-value pair in the hash table, replacing any previous value for the
+     * key.  Split the 'isplit' bucket when the load factor is exceeded.
+     * @param k  the key to insert
+     * @param v  the value to insert
+     * @return  the old/previous value, null if none
+     */
+    @SuppressWarnings("unchecked")
+    public V put (K k, V v)
+    {
+        var h     = hash (k);
+        var stamp = splitLock.readLock ();
+        try {
+            var lv = level;
+            var i  = lv.address (h);
+            var s  = stripe [i & (STRIPES - 1)];
+            s.lock ();
+            try {
+                var b = lv.hTable.get (i);
+                var j = b.indexOf (k, h);
+                if (j >= 0) {                                                // key present => replace
+                    lv.hTable.set (i, b.replace (j, v));
+                    return (V) b.value [j];
+                } // if
+                lv.hTable.set (i, b.add (k, v, h));
+            } finally {
+                s.unlock ();
+            } // try
+        } finally {
+            splitLock.unlockRead (stamp);
+        } // try
+
+        keyCount.increment ();
+        if (loadFactor () > THRESHOLD) split ();                             // split beyond THRESHOLD
+        return null;
+    } // put
+
+    /********************************************************************************
+     * Remove the key (and its value) from the hash table.
+     * @param k  the key to remove
+     * @return  the removed value, null if the key was not present
+     */
+    @SuppressWarnings("unchecked")
+    public V remove (Object k)
+    {
+        var h     = hash (k);
+        var stamp = splitLock.readLock ();
+        try {
+            var lv = level;
+            var i  = lv.address (h);
+            var s  = stripe [i & (STRIPES - 1)];
+            s.lock ();
+            try {
+                var b = lv.hTable.get (i);
+                var j = b.indexOf (k, h);
+                if (j < 0) return null;
+                lv.hTable.set (i, b.remove (j));
+                keyCount.decrement ();
+                return (V) b.value [j];
+            } finally {
+                s.unlock ();
+            } // try
+        } finally {
+            splitLock.unlockRead (stamp);
+        } // try
+    } // remove
+
+    /********************************************************************************
+     * Print the hash table.
+     */
+    public void print ()
+    {
+        out.println ("ConcurrentLinHashMap");
+        out.println ("-------------------------------------------");
+        var lv = level;
+        for (var i = 0; i < lv.mod1 + lv.isplit; i++) {
+            out.println ("Bucket [ " + i + " ] = " + Arrays.toString (lv.hTable.get (i).key));
+        } // for
+        out.println ("-------------------------------------------");
+    } // print
+
+    /********************************************************************************
+     * Return the number of keys stored in the hash table.
+     * @return  the size of the hash table
+     */
+    public int size ()
+    {
+        return keyCount.intValue ();
+    } // size
+
+    /********************************************************************************
+     * Return the number of optimistic reads that had to be retried because a split
+     * overlapped them.
+     * @return  the retry count
+     */
+    public long retries ()
+    {
+        return retries.sum ();
+    } // retries
+
+    /********************************************************************************
+     * Split bucket 'isplit' by creating a new bucket 'mod1 + isplit' and moving to it
+     * the keys whose high resolution hash selects it.  Only this one bucket is moved,
+     * under the exclusive mode of the split lock, so readers that overlap it just retry.
+     * Increment 'isplit'.  If the current split phase is complete, reset 'isplit' to
+     * zero, and update the hash functions.
+     */
+    private void split ()
+    {
+        var stamp = splitLock.writeLock ();
+        try {
+            if (loadFactor () <= THRESHOLD) return;                          // another writer split
+            var lv     = level;
+            var nb     = lv.mod1 + lv.isplit;                                // new bucket
+            var hTable = lv.hTable;
+            if (nb == hTable.length ()) {                                    // double the bucket array
+                hTable = new AtomicReferenceArray <> (2 * nb);
+                for (var i = 0; i < nb; i++) hTable.set (i, lv.hTable.get (i));
+                for (var i = nb; i < 2 * nb; i++) hTable.set (i, Bucket.EMPTY);
+            } // if
+
+            var b    = hTable.get (lv.isplit);
+            var mask = lv.mod2 - 1;
+            hTable.set (nb, b.filter (mask, nb, true));
+            hTable.set (lv.isplit, b.filter (mask, nb, false));
+
+            level = (lv.isplit + 1 == lv.mod1) ? new Level (lv.mod2, 0, hTable)
+                                               : new Level (lv.mod1, lv.isplit + 1, hTable);
+        } finally {
+            splitLock.unlockWrite (stamp);
+        } // try
+    } // split
+
+    /********************************************************************************
+     * Return the load factor (keys per home bucket) for the hash table.
+     * @return  the load factor
+     */
+    private double loadFactor ()
+    {
+        var lv = level;
+        return keyCount.sum () / (double) (lv.mod1 + lv.isplit);
+    } // loadFactor
+
+    /********************************************************************************
+     * Find the value for the key in its home bucket at the given level.
+     * @param lv  the addressing state
+     * @param k   the key to find
+     * @param h   the key's hash
+     * @return  the value stored for the key, null if none
+     */
+    private static Object find (Level lv, Object k, long h)
+    {
+        var b = lv.hTable.get (lv.address (h));
+        var j = b.indexOf (k, h);
+        return (j >= 0) ? b.value [j] : null;
+    } // find
+
+    /********************************************************************************
+     * Hash the key to 64 bits.  KeyType supplies its own cached 64-bit hash; other keys
+     * have their hashCode spread over all 64 bits.
+     * @param k  the key to hash
+     * @return  the hash value
+     */
+    private static long hash (Object k)
+    {
+        if (k instanceof KeyType kt) return kt.hash64 ();
+        var h = k.hashCode () * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    } // hash
+
+    /********************************************************************************
+     * The main method used for testing:  several writer threads insert keys while
+     * reader threads look up keys that are known to be present.
+     * @param  args the command-line arguments (args [0] gives number of keys to insert)
+     */
+    public static void main (String [] args)
+        throws InterruptedException
+    {
+        var totalKeys = (args.length == 1) ? Integer.valueOf (args [0]) : 100000;
+        var nThreads  = 4;
+
+        var ht = new ConcurrentLinHashMap <Integer, Integer> (Integer.class, Integer.class);
+        for (var i = 0; i < totalKeys / 10; i++) ht.put (-i - 1, i);        // keys readers look for
+
+        var misses  = new LongAdder ();
+        var threads = new ArrayList <Thread> ();
+        for (var t = 0; t < nThreads; t++) {
+            final var w = t;
+            threads.add (new Thread (() -> {
+                for (var i = w; i < totalKeys; i += nThreads) ht.put (i, i * i);
+            }));
+            threads.add (new Thread (() -> {
+                var rng = new Random (w);
+                for (var i = 0; i < totalKeys; i++) {
+                    var k = rng.nextInt (totalKeys / 10);
+                    if (ht.get (-k - 1) == null) misses.increment ();
+                } // for
+            }));
+        } // for
+        for (var th : threads) th.start ();
+        for (var th : threads) th.join ();
+
+        out.println ("size = " + ht.size () + ", misses = " + misses.sum () + ", retries = " + ht.retries ());
+    } // main
+
+} // ConcurrentLinHashMap class
+
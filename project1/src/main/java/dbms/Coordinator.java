@@ -0,0 +1,530 @@
+package dbms;
+/************************************************************************************
+ * @file Coordinator.java
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.System.out;
+
+/************************************************************************************
+ * The Coordinator class hash-shards tables across worker processes (QueryServers
+ * started in worker mode, on this machine or others) and answers queries over them by
+ * scatter-gather:  it sends a query to every worker at once and combines the answers.
+ * <p>
+ *   - select and project are pushed down, so only matching tuples and the projected
+ *     columns travel back;
+ *   - aggregation runs in two phases:  each worker groups its shard and computes partial
+ *     counts, sums, minimums and maximums, which the coordinator merges (avg is a sum
+ *     over a count);
+ *   - a join runs locally on each worker when both tables are sharded on the join
+ *     attributes; otherwise the coordinator either broadcasts the smaller table to every
+ *     worker (as i_join probes a small indexed table) or has the workers repartition
+ *     the tables that are not sharded on the join attributes among themselves, choosing
+ *     whichever moves fewer tuples.
+ *
+ * #usage try (var c = Coordinator.launch (4)) {
+ *            c.create ("movie", "title year length", "String Integer Integer", "title", "title");
+ *            c.insert ("movie", rows);  c.select ("movie", "year == 1977", "title").print ();
+ *        }
+ */
+public class Coordinator
+       implements Closeable
+{
+    /********************************************************************************
+     * The schema and shard key of a sharded table.
+     */
+    private record Sharded (String name, String [] attributes, String [] domains, String [] key,
+                            String [] shardKey, Partitioning scheme) { }
+
+    /** Source of names for the temporary tables of joins
+     */
+    private static final AtomicLong TEMPS = new AtomicLong ();
+
+    /** The workers' addresses (host:port), in shard order
+     */
+    private final List <String> workers;
+
+    /** A connection to each worker
+     */
+    private final List <QueryClient> clients = new ArrayList <> ();
+
+    /** The worker processes launched by this coordinator (to stop on close)
+     */
+    private final List <Process> processes;
+
+    /** The sharded tables by name
+     */
+    private final Map <String, Sharded> tables = new HashMap <> ();
+
+    /** How the last join was executed
+     */
+    private String lastPlan = null;
+
+    /********************************************************************************
+     * Connect to running workers.
+     * @param _workers  the workers' addresses as host:port, in shard order
+     * @throws IOException  if a worker cannot be reached
+     */
+    public Coordinator (List <String> _workers)
+        throws IOException
+    {
+        this (_workers, List.of ());
+    } // constructor
+
+    /********************************************************************************
+     * Connect to workers, taking charge of the processes running them.
+     */
+    private Coordinator (List <String> _workers, List <Process> _processes)
+        throws IOException
+    {
+        workers   = List.copyOf (_workers);
+        processes = _processes;
+        for (var w : workers) {
+            var hp = w.split (":");
+            clients.add (new QueryClient (hp [0], Integer.parseInt (hp [1])));
+        } // for
+    } // constructor
+
+    /********************************************************************************
+     * Launch n worker processes on this machine and connect to them.  The workers run
+     * on the same class path and stop when the coordinator is closed (or exits).
+     * @param n  the number of workers
+     * @return  the coordinator
+     * @throws IOException  if a worker cannot be started
+     */
+    public static Coordinator launch (int n)
+        throws IOException
+    {
+        var java      = System.getProperty ("java.home") + File.separator + "bin" + File.separator + "java";
+        var addrs     = new ArrayList <String> ();
+        var processes = new ArrayList <Process> ();
+        try {
+            for (var i = 0; i < n; i++) {
+                var p = new ProcessBuilder (java, "-cp", System.getProperty ("java.class.path"),
+                                            QueryServer.class.getName (), "0", "worker")
+                            .redirectErrorStream (true).start ();
+                processes.add (p);
+                var in = new BufferedReader (new InputStreamReader (p.getInputStream ()));
+                String line;
+                while ((line = in.readLine ()) != null && ! line.startsWith ("QueryServer listening on port ")) { }
+                if (line == null) throw new IOException ("launch: worker " + i + " exited");
+                addrs.add ("127.0.0.1:" + line.substring (line.lastIndexOf (' ') + 1));
+                var drain = new Thread (() -> {                             // keep the worker's output flowing
+                    try { while (in.readLine () != null) { } } catch (IOException ex) { }
+                }, "Coordinator-worker-" + i);
+                drain.setDaemon (true);
+                drain.start ();
+            } // for
+            return new Coordinator (addrs, processes);
+        } catch (IOException ex) {
+            for (var p : processes) p.destroy ();
+            throw ex;
+        } // try
+    } // launch
+
+    /********************************************************************************
+     * Return the number of workers.
+     * @return  the worker count
+     */
+    public int workers ()
+    {
+        return workers.size ();
+    } // workers
+
+    /********************************************************************************
+     * Return how the last join was executed:  "co-located", "broadcast <table>" or
+     * "repartition <table> ...".
+     * @return  the plan
+     */
+    public String lastPlan ()
+    {
+        return lastPlan;
+    } // lastPlan
+
+    /********************************************************************************
+     * Create a table on every worker, sharded by hash of the shard key attributes.
+     * @param name        the table name
+     * @param attributes  the attribute names (space separated)
+     * @param domains     the domains (space separated)
+     * @param key         the primary key (space separated)
+     * @param shardKey    the attributes to shard by (space separated)
+     * @throws IOException  if a worker fails
+     */
+    public void create (String name, String attributes, String domains, String key, String shardKey)
+        throws IOException
+    {
+        var t = new Sharded (name, attributes.split (" "), domains.split (" "), key.split (" "),
+                             shardKey.split (" "), Partitioning.hash (workers.size (), shardKey.split (" ")));
+        createOn (t, name);
+        tables.put (name, t);
+    } // create
+
+    /********************************************************************************
+     * Insert tuples into a sharded table, sending each to the worker its shard key
+     * hashes to (in bulk).
+     * @param name  the table name
+     * @param rows  the tuples
+     * @return  the number of tuples inserted
+     * @throws IOException  if a worker fails
+     */
+    public int insert (String name, List <Comparable []> rows)
+        throws IOException
+    {
+        var t     = sharded (name);
+        var cols  = columns (t, t.shardKey ());
+        var parts = new ArrayList <List <Comparable []>> ();
+        for (var w : workers) parts.add (new ArrayList <> ());
+        for (var tup : rows) {
+            var vals = new Comparable [cols.length];
+            for (var j = 0; j < cols.length; j++) vals [j] = tup [cols [j]];
+            parts.get (t.scheme ().route (vals)).add (tup);
+        } // for
+        var n = 0;
+        for (var i = 0; i < workers.size (); i++) n += clients.get (i).load (name, parts.get (i));
+        return n;
+    } // insert
+
+    /********************************************************************************
+     * Return the number of tuples in a sharded table.
+     * @param name  the table name
+     * @return  the tuple count
+     * @throws IOException  if a worker fails
+     */
+    public long count (String name)
+        throws IOException
+    {
+        var n = 0L;
+        for (var r : scatter ("COUNT " + sharded (name).name ())) n += (Integer) r.rows ().get (0) [0];
+        return n;
+    } // count
+
+    /********************************************************************************
+     * Select the tuples satisfying 'attribute op value' and project them onto the given
+     * attributes, both on the workers.
+     * @param name        the table name
+     * @param condition   the condition, e.g., "year == 1977"
+     * @param attributes  the attributes to keep (space separated, or null for all)
+     * @return  the gathered result
+     * @throws IOException  if a worker fails
+     */
+    public Table select (String name, String condition, String attributes)
+        throws IOException
+    {
+        var q = "SELECT " + sharded (name).name () + " " + condition.trim ();
+        if (attributes != null) q += " PROJECT " + attributes.trim ();
+        return gather (name + "_select", scatter (q));
+    } // select
+
+    /********************************************************************************
+     * Project a sharded table onto the given attributes on the workers.
+     * @param name        the table name
+     * @param attributes  the attributes to keep (space separated)
+     * @return  the gathered result
+     * @throws IOException  if a worker fails
+     */
+    public Table project (String name, String attributes)
+        throws IOException
+    {
+        return gather (name + "_project", scatter ("PROJECT " + sharded (name).name () + " " + attributes.trim ()));
+    } // project
+
+    /********************************************************************************
+     * Group a sharded table and aggregate each group in two phases:  the workers
+     * compute partial aggregates of their shards, which are merged here.
+     *
+     * #usage c.aggregate ("movie", "year", "count:* avg:length max:length")
+     *
+     * @param name        the table name
+     * @param groupBy     the grouping attributes (space separated, or "" for one group)
+     * @param aggregates  the aggregates fn:attr (fn is count, sum, min, max or avg)
+     * @return  a table of the grouping values followed by the aggregates
+     * @throws IOException  if a worker fails
+     */
+    public Table aggregate (String name, String groupBy, String aggregates)
+        throws IOException
+    {
+        var by   = groupBy.isBlank () ? new String [0] : groupBy.trim ().split (" ");
+        var aggs = aggregates.trim ().split (" ");
+        var part = new ArrayList <String> ();                               // the partial aggregates
+        for (var a : aggs) {
+            if (a.startsWith ("avg:")) {
+                part.add ("sum:" + a.substring (4));
+                part.add ("count:*");
+            } else {
+                part.add (a);
+            } // if
+        } // for
+        var fns = new String [part.size ()];
+        for (var k = 0; k < fns.length; k++) fns [k] = part.get (k).split (":") [0];
+
+        var results = scatter ("GROUP " + sharded (name).name () + " " + (by.length == 0 ? "*" : String.join (",", by))
+                               + " " + String.join (" ", part));
+        var merged  = new LinkedHashMap <List <Comparable>, Comparable []> ();
+        for (var r : results) {
+            for (var t : r.rows ()) {
+                var g   = List.of (Arrays.copyOf (t, by.length));
+                var acc = merged.get (g);
+                if (acc == null) {
+                    merged.put (g, t.clone ());
+                    continue;
+                } // if
+                for (var k = 0; k < fns.length; k++) {
+                    acc [by.length + k] = QueryServer.combine (fns [k], acc [by.length + k], t [by.length + k]);
+                } // for
+            } // for
+        } // for
+
+        var pdoms = results.get (0).domains ();                            // the partial aggregates' domains
+        var attrs = Arrays.copyOf (by, by.length + aggs.length);
+        var doms  = new Class [attrs.length];
+        for (int j = 0, k = 0; j < attrs.length; j++) {
+            var fa = (j < by.length) ? null : aggs [j - by.length].split (":");
+            if (fa != null) attrs [j] = fa [0].equals ("count") ? "count" : fa [0] + "_" + fa [1];
+            doms [j] = (fa != null && fa [0].equals ("avg")) ? Double.class : domain (pdoms [k]);
+            k += (fa != null && fa [0].equals ("avg")) ? 2 : 1;
+        } // for
+
+        var rows = new ArrayList <Comparable []> ();
+        for (var t : merged.values ()) {
+            var r = Arrays.copyOf (t, attrs.length);
+            for (int j = 0, k = by.length; j < aggs.length; j++) {
+                var avg = aggs [j].startsWith ("avg:");
+                r [by.length + j] = avg ? ((Number) t [k]).doubleValue () / ((Number) t [k + 1]).longValue () : t [k];
+                k += avg ? 2 : 1;
+            } // for
+            rows.add (r);
+        } // for
+        return new Table (name + "_aggregate", attrs, doms, (by.length > 0) ? by : attrs, rows);
+    } // aggregate
+
+    /********************************************************************************
+     * Equi-join two sharded tables, choosing how to bring matching tuples together.
+     * Shipping costs are estimated in tuples moved:  a broadcast sends the smaller table
+     * to every worker; a repartition sends each table not already sharded on its join
+     * attributes across the workers once.
+     *
+     * #usage c.join ("movie", "studioName", "studio", "name")
+     *
+     * @param name1        the lhs table
+     * @param attributes1  its join attributes (space separated)
+     * @param name2        the rhs table
+     * @param attributes2  its join attributes (space separated)
+     * @return  the gathered join
+     * @throws IOException  if a worker fails
+     */
+    public Table join (String name1, String attributes1, String name2, String attributes2)
+        throws IOException
+    {
+        var t1 = sharded (name1);
+        var t2 = sharded (name2);
+        var a1 = attributes1.trim ().split (" ");
+        var a2 = attributes2.trim ().split (" ");
+        var on = String.join (",", a1) + " " + String.join (",", a2);
+        var local1 = Arrays.equals (t1.shardKey (), a1);
+        var local2 = Arrays.equals (t2.shardKey (), a2);
+        if (local1 && local2) {
+            lastPlan = "co-located";
+            return gather (name1 + "_join", scatter ("JOIN " + name1 + " " + name2 + " " + on));
+        } // if
+
+        var n1 = count (name1);
+        var n2 = count (name2);
+        var n  = workers.size ();
+        var broadcast   = Math.min (n1, n2) * n;
+        var repartition = (local1 ? 0 : n1) + (local2 ? 0 : n2);
+        var temps       = new ArrayList <String> ();
+        try {
+            if (broadcast < repartition) {
+                var small = (n1 <= n2) ? t1 : t2;
+                var tmp   = temp (small, temps);
+                var rows  = scan (small.name ());
+                for (var c : clients) c.load (tmp, rows);
+                lastPlan = "broadcast " + small.name ();
+                return gather (name1 + "_join", scatter ("JOIN " + ((small == t1) ? tmp + " " + name2
+                                                                                  : name1 + " " + tmp) + " " + on));
+            } // if
+
+            var left  = local1 ? name1 : shuffle (t1, a1, temps);
+            var right = local2 ? name2 : shuffle (t2, a2, temps);
+            lastPlan  = "repartition" + (local1 ? "" : " " + name1) + (local2 ? "" : " " + name2);
+            return gather (name1 + "_join", scatter ("JOIN " + left + " " + right + " " + on));
+        } finally {
+            for (var tmp : temps) scatter ("DROP " + tmp);
+        } // try
+    } // join
+
+    /********************************************************************************
+     * Drop a sharded table from every worker.
+     * @param name  the table name
+     * @throws IOException  if a worker fails
+     */
+    public void drop (String name)
+        throws IOException
+    {
+        scatter ("DROP " + sharded (name).name ());
+        tables.remove (name);
+    } // drop
+
+    /********************************************************************************
+     * Close the connections and stop the workers this coordinator launched.
+     * @throws IOException  if a connection cannot be closed
+     */
+    public void close ()
+        throws IOException
+    {
+        for (var c : clients) c.close ();
+        for (var p : processes) {
+            p.getOutputStream ().close ();                                  // the worker exits at EOF
+            p.destroy ();
+        } // for
+    } // close
+
+    //----------------------------------------------------------------------------------
+    // Private Methods
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Send a query to every worker at once, then collect the answers in shard order.
+     * Each worker runs its part concurrently.
+     */
+    private List <QueryClient.Result> scatter (String query)
+        throws IOException
+    {
+        for (var c : clients) {
+            c.send (query);
+            c.flush ();
+        } // for
+        var results = new ArrayList <QueryClient.Result> ();
+        String error = null;
+        for (var c : clients) {
+            var r = c.receive ();
+            if (r.failed ()) error = r.error ();
+            results.add (r);
+        } // for
+        if (error != null) throw new IOException ("scatter: " + query + ": " + error);
+        return results;
+    } // scatter
+
+    /********************************************************************************
+     * Combine the answers of the workers into one table.
+     */
+    private Table gather (String name, List <QueryClient.Result> results)
+    {
+        var first = results.get (0);
+        var doms  = new Class [first.domains ().length];
+        for (var j = 0; j < doms.length; j++) doms [j] = domain (first.domains () [j]);
+        var rows  = new ArrayList <Comparable []> ();
+        for (var r : results) rows.addAll (r.rows ());
+        return new Table (name, first.attributes (), doms, first.attributes (), rows);
+    } // gather
+
+    /********************************************************************************
+     * Return all the tuples of a sharded table.
+     */
+    private List <Comparable []> scan (String name)
+        throws IOException
+    {
+        var rows = new ArrayList <Comparable []> ();
+        for (var r : scatter ("SCAN " + name)) rows.addAll (r.rows ());
+        return rows;
+    } // scan
+
+    /********************************************************************************
+     * Have the workers repartition a table by hash of the join attributes into a new
+     * temporary table, returning its name.
+     */
+    private String shuffle (Sharded t, String [] attrs, List <String> temps)
+        throws IOException
+    {
+        var tmp = temp (t, temps);
+        scatter ("SHUFFLE " + t.name () + " " + String.join (",", attrs) + " " + tmp + " " + String.join (" ", workers));
+        return tmp;
+    } // shuffle
+
+    /********************************************************************************
+     * Create an empty temporary table with the schema of t on every worker.
+     */
+    private String temp (Sharded t, List <String> temps)
+        throws IOException
+    {
+        var tmp = t.name () + "_tmp" + TEMPS.incrementAndGet ();
+        createOn (t, tmp);
+        temps.add (tmp);
+        return tmp;
+    } // temp
+
+    /********************************************************************************
+     * Create a table with the schema of t under the given name on every worker.
+     */
+    private void createOn (Sharded t, String name)
+        throws IOException
+    {
+        scatter ("CREATE " + name + " " + String.join (",", t.attributes ()) + " " + String.join (",", t.domains ())
+                 + " " + String.join (",", t.key ()));
+    } // createOn
+
+    /********************************************************************************
+     * Return the sharded table with the given name.
+     */
+    private Sharded sharded (String name)
+    {
+        var t = tables.get (name);
+        if (t == null) throw new IllegalArgumentException ("Coordinator: no sharded table named " + name);
+        return t;
+    } // sharded
+
+    /********************************************************************************
+     * Return the column positions of the given attributes of t.
+     */
+    private static int [] columns (Sharded t, String [] attrs)
+    {
+        var cols = new int [attrs.length];
+        var all  = List.of (t.attributes ());
+        for (var j = 0; j < attrs.length; j++) {
+            cols [j] = all.indexOf (attrs [j]);
+            if (cols [j] < 0) throw new IllegalArgumentException ("Coordinator: unknown attribute " + attrs [j]);
+        } // for
+        return cols;
+    } // columns
+
+    /********************************************************************************
+     * Return the class for a domain name as sent by a server, e.g., "Integer".
+     */
+    private static Class domain (String simpleName)
+    {
+        try {
+            return Class.forName ("java.lang." + simpleName);
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalArgumentException ("Coordinator: unknown domain " + simpleName);
+        } // try
+    } // domain
+
+    /********************************************************************************
+     * The main method launches three workers, shards the movie database across them
+     * and runs a few distributed queries.
+     * @param  args the command-line arguments
+     */
+    public static void main (String [] args)
+        throws IOException
+    {
+        try (var c = launch (3)) {
+            c.create ("movie", "title year length studioName", "String Integer Integer String", "title", "title");
+            c.create ("studio", "name address", "String String", "name", "name");
+            var movies = new ArrayList <Comparable []> ();
+            for (var i = 0; i < 60; i++) movies.add (new Comparable [] { "film_" + i, 1970 + i % 10, 90 + i, "studio_" + i % 4 });
+            c.insert ("movie", movies);
+            var studios = new ArrayList <Comparable []> ();
+            for (var i = 0; i < 4; i++) studios.add (new Comparable [] { "studio_" + i, "street_" + i });
+            c.insert ("studio", studios);
+
+            c.select ("movie", "year == 1977", "title length").print ();
+            c.aggregate ("movie", "year", "count:* avg:length max:length").print ();
+            c.join ("movie", "studioName", "studio", "name").print ();
+            out.println ("join plan: " + c.lastPlan ());
+        } // try
+    } // main
+
+} // Coordinator class
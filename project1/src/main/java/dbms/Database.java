@@ -0,0 +1,357 @@
+package dbms;
+/************************************************************************************
+ * @file Database.java
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import static java.lang.System.out;
+
+/************************************************************************************
+ * The Database class is a catalog over the tables saved in the storage directory.
+ * Saving a table (save or saveMapped) also writes a small header file holding its
+ * schema and tuple count, so the catalog lists tables and reads their schemas without
+ * opening them.  A table is opened (preferring its memory-mapped file, see
+ * Table.loadMapped) only when first asked for, so startup costs nothing per table and
+ * a session pays only for the tables it touches.
+ * <p>
+ * The catalog estimates the memory each open table retains (for a mapped table, only
+ * the tuples decoded so far).  When the total exceeds its budget, the least recently
+ * used tables are evicted:  a table changed since it was opened is first written back,
+ * and the next request for it reopens it.  Callers should therefore ask the catalog for
+ * a table each time they use it, rather than holding on to it.
+ *
+ * #usage var db    = new Database ();
+ *        var movie = db.table ("movie");
+ */
+public class Database
+       implements Closeable
+{
+    /** The file name extension of table headers
+     */
+    static final String EXT = ".sch";
+
+    /** Marker identifying a table header file
+     */
+    private static final int MAGIC = 0x54425348;                            // "TBSH"
+
+    /********************************************************************************
+     * This record holds the schema of a saved table as read from its header.
+     * @param name        the name of the table
+     * @param kind        the class of the table (e.g., Table or LsmTable)
+     * @param attributes  the attribute names
+     * @param domains     the attribute domains
+     * @param key         the primary key
+     * @param tuples      the number of tuples when the table was saved
+     */
+    public record Schema (String name, String kind, String [] attributes, Class [] domains, String [] key,
+                          long tuples) { }
+
+    /********************************************************************************
+     * This inner class holds an open table with the version it was last saved at and
+     * its estimated size.
+     */
+    private static final class Entry
+    {
+        final Table table;
+        long saved;
+        long bytes;
+
+        Entry (Table _table, long _saved)
+        {
+            table = _table; saved = _saved;
+        } // constructor
+
+    } // Entry inner class
+
+    /** The maximum (estimated) bytes of open tables
+     */
+    private final long maxBytes;
+
+    /** The open tables in LRU order (eldest first)
+     */
+    private final LinkedHashMap <String, Entry> open = new LinkedHashMap <> (16, 0.75f, true);
+
+    /** The schemas read so far
+     */
+    private final Map <String, Schema> schemas = new HashMap <> ();
+
+    /** The names of the tables (listed on first use)
+     */
+    private TreeSet <String> names = null;
+
+    /** Counters for tables opened and evicted (for performance testing)
+     */
+    private long opens = 0, evictions = 0;
+
+    /********************************************************************************
+     * Construct a catalog over the storage directory, with a budget of a quarter of
+     * the maximum heap.
+     */
+    public Database ()
+    {
+        this (Runtime.getRuntime ().maxMemory () / 4);
+    } // constructor
+
+    /********************************************************************************
+     * Construct a catalog over the storage directory.
+     * @param _maxBytes  the maximum (estimated) bytes of open tables
+     */
+    public Database (long _maxBytes)
+    {
+        maxBytes = _maxBytes;
+    } // constructor
+
+    /********************************************************************************
+     * Return the names of the tables in the catalog.
+     * @return  the table names in order
+     */
+    public synchronized SortedSet <String> tables ()
+    {
+        return Collections.unmodifiableSortedSet (new TreeSet <> (names ()));
+    } // tables
+
+    /********************************************************************************
+     * Return the schema of a table, read from its header (without opening it).
+     * @param name  the name of the table
+     * @return  the schema, or null if the table has no header
+     */
+    public synchronized Schema schema (String name)
+    {
+        var s = schemas.get (name);
+        if (s == null && names ().contains (name)) {
+            try {
+                s = readSchema (name);
+                schemas.put (name, s);
+            } catch (IOException ex) {
+                out.println ("schema: IO Exception");
+                ex.printStackTrace ();
+            } // try
+        } // if
+        return s;
+    } // schema
+
+    /********************************************************************************
+     * Return a table, opening it if it is not open, and evict idle tables if the
+     * budget is exceeded.
+     * @param name  the name of the table
+     * @return  the table, or null if it cannot be loaded
+     */
+    public synchronized Table table (String name)
+    {
+        var e = open.get (name);
+        if (e == null) {
+            var t = Table.loadMapped (name);
+            if (t == null) return null;
+            open.put (name, e = new Entry (t, t.version ()));
+            names ().add (name);
+            opens++;
+        } // if
+        trim (name);
+        return e.table;
+    } // table
+
+    /********************************************************************************
+     * Add a new table to the catalog (it is saved when evicted or the catalog is
+     * closed).
+     * @param table  the table
+     */
+    public synchronized void add (Table table)
+    {
+        open.put (table.getName (), new Entry (table, -1));
+        names ().add (table.getName ());
+        schemas.remove (table.getName ());
+        trim (table.getName ());
+    } // add
+
+    /********************************************************************************
+     * Return whether a table is open.
+     * @param name  the name of the table
+     * @return  whether it is in memory
+     */
+    public synchronized boolean isOpen (String name)
+    {
+        return open.containsKey (name);
+    } // isOpen
+
+    /********************************************************************************
+     * Return the estimated bytes retained by an open table (0 if it is not open).
+     * @param name  the name of the table
+     * @return  the estimated size in bytes
+     */
+    public synchronized long memory (String name)
+    {
+        var e = open.get (name);
+        return (e == null) ? 0 : measure (e);
+    } // memory
+
+    /********************************************************************************
+     * Return the estimated bytes retained by all open tables.
+     * @return  the estimated size in bytes
+     */
+    public synchronized long memory ()
+    {
+        var sum = 0L;
+        for (var e : open.values ()) sum += measure (e);
+        return sum;
+    } // memory
+
+    /********************************************************************************
+     * Evict a table, first saving it if it changed since it was opened or saved.
+     * @param name  the name of the table
+     */
+    public synchronized void evict (String name)
+    {
+        var e = open.remove (name);
+        if (e != null) {
+            writeBack (e);
+            evictions++;
+        } // if
+    } // evict
+
+    /********************************************************************************
+     * Save the changed open tables (keeping them open).
+     */
+    public synchronized void flush ()
+    {
+        for (var e : open.values ()) writeBack (e);
+    } // flush
+
+    /********************************************************************************
+     * Save the changed open tables and close them all.
+     */
+    public synchronized void close ()
+    {
+        for (var name : new ArrayList <> (open.keySet ())) evict (name);
+    } // close
+
+    /********************************************************************************
+     * Print the open tables with their estimated sizes and the counters.
+     */
+    public synchronized void print ()
+    {
+        out.println ("Database: " + names ().size () + " tables, " + open.size () + " open, " + opens
+                   + " opens, " + evictions + " evictions");
+        for (var e : open.entrySet ()) {
+            out.println ("  " + e.getKey () + ": " + measure (e.getValue ()) + " bytes");
+        } // for
+    } // print
+
+    //----------------------------------------------------------------------------------
+    // Table Headers
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Write the header of a table (its schema and tuple count) next to its files.
+     * @param table  the table
+     * @throws IOException  if the header cannot be written
+     */
+    static void writeSchema (Table table)
+        throws IOException
+    {
+        Files.createDirectories (Paths.get (Table.DIR));
+        try (var dos = new DataOutputStream (new BufferedOutputStream (
+                          new FileOutputStream (Table.DIR + table.getName () + EXT)))) {
+            dos.writeInt (MAGIC);
+            dos.writeUTF (table.getClass ().getSimpleName ());
+            dos.writeUTF (table.getName ());
+            dos.writeShort (table.attributes ().length);
+            for (var a : table.attributes ()) dos.writeUTF (a);
+            for (var d : table.getDomain ()) dos.writeUTF (d.getSimpleName ());
+            dos.writeShort (table.primaryKey ().length);
+            for (var k : table.primaryKey ()) dos.writeUTF (k);
+            dos.writeLong (table.rows ().size ());
+        } // try
+    } // writeSchema
+
+    /********************************************************************************
+     * Read the header of a table.
+     * @param name  the name of the table
+     * @return  the schema
+     * @throws IOException  if the header cannot be read
+     */
+    static Schema readSchema (String name)
+        throws IOException
+    {
+        try (var dis = new DataInputStream (new BufferedInputStream (
+                          new FileInputStream (Table.DIR + name + EXT)))) {
+            if (dis.readInt () != MAGIC) throw new IOException ("readSchema: " + name + EXT + " is not a table header");
+            var kind  = dis.readUTF ();
+            var tname = dis.readUTF ();
+            var attrs = new String [dis.readShort ()];
+            for (var j = 0; j < attrs.length; j++) attrs [j] = dis.readUTF ();
+            var doms  = new String [attrs.length];
+            for (var j = 0; j < doms.length; j++) doms [j] = dis.readUTF ();
+            var key   = new String [dis.readShort ()];
+            for (var j = 0; j < key.length; j++) key [j] = dis.readUTF ();
+            return new Schema (tname, kind, attrs, Table.findClass (doms), key, dis.readLong ());
+        } // try
+    } // readSchema
+
+    //----------------------------------------------------------------------------------
+    // Private Methods
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Return the table names, listing the header files on first use.
+     */
+    private TreeSet <String> names ()
+    {
+        if (names == null) {
+            names = new TreeSet <> ();
+            var files = new File (Table.DIR).list ((dir, f) -> f.endsWith (EXT));
+            if (files != null) {
+                for (var f : files) names.add (f.substring (0, f.length () - EXT.length ()));
+            } // if
+        } // if
+        return names;
+    } // names
+
+    /********************************************************************************
+     * Estimate the bytes an open table retains, re-sampling it only if it changed (or
+     * is a mapped table, whose decoded tuples grow as it is read).
+     */
+    private static long measure (Entry e)
+    {
+        if (e.table instanceof MappedTable m) {
+            e.bytes = ResultCache.estimateBytes (m.resident ());
+        } else if (e.bytes == 0 || e.table.version () != e.saved) {
+            e.bytes = ResultCache.estimateBytes (e.table);
+        } // if
+        return e.bytes;
+    } // measure
+
+    /********************************************************************************
+     * Evict the least recently used tables (other than the one just used) until the
+     * open tables fit the budget.
+     */
+    private void trim (String keep)
+    {
+        var total = memory ();
+        for (var it = open.entrySet ().iterator (); total > maxBytes && it.hasNext (); ) {
+            var e = it.next ();
+            if (e.getKey ().equals (keep)) continue;
+            total -= measure (e.getValue ());
+            it.remove ();
+            writeBack (e.getValue ());
+            evictions++;
+        } // for
+    } // trim
+
+    /********************************************************************************
+     * Save a table if it changed since it was opened or last saved, in the forms it
+     * is stored in (the ".dbf" file and, if it has one, the mapped file).
+     */
+    private static void writeBack (Entry e)
+    {
+        var t   = e.table;
+        var ver = t.version ();
+        if (ver == e.saved || t instanceof MaterializedView) return;
+        t.save ();
+        if (Files.exists (Paths.get (Table.DIR + t.getName () + MappedTable.EXT))) t.saveMapped ();
+        e.saved = ver;
+    } // writeBack
+
+} // Database class
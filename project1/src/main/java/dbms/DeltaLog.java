@@ -0,0 +1,517 @@
+package dbms;
+/************************************************************************************
+ * @file DeltaLog.java
+ */
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import static java.lang.System.out;
+
+/************************************************************************************
+ * The DeltaLog class makes saving a table cost O(changes) rather than O(table).  The
+ * first save writes the whole table (the base file); from then on the log receives
+ * the table's changes through its feed, and each save appends the changes made since
+ * the last one to a new segment file ('name.<seq>.dlt'), each change being a deleted
+ * or put tuple in KeyType's binary encoding.  Table.load reads the base and replays
+ * the segments in order by key, so replaying a change the base already holds is
+ * harmless.
+ * <p>
+ * Once there are MAX_SEGMENTS segments, or they hold more than half as many bytes as
+ * the base, or when a checkpoint is requested (Table.checkpoint), the base is
+ * rewritten on a background I/O thread and the segments it covers are deleted.  The
+ * new base is a copy of an MVCC snapshot of the tuples (with an index built from
+ * them), so writers carry on while it is written; the writing is throttled to a
+ * bandwidth so it does not starve foreground I/O, and the file is synced and renamed
+ * into place (then the directory synced), so a crash leaves the old or the new base.
+ */
+final class DeltaLog
+      implements BiConsumer <List <Comparable []>, List <Comparable []>>
+{
+    /** The file name extension of segments
+     */
+    static final String EXT = ".dlt";
+
+    /** The number of segments that triggers compaction
+     */
+    static final int MAX_SEGMENTS = 8;
+
+    /** The default bandwidth of background base writes (bytes per second)
+     */
+    static final long RATE = 64L << 20;
+
+    /** Marker identifying a segment file
+     */
+    private static final int MAGIC = 0x44454C54;                            // "DELT"
+
+    /** The background I/O thread that writes new bases
+     */
+    static final ExecutorService WORKER = Executors.newSingleThreadExecutor (r -> {
+        var t = new Thread (r, "DeltaLog-worker");
+        t.setDaemon (true);
+        return t;
+    });
+
+    /** A change:  a tuple deleted or put (by key), in KeyType's encoding
+     */
+    private record Change (boolean put, byte [] tuple) { }
+
+    /** The table whose changes are logged
+     */
+    private final Table table;
+
+    /** Serialises writing segments and deleting them
+     */
+    private final ReentrantLock lock = new ReentrantLock ();
+
+    /** The changes made since the last save
+     */
+    private List <Change> pending = new ArrayList <> ();
+
+    /** Whether a change could not be encoded (so the next save rewrites the base)
+     */
+    private boolean unencodable = false;
+
+    /** The sequence numbers of the first live segment and of the next one
+     */
+    private int first, next;
+
+    /** The bytes of the live segments
+     */
+    private long deltaBytes;
+
+    /** The last compaction scheduled (null if none)
+     */
+    private CompletableFuture <Void> compaction = null;
+
+    /** Whether the last compaction scheduled has yet to take its snapshot
+     */
+    private boolean queued = false;
+
+    /********************************************************************************
+     * Construct a log of a table's changes, continuing from the given segments, and
+     * register it as a feed of the table.
+     * @param _table       the table
+     * @param _first       the sequence number of the first live segment
+     * @param _next        the sequence number of the next segment
+     * @param _deltaBytes  the bytes of the live segments
+     */
+    DeltaLog (Table _table, int _first, int _next, long _deltaBytes)
+    {
+        table      = _table;
+        first      = _first;
+        next       = _next;
+        deltaBytes = _deltaBytes;
+        table.addFeed (this);
+    } // constructor
+
+    /********************************************************************************
+     * Receive a change of the table (the old and new tuples), to be written at the
+     * next save.
+     * @param olds  the tuples deleted or replaced
+     * @param news  the tuples inserted or replacing
+     */
+    public void accept (List <Comparable []> olds, List <Comparable []> news)
+    {
+        var cs = new ArrayList <Change> (olds.size () + news.size ());
+        for (var t : olds) cs.add (new Change (false, KeyType.encode (t)));
+        for (var t : news) cs.add (new Change (true, KeyType.encode (t)));
+        synchronized (this) {
+            for (var c : cs) {
+                if (c.tuple () == null) unencodable = true;
+                else pending.add (c);
+            } // for
+        } // synchronized
+    } // accept
+
+    /********************************************************************************
+     * Write the changes made since the last save as a new segment (or, if one could
+     * not be encoded, rewrite the base on the background I/O thread, so base writes
+     * never overlap, and wait for it).  Schedule a compaction if the segments have
+     * grown too many or too large.
+     * @throws IOException  if the segment cannot be written
+     */
+    void checkpoint ()
+        throws IOException
+    {
+        CompletableFuture <Void> rebase = null;
+        lock.lock ();
+        try {
+            List <Change> batch;
+            synchronized (this) {
+                batch = pending;
+                if (unencodable) rebase = compact (0);                       // snapshots after this point
+                pending     = new ArrayList <> ();
+                unencodable = false;
+            } // synchronized
+            if (rebase == null && ! batch.isEmpty ()) append (batch);
+        } finally {
+            lock.unlock ();
+        } // try
+        if (rebase != null) awaitRebase (rebase);
+    } // checkpoint
+
+    /********************************************************************************
+     * Schedule a rewrite of the base on the background I/O thread, after which the
+     * segments it covers are deleted.  A rewrite scheduled but not yet started is
+     * shared (it will snapshot the table when it starts).
+     * @param rate  the bandwidth to write at in bytes per second (0 for unthrottled)
+     * @return  the rewrite's completion
+     */
+    CompletableFuture <Void> compact (long rate)
+    {
+        lock.lock ();
+        try {
+            if (! queued) {
+                queued     = true;
+                compaction = CompletableFuture.runAsync (() -> compactNow (rate), WORKER);
+            } // if
+            return compaction;
+        } finally {
+            lock.unlock ();
+        } // try
+    } // compact
+
+    /********************************************************************************
+     * Return the number of live segments.
+     * @return  the segment count
+     */
+    int segments ()
+    {
+        lock.lock ();
+        try {
+            return next - first;
+        } finally {
+            lock.unlock ();
+        } // try
+    } // segments
+
+    /********************************************************************************
+     * Wait for a scheduled compaction to finish (e.g., before closing).
+     */
+    void await ()
+    {
+        CompletableFuture <Void> c;
+        lock.lock ();
+        try {
+            c = compaction;
+        } finally {
+            lock.unlock ();
+        } // try
+        if (c != null) c.exceptionally (ex -> null).join ();
+    } // await
+
+    /********************************************************************************
+     * Stop logging the table's changes.
+     */
+    void close ()
+    {
+        table.removeFeed (this);
+    } // close
+
+    /********************************************************************************
+     * Delete the segments of a table (e.g., before writing a new base for it),
+     * latest first, so that an interruption leaves the base with a prefix of them.
+     * @param name  the name of the table
+     * @throws IOException  if a segment cannot be deleted
+     */
+    static void clear (String name)
+        throws IOException
+    {
+        var seqs = list (name);
+        for (var i = seqs.size () - 1; i >= 0; i--) Files.deleteIfExists (Paths.get (segment (name, seqs.get (i))));
+    } // clear
+
+    /********************************************************************************
+     * Write the given tuples of a table as its base file:  to a temporary file of its
+     * own at the given bandwidth, synced, then renamed into place.
+     * @param table  the table
+     * @param rows   a snapshot of its tuples
+     * @param rate   the bandwidth in bytes per second (0 for unthrottled)
+     * @throws IOException  if the file cannot be written
+     */
+    static void writeBase (Table table, List <Comparable []> rows, long rate)
+        throws IOException
+    {
+        var image = table.image (rows);
+        var path  = Paths.get (base (table.getName ()));
+        Files.createDirectories (path.getParent ());
+        var tmp   = Files.createTempFile (path.getParent (), table.getName () + ".", ".tmp");
+        try {
+            try (var fos = new FileOutputStream (tmp.toFile ())) {
+                var oos = new ObjectOutputStream (new BufferedOutputStream (new Throttled (fos, rate), 1 << 16));
+                oos.writeObject (image);
+                oos.flush ();
+                fos.getFD ().sync ();
+            } // try
+            Files.move (tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists (tmp);                                     // only left if the write failed
+        } // try
+        syncDir ();
+    } // writeBase
+
+    /********************************************************************************
+     * Replay a loaded table's segments onto it (the last change to each key wins) and
+     * start logging its changes, continuing the sequence of segments.
+     * @param table  the table read from its base file
+     * @return  the log
+     * @throws IOException  if a segment cannot be read
+     */
+    static DeltaLog replay (Table table)
+        throws IOException
+    {
+        var name  = table.getName ();
+        var seqs  = list (name);
+        var last  = new LinkedHashMap <KeyType, Comparable []> ();
+        var bytes = 0L;
+        for (var seq : seqs) {
+            var path = Paths.get (segment (name, seq));
+            bytes += Files.size (path);
+            try (var dis = new DataInputStream (new BufferedInputStream (Files.newInputStream (path), 1 << 16))) {
+                if (dis.readInt () != MAGIC) throw new IOException ("replay: " + path + " is not a segment");
+                for (var n = dis.readInt (); n > 0; n--) {
+                    var put = dis.readBoolean ();
+                    var b   = new byte [dis.readInt ()];
+                    dis.readFully (b);
+                    var tup = KeyType.decode (b);
+                    last.put (table.keyOf (tup), put ? tup : null);
+                } // for
+            } // try
+        } // for
+
+        if (! last.isEmpty ()) {
+            var adds = new ArrayList <Comparable []> ();
+            for (var t : last.values ()) if (t != null) adds.add (t);
+            table.store ().replace (t -> last.containsKey (table.keyOf (t)), adds);
+            for (var e : last.entrySet ()) {
+                table.indexRemove (e.getKey ());
+                if (e.getValue () != null) table.indexPut (e.getKey (), e.getValue ());
+            } // for
+            out.println ("replay: " + name + " applied " + last.size () + " changes from " + seqs.size () + " segments");
+        } // if
+        var first = seqs.isEmpty () ? 0 : seqs.get (0);
+        var next  = seqs.isEmpty () ? 0 : seqs.get (seqs.size () - 1) + 1;
+        return new DeltaLog (table, first, next, bytes);
+    } // replay
+
+    //----------------------------------------------------------------------------------
+    // Private Methods
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Append a batch of changes as a segment (keeping them for the next save if it
+     * cannot be written), and schedule a compaction if the segments have grown too
+     * many or too large.
+     */
+    private void append (List <Change> batch)
+        throws IOException
+    {
+        try {
+            deltaBytes += writeSegment (batch);
+        } catch (IOException ex) {
+            synchronized (this) { batch.addAll (pending); pending = batch; }
+            throw ex;
+        } // try
+        if (next - first >= MAX_SEGMENTS || deltaBytes > new File (base (table.getName ())).length () / 2) {
+            compact (RATE);
+        } // if
+    } // append
+
+    /********************************************************************************
+     * Wait for a rewrite of the base the last save needed, so the save is durable when
+     * it returns (if the rewrite fails, the next save retries it).
+     */
+    private void awaitRebase (CompletableFuture <Void> rebase)
+        throws IOException
+    {
+        try {
+            rebase.join ();
+        } catch (CompletionException ex) {
+            synchronized (this) { unencodable = true; }
+            if (ex.getCause () instanceof UncheckedIOException io) throw io.getCause ();
+            throw ex;
+        } // try
+    } // awaitRebase
+
+    /********************************************************************************
+     * Write a batch of changes as the next segment (atomically), returning its size.
+     */
+    private long writeSegment (List <Change> batch)
+        throws IOException
+    {
+        var name = table.getName ();
+        var path = Paths.get (segment (name, next));
+        var tmp  = Paths.get (path + ".tmp");
+        Files.createDirectories (path.getParent ());
+        try (var fos = new FileOutputStream (tmp.toFile ())) {
+            var dos = new DataOutputStream (new BufferedOutputStream (fos, 1 << 16));
+            dos.writeInt (MAGIC);
+            dos.writeInt (batch.size ());
+            for (var c : batch) {
+                dos.writeBoolean (c.put ());
+                dos.writeInt (c.tuple ().length);
+                dos.write (c.tuple ());
+            } // for
+            dos.flush ();
+            fos.getFD ().sync ();
+        } // try
+        Files.move (tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDir ();
+        next++;
+        return Files.size (path);
+    } // writeSegment
+
+    /********************************************************************************
+     * Rewrite the base from a snapshot of the table and delete the segments written
+     * before the snapshot (saves may append more meanwhile; those are kept).
+     */
+    private void compactNow (long rate)
+    {
+        int cut;
+        List <Comparable []> rows;
+        lock.lock ();
+        try {
+            queued = false;
+            cut    = next;
+            rows   = table.rows ();                                          // holds every change before cut
+        } finally {
+            lock.unlock ();
+        } // try
+        try {
+            writeBase (table, rows, rate);
+            Database.writeSchema (table);
+            lock.lock ();
+            try {
+                drop (cut);
+            } finally {
+                lock.unlock ();
+            } // try
+        } catch (IOException ex) {
+            out.println ("compact: IO Exception");
+            throw new UncheckedIOException (ex);
+        } // try
+    } // compactNow
+
+    /********************************************************************************
+     * Delete the live segments before cut, earliest first, so that an interruption
+     * leaves the new base with a suffix of them (whose replay it already reflects).
+     */
+    private void drop (int cut)
+        throws IOException
+    {
+        var name = table.getName ();
+        for (; first < cut; first++) {
+            var path = Paths.get (segment (name, first));
+            if (Files.exists (path)) {
+                deltaBytes -= Files.size (path);
+                Files.delete (path);
+            } // if
+        } // for
+        if (first == next) deltaBytes = 0;
+    } // drop
+
+    /********************************************************************************
+     * Sync the storage directory, making renames in it durable (where the platform
+     * supports syncing a directory).
+     */
+    private static void syncDir ()
+    {
+        try (var ch = FileChannel.open (Paths.get (Table.DIR), StandardOpenOption.READ)) {
+            ch.force (true);
+        } catch (IOException ex) {
+            // not supported on every platform
+        } // try
+    } // syncDir
+
+    /********************************************************************************
+     * This inner class is an output stream that paces its writes to a bandwidth by
+     * sleeping whenever it gets ahead of it.
+     */
+    private static final class Throttled
+            extends FilterOutputStream
+    {
+        private final long rate;
+        private final long start = System.nanoTime ();
+        private long written = 0;
+
+        Throttled (OutputStream out, long _rate)
+        {
+            super (out);
+            rate = _rate;
+        } // constructor
+
+        public void write (int b)
+            throws IOException
+        {
+            out.write (b);
+            pace (1);
+        } // write
+
+        public void write (byte [] b, int off, int len)
+            throws IOException
+        {
+            out.write (b, off, len);
+            pace (len);
+        } // write
+
+        private void pace (int n)
+            throws IOException
+        {
+            if (rate <= 0) return;
+            written += n;
+            var ahead = start + written * 1_000_000_000L / rate - System.nanoTime ();
+            if (ahead <= 0) return;
+            try {
+                Thread.sleep (ahead / 1_000_000, (int) (ahead % 1_000_000));
+            } catch (InterruptedException ex) {
+                Thread.currentThread ().interrupt ();
+                throw new InterruptedIOException ("pace: interrupted");
+            } // try
+        } // pace
+
+    } // Throttled inner class
+
+    /********************************************************************************
+     * Return the sequence numbers of a table's segments in order.
+     */
+    private static List <Integer> list (String name)
+    {
+        var prefix = name + ".";
+        var seqs   = new ArrayList <Integer> ();
+        var files  = new File (Table.DIR).list ((dir, f) -> f.startsWith (prefix) && f.endsWith (EXT));
+        if (files != null) {
+            for (var f : files) {
+                var mid = f.substring (prefix.length (), f.length () - EXT.length ());
+                if (! mid.isEmpty () && mid.chars ().allMatch (Character::isDigit)) seqs.add (Integer.parseInt (mid));
+            } // for
+        } // if
+        Collections.sort (seqs);
+        return seqs;
+    } // list
+
+    /********************************************************************************
+     * Return the path of a table's segment.
+     */
+    private static String segment (String name, int seq)
+    {
+        return Table.DIR + name + "." + seq + EXT;
+    } // segment
+
+    /********************************************************************************
+     * Return the path of a table's base file.
+     */
+    private static String base (String name)
+    {
+        return Table.DIR + name + ".dbf";
+    } // base
+
+} // DeltaLog class
@@ -0,0 +1,524 @@
+package dbms;
+/************************************************************************************
+ * @file Join.java
+ */
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/************************************************************************************
+ * The Join class chooses the algorithm for an equi-join and provides the hash, merge
+ * and range join algorithms (the nested loop and index joins are in Table, next to the
+ * tuples and index they scan).  The choice is made at run time from the input sizes,
+ * the indexes available and whether the inputs are already sorted:
+ *     NESTED_LOOP  when the inputs are small (at most SMALL pairs to compare)
+ *     INDEX        when the join columns of one side are the key of its index
+ *     MERGE        when both inputs are sorted on their join columns
+ *     HASH         otherwise
+ * The number of times each was chosen (and the hash joins that spilled, and the probe
+ * tuples Bloom filters kept out) are kept as metrics (see stats), as are the RANGE
+ * joins run for inequality and band conditions.
+ * <p>
+ * The hash join builds a table on the smaller input, reserving its memory from the
+ * running query (see QueryContext).  If the query's budget cannot hold it, both
+ * inputs are partitioned by hash to temporary files and joined one partition at a
+ * time (a grace hash join), so only a partition of the build side is in memory.
+ * <p>
+ * The range join sorts the right input into a TreeMap on its join column, so each
+ * left tuple's matches for a condition such as "a < b" or "a BETWEEN b-2 AND b+2" are
+ * one tailMap, headMap or subMap of it rather than a scan of the whole input.
+ */
+public final class Join
+{
+    /** The join algorithms
+     */
+    public enum Algorithm { NESTED_LOOP, INDEX, MERGE, HASH, RANGE }
+
+    /** The most tuple pairs a nested loop join is chosen to compare
+     */
+    static final long SMALL = 1L << 16;
+
+    /** The estimated bytes a build tuple takes in a hash table (entry, key and list)
+     */
+    private static final long ENTRY = 128;
+
+    /** The most partitions a spilled hash join writes
+     */
+    private static final int MAX_PARTS = 64;
+
+    /** Metrics:  the times each algorithm was chosen and the hash joins that spilled
+     */
+    private static final LongAdder [] chosen = new LongAdder [Algorithm.values ().length];
+    private static final LongAdder    spills = new LongAdder ();
+
+    /** Metrics:  the probe tuples Bloom filters kept out of joins
+     */
+    private static final LongAdder reduced = new LongAdder ();
+
+    static {
+        for (var i = 0; i < chosen.length; i++) chosen [i] = new LongAdder ();
+    } // static
+
+    /********************************************************************************
+     * Don't instantiate.
+     */
+    private Join () { }
+
+    /********************************************************************************
+     * Choose the algorithm for an equi-join of inputs of n and m tuples, and count
+     * the choice.
+     * @param n       the number of tuples in the left input
+     * @param m       the number of tuples in the right input
+     * @param index   whether either side has an index on its join columns
+     * @param sorted  whether both inputs are sorted on their join columns (only asked
+     *                when it matters, since it scans them)
+     * @return  the algorithm to use
+     */
+    static Algorithm choose (long n, long m, boolean index, BooleanSupplier sorted)
+    {
+        Algorithm alg;
+        if (n * m <= SMALL)             alg = Algorithm.NESTED_LOOP;
+        else if (index)                 alg = Algorithm.INDEX;
+        else if (sorted.getAsBoolean ()) alg = Algorithm.MERGE;
+        else                            alg = Algorithm.HASH;
+        note (alg);
+        return alg;
+    } // choose
+
+    /********************************************************************************
+     * Count a use of the given algorithm (for joins run with a fixed algorithm).
+     * @param alg  the algorithm used
+     */
+    static void note (Algorithm alg)
+    {
+        chosen [alg.ordinal ()].increment ();
+    } // note
+
+    /********************************************************************************
+     * Return the number of times the given algorithm was chosen.
+     * @param alg  the algorithm
+     * @return  the count
+     */
+    public static long chosen (Algorithm alg)
+    {
+        return chosen [alg.ordinal ()].sum ();
+    } // chosen
+
+    /********************************************************************************
+     * Return the number of hash joins that spilled to disk.
+     * @return  the count
+     */
+    public static long spills ()
+    {
+        return spills.sum ();
+    } // spills
+
+    /********************************************************************************
+     * Count the probe tuples a Bloom filter kept out of a join.
+     * @param n  the number of tuples dropped
+     */
+    static void reduced (long n)
+    {
+        reduced.add (n);
+    } // reduced
+
+    /********************************************************************************
+     * Return the number of probe tuples Bloom filters kept out of joins.
+     * @return  the count
+     */
+    public static long reduced ()
+    {
+        return reduced.sum ();
+    } // reduced
+
+    /********************************************************************************
+     * Return the join metrics (the times each algorithm was chosen and the spills) as
+     * a string.
+     * @return  the metrics
+     */
+    public static String stats ()
+    {
+        var sb = new StringBuilder ("Join:");
+        for (var alg : Algorithm.values ()) sb.append (" ").append (chosen (alg)).append (" ").append (alg);
+        return sb.append (", ").append (spills ()).append (" spilled, ").append (reduced ()).append (" filtered").toString ();
+    } // stats
+
+    //----------------------------------------------------------------------------------
+    // Hash Join
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Hash join two inputs, adding the concatenation (left tuple, right tuple) of each
+     * pair whose join columns are equal.  Tuples with a null join value join nothing.
+     * Unless the join spills, the rows come in probe order, then build order.
+     * @param probe      the probe tuples
+     * @param pCols      the probe side's join column positions
+     * @param build      the build tuples (the smaller input)
+     * @param bCols      the build side's join column positions
+     * @param buildLeft  whether the build input is the left one
+     * @param rows       the list to add the joined tuples to
+     */
+    static void hash (List <Comparable []> probe, int [] pCols, List <Comparable []> build, int [] bCols,
+                      boolean buildLeft, List <Comparable []> rows)
+    {
+        var bytes = ENTRY * build.size ();
+        if (! QueryContext.tryReserve (bytes)) {
+            if (spill (probe, pCols, build, bCols, buildLeft, rows, bytes)) return;
+            QueryContext.reserve (bytes);                                   // cannot spill:  fits or aborts
+        } // if
+        try {
+            var table = buildTable (build, bCols);
+            for (var t : probe) {
+                QueryContext.check ();
+                probe (table, t, pCols, buildLeft, rows);
+            } // for
+        } finally {
+            QueryContext.release (bytes);
+        } // try
+    } // hash
+
+    /********************************************************************************
+     * Build a hash table from join key to the tuples having it.
+     */
+    private static Map <KeyType, List <Comparable []>> buildTable (List <Comparable []> build, int [] bCols)
+    {
+        var table = new HashMap <KeyType, List <Comparable []>> ();
+        for (var u : build) {
+            var k = key (u, bCols);
+            if (k != null) table.computeIfAbsent (k, x -> new ArrayList <> (1)).add (u);
+        } // for
+        return table;
+    } // buildTable
+
+    /********************************************************************************
+     * Add the joins of probe tuple t with its matches in the hash table.
+     */
+    private static void probe (Map <KeyType, List <Comparable []>> table, Comparable [] t, int [] pCols,
+                               boolean buildLeft, List <Comparable []> rows)
+    {
+        var k = key (t, pCols);
+        if (k == null) return;
+        var us = table.get (k);
+        if (us == null) return;
+        for (var u : us) rows.add (buildLeft ? Table.concat (u, t) : Table.concat (t, u));
+    } // probe
+
+    /********************************************************************************
+     * Join by partitioning both inputs by hash into temporary files, then joining each
+     * pair of partitions in memory.  Returns false (having written nothing to rows)
+     * if some tuple has no binary encoding, so the inputs cannot be spilled.
+     */
+    private static boolean spill (List <Comparable []> probe, int [] pCols, List <Comparable []> build, int [] bCols,
+                                  boolean buildLeft, List <Comparable []> rows, long bytes)
+    {
+        var avail = Math.max (1, QueryContext.available ());
+        var parts = (int) Math.min (MAX_PARTS, Math.max (2, 2 * bytes / avail + 1));
+        var bFiles = new Path [parts];
+        var pFiles = new Path [parts];
+        try {
+            if (! partition (build, bCols, bFiles) || ! partition (probe, pCols, pFiles)) return false;
+            spills.increment ();
+            for (var p = 0; p < parts; p++) {
+                var part  = read (bFiles [p]);
+                var held  = ENTRY * part.size ();
+                QueryContext.reserve (held);
+                try {
+                    var table = buildTable (part, bCols);
+                    part = null;
+                    try (var in = new DataInputStream (new BufferedInputStream (Files.newInputStream (pFiles [p]), 1 << 16))) {
+                        for (var n = in.readInt (); n > 0; n--) {
+                            QueryContext.check ();
+                            probe (table, next (in), pCols, buildLeft, rows);
+                        } // for
+                    } // try
+                } finally {
+                    QueryContext.release (held);
+                } // try
+            } // for
+            return true;
+        } catch (IOException ex) {
+            throw new UncheckedIOException ("hash join: cannot spill", ex);
+        } finally {
+            for (var f : bFiles) delete (f);
+            for (var f : pFiles) delete (f);
+        } // try
+    } // spill
+
+    /********************************************************************************
+     * Write the tuples to one temporary file per partition (by the hash of their join
+     * columns), each file starting with its tuple count.  Returns false if a tuple
+     * has no binary encoding.  Tuples with a null join value are dropped.
+     */
+    private static boolean partition (List <Comparable []> tups, int [] cols, Path [] files)
+        throws IOException
+    {
+        var outs   = new DataOutputStream [files.length];
+        var counts = new int [files.length];
+        try {
+            for (var p = 0; p < files.length; p++) {
+                files [p] = Files.createTempFile ("join", ".part");
+                outs [p]  = new DataOutputStream (new BufferedOutputStream (Files.newOutputStream (files [p]), 1 << 16));
+                outs [p].writeInt (0);                                      // the count, filled in below
+            } // for
+            for (var t : tups) {
+                QueryContext.check ();
+                var k = key (t, cols);
+                if (k == null) continue;
+                var b = KeyType.encode (t);
+                if (b == null) return false;
+                var p = (int) Long.remainderUnsigned (k.hash64 (), files.length);
+                outs [p].writeInt (b.length);
+                outs [p].write (b);
+                counts [p]++;
+            } // for
+        } finally {
+            for (var o : outs) if (o != null) o.close ();
+        } // try
+        for (var p = 0; p < files.length; p++) {
+            try (var raf = new RandomAccessFile (files [p].toFile (), "rw")) {
+                raf.writeInt (counts [p]);
+            } // try
+        } // for
+        return true;
+    } // partition
+
+    /********************************************************************************
+     * Read the tuples of a partition file.
+     */
+    private static List <Comparable []> read (Path file)
+        throws IOException
+    {
+        try (var in = new DataInputStream (new BufferedInputStream (Files.newInputStream (file), 1 << 16))) {
+            var n    = in.readInt ();
+            var tups = new ArrayList <Comparable []> (n);
+            for (var i = 0; i < n; i++) tups.add (next (in));
+            return tups;
+        } // try
+    } // read
+
+    /********************************************************************************
+     * Read the next tuple of a partition file.
+     */
+    private static Comparable [] next (DataInputStream in)
+        throws IOException
+    {
+        var b = new byte [in.readInt ()];
+        in.readFully (b);
+        return KeyType.decode (b);
+    } // next
+
+    /********************************************************************************
+     * Delete a partition file (if it was created).
+     */
+    private static void delete (Path file)
+    {
+        if (file == null) return;
+        try {
+            Files.deleteIfExists (file);
+        } catch (IOException ex) {
+            file.toFile ().deleteOnExit ();
+        } // try
+    } // delete
+
+    //----------------------------------------------------------------------------------
+    // Merge Join
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Merge join two inputs sorted on their join columns, adding the concatenation of
+     * each pair whose join columns are equal (in left order, then right order, as the
+     * nested loop join would).
+     * @param left   the left tuples (sorted)
+     * @param lCols  the left side's join column positions
+     * @param right  the right tuples (sorted)
+     * @param rCols  the right side's join column positions
+     * @param rows   the list to add the joined tuples to
+     */
+    static void merge (List <Comparable []> left, int [] lCols, List <Comparable []> right, int [] rCols,
+                       List <Comparable []> rows)
+    {
+        var n = left.size ();
+        var m = right.size ();
+        var i = 0;
+        var j = 0;
+        while (i < n && j < m) {
+            QueryContext.check ();
+            var c = compare (left.get (i), lCols, right.get (j), rCols);
+            if (c < 0) { i++; continue; }
+            if (c > 0) { j++; continue; }
+            var end = j + 1;                                                // the run of equal right tuples
+            while (end < m && compare (left.get (i), lCols, right.get (end), rCols) == 0) end++;
+            do {
+                for (var k = j; k < end; k++) rows.add (Table.concat (left.get (i), right.get (k)));
+                i++;
+            } while (i < n && compare (left.get (i), lCols, right.get (j), rCols) == 0);
+            j = end;
+        } // while
+    } // merge
+
+    /********************************************************************************
+     * Return whether the tuples are sorted (ascending) on the given columns, with no
+     * null values in them.
+     * @param tups  the tuples
+     * @param cols  the column positions
+     * @return  whether the tuples are sorted
+     */
+    static boolean sorted (List <Comparable []> tups, int [] cols)
+    {
+        try {
+            for (var i = 0; i < tups.size (); i++) {
+                for (var c : cols) if (tups.get (i) [c] == null) return false;
+                if (i > 0 && compare (tups.get (i - 1), cols, tups.get (i), cols) > 0) return false;
+            } // for
+            return true;
+        } catch (ClassCastException ex) {
+            return false;                                                   // values of mixed types
+        } // try
+    } // sorted
+
+    //----------------------------------------------------------------------------------
+    // Range Join
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Range join two inputs on an inequality, adding the concatenation of each pair
+     * with left [lCol] op right [rCol] (op meaning what compareWithStringOp means, so
+     * "<=" compares as "<").  Tuples with a null join value join nothing.  The rows come
+     * in left order, then in order of the right join column.
+     * @param left   the left tuples
+     * @param lCol   the left join column position
+     * @param op     the operator (LT or GT)
+     * @param right  the right tuples
+     * @param rCol   the right join column position
+     * @param rows   the list to add the joined tuples to
+     * @throws ClassCastException  if the join values do not compare
+     */
+    static void range (List <Comparable []> left, int lCol, Batch.Op op, List <Comparable []> right, int rCol,
+                       List <Comparable []> rows)
+    {
+        var bytes = ENTRY * right.size ();
+        QueryContext.reserve (bytes);
+        try {
+            var tree = tree (right, rCol);
+            for (var t : left) {
+                QueryContext.check ();
+                var v = t [lCol];
+                if (v == null) continue;
+                var us = (op == Batch.Op.LT) ? tree.tailMap (v, false) : tree.headMap (v, false);
+                for (var run : us.values ()) for (var u : run) rows.add (Table.concat (t, u));
+            } // for
+        } finally {
+            QueryContext.release (bytes);
+        } // try
+    } // range
+
+    /********************************************************************************
+     * Band join two inputs, adding the concatenation of each pair with
+     *     right [rCol] + low <= left [lCol] <= right [rCol] + high,
+     * i.e., left [lCol] BETWEEN right [rCol] + low AND right [rCol] + high.  Offsets
+     * other than zero need numeric join columns.  The rows come in left order, then in
+     * order of the right join column.
+     * @param left   the left tuples
+     * @param lCol   the left join column position
+     * @param right  the right tuples
+     * @param rCol   the right join column position
+     * @param low    the offset of the lower bound
+     * @param high   the offset of the upper bound
+     * @param rows   the list to add the joined tuples to
+     * @throws ClassCastException  if the join values do not compare
+     * @throws IllegalArgumentException  if a value cannot be offset
+     */
+    static void band (List <Comparable []> left, int lCol, List <Comparable []> right, int rCol,
+                      long low, long high, List <Comparable []> rows)
+    {
+        var bytes = ENTRY * right.size ();
+        QueryContext.reserve (bytes);
+        try {
+            var tree = tree (right, rCol);
+            for (var t : left) {
+                QueryContext.check ();
+                var v = t [lCol];
+                if (v == null || low > high) continue;
+                var us = tree.subMap (offset (v, - high), true, offset (v, - low), true);
+                for (var run : us.values ()) for (var u : run) rows.add (Table.concat (t, u));
+            } // for
+        } finally {
+            QueryContext.release (bytes);
+        } // try
+    } // band
+
+    /********************************************************************************
+     * Sort tuples into a tree from their (non-null) values in a column to the tuples
+     * having each value (in their order).
+     */
+    private static TreeMap <Comparable, List <Comparable []>> tree (List <Comparable []> tups, int col)
+    {
+        var tree = new TreeMap <Comparable, List <Comparable []>> ();
+        for (var u : tups) {
+            var v = u [col];
+            if (v != null) tree.computeIfAbsent (v, x -> new ArrayList <> (1)).add (u);
+        } // for
+        return tree;
+    } // tree
+
+    /********************************************************************************
+     * Return whether values of a domain can be offset (as a band join's bounds are).
+     * @param type  the domain
+     * @return  whether it is numeric
+     */
+    static boolean numeric (Class <?> type)
+    {
+        return type == Integer.class || type == Long.class || type == Short.class || type == Byte.class
+            || type == Double.class  || type == Float.class;
+    } // numeric
+
+    /********************************************************************************
+     * Return v + k as a value of v's type (saturating at the type's limits).
+     */
+    private static Comparable offset (Comparable v, long k)
+    {
+        if (k == 0) return v;
+        if (v instanceof Integer i) return (int) Math.max (Integer.MIN_VALUE, Math.min (Integer.MAX_VALUE, i + k));
+        if (v instanceof Long l)    return (k > 0) ? ((l > Long.MAX_VALUE - k) ? Long.MAX_VALUE : l + k)
+                                                   : ((l < Long.MIN_VALUE - k) ? Long.MIN_VALUE : l + k);
+        if (v instanceof Short s)   return (short) Math.max (Short.MIN_VALUE, Math.min (Short.MAX_VALUE, s + k));
+        if (v instanceof Byte b)    return (byte) Math.max (Byte.MIN_VALUE, Math.min (Byte.MAX_VALUE, b + k));
+        if (v instanceof Double d)  return d + k;
+        if (v instanceof Float f)   return f + k;
+        throw new IllegalArgumentException ("band join: cannot offset " + v.getClass ().getSimpleName () + " value " + v);
+    } // offset
+
+    //----------------------------------------------------------------------------------
+    // Private Methods
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Compare the join columns of two tuples column by column.
+     */
+    @SuppressWarnings ("unchecked")
+    private static int compare (Comparable [] a, int [] aCols, Comparable [] b, int [] bCols)
+    {
+        for (var j = 0; j < aCols.length; j++) {
+            var c = a [aCols [j]].compareTo (b [bCols [j]]);
+            if (c != 0) return c;
+        } // for
+        return 0;
+    } // compare
+
+    /********************************************************************************
+     * Return the key of a tuple's join columns (null if one is null).
+     */
+    private static KeyType key (Comparable [] t, int [] cols)
+    {
+        var vals = new Comparable [cols.length];
+        for (var j = 0; j < cols.length; j++) {
+            if ((vals [j] = t [cols [j]]) == null) return null;
+        } // for
+        return new KeyType (vals);
+    } // key
+
+} // Join class
@@ -7,26 +7,58 @@ package dbms;
  * @see http://leepoint.net/notes-java/data/expressions/22compareobjects.html
  */
 import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import static java.lang.System.out;
 /*****************************************************************************************
  * The KeyType class provides a key type for handling both non-composite and composite keys.
  * A key is a minimal set of attributes that can be used to uniquely identify a tuple.
+ * <p>
+ * When every attribute value comes from a supported domain (Byte, Short, Integer, Long,
+ * Float, Double, Character, String), the key is also held in a normalised binary
+ * (memcomparable) form:  comparing two encodings byte-by-byte as unsigned values gives the
+ * same order as comparing the keys column-by-column.  Each column is written as a one-byte
+ * domain tag followed by its value, so compareTo, equals and hashCode all work on a single
+ * byte array and a 64-bit hash that are computed once at construction.
  */
 public class KeyType
        implements Comparable <KeyType>, Serializable
 {
+    /** Domain tags for the binary encoding (the tag order fixes the cross-domain order)
+     */
+    private static final byte NULL = 0, BYTE = 1, SHORT = 2, INTEGER = 3, LONG = 4,
+                              FLOAT = 5, DOUBLE = 6, CHARACTER = 7, STRING = 8;
+
+    /** View for reading eight bytes at a time when hashing the encoding
+     */
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle (long [].class,
+                                                                                 ByteOrder.BIG_ENDIAN);
+
     /** Array holding the attribute values for a particular key
      */
     private final Comparable [] key;
 
+    /** The order-preserving binary encoding of the key (null if some value has no encoding)
+     */
+    private final byte [] bytes;
+
+    /** The cached 64-bit hash of the key
+     */
+    private final long hash;
+
     /*************************************************************************************
      * Construct an instance of KeyType from a Comparable array.  
      * @param _key  the primary key
      */
     public KeyType (Comparable [] _key)
     {
-         key = _key;
+         key   = _key;
+         bytes = encode (key);
+         hash  = (bytes != null) ? hash64 (bytes) : mix (legacyHash (key));
     } // constructor
 
     /*************************************************************************************
@@ -35,11 +67,19 @@ public class KeyType
      */
     public KeyType (Comparable key0, Comparable ... keys)
     {
-         key = new Comparable [keys.length + 1];
-         key [0] = key0;
-         for (var i = 1; i < key.length; i++) key [i] = keys [i-1];
+         this (prepend (key0, keys));
     } // constructor
 
+    /*************************************************************************************
+     * Construct an instance of KeyType from its binary encoding (see toBytes).
+     * @param _bytes  the encoded key
+     * @return  the decoded key
+     */
+    public static KeyType fromBytes (byte [] _bytes)
+    {
+         return new KeyType (decode (_bytes));
+    } // fromBytes
+
     /*************************************************************************************
      * Compare two keys (negative => less than, zero => equals, positive => greater than).
      * @param k  the other key (to compare with this)
@@ -48,9 +88,11 @@ public class KeyType
     @SuppressWarnings("unchecked")
     public int compareTo (KeyType k)
     {
+        if (bytes != null && k.bytes != null) return Arrays.compareUnsigned (bytes, k.bytes);
+
         for (var i = 0; i < key.length; i++) {
-            if (key [i].compareTo (k.key [i]) < 0) return -1;
-            if (key [i].compareTo (k.key [i]) > 0) return 1;
+            var c = key [i].compareTo (k.key [i]);
+            if (c != 0) return (c < 0) ? -1 : 1;
         } // for
         return 0;
     } // compareTo
@@ -62,7 +104,10 @@ public class KeyType
      */
     public boolean equals (Object k)
     {
-        return compareTo ((KeyType) k) == 0;
+        if (this == k) return true;
+        if (! (k instanceof KeyType kt)) return false;
+        if (bytes != null && kt.bytes != null) return hash == kt.hash && Arrays.equals (bytes, kt.bytes);
+        return compareTo (kt) == 0;
     } // equals
 
     /*************************************************************************************
@@ -70,11 +115,262 @@ public class KeyType
      * @return  an integer hash code value
      */
     public int hashCode ()
+    {
+        return (int) (hash ^ (hash >>> 32));
+    } // hashCode
+
+    /*************************************************************************************
+     * Return the full 64-bit hash of this key (well mixed, so any subset of its bits may
+     * be used to address a hash table).
+     * @return  the 64-bit hash value
+     */
+    public long hash64 ()
+    {
+        return hash;
+    } // hash64
+
+    /*************************************************************************************
+     * Return the order-preserving binary encoding of this key, or null if some attribute
+     * value is not from a supported domain.  The array is shared, so do not modify it.
+     * @return  the encoded key
+     */
+    public byte [] toBytes ()
+    {
+        return bytes;
+    } // toBytes
+
+    /*************************************************************************************
+     * Return the attribute values making up this key.
+     * @return  the key values
+     */
+    public Comparable [] getKey ()
+    {
+        return key;
+    } // getKey
+
+    /*************************************************************************************
+     * Encode an array of attribute values so that unsigned byte order matches the
+     * column-by-column order of the values.  Integral and real values are written
+     * big-endian with their sign bit flipped (negative reals have all bits flipped);
+     * strings are written as one to three bytes per char with a 0x00 0x01 terminator,
+     * and an embedded '\0' escaped as 0x00 0xFF.
+     * @param vals  the attribute values to encode
+     * @return  the encoding, or null if some value is not from a supported domain
+     */
+    public static byte [] encode (Comparable [] vals)
+    {
+        var buf = new byte [16 * vals.length + 8];
+        var n   = 0;
+        for (var v : vals) {
+            if (buf.length - n < 16) buf = Arrays.copyOf (buf, 2 * buf.length);
+            if (v == null) {
+                buf [n++] = NULL;
+            } else if (v instanceof Byte b) {
+                buf [n++] = BYTE;
+                buf [n++] = (byte) (b ^ 0x80);
+            } else if (v instanceof Short s) {
+                buf [n++] = SHORT;
+                n = putInt (buf, n, s ^ 0x8000, 2);
+            } else if (v instanceof Integer i) {
+                buf [n++] = INTEGER;
+                n = putInt (buf, n, i ^ Integer.MIN_VALUE, 4);
+            } else if (v instanceof Long l) {
+                buf [n++] = LONG;
+                n = putLong (buf, n, l ^ Long.MIN_VALUE);
+            } else if (v instanceof Float f) {
+                var x = Float.floatToIntBits (f);
+                buf [n++] = FLOAT;
+                n = putInt (buf, n, x ^ ((x >> 31) | Integer.MIN_VALUE), 4);
+            } else if (v instanceof Double d) {
+                var x = Double.doubleToLongBits (d);
+                buf [n++] = DOUBLE;
+                n = putLong (buf, n, x ^ ((x >> 63) | Long.MIN_VALUE));
+            } else if (v instanceof Character c) {
+                buf [n++] = CHARACTER;
+                n = putInt (buf, n, c, 2);
+            } else if (v instanceof String s) {
+                if (buf.length - n < 3 * s.length () + 3) buf = Arrays.copyOf (buf, 2 * buf.length + 3 * s.length ());
+                buf [n++] = STRING;
+                n = putString (buf, n, s);
+            } else {
+                return null;
+            } // if
+        } // for
+        return Arrays.copyOf (buf, n);
+    } // encode
+
+    /*************************************************************************************
+     * Return whether values of the given domain can be encoded.
+     * @param dom  the domain (class of the values)
+     * @return  whether encode supports the domain
+     */
+    static boolean encodable (Class <?> dom)
+    {
+        return dom == Byte.class || dom == Short.class || dom == Integer.class || dom == Long.class
+            || dom == Float.class || dom == Double.class || dom == Character.class || dom == String.class;
+    } // encodable
+
+    /*************************************************************************************
+     * Decode a binary encoding produced by encode back into attribute values.
+     * @param b  the encoded values
+     * @return  the decoded attribute values
+     */
+    public static Comparable [] decode (byte [] b)
+    {
+        var vals = new ArrayList <Comparable> ();
+        var i    = 0;
+        while (i < b.length) {
+            var tag = b [i++];
+            switch (tag) {
+            case NULL      -> vals.add (null);
+            case BYTE      -> vals.add ((byte) (b [i++] ^ 0x80));
+            case SHORT     -> { vals.add ((short) (getInt (b, i, 2) ^ 0x8000)); i += 2; }
+            case INTEGER   -> { vals.add (getInt (b, i, 4) ^ Integer.MIN_VALUE); i += 4; }
+            case LONG      -> { vals.add (getLong (b, i) ^ Long.MIN_VALUE); i += 8; }
+            case FLOAT     -> { var x = getInt (b, i, 4) ^ Integer.MIN_VALUE;
+                                vals.add (Float.intBitsToFloat (x ^ ((x >> 31) & Integer.MAX_VALUE))); i += 4; }
+            case DOUBLE    -> { var x = getLong (b, i) ^ Long.MIN_VALUE;
+                                vals.add (Double.longBitsToDouble (x ^ ((x >> 63) & Long.MAX_VALUE))); i += 8; }
+            case CHARACTER -> { vals.add ((char) getInt (b, i, 2)); i += 2; }
+            case STRING    -> { var sb = new StringBuilder ();
+                                i = getString (b, i, sb);
+                                vals.add (sb.toString ()); }
+            default        -> throw new IllegalArgumentException ("decode: unknown domain tag " + tag);
+            } // switch
+        } // while
+        return vals.toArray (new Comparable [0]);
+    } // decode
+
+    /*************************************************************************************
+     * Write the low 'len' bytes of x into buf at position n (big-endian).
+     */
+    private static int putInt (byte [] buf, int n, int x, int len)
+    {
+        for (var j = len - 1; j >= 0; j--) buf [n++] = (byte) (x >>> (8 * j));
+        return n;
+    } // putInt
+
+    /*************************************************************************************
+     * Write x into buf at position n (big-endian).
+     */
+    private static int putLong (byte [] buf, int n, long x)
+    {
+        for (var j = 7; j >= 0; j--) buf [n++] = (byte) (x >>> (8 * j));
+        return n;
+    } // putLong
+
+    /*************************************************************************************
+     * Write the chars of s into buf at position n, one to three bytes per char in
+     * char order, followed by the terminator.
+     */
+    private static int putString (byte [] buf, int n, String s)
+    {
+        for (var j = 0; j < s.length (); j++) {
+            var c = s.charAt (j);
+            if (c == 0) {
+                buf [n++] = 0; buf [n++] = (byte) 0xFF;
+            } else if (c < 0x80) {
+                buf [n++] = (byte) c;
+            } else if (c < 0x800) {
+                buf [n++] = (byte) (0xC0 | (c >> 6));
+                buf [n++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                buf [n++] = (byte) (0xE0 | (c >> 12));
+                buf [n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf [n++] = (byte) (0x80 | (c & 0x3F));
+            } // if
+        } // for
+        buf [n++] = 0; buf [n++] = 1;
+        return n;
+    } // putString
+
+    /*************************************************************************************
+     * Read a 'len' byte unsigned big-endian integer from b at position i.
+     */
+    private static int getInt (byte [] b, int i, int len)
+    {
+        var x = 0;
+        for (var j = 0; j < len; j++) x = (x << 8) | (b [i + j] & 0xFF);
+        return x;
+    } // getInt
+
+    /*************************************************************************************
+     * Read a big-endian long from b at position i.
+     */
+    private static long getLong (byte [] b, int i)
+    {
+        var x = 0L;
+        for (var j = 0; j < 8; j++) x = (x << 8) | (b [i + j] & 0xFF);
+        return x;
+    } // getLong
+
+    /*************************************************************************************
+     * Read an encoded string from b at position i into sb, returning the position just
+     * past its terminator.
+     */
+    private static int getString (byte [] b, int i, StringBuilder sb)
+    {
+        while (true) {
+            var c = b [i++] & 0xFF;
+            if (c == 0) {
+                if ((b [i++] & 0xFF) == 1) return i;
+                sb.append ('\0');
+            } else if (c < 0x80) {
+                sb.append ((char) c);
+            } else if (c < 0xE0) {
+                sb.append ((char) (((c & 0x1F) << 6) | (b [i++] & 0x3F)));
+            } else {
+                sb.append ((char) (((c & 0x0F) << 12) | ((b [i] & 0x3F) << 6) | (b [i + 1] & 0x3F)));
+                i += 2;
+            } // if
+        } // while
+    } // getString
+
+    /*************************************************************************************
+     * Hash an encoded key eight bytes at a time, finishing with a full avalanche.
+     */
+    static long hash64 (byte [] b)
+    {
+        var h = 0x9E3779B97F4A7C15L ^ b.length;
+        var i = 0;
+        for ( ; i + 8 <= b.length; i += 8) {
+            h = Long.rotateLeft (h ^ (long) LONGS.get (b, i), 29) * 0xBF58476D1CE4E5B9L;
+        } // for
+        var tail = 0L;
+        for ( ; i < b.length; i++) tail = (tail << 8) | (b [i] & 0xFF);
+        return mix (h ^ tail);
+    } // hash64
+
+    /*************************************************************************************
+     * Avalanche the bits of x (the finaliser of MurmurHash3).
+     */
+    private static long mix (long x)
+    {
+        x = (x ^ (x >>> 33)) * 0xFF51AFD7ED558CCDL;
+        x = (x ^ (x >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return x ^ (x >>> 33);
+    } // mix
+
+    /*************************************************************************************
+     * The original column-sum hash, used only for keys that have no binary encoding.
+     */
+    private static int legacyHash (Comparable [] key)
     {
         var sum = 0;
         for (var i = 0; i < key.length; i++) sum = 7 * sum + key [i].hashCode ();
         return sum;
-    } // hashCode
+    } // legacyHash
+
+    /*************************************************************************************
+     * Form the array {key0, keys...}.
+     */
+    private static Comparable [] prepend (Comparable key0, Comparable [] keys)
+    {
+         var k = new Comparable [keys.length + 1];
+         k [0] = key0;
+         for (var i = 1; i < k.length; i++) k [i] = keys [i-1];
+         return k;
+    } // prepend
 
     /*************************************************************************************
      * Convert the key to a string.
@@ -120,6 +416,10 @@ public class KeyType
         out.println ("key1.equals (key3): " + key1.equals (key3));
         out.println ("key1.hashCode () == key2.hashCode (): " + (key1.hashCode () == key2.hashCode ()));
         out.println ("key1.hashCode () == key3.hashCode (): " + (key1.hashCode () == key3.hashCode ()));
+        out.println ();
+        out.println ("key1.toBytes () = " + Arrays.toString (key1.toBytes ()));
+        out.println ("fromBytes (key1.toBytes ()) = " + fromBytes (key1.toBytes ()));
+        out.println ("key1.hash64 () = " + Long.toHexString (key1.hash64 ()));
     } // main
 
 } // KeyType class
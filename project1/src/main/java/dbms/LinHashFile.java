@@ -0,0 +1,561 @@
+package dbms;
+/************************************************************************************
+ * @file LinHashFile.java
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import static java.lang.System.out;
+import java.util.*;
+
+/************************************************************************************
+ * This class provides a disk-resident index that uses the Linear Hashing algorithm.
+ * It maps keys to tuples and keeps both in two page files next to the table's
+ * ".dbf" file:
+ * <p>
+ *     base.lhi  page 0 is a header (moduli, split pointer, key count, free list) and
+ *               page i + 1 is the home (primary) page of bucket i
+ *     base.lho  overflow pages, chained from a bucket's home page
+ * <p>
+ * A page holds a small header (number of entries, next overflow page, bytes used)
+ * followed by entries of the form (64-bit hash, key length, tuple length, key bytes,
+ * tuple bytes), where keys and tuples use the KeyType binary encoding.  All page access
+ * goes through bounded page caches, so a point lookup costs one or two page reads, and
+ * a split rewrites just the bucket chain being split, page by page.
+ * <p>
+ * Only the base path is serialized:  a table loaded with Table.load reopens its index
+ * files instead of rebuilding the index.  A newly constructed map starts empty (any old
+ * files are truncated on first use).
+ */
+public class LinHashFile
+       extends AbstractMap <KeyType, Comparable []>
+       implements Serializable, Closeable, Flushable
+{
+    /** The size of a page in bytes
+     */
+    private static final int PAGE = 4096;
+
+    /** The number of pages each page cache may hold
+     */
+    private static final int CACHE_PAGES = 256;
+
+    /** The threshold/upper bound on the load factor (keys per bucket)
+     */
+    private static final double THRESHOLD = 24.;
+
+    /** Marker identifying an index file
+     */
+    private static final int MAGIC = 0x4C484931;                           // "LHI1"
+
+    /** Page layout: offsets of the entry count, next overflow page and bytes used
+     */
+    private static final int N_KEYS = 0, NEXT = 4, USED = 8, HEADER = 12;
+
+    /** Entry layout: hash, key length and tuple length precede the bytes
+     */
+    private static final int ENTRY = 12;
+
+    /** The base path of the index files (without extension)
+     */
+    private final String base;
+
+    /** The cache over the primary (bucket home page) file
+     */
+    private transient PageCache prim;
+
+    /** The cache over the overflow page file
+     */
+    private transient PageCache ovf;
+
+    /** Whether this map was newly constructed (so old files must be discarded)
+     */
+    private transient boolean fresh;
+
+    /** The modulus for low resolution hashing
+     */
+    private transient int mod1;
+
+    /** The index of the next bucket to split.
+     */
+    private transient int isplit;
+
+    /** The counter for the total number of keys in the index
+     */
+    private transient int keyCount;
+
+    /** The head of the list of free overflow pages (0 => none)
+     */
+    private transient int free;
+
+    /** Counter for the number of pages accessed by 'get' (for performance testing).
+     */
+    private transient long count = 0;
+
+    /********************************************************************************
+     * Construct an empty disk-resident linear hash index.
+     * @param _base  the base path of the index files (e.g., "store/movie")
+     */
+    public LinHashFile (String _base)
+    {
+        base  = _base;
+        fresh = true;
+    } // constructor
+
+    /********************************************************************************
+     * Return a set containing all the entries as pairs of keys and tuples.
+     * @return  the set view of the map
+     */
+    public Set <Map.Entry <KeyType, Comparable []>> entrySet ()
+    {
+        var enSet = new LinkedHashSet <Map.Entry <KeyType, Comparable []>> ();
+        if (! open (false)) return enSet;
+        for (var i = 0; i < mod1 + isplit; i++) {
+            for (var pg = home (i); pg != null; pg = next (pg)) {
+                var buf = pg.buf;
+                for (var off = HEADER; off < buf.getInt (USED); off += length (buf, off)) {
+                    enSet.add (Map.entry (KeyType.fromBytes (keyBytes (buf, off)),
+                                          KeyType.decode (valueBytes (buf, off))));
+                } // for
+            } // for
+        } // for
+        return enSet;
+    } // entrySet
+
+    /********************************************************************************
+     * Given the key, look up the tuple in the index.
+     * @param key  the key used for look up
+     * @return  the tuple associated with the key, null if none
+     */
+    public Comparable [] get (Object key)
+    {
+        if (! (key instanceof KeyType k) || ! open (false)) return null;
+        var kb = bytes (k);
+        for (var pg = home (bucket (k.hash64 ())); pg != null; pg = next (pg)) {
+            count++;
+            var off = find (pg.buf, k.hash64 (), kb);
+            if (off >= 0) return KeyType.decode (valueBytes (pg.buf, off));
+        } // for
+        return null;
+    } // get
+
+    /********************************************************************************
+     * Determine whether the index contains the given key.
+     * @param key  the key to look for
+     * @return  whether the key is present
+     */
+    public boolean containsKey (Object key)
+    {
+        return get (key) != null;
+    } // containsKey
+
+    /********************************************************************************
+     * Put the key-tuple pair in the index, replacing any previous tuple for the key.
+     * Split the 'isplit' bucket when the load factor is exceeded.
+     * @param key    the key to insert
+     * @param value  the tuple to insert
+     * @return  the old/previous tuple, null if none
+     */
+    public Comparable [] put (KeyType key, Comparable [] value)
+    {
+        open (true);
+        var oldV = remove (key);
+        var kb   = bytes (key);
+        var vb   = KeyType.encode (value);
+        if (vb == null) throw new IllegalArgumentException ("put: tuple has a value with no binary encoding");
+        if (HEADER + ENTRY + kb.length + vb.length > PAGE) {
+            throw new IllegalArgumentException ("put: entry for " + key + " does not fit in a page");
+        } // if
+
+        add (bucket (key.hash64 ()), key.hash64 (), kb, vb);
+        keyCount++;
+        if (keyCount / (double) (mod1 + isplit) > THRESHOLD) split ();    // split beyond THRESHOLD
+        writeHeader ();
+        return oldV;
+    } // put
+
+    /********************************************************************************
+     * Remove the key (and its tuple) from the index.  The entry is squeezed out of its
+     * page; emptied overflow pages are reclaimed at the next split of the bucket.
+     * @param key  the key to remove
+     * @return  the removed tuple, null if the key was not present
+     */
+    public Comparable [] remove (Object key)
+    {
+        if (! (key instanceof KeyType k) || ! open (false)) return null;
+        var kb = bytes (k);
+        for (var pg = home (bucket (k.hash64 ())); pg != null; pg = next (pg)) {
+            var buf = pg.buf;
+            var off = find (buf, k.hash64 (), kb);
+            if (off < 0) continue;
+
+            var oldV = KeyType.decode (valueBytes (buf, off));
+            var len  = length (buf, off);
+            var used = buf.getInt (USED);
+            System.arraycopy (buf.array (), off + len, buf.array (), off, used - off - len);
+            buf.putInt (USED, used - len);
+            buf.putInt (N_KEYS, buf.getInt (N_KEYS) - 1);
+            pg.write ();
+            keyCount--;
+            writeHeader ();
+            return oldV;
+        } // for
+        return null;
+    } // remove
+
+    /********************************************************************************
+     * Return the number of keys stored in the index.
+     * @return  the size of the index
+     */
+    public int size ()
+    {
+        return open (false) ? keyCount : 0;
+    } // size
+
+    /********************************************************************************
+     * Write all modified pages to the index files.
+     */
+    public void flush ()
+    {
+        if (prim == null) return;
+        writeHeader ();
+        prim.flush ();
+        ovf.flush ();
+    } // flush
+
+    /********************************************************************************
+     * Flush and close the index files (they are reopened on next use).
+     * @throws IOException  if the files cannot be closed
+     */
+    public void close ()
+        throws IOException
+    {
+        if (prim == null) return;
+        flush ();
+        prim.close ();
+        ovf.close ();
+        prim = ovf = null;
+    } // close
+
+    /********************************************************************************
+     * Print the index (bucket by bucket, with overflow pages after arrows).
+     */
+    public void print ()
+    {
+        out.println ("LinHashFile " + base);
+        out.println ("-------------------------------------------");
+        if (open (false)) {
+            for (var i = 0; i < mod1 + isplit; i++) {
+                out.print ("Bucket [ " + i + " ] = ");
+                var j = 0;
+                for (var pg = home (i); pg != null; pg = next (pg)) {
+                    if (j++ > 0) out.print (" \t\t --> ");
+                    out.println ("[ " + pg.buf.getInt (N_KEYS) + " keys, " + pg.buf.getInt (USED) + " bytes ]");
+                } // for
+            } // for
+            out.println (prim.stats () + "; overflow " + ovf.stats ());
+        } // if
+        out.println ("-------------------------------------------");
+    } // print
+
+    /********************************************************************************
+     * Return the average number of pages read per 'get' so far, given the number of
+     * lookups made.
+     * @param lookups  the number of lookups made
+     * @return  pages accessed per lookup
+     */
+    public double pagesPerLookup (long lookups)
+    {
+        return count / (double) lookups;
+    } // pagesPerLookup
+
+    //-------------------------------------------------------------------------------
+    // Page handling
+    //-------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * A page of a bucket chain together with the file and page number it came from.
+     */
+    private class Page
+    {
+        final PageCache  file;
+        final int        pageNo;
+        final ByteBuffer buf;
+
+        Page (PageCache _file, int _pageNo)
+        {
+            file   = _file;
+            pageNo = _pageNo;
+            buf    = file.page (pageNo);
+        } // constructor
+
+        void write ()
+        {
+            file.put (pageNo, buf);
+        } // write
+
+    } // Page inner class
+
+    /********************************************************************************
+     * Return the home page of bucket i.
+     */
+    private Page home (int i)
+    {
+        return new Page (prim, i + 1);
+    } // home
+
+    /********************************************************************************
+     * Return the overflow page following pg in its chain, or null at the end.
+     */
+    private Page next (Page pg)
+    {
+        var nx = pg.buf.getInt (NEXT);
+        return (nx == 0) ? null : new Page (ovf, nx);
+    } // next
+
+    /********************************************************************************
+     * Add an entry to bucket i, in the first page of its chain with room for it,
+     * linking in a new overflow page if none has room.
+     */
+    private void add (int i, long h, byte [] kb, byte [] vb)
+    {
+        var len = ENTRY + kb.length + vb.length;
+        var pg  = home (i);
+        while (pg.buf.getInt (USED) + len > PAGE) {
+            var nx = next (pg);
+            if (nx == null) {
+                nx = newOverflow ();
+                pg.buf.putInt (NEXT, nx.pageNo);
+                pg.write ();
+            } // if
+            pg = nx;
+        } // while
+
+        var buf = pg.buf;
+        var off = buf.getInt (USED);
+        buf.putLong (off, h);
+        buf.putShort (off + 8, (short) kb.length);
+        buf.putShort (off + 10, (short) vb.length);
+        buf.put (off + ENTRY, kb);
+        buf.put (off + ENTRY + kb.length, vb);
+        buf.putInt (USED, off + len);
+        buf.putInt (N_KEYS, buf.getInt (N_KEYS) + 1);
+        pg.write ();
+    } // add
+
+    /********************************************************************************
+     * Take an overflow page from the free list (or the end of the file), cleared.
+     */
+    private Page newOverflow ()
+    {
+        Page pg;
+        if (free != 0) {
+            pg   = new Page (ovf, free);
+            free = pg.buf.getInt (NEXT);
+        } else {
+            pg = new Page (ovf, ovf.allocate ());
+        } // if
+        Arrays.fill (pg.buf.array (), (byte) 0);
+        pg.buf.putInt (USED, HEADER);
+        pg.write ();
+        return pg;
+    } // newOverflow
+
+    /********************************************************************************
+     * Split bucket 'isplit' by reading its whole chain, resetting its home page (its
+     * overflow pages go on the free list), updating the hash functions and re-adding
+     * each entry to bucket 'isplit' or the new bucket 'mod1 + isplit'.
+     */
+    private void split ()
+    {
+        var hs = new ArrayList <Long> ();
+        var ks = new ArrayList <byte []> ();
+        var vs = new ArrayList <byte []> ();
+        for (var pg = home (isplit); pg != null; pg = next (pg)) {
+            var buf = pg.buf;
+            for (var off = HEADER; off < buf.getInt (USED); off += length (buf, off)) {
+                hs.add (buf.getLong (off));
+                ks.add (keyBytes (buf, off));
+                vs.add (valueBytes (buf, off));
+            } // for
+        } // for
+
+        var hp = home (isplit);
+        for (var nx = hp.buf.getInt (NEXT); nx != 0; ) {                      // free the overflow pages
+            var pg = new Page (ovf, nx);
+            nx = pg.buf.getInt (NEXT);
+            pg.buf.putInt (NEXT, free);
+            pg.write ();
+            free = pg.pageNo;
+        } // for
+        resetPage (hp);
+        resetPage (home (mod1 + isplit));                                     // new bucket's home page
+
+        if (++isplit == mod1) {
+            isplit = 0;
+            mod1   = 2 * mod1;
+        } // if
+        for (var j = 0; j < hs.size (); j++) add (bucket (hs.get (j)), hs.get (j), ks.get (j), vs.get (j));
+    } // split
+
+    /********************************************************************************
+     * Clear a page to hold no entries.
+     */
+    private static void resetPage (Page pg)
+    {
+        Arrays.fill (pg.buf.array (), (byte) 0);
+        pg.buf.putInt (USED, HEADER);
+        pg.write ();
+    } // resetPage
+
+    /********************************************************************************
+     * Find the entry for the key in the page.
+     * @return  the offset of the entry, -1 if not in this page
+     */
+    private static int find (ByteBuffer buf, long h, byte [] kb)
+    {
+        var a = buf.array ();
+        for (var off = HEADER; off < buf.getInt (USED); off += length (buf, off)) {
+            if (buf.getLong (off) == h && buf.getShort (off + 8) == kb.length
+                && Arrays.equals (a, off + ENTRY, off + ENTRY + kb.length, kb, 0, kb.length)) return off;
+        } // for
+        return -1;
+    } // find
+
+    /********************************************************************************
+     * Return the length of the entry at the given offset.
+     */
+    private static int length (ByteBuffer buf, int off)
+    {
+        return ENTRY + buf.getShort (off + 8) + buf.getShort (off + 10);
+    } // length
+
+    /********************************************************************************
+     * Copy out the key bytes of the entry at the given offset.
+     */
+    private static byte [] keyBytes (ByteBuffer buf, int off)
+    {
+        var s = off + ENTRY;
+        return Arrays.copyOfRange (buf.array (), s, s + buf.getShort (off + 8));
+    } // keyBytes
+
+    /********************************************************************************
+     * Copy out the tuple bytes of the entry at the given offset.
+     */
+    private static byte [] valueBytes (ByteBuffer buf, int off)
+    {
+        var s = off + ENTRY + buf.getShort (off + 8);
+        return Arrays.copyOfRange (buf.array (), s, s + buf.getShort (off + 10));
+    } // valueBytes
+
+    /********************************************************************************
+     * Return the binary encoding of a key, which the index requires.
+     */
+    private static byte [] bytes (KeyType k)
+    {
+        var kb = k.toBytes ();
+        if (kb == null) throw new IllegalArgumentException ("LinHashFile: key " + k + " has no binary encoding");
+        return kb;
+    } // bytes
+
+    /********************************************************************************
+     * Hash to a bucket using the low resolution hash function, or the high resolution
+     * one for buckets already split in this phase.
+     */
+    private int bucket (long h)
+    {
+        var i = (int) (h & (mod1 - 1));
+        return (i < isplit) ? (int) (h & (2 * mod1 - 1)) : i;
+    } // bucket
+
+    //-------------------------------------------------------------------------------
+    // Opening the files and the header page
+    //-------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Open the index files if they are not open yet.  A fresh map discards old files
+     * (only once something is written); a deserialized map reads its header.
+     * @param create  whether to create the files if they do not exist
+     * @return  whether the index files are open
+     */
+    private boolean open (boolean create)
+    {
+        if (prim != null) return true;
+        var exists = Files.exists (Paths.get (base + ".lhi"));
+        if (! create && (fresh || ! exists)) return false;
+
+        try {
+            prim = new PageCache (Paths.get (base + ".lhi"), PAGE, CACHE_PAGES);
+            ovf  = new PageCache (Paths.get (base + ".lho"), PAGE, CACHE_PAGES);
+        } catch (IOException ex) {
+            throw new UncheckedIOException ("LinHashFile: cannot open " + base, ex);
+        } // try
+
+        var hdr = prim.page (0);
+        if (fresh || ! exists || hdr.getInt (0) != MAGIC) {                 // start a new index
+            prim.clear ();
+            ovf.clear ();
+            ovf.allocate ();                                                 // overflow page 0 is unused
+            mod1 = 4; isplit = 0; keyCount = 0; free = 0;
+            prim.allocate ();
+            for (var i = 0; i < 2 * mod1; i++) resetPage (new Page (prim, prim.allocate ()));
+            fresh = false;
+            writeHeader ();
+        } else {
+            mod1     = hdr.getInt (4);
+            isplit   = hdr.getInt (8);
+            keyCount = hdr.getInt (12);
+            free     = hdr.getInt (16);
+        } // if
+        return true;
+    } // open
+
+    /********************************************************************************
+     * Write the moduli, split pointer, key count and free list head to page 0.
+     */
+    private void writeHeader ()
+    {
+        var hdr = prim.page (0);
+        hdr.putInt (0, MAGIC);
+        hdr.putInt (4, mod1);
+        hdr.putInt (8, isplit);
+        hdr.putInt (12, keyCount);
+        hdr.putInt (16, free);
+        prim.put (0, hdr);
+    } // writeHeader
+
+    /********************************************************************************
+     * Flush the index files along with the object that refers to them.
+     */
+    private void writeObject (ObjectOutputStream oos)
+        throws IOException
+    {
+        flush ();
+        oos.defaultWriteObject ();
+    } // writeObject
+
+    /********************************************************************************
+     * The main method used for testing.
+     * @param  args the command-line arguments (args [0] gives number of keys to insert)
+     */
+    public static void main (String [] args)
+        throws IOException
+    {
+        var totalKeys = (args.length == 1) ? Integer.valueOf (args [0]) : 10000;
+
+        var ht = new LinHashFile ("store" + File.separator + "LinHashFileTest");
+        for (var i = 1; i <= totalKeys; i++) {
+            ht.put (new KeyType (i), new Comparable [] { i, "value" + i, i * 1.5 });
+        } // for
+        ht.close ();
+
+        for (var i = 0; i <= 10; i++) {
+            out.println ("key = " + i + " value = " + Arrays.toString (ht.get (new KeyType (i))));
+        } // for
+        for (var i = 1; i <= totalKeys; i++) ht.get (new KeyType (i));
+        ht.print ();
+        out.println ("Average number of pages accessed = " + ht.pagesPerLookup (totalKeys + 11));
+    } // main
+
+} // LinHashFile class
+
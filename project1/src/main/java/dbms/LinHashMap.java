@@ -42,6 +42,7 @@ public class LinHashMap <K, V>
      * This inner class defines buckets that are stored in the hash table.
      */
     private class Bucket
+           implements Serializable
     {
         int    nKeys;
         K []   key;
@@ -171,14 +172,7 @@ public class LinHashMap <K, V>
     @SuppressWarnings("unchecked")
     public V get (Object key)
     {
-
-        var i = h (key);
-        var i2 = h2 (key);
-        var hReturn = find ((K) key, hTable.get (i), true);
-        if(hReturn == null) {
-            hReturn = find ((K) key, hTable.get (i2), true);
-        }
-        return hReturn;
+        return find ((K) key, hTable.get (address (key)), true);
     } // get
 
     /********************************************************************************
@@ -190,28 +184,47 @@ public class LinHashMap <K, V>
      */
     public V put (K key, V value)
     {
-        var i    = h (key);                                                  // hash to i-th bucket chain
-        var bh   = hTable.get (i);                                           // start with home bucket
-        var oldV = find (key, bh, false);                                    // find old value associated with key
+        var i  = address (key);                                              // hash to i-th bucket chain
+        var bh = hTable.get (i);                                             // start with home bucket
         out.println ("LinearHashMap.put: key = " + key + ", h() = " + i + ", value = " + value);
 
+        for (var b = bh; b != null; b = b.next) {                            // replace the value of an old key
+            for (var j = 0; j < b.nKeys; j++) {
+                if (b.key[j].equals (key)) { var oldV = b.value[j]; b.value[j] = value; return oldV; }
+            } // for
+        } // for
+
         keyCount++;                                                          // increment the key count
         var lf = loadFactor ();                                              // compute the load factor
         if (DEBUG) out.println ("put: load factor = " + lf);
         if (lf > THRESHOLD) split ();                                        // split beyond THRESHOLD
 
-        var b = bh;
-        while (true) {
-            if (b.nKeys < SLOTS) { b.add (key, value); return oldV; }
-            if (b.next != null) b = b.next; else break;
-        } // while
-
-        var bn = new Bucket ();
-        bn.add (key, value);
-        b.next = bn;                                                         // add new bucket at end of chain
-        return oldV;
+        append (hTable.get (address (key)), key, value);                     // the split may move its chain
+        return null;
     } // put
 
+    /********************************************************************************
+     * Remove the key and its value from the hash table.  An overflow bucket left
+     * empty is unlinked from its chain.
+     * @param key  the key to remove
+     * @return  the value that was associated with the key, null if none
+     */
+    public V remove (Object key)
+    {
+        Bucket prev = null;
+        for (var b = hTable.get (address (key)); b != null; prev = b, b = b.next) {
+            for (var j = 0; j < b.nKeys; j++) {
+                if (! b.key[j].equals (key)) continue;
+                var oldV = b.value[j];
+                b.remove (j);
+                keyCount--;
+                if (b.nKeys == 0 && prev != null) prev.next = b.next;
+                return oldV;
+            } // for
+        } // for
+        return null;
+    } // remove
+
     /********************************************************************************
      * Print the hash table.
      */
@@ -242,40 +255,28 @@ public class LinHashMap <K, V>
         return SLOTS * (mod1 + isplit);
     } // size
 
-//    /********************************************************************************
-//     * Split bucket chain 'isplit' by creating a new bucket chain at the end of the
-//     * hash table and redistributing the keys according to the high resolution hash
-//     * function 'h2'.  Increment 'isplit'.  If current split phase is complete,
-//     * reset 'isplit' to zero, and update the hash functions.
-//     *
-//     * @author Christopher Evans
-//     * @author Razvan Beldanu
-//     */
-/*
+    /********************************************************************************
+     * Split bucket chain 'isplit' by creating a new bucket chain at the end of the
+     * hash table and redistributing the keys according to the high resolution hash
+     * function 'h2'.  Increment 'isplit'.  If current split phase is complete,
+     * reset 'isplit' to zero, and update the hash functions.
+     *
+     * @author Christopher Evans
+     * @author Razvan Beldanu
+     */
     private void split ()
     {
         out.println ("split: bucket chain " + isplit);
 
-        //  Add a new bucket to the end of the hash table
-        Bucket splitBucket = hTable.get(isplit);
-        Bucket newBucket = new Bucket();
-        hTable.add(newBucket);
-
-
-//          Iterate through the bucket chain and redistribute the keys
-        for (Bucket b = splitBucket; b != null; b = b.next) {
-            for (int i = 0; i < b.nKeys; i++) {
-                K key = b.key[i];
-                V value = b.value[i];
-                int index = h2(key);
-                if (index > h(key)) {
-                    //Add the key and value to the new bucket
-                    newBucket.add(key, value);
-                    //Remove the key and value from the old bucket
-                    b.remove(i);
-                }
-            }
-        }
+        //  Replace the chain being split and add a new bucket to the end of the hash table
+        var splitBucket = hTable.get (isplit);
+        hTable.set (isplit, new Bucket ());
+        hTable.add (new Bucket ());
+
+        //  Iterate through the old bucket chain and redistribute the keys (to isplit or isplit + mod1)
+        for (var b = splitBucket; b != null; b = b.next) {
+            for (var i = 0; i < b.nKeys; i++) append (hTable.get (h2 (b.key[i])), b.key[i], b.value[i]);
+        } // for
 
         //  Increment the split counter
         isplit++;
@@ -286,9 +287,39 @@ public class LinHashMap <K, V>
             mod1 = mod2;
             mod2 = 2 * mod1;
         }
+    } // split
 
+    /********************************************************************************
+     * Add the key-value pair to the first bucket with a free slot in the chain starting
+     * with home bucket bh, adding a new bucket at the end of the chain if all are full.
+     * @param bh     the given home bucket
+     * @param key    the key to add
+     * @param value  the value to add
+     */
+    private void append (Bucket bh, K key, V value)
+    {
+        var b = bh;
+        while (true) {
+            if (b.nKeys < SLOTS) { b.add (key, value); return; }
+            if (b.next != null) b = b.next; else break;
+        } // while
+
+        var bn = new Bucket ();
+        bn.add (key, value);
+        b.next = bn;                                                         // add new bucket at end of chain
+    } // append
 
-    } // split*/
+    /********************************************************************************
+     * Return the bucket chain holding the key:  chains before 'isplit' have already
+     * been split, so use the high resolution hash function for them.
+     * @param key  the key to locate
+     * @return  the location of the bucket chain
+     */
+    private int address (Object key)
+    {
+        var i = h (key);
+        return (i < isplit) ? h2 (key) : i;
+    } // address
 
 
     /********************************************************************************
@@ -335,7 +366,7 @@ public class LinHashMap <K, V>
      */
     private int h2 (Object key)
     {
-        return key.hashCode () % mod2;
+        return Math.abs (key.hashCode () % mod2);
     } // h2
 
     /********************************************************************************
@@ -0,0 +1,349 @@
+package dbms;
+/************************************************************************************
+ * @file LockManager.java
+ */
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.System.out;
+
+/************************************************************************************
+ * The LockManager class provides multi-granularity locking for transactions:  intention
+ * locks (IS, IX, SIX) and shared/exclusive locks (S, X) on tables, and S/X locks on keys
+ * within a table.  Locks are held until the owner releases all of them at commit or
+ * abort (strict two-phase locking).
+ * <p>
+ * There is no global lock:  each resource has its own lock state, and a request only
+ * synchronizes on the state of the resource it asks for.  While a request waits, an
+ * edge from its owner to each holder it waits on is kept in a wait-for graph; a request
+ * whose wait would close a cycle fails with a DeadlockException (the requester is the
+ * victim), as does a request that waits longer than the timeout.  Acquisition counts,
+ * contention and wait times are kept as metrics.
+ */
+public class LockManager
+{
+    /** The lock modes
+     */
+    public enum Mode { IS, IX, S, SIX, X }
+
+    /** The compatibility matrix for modes held by different owners
+     */
+    private static final boolean [][] COMPATIBLE = {
+        //          IS     IX     S      SIX    X
+        /* IS  */ { true,  true,  true,  true,  false },
+        /* IX  */ { true,  true,  false, false, false },
+        /* S   */ { true,  false, true,  false, false },
+        /* SIX */ { true,  false, false, false, false },
+        /* X   */ { false, false, false, false, false } };
+
+    /** How often a waiting request re-checks for deadlock (in milliseconds)
+     */
+    private static final long CHECK_MS = 50;
+
+    /********************************************************************************
+     * This exception is thrown when a lock request is chosen as a deadlock victim or
+     * times out; the owner's transaction should be aborted.
+     */
+    public static class DeadlockException
+           extends RuntimeException
+    {
+        DeadlockException (String message)
+        {
+            super (message);
+        } // constructor
+
+    } // DeadlockException class
+
+    /********************************************************************************
+     * This inner class identifies a key within a table as a lockable resource.
+     */
+    private record KeyLock (Table table, KeyType key) { }
+
+    /********************************************************************************
+     * This inner class holds the owners granted a resource and the number waiting.
+     */
+    private static final class State
+    {
+        final Map <Object, Mode> granted = new HashMap <> ();
+        int     waiting = 0;
+        boolean retired = false;                      // removed from the lock table
+    } // State inner class
+
+    /** The lock table (resource -> lock state)
+     */
+    private final ConcurrentHashMap <Object, State> locks = new ConcurrentHashMap <> ();
+
+    /** The resources held by each owner
+     */
+    private final ConcurrentHashMap <Object, Set <Object>> held = new ConcurrentHashMap <> ();
+
+    /** The wait-for graph (waiting owner -> owners it waits on)
+     */
+    private final ConcurrentHashMap <Object, Set <Object>> waitsFor = new ConcurrentHashMap <> ();
+
+    /** The maximum time a request waits (in milliseconds)
+     */
+    private final long timeout;
+
+    /** Metrics:  locks granted, requests that had to wait, deadlocks, timeouts and wait times
+     */
+    private final LongAdder  granted    = new LongAdder ();
+    private final LongAdder  contended  = new LongAdder ();
+    private final LongAdder  deadlocks  = new LongAdder ();
+    private final LongAdder  timeouts   = new LongAdder ();
+    private final LongAdder  waitNanos  = new LongAdder ();
+    private final AtomicLong maxWait    = new AtomicLong ();
+
+    /********************************************************************************
+     * Construct a lock manager.
+     * @param _timeout  the maximum time a request waits (in milliseconds)
+     */
+    public LockManager (long _timeout)
+    {
+        timeout = _timeout;
+    } // constructor
+
+    /********************************************************************************
+     * Lock a whole table in the given mode.
+     * @param owner  the owner of the lock (e.g., a transaction)
+     * @param table  the table to lock
+     * @param mode   the lock mode
+     */
+    public void lockTable (Object owner, Table table, Mode mode)
+    {
+        acquire (owner, table, mode);
+    } // lockTable
+
+    /********************************************************************************
+     * Lock a key of a table in mode S or X, first taking the matching intention lock
+     * (IS or IX) on the table.
+     * @param owner  the owner of the lock (e.g., a transaction)
+     * @param table  the table holding the key
+     * @param key    the key to lock
+     * @param mode   the lock mode (S or X)
+     */
+    public void lockKey (Object owner, Table table, KeyType key, Mode mode)
+    {
+        if (mode != Mode.S && mode != Mode.X) throw new IllegalArgumentException ("lockKey: mode must be S or X");
+        acquire (owner, table, (mode == Mode.S) ? Mode.IS : Mode.IX);
+        acquire (owner, new KeyLock (table, key), mode);
+    } // lockKey
+
+    /********************************************************************************
+     * Release every lock held by the owner.
+     * @param owner  the owner of the locks
+     */
+    public void releaseAll (Object owner)
+    {
+        var resources = held.remove (owner);
+        if (resources == null) return;
+        for (var res : resources) {
+            var st = locks.get (res);
+            if (st == null) continue;
+            synchronized (st) {
+                st.granted.remove (owner);
+                if (st.granted.isEmpty () && st.waiting == 0) {
+                    st.retired = true;
+                    locks.remove (res, st);
+                } // if
+                st.notifyAll ();
+            } // synchronized
+        } // for
+    } // releaseAll
+
+    /********************************************************************************
+     * Return the mode in which the owner holds a table or null if it holds none.
+     * @param owner  the owner of the lock
+     * @param table  the table
+     * @return  the mode held
+     */
+    public Mode holds (Object owner, Table table)
+    {
+        var st = locks.get (table);
+        if (st == null) return null;
+        synchronized (st) { return st.granted.get (owner); }
+    } // holds
+
+    /********************************************************************************
+     * Return the number of deadlocks detected.
+     * @return  the deadlock count
+     */
+    public long deadlocks ()
+    {
+        return deadlocks.sum ();
+    } // deadlocks
+
+    /********************************************************************************
+     * Return the number of lock requests that had to wait.
+     * @return  the contended request count
+     */
+    public long contended ()
+    {
+        return contended.sum ();
+    } // contended
+
+    /********************************************************************************
+     * Return lock metrics (grants, contention, wait times, deadlocks and timeouts) as
+     * a string.
+     * @return  the metrics
+     */
+    public String stats ()
+    {
+        var waits = contended.sum ();
+        return "LockManager: " + granted.sum () + " granted, " + waits + " waited"
+               + ", mean wait = " + ((waits == 0) ? 0 : waitNanos.sum () / waits / 1000) + " us"
+               + ", max wait = " + maxWait.get () / 1000 + " us"
+               + ", " + deadlocks.sum () + " deadlocks, " + timeouts.sum () + " timeouts";
+    } // stats
+
+    /********************************************************************************
+     * Acquire a resource in the given mode (or upgrade the mode already held), waiting
+     * while it conflicts with the modes granted to other owners.
+     */
+    private void acquire (Object owner, Object res, Mode mode)
+    {
+        for ( ; ; ) {
+            var st = locks.computeIfAbsent (res, r -> new State ());
+            synchronized (st) {
+                if (st.retired) continue;                               // lost a race with release
+                var cur  = st.granted.get (owner);
+                var want = (cur == null) ? mode : join (cur, mode);
+                if (want == cur) return;
+
+                var t0 = 0L;
+                st.waiting++;
+                try {
+                    while (! grantable (st, owner, want)) {
+                        if (t0 == 0) { t0 = System.nanoTime (); contended.increment (); }
+                        waitsFor.put (owner, blockers (st, owner, want));
+                        if (cycle (owner)) {
+                            deadlocks.increment ();
+                            throw new DeadlockException ("acquire: deadlock on " + res + " (" + want + ")");
+                        } // if
+                        var left = timeout - (System.nanoTime () - t0) / 1_000_000;
+                        if (left <= 0) {
+                            timeouts.increment ();
+                            throw new DeadlockException ("acquire: lock wait timeout on " + res + " (" + want + ")");
+                        } // if
+                        try {
+                            st.wait (Math.min (left, CHECK_MS));
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread ().interrupt ();
+                            throw new DeadlockException ("acquire: interrupted waiting for " + res);
+                        } // try
+                    } // while
+                } finally {
+                    st.waiting--;
+                    if (t0 != 0) waitsFor.remove (owner);
+                } // try
+
+                if (t0 != 0) {
+                    var w = System.nanoTime () - t0;
+                    waitNanos.add (w);
+                    maxWait.accumulateAndGet (w, Math::max);
+                } // if
+                st.granted.put (owner, want);
+                held.computeIfAbsent (owner, o -> ConcurrentHashMap.newKeySet ()).add (res);
+                granted.increment ();
+                return;
+            } // synchronized
+        } // for
+    } // acquire
+
+    /********************************************************************************
+     * Return whether the mode is compatible with the modes granted to other owners.
+     */
+    private static boolean grantable (State st, Object owner, Mode mode)
+    {
+        for (var e : st.granted.entrySet ()) {
+            if (e.getKey () != owner && ! COMPATIBLE [mode.ordinal ()][e.getValue ().ordinal ()]) return false;
+        } // for
+        return true;
+    } // grantable
+
+    /********************************************************************************
+     * Return the other owners whose granted modes conflict with the mode.
+     */
+    private static Set <Object> blockers (State st, Object owner, Mode mode)
+    {
+        var bs = new HashSet <> ();
+        for (var e : st.granted.entrySet ()) {
+            if (e.getKey () != owner && ! COMPATIBLE [mode.ordinal ()][e.getValue ().ordinal ()]) bs.add (e.getKey ());
+        } // for
+        return Collections.unmodifiableSet (bs);
+    } // blockers
+
+    /********************************************************************************
+     * Return whether the owner is on a cycle of the wait-for graph (depth-first search).
+     */
+    private boolean cycle (Object owner)
+    {
+        var seen  = new HashSet <> ();
+        var stack = new ArrayDeque <> (waitsFor.getOrDefault (owner, Set.of ()));
+        while (! stack.isEmpty ()) {
+            var o = stack.pop ();
+            if (o == owner) return true;
+            if (seen.add (o)) stack.addAll (waitsFor.getOrDefault (o, Set.of ()));
+        } // while
+        return false;
+    } // cycle
+
+    /********************************************************************************
+     * Return the weakest mode at least as strong as both modes (for upgrades).
+     */
+    private static Mode join (Mode a, Mode b)
+    {
+        if (a == b || b == Mode.IS) return a;
+        if (a == Mode.IS) return b;
+        if (a == Mode.X || b == Mode.X) return Mode.X;
+        return Mode.SIX;                                    // IX+S, IX+SIX, S+SIX
+    } // join
+
+    /********************************************************************************
+     * The main method used for testing:  two owners lock two keys in opposite orders,
+     * so one of them must be chosen as a deadlock victim.
+     * @param  args the command-line arguments
+     */
+    public static void main (String [] args)
+        throws InterruptedException
+    {
+        var lm    = new LockManager (5000);
+        var table = new Table ("lockTest", "k", "Integer", "k");
+        var k1    = new KeyType (1);
+        var k2    = new KeyType (2);
+        Runnable r1 = () -> {
+            var me = new Object ();
+            try {
+                lm.lockKey (me, table, k1, Mode.X);
+                Thread.sleep (100);
+                lm.lockKey (me, table, k2, Mode.X);
+            } catch (DeadlockException | InterruptedException ex) {
+                out.println ("r1: " + ex.getMessage ());
+            } finally {
+                lm.releaseAll (me);
+            } // try
+        };
+        Runnable r2 = () -> {
+            var me = new Object ();
+            try {
+                lm.lockKey (me, table, k2, Mode.X);
+                Thread.sleep (100);
+                lm.lockKey (me, table, k1, Mode.X);
+            } catch (DeadlockException | InterruptedException ex) {
+                out.println ("r2: " + ex.getMessage ());
+            } finally {
+                lm.releaseAll (me);
+            } // try
+        };
+        var t1 = new Thread (r1);
+        var t2 = new Thread (r2);
+        t1.start (); t2.start ();
+        t1.join ();  t2.join ();
+        out.println (lm.stats ());
+    } // main
+
+} // LockManager class
+
@@ -0,0 +1,409 @@
+package dbms;
+/************************************************************************************
+ * @file LogShipper.java
+ */
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import static java.lang.System.out;
+
+/************************************************************************************
+ * The LogShipper class is the primary side of log-shipping replication.  Published
+ * tables feed their changes into an in-memory log, each entry numbered by a log
+ * sequence number (LSN), and the log is streamed to every connected Replica, which
+ * applies it to its own copies of the tables.
+ * <p>
+ * Publishing a table logs its schema and a snapshot of its tuples, taken while the
+ * table is share-locked so that no change falls between the snapshot and the feed.
+ * A replica connects asking for the entries after the last LSN it applied; the shipper
+ * sends them, then new entries as they are logged, and a heartbeat (the latest LSN)
+ * every HEARTBEAT_MS.  Replicas acknowledge the LSN they have applied, from which the
+ * shipper reports each replica's lag and drops the entries every connected replica has
+ * applied (and the oldest beyond MAX_LOG), so the log stays bounded.  A replica asking
+ * for an entry no longer kept (a new one, or one that fell too far behind) is sent a
+ * snapshot instead:  the schema and tuples of every published table as of the latest
+ * LSN (taken while they are share-locked), followed by the log from there on.
+ * <p>
+ * Every message is
+ *     int length, byte type, long lsn, body
+ * where a SCHEMA body is the table name, attribute names, domains and key, a CHANGE
+ * body is the table name followed by the old and the new tuples (each a count, then
+ * each tuple's length and KeyType encoding), and a HEARTBEAT has no body.  The
+ * messages of a snapshot all carry its LSN.
+ */
+public final class LogShipper
+       implements Closeable
+{
+    /** Message types
+     */
+    static final byte SCHEMA = 1, CHANGE = 2, HEARTBEAT = 3;
+
+    /** The interval between heartbeats (in milliseconds)
+     */
+    static final int HEARTBEAT_MS = 50;
+
+    /** The most log entries kept for replicas that lag (those further behind are sent
+     *  a snapshot)
+     */
+    static final int MAX_LOG = 1 << 16;
+
+    /** The log:  the encoded message of each LSN kept (LSN i at index i - 1 - trimmed)
+     */
+    private final List <byte []> log = new ArrayList <> ();
+
+    /** The number of entries dropped from the front of the log (guarded by log)
+     */
+    private long trimmed = 0;
+
+    /** The LSN acknowledged by each connected replica (by its address)
+     */
+    private final Map <String, Long> acked = new ConcurrentHashMap <> ();
+
+    /** The listening socket
+     */
+    private final ServerSocket server;
+
+    /** The open connections (closed with the shipper)
+     */
+    private final Set <Socket> connections = ConcurrentHashMap.newKeySet ();
+
+    /** The feeds of the tables (and partitions) published
+     */
+    private final Map <Table, BiConsumer <List <Comparable []>, List <Comparable []>>> published = new HashMap <> ();
+
+    /** The tables published (guarded by published)
+     */
+    private final List <Table> tables = new ArrayList <> ();
+
+    /** The messages of a snapshot and the LSN they are as of
+     */
+    private record Snapshot (long lsn, List <byte []> messages) { }
+
+    /********************************************************************************
+     * Start shipping the log to replicas connecting to the given port of the loopback
+     * address.
+     * @param port  the port (0 for any free port)
+     * @throws IOException  if the port cannot be bound
+     */
+    public LogShipper (int port)
+        throws IOException
+    {
+        this (port, InetAddress.getLoopbackAddress ());
+    } // constructor
+
+    /********************************************************************************
+     * Start shipping the log to replicas connecting to the given port and address.
+     * @param port  the port (0 for any free port)
+     * @param bind  the local address to listen on
+     * @throws IOException  if the port cannot be bound
+     */
+    public LogShipper (int port, InetAddress bind)
+        throws IOException
+    {
+        server = new ServerSocket (port, 16, bind);
+        daemon (this::accept, "LogShipper-accept");
+    } // constructor
+
+    /********************************************************************************
+     * Replicate a table:  log its schema and current tuples, then feed it (or each of
+     * its partitions) into the log.
+     * @param table  the table to publish
+     */
+    public void publish (Table table)
+    {
+        var name  = table.getName ();
+        var owner = new Object ();
+        synchronized (published) {
+            try {
+                for (var part : table.partitions ()) Transaction.locks ().lockTable (owner, part, LockManager.Mode.S);
+                append (SCHEMA, schema (table));
+                for (var part : table.partitions ()) {
+                    BiConsumer <List <Comparable []>, List <Comparable []>> feed = (olds, news) -> change (name, olds, news);
+                    part.addFeed (feed);
+                    change (name, List.of (), part.rows ());
+                    published.put (part, feed);
+                } // for
+                tables.add (table);
+            } finally {
+                Transaction.locks ().releaseAll (owner);
+            } // try
+        } // synchronized
+    } // publish
+
+    /********************************************************************************
+     * Return the LSN of the latest log entry.
+     * @return  the latest LSN
+     */
+    public long lsn ()
+    {
+        synchronized (log) { return trimmed + log.size (); }
+    } // lsn
+
+    /********************************************************************************
+     * Return the LSN of the oldest log entry kept (replicas asking for an earlier one
+     * are sent a snapshot).
+     * @return  the oldest LSN kept
+     */
+    public long oldest ()
+    {
+        synchronized (log) { return trimmed + 1; }
+    } // oldest
+
+    /********************************************************************************
+     * Return the replication lag of each connected replica:  the number of log entries
+     * it has yet to acknowledge.
+     * @return  the lag by replica address
+     */
+    public Map <String, Long> lag ()
+    {
+        var last = lsn ();
+        var lag  = new TreeMap <String, Long> ();
+        for (var e : acked.entrySet ()) lag.put (e.getKey (), last - e.getValue ());
+        return lag;
+    } // lag
+
+    /********************************************************************************
+     * Return the port replicas connect to.
+     * @return  the port
+     */
+    public int port ()
+    {
+        return server.getLocalPort ();
+    } // port
+
+    /********************************************************************************
+     * Stop feeding the published tables and close the replica connections.
+     * @throws IOException  if the listening socket cannot be closed
+     */
+    public void close ()
+        throws IOException
+    {
+        synchronized (published) {
+            for (var e : published.entrySet ()) e.getKey ().removeFeed (e.getValue ());
+            published.clear ();
+            tables.clear ();
+        } // synchronized
+        server.close ();
+        for (var s : connections) s.close ();
+        synchronized (log) { log.notifyAll (); }
+    } // close
+
+    //----------------------------------------------------------------------------------
+    // Private Methods
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * This interface writes the body of a message.
+     */
+    private interface Body
+    {
+        void write (DataOutputStream body) throws IOException;
+    } // Body interface
+
+    /********************************************************************************
+     * Return the body of a table's SCHEMA message.
+     */
+    private static Body schema (Table table)
+    {
+        return body -> {
+            var attrs = table.attributes ();
+            var key   = table.primaryKey ();
+            body.writeUTF (table.getName ());
+            body.writeShort (attrs.length);
+            for (var a : attrs) body.writeUTF (a);
+            for (var d : table.getDomain ()) body.writeUTF (d.getSimpleName ());
+            body.writeShort (key.length);
+            for (var k : key) body.writeUTF (k);
+        };
+    } // schema
+
+    /********************************************************************************
+     * Return the body of a CHANGE message.
+     */
+    private static Body changes (String name, List <Comparable []> olds, List <Comparable []> news)
+    {
+        return body -> {
+            body.writeUTF (name);
+            writeRows (body, olds);
+            writeRows (body, news);
+        };
+    } // changes
+
+    /********************************************************************************
+     * Log a change to a table.
+     */
+    private void change (String name, List <Comparable []> olds, List <Comparable []> news)
+    {
+        append (CHANGE, changes (name, olds, news));
+    } // change
+
+    /********************************************************************************
+     * Encode a message and append it to the log under the next LSN, waking the
+     * senders.
+     */
+    private void append (byte type, Body body)
+    {
+        synchronized (log) {
+            log.add (message (type, trimmed + log.size () + 1, body));
+            log.notifyAll ();
+        } // synchronized
+    } // append
+
+    /********************************************************************************
+     * Drop the log entries every connected replica has acknowledged, and the oldest
+     * beyond MAX_LOG.
+     */
+    private void trim ()
+    {
+        synchronized (log) {
+            var last = trimmed + log.size ();
+            var cut  = last;
+            for (var a : acked.values ()) cut = Math.min (cut, a);
+            cut = Math.max (cut, last - MAX_LOG);
+            if (cut > trimmed) {
+                log.subList (0, (int) (cut - trimmed)).clear ();
+                trimmed = cut;
+            } // if
+        } // synchronized
+    } // trim
+
+    /********************************************************************************
+     * Take a snapshot of the published tables as of the latest LSN, share-locking
+     * them so that no change is logged while it is taken.
+     */
+    private Snapshot snapshot ()
+    {
+        var owner = new Object ();
+        synchronized (published) {
+            try {
+                for (var t : tables) {
+                    for (var part : t.partitions ()) Transaction.locks ().lockTable (owner, part, LockManager.Mode.S);
+                } // for
+                var lsn  = lsn ();
+                var msgs = new ArrayList <byte []> ();
+                for (var t : tables) {
+                    msgs.add (message (SCHEMA, lsn, schema (t)));
+                    for (var part : t.partitions ()) msgs.add (message (CHANGE, lsn, changes (t.getName (), List.of (), part.rows ())));
+                } // for
+                return new Snapshot (lsn, msgs);
+            } finally {
+                Transaction.locks ().releaseAll (owner);
+            } // try
+        } // synchronized
+    } // snapshot
+
+    /********************************************************************************
+     * Encode a message:  its length, type, LSN and body.
+     */
+    private static byte [] message (byte type, long lsn, Body body)
+    {
+        try {
+            var bytes = new ByteArrayOutputStream ();
+            var bos   = new DataOutputStream (bytes);
+            bos.writeByte (type);
+            bos.writeLong (lsn);
+            body.write (bos);
+            var msg = new ByteArrayOutputStream (4 + bytes.size ());
+            new DataOutputStream (msg).writeInt (bytes.size ());
+            bytes.writeTo (msg);
+            return msg.toByteArray ();
+        } catch (IOException ex) {
+            throw new UncheckedIOException (ex);                             // not thrown by in-memory streams
+        } // try
+    } // message
+
+    /********************************************************************************
+     * Write tuples:  their count, then each one's length and encoding.
+     */
+    static void writeRows (DataOutputStream dos, List <Comparable []> rows)
+        throws IOException
+    {
+        dos.writeInt (rows.size ());
+        for (var t : rows) {
+            var b = KeyType.encode (t);
+            dos.writeInt (b.length);
+            dos.write (b);
+        } // for
+    } // writeRows
+
+    /********************************************************************************
+     * Accept replica connections until the shipper is closed.
+     */
+    private void accept ()
+    {
+        while (! server.isClosed ()) {
+            try {
+                var s = server.accept ();
+                s.setTcpNoDelay (true);
+                connections.add (s);
+                daemon (() -> ship (s), "LogShipper-" + s.getRemoteSocketAddress ());
+            } catch (IOException ex) {
+                if (! server.isClosed ()) out.println ("accept: " + ex);
+            } // try
+        } // while
+    } // accept
+
+    /********************************************************************************
+     * Stream the log to one replica, starting after the LSN it asks for (or from a
+     * snapshot if that entry is no longer kept), and collect its acknowledgements.
+     * @param s  the replica's socket
+     */
+    private void ship (Socket s)
+    {
+        var addr = s.getRemoteSocketAddress ().toString ();
+        try (s) {
+            var in   = new DataInputStream (new BufferedInputStream (s.getInputStream ()));
+            var dos  = new DataOutputStream (new BufferedOutputStream (s.getOutputStream (), 1 << 16));
+            var next = in.readLong ();                                      // the first LSN wanted
+            acked.put (addr, next - 1);
+            while (! server.isClosed ()) {
+                List <byte []> batch = null;
+                synchronized (log) {
+                    if (trimmed + log.size () < next) log.wait (HEARTBEAT_MS);
+                    if (next > trimmed) {
+                        batch = new ArrayList <> (log.subList ((int) Math.min (next - 1 - trimmed, log.size ()), log.size ()));
+                    } // if
+                } // synchronized
+                if (batch == null) {                                        // its next entry was dropped
+                    var snap = snapshot ();
+                    for (var m : snap.messages ()) dos.write (m);
+                    next = snap.lsn () + 1;
+                } else {
+                    for (var m : batch) dos.write (m);
+                    next += batch.size ();
+                } // if
+                dos.write (message (HEARTBEAT, next - 1, body -> { }));
+                dos.flush ();
+                while (in.available () >= 8) acked.put (addr, in.readLong ());
+                trim ();
+            } // while
+        } catch (SocketException | EOFException ex) {
+            // replica went away or shipper closed
+        } catch (IOException ex) {
+            out.println ("ship: " + ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread ().interrupt ();
+        } finally {
+            acked.remove (addr);
+            connections.remove (s);
+        } // try
+    } // ship
+
+    /********************************************************************************
+     * Start a daemon thread.
+     */
+    private static void daemon (Runnable task, String name)
+    {
+        var t = new Thread (task, name);
+        t.setDaemon (true);
+        t.start ();
+    } // daemon
+
+} // LogShipper class
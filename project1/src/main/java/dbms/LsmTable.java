@@ -0,0 +1,136 @@
+package dbms;
+/************************************************************************************
+ * @file LsmTable.java
+ */
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.System.out;
+
+/************************************************************************************
+ * The LsmTable class is a table for write-heavy use (e.g., event ingestion) whose
+ * durable storage is an LsmTree index rather than the ".dbf" file.  Every insert,
+ * update and delete reaches the index, where it is appended to a write-ahead log
+ * (synced before the write returns, concurrent writers sharing syncs) and a memtable,
+ * so a write is durable as soon as it returns and costs no rewriting.
+ * Memtables are flushed to sorted runs and compacted in the background.
+ * <p>
+ * The tuples are also kept in the table's tuple store, so the operators and
+ * transactions work on the table unchanged; select (KeyType) looks the key up through
+ * the index, merging across its levels.  Saving only flushes the memtable and writes
+ * the schema, and Table.load reopens the index and reads the tuples back from it.
+ * An insert of an existing key replaces the tuple with that key, in the index and in
+ * the tuple store alike.
+ *
+ * #usage var event = new LsmTable ("event", "id time kind", "Long Long String", "id");
+ */
+public class LsmTable
+       extends Table
+{
+    /** The index holding the tuples durably
+     */
+    private final transient LsmTree lsm;
+
+    /********************************************************************************
+     * This record is what is saved of an LsmTable:  its schema.  Reading it reopens
+     * the table from its index files.
+     */
+    private record Schema (String name, String [] attrs, Class [] doms, String [] key)
+            implements Serializable
+    {
+        private Object readResolve ()
+        {
+            return new LsmTable (name, attrs, doms, key, LsmTree.open (DIR + name));
+        } // readResolve
+    } // Schema record
+
+    /********************************************************************************
+     * Construct an empty LSM-backed table from the raw string specifications,
+     * discarding any old index files of a table with the same name.
+     * @param _name       the name of the relation
+     * @param attributes  the string containing attributes names
+     * @param domains     the string containing attribute domains (data types)
+     * @param _key        the primary key
+     */
+    public LsmTable (String _name, String attributes, String domains, String _key)
+    {
+        this (_name, attributes.split (" "), findClass (domains.split (" ")), _key.split (" "),
+              new LsmTree (DIR + _name));
+        out.println ("DDL> create lsm table " + _name + " (" + attributes + ")");
+    } // constructor
+
+    /********************************************************************************
+     * Construct a table over an LsmTree, reading its tuples from the index.
+     */
+    private LsmTable (String _name, String [] attrs, Class [] doms, String [] _key, LsmTree _lsm)
+    {
+        super (_name, attrs, doms, _key, new ArrayList <> (_lsm.values ()), _lsm);
+        lsm = _lsm;
+    } // constructor
+
+    /********************************************************************************
+     * Return the LSM-tree index (e.g., to inspect its levels).
+     * @return  the index
+     */
+    public LsmTree lsm ()
+    {
+        return lsm;
+    } // lsm
+
+    /********************************************************************************
+     * Flush the memtable to a run and save the schema (the tuples are not rewritten).
+     */
+    public void save ()
+    {
+        lsm.flush ();
+        super.save ();
+    } // save
+
+    /********************************************************************************
+     * Close the index files (the table can be reopened with Table.load once saved).
+     * @throws IOException  if the files cannot be closed
+     */
+    public void close ()
+        throws IOException
+    {
+        lsm.close ();
+    } // close
+
+    /********************************************************************************
+     * Return false:  the index already makes every write durable.
+     */
+    boolean incremental ()
+    {
+        return false;
+    } // incremental
+
+    /********************************************************************************
+     * Return true:  the index keeps only the latest tuple per key, so an insert of an
+     * existing key replaces it.
+     */
+    boolean replaces ()
+    {
+        return true;
+    } // replaces
+
+    /********************************************************************************
+     * Return this table itself to be written (its file holds only its schema).
+     * @param rows  the snapshot of the tuples (unused)
+     * @return  the object to serialize
+     */
+    Table image (List <Comparable []> rows)
+    {
+        return this;
+    } // image
+
+    /********************************************************************************
+     * Save the schema in place of the table.
+     */
+    private Object writeReplace ()
+    {
+        return new Schema (getName (), attributes (), getDomain (), primaryKey ());
+    } // writeReplace
+
+} // LsmTable class
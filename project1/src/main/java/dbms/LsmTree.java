@@ -0,0 +1,981 @@
+package dbms;
+/************************************************************************************
+ * @file LsmTree.java
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.lang.System.out;
+
+/************************************************************************************
+ * This class provides a disk-resident index organised as a log-structured merge-tree,
+ * for write-heavy tables.  A write never reads or rewrites what is on disk:
+ * <p>
+ *   - it is appended to a write-ahead log and put in a skip-list memtable, and the
+ *     log is synced before the write returns (by group commit:  one writer syncs the
+ *     entries of every writer waiting meanwhile, so concurrent writers share syncs);
+ *   - a full memtable is frozen and written in the background as an immutable sorted
+ *     run (a new memtable and log take the writes meanwhile);
+ *   - runs are merged by tiered compaction:  when a level holds FANOUT runs they are
+ *     merged into one run on the next level, dropping overwritten entries (and
+ *     deletions, once nothing older is left below).
+ * <p>
+ * A lookup checks the memtables and then the runs from newest to oldest, so the first
+ * entry found for a key (a tuple or a deletion marker) decides.  Each run keeps its key
+ * range, a Bloom filter and a sparse index (every SPARSE-th key) in memory, so a run
+ * that may hold the key costs one block read.
+ * <p>
+ * The files sit next to the table's ".dbf" file:
+ * <p>
+ *     base.lsm        the manifest:  the runs of each level and the oldest live log
+ *     base-i.wal      the log of memtable i (deleted once it is flushed)
+ *     base-i.run      run i:  entries (key length, key, tuple length or -1 for a
+ *                     deletion, tuple), the sparse index, the Bloom filter and a footer
+ * <p>
+ * Keys and tuples use the KeyType binary encoding, so runs are sorted in key order.
+ * Writes are blind:  put and remove return null rather than read the old tuple, and
+ * size counts the keys by a merged scan.
+ */
+public class LsmTree
+       extends AbstractMap <KeyType, Comparable []>
+       implements Closeable, Flushable
+{
+    /** The default size of a memtable before it is flushed (in bytes)
+     */
+    static final int MEMTABLE_BYTES = 4 << 20;
+
+    /** The number of runs in a level that triggers its compaction
+     */
+    static final int FANOUT = 4;
+
+    /** The number of frozen memtables waiting to be flushed before writers wait
+     */
+    private static final int MAX_FROZEN = 4;
+
+    /** One key in SPARSE is kept in a run's in-memory index
+     */
+    private static final int SPARSE = 16;
+
+    /** Marker identifying the manifest and run files
+     */
+    private static final int MAGIC = 0x4C534D31;                           // "LSM1"
+
+    /** The size of a run's footer:  index offset, filter offset, count, magic
+     */
+    private static final int FOOTER = 28;
+
+    /** The value of a deleted key (in memtables and merges)
+     */
+    private static final byte [] TOMBSTONE = new byte [0];
+
+    /** The unsigned order of encoded keys
+     */
+    private static final Comparator <byte []> ORDER = Arrays::compareUnsigned;
+
+    /** The background thread that flushes memtables and compacts runs
+     */
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor (r -> {
+        var t = new Thread (r, "LsmTree-worker");
+        t.setDaemon (true);
+        return t;
+    });
+
+    /********************************************************************************
+     * This inner class is a memtable with its write-ahead log.
+     */
+    private static final class Memtable
+    {
+        final long id;
+        final ConcurrentSkipListMap <byte [], byte []> map = new ConcurrentSkipListMap <> (ORDER);
+        final FileOutputStream file;
+        final DataOutputStream log;
+        long bytes = 0;
+
+        Memtable (long _id, Path path)
+            throws IOException
+        {
+            id   = _id;
+            file = new FileOutputStream (path.toFile ());
+            log  = new DataOutputStream (new BufferedOutputStream (file, 1 << 16));
+        } // constructor
+
+    } // Memtable inner class
+
+    /********************************************************************************
+     * This inner class is an immutable sorted run, with its key range, Bloom filter
+     * and sparse index kept in memory.
+     */
+    private static final class Run
+    {
+        final long        id;
+        final Path        path;
+        final FileChannel ch;
+        final byte []     max;                                              // the largest key
+        final byte [][]   keys;                                             // every SPARSE-th key
+        final long []     offs;                                             // and its offset
+        final long        end;                                              // the end of the entries
+        final BloomFilter filter;
+
+        Run (long _id, Path _path)
+            throws IOException
+        {
+            id   = _id;
+            path = _path;
+            ch   = FileChannel.open (path, StandardOpenOption.READ);
+            var foot = read (ch.size () - FOOTER, FOOTER);
+            end = foot.getLong ();
+            foot.getLong ();                                                // the filter's offset
+            foot.getLong ();                                                // the count
+            if (foot.getInt () != MAGIC) throw new IOException ("Run: " + path + " is not a run file");
+
+            var meta = read (end, (int) (ch.size () - FOOTER - end));
+            var in   = new DataInputStream (new ByteArrayInputStream (meta.array ()));
+            var n  = in.readInt ();
+            keys = new byte [n][];
+            offs = new long [n];
+            for (var i = 0; i < n; i++) {
+                keys [i] = new byte [in.readInt ()];
+                in.readFully (keys [i]);
+                offs [i] = in.readLong ();
+            } // for
+            max = new byte [in.readInt ()];
+            in.readFully (max);
+            filter = BloomFilter.read (in);
+        } // constructor
+
+        /** Return the entry for the key:  its tuple, TOMBSTONE, or null if absent. */
+        byte [] get (byte [] kb, long h)
+            throws IOException
+        {
+            if (keys.length == 0 || ORDER.compare (kb, keys [0]) < 0 || ORDER.compare (kb, max) > 0) return null;
+            if (! filter.mightContain (h)) return null;
+            var lo = 0;
+            var hi = keys.length - 1;                                       // last sparse key <= kb
+            while (lo < hi) {
+                var mid = (lo + hi + 1) >>> 1;
+                if (ORDER.compare (keys [mid], kb) <= 0) lo = mid; else hi = mid - 1;
+            } // while
+            var blk = block (lo);
+            while (blk.hasRemaining ()) {
+                var k = new byte [blk.getInt ()];
+                blk.get (k);
+                var len = blk.getInt ();
+                var c   = ORDER.compare (k, kb);
+                if (c == 0) {
+                    if (len < 0) return TOMBSTONE;
+                    var v = new byte [len];
+                    blk.get (v);
+                    return v;
+                } // if
+                if (c > 0) return null;
+                if (len > 0) blk.position (blk.position () + len);
+            } // while
+            return null;
+        } // get
+
+        /** Read block i:  the entries from sparse key i up to the next one. */
+        ByteBuffer block (int i)
+            throws IOException
+        {
+            var to = (i + 1 < offs.length) ? offs [i + 1] : end;
+            return read (offs [i], (int) (to - offs [i]));
+        } // block
+
+        /** Read len bytes of the file starting at pos. */
+        ByteBuffer read (long pos, int len)
+            throws IOException
+        {
+            var buf = ByteBuffer.allocate (len);
+            while (buf.hasRemaining ()) {
+                if (ch.read (buf, pos + buf.position ()) < 0) throw new EOFException ("Run: " + path + " is truncated");
+            } // while
+            return buf.flip ();
+        } // read
+
+        /** Iterate over the entries in key order (deletions as TOMBSTONE). */
+        Iterator <Map.Entry <byte [], byte []>> iterator ()
+        {
+            return new Iterator <> () {
+                int        i   = 0;
+                ByteBuffer blk = null;
+
+                public boolean hasNext ()
+                {
+                    while ((blk == null || ! blk.hasRemaining ()) && i < offs.length) {
+                        try {
+                            blk = block (i++);
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException (ex);
+                        } // try
+                    } // while
+                    return blk != null && blk.hasRemaining ();
+                } // hasNext
+
+                public Map.Entry <byte [], byte []> next ()
+                {
+                    if (! hasNext ()) throw new NoSuchElementException ();
+                    var k   = new byte [blk.getInt ()];
+                    blk.get (k);
+                    var len = blk.getInt ();
+                    var v   = (len < 0) ? TOMBSTONE : new byte [len];
+                    blk.get (v);
+                    return Map.entry (k, v);
+                } // next
+            };
+        } // iterator
+
+    } // Run inner class
+
+    /** The current memtable, the frozen ones (newest first) and the runs of each level
+     *  (newest first), replaced as a whole so that readers never lock
+     */
+    private record State (Memtable mem, List <Memtable> frozen, List <List <Run>> levels) { }
+
+    /** The base path of the files (without extension)
+     */
+    private final String base;
+
+    /** The size of a memtable before it is flushed
+     */
+    private final int memBytes;
+
+    /** Serialises writers and changes of state
+     */
+    private final ReentrantLock lock = new ReentrantLock ();
+
+    /** Signalled when a frozen memtable has been flushed
+     */
+    private final Condition flushed = lock.newCondition ();
+
+    /** The memtables and runs
+     */
+    private volatile State state;
+
+    /** The id for the next memtable or run
+     */
+    private long nextId = 1;
+
+    /** The first failure of the background worker (reported to writers)
+     */
+    private volatile IOException failure = null;
+
+    /** The number of entries logged (guarded by lock)
+     */
+    private long logged = 0;
+
+    /** The number of entries logged that are known to be synced
+     */
+    private final AtomicLong durable = new AtomicLong ();
+
+    /** Held by the writer syncing the log for the group
+     */
+    private final ReentrantLock syncLock = new ReentrantLock ();
+
+    /********************************************************************************
+     * Construct an empty LSM-tree index, discarding any old files at the base path.
+     * @param _base  the base path of the index files (e.g., "store/event")
+     */
+    public LsmTree (String _base)
+    {
+        this (_base, MEMTABLE_BYTES, false);
+    } // constructor
+
+    /********************************************************************************
+     * Construct an LSM-tree index with the given memtable size, either empty (discarding
+     * old files) or reopening the files at the base path.
+     * @param _base      the base path of the index files
+     * @param _memBytes  the size of a memtable before it is flushed (in bytes)
+     * @param reopen     whether to reopen the existing files
+     */
+    public LsmTree (String _base, int _memBytes, boolean reopen)
+    {
+        base     = _base;
+        memBytes = _memBytes;
+        try {
+            var dir = Paths.get (base).toAbsolutePath ().getParent ();
+            if (dir != null) Files.createDirectories (dir);
+            if (reopen) recover (); else discard ();
+        } catch (IOException ex) {
+            throw new UncheckedIOException ("LsmTree: cannot open " + base, ex);
+        } // try
+    } // constructor
+
+    /********************************************************************************
+     * Reopen the LSM-tree index at the given base path, replaying its logs.
+     * @param base  the base path of the index files
+     * @return  the index
+     */
+    public static LsmTree open (String base)
+    {
+        return new LsmTree (base, MEMTABLE_BYTES, true);
+    } // open
+
+    /********************************************************************************
+     * Return a set containing all the entries as pairs of keys and tuples (a merged
+     * snapshot, in key order).
+     * @return  the set view of the map
+     */
+    public Set <Map.Entry <KeyType, Comparable []>> entrySet ()
+    {
+        for ( ; ; ) {
+            var s = state;
+            try {
+                var enSet = new LinkedHashSet <Map.Entry <KeyType, Comparable []>> ();
+                for (var it = merge (sources (s), true); it.hasNext (); ) {
+                    var e = it.next ();
+                    enSet.add (Map.entry (KeyType.fromBytes (e.getKey ()), KeyType.decode (e.getValue ())));
+                } // for
+                return enSet;
+            } catch (UncheckedIOException ex) {
+                if (! (ex.getCause () instanceof ClosedChannelException) || s == state) throw ex;
+            } // try                                                        // runs compacted:  retry
+        } // for
+    } // entrySet
+
+    /********************************************************************************
+     * Given the key, look up the tuple:  in the memtables, then in the runs from the
+     * newest to the oldest.
+     * @param key  the key used for look up
+     * @return  the tuple associated with the key, null if none
+     */
+    public Comparable [] get (Object key)
+    {
+        if (! (key instanceof KeyType k)) return null;
+        var kb = bytes (k);
+        for ( ; ; ) {
+            var s = state;
+            try {
+                var v = find (s, kb, k.hash64 ());
+                return (v == null || v == TOMBSTONE) ? null : KeyType.decode (v);
+            } catch (ClosedChannelException ex) {
+                if (s == state) throw new UncheckedIOException (ex);       // runs compacted:  retry
+            } catch (IOException ex) {
+                throw new UncheckedIOException ("get: " + base, ex);
+            } // try
+        } // for
+    } // get
+
+    /********************************************************************************
+     * Determine whether the index contains the given key.
+     * @param key  the key to look for
+     * @return  whether the key is present
+     */
+    public boolean containsKey (Object key)
+    {
+        return get (key) != null;
+    } // containsKey
+
+    /********************************************************************************
+     * Put the key-tuple pair in the index (a blind write:  the log and memtable only).
+     * @param key    the key to insert
+     * @param value  the tuple to insert
+     * @return  null (the old tuple is not read)
+     */
+    public Comparable [] put (KeyType key, Comparable [] value)
+    {
+        var vb = KeyType.encode (value);
+        if (vb == null) throw new IllegalArgumentException ("put: tuple has a value with no binary encoding");
+        write (bytes (key), vb);
+        return null;
+    } // put
+
+    /********************************************************************************
+     * Remove the key from the index by writing a deletion marker.
+     * @param key  the key to remove
+     * @return  null (the old tuple is not read)
+     */
+    public Comparable [] remove (Object key)
+    {
+        if (key instanceof KeyType k) write (bytes (k), TOMBSTONE);
+        return null;
+    } // remove
+
+    /********************************************************************************
+     * Return the number of keys in the index (counted by a merged scan).
+     * @return  the size of the index
+     */
+    public int size ()
+    {
+        return entrySet ().size ();
+    } // size
+
+    /********************************************************************************
+     * Return whether the index holds no keys.
+     * @return  whether the index is empty
+     */
+    public boolean isEmpty ()
+    {
+        var s = state;
+        if (s.mem ().map.isEmpty () && s.frozen ().isEmpty () && s.levels ().stream ().allMatch (List::isEmpty)) return true;
+        return entrySet ().isEmpty ();
+    } // isEmpty
+
+    /********************************************************************************
+     * Return the number of runs on each level.
+     * @return  the run counts, level 0 first
+     */
+    public int [] levels ()
+    {
+        var lv = state.levels ();
+        var n  = new int [lv.size ()];
+        for (var i = 0; i < n.length; i++) n [i] = lv.get (i).size ();
+        return n;
+    } // levels
+
+    /********************************************************************************
+     * Make every write durable in a run:  freeze the memtable and wait until it and any
+     * other frozen memtables are flushed.
+     */
+    public void flush ()
+    {
+        lock.lock ();
+        try {
+            check ();
+            if (! state.mem ().map.isEmpty ()) freeze ();
+            while (! state.frozen ().isEmpty ()) {
+                flushed.awaitUninterruptibly ();
+                check ();
+            } // while
+        } catch (IOException ex) {
+            throw new UncheckedIOException ("flush: " + base, ex);
+        } finally {
+            lock.unlock ();
+        } // try
+    } // flush
+
+    /********************************************************************************
+     * Flush and close the index files.
+     * @throws IOException  if a file cannot be closed
+     */
+    public void close ()
+        throws IOException
+    {
+        flush ();
+        try {
+            WORKER.submit (() -> { }).get ();                               // let compaction finish
+        } catch (InterruptedException | java.util.concurrent.ExecutionException ex) {
+            throw new IOException ("close: " + base, ex);
+        } // try
+        lock.lock ();
+        try {
+            var s = state;
+            s.mem ().log.close ();
+            for (var level : s.levels ()) for (var r : level) r.ch.close ();
+        } finally {
+            lock.unlock ();
+        } // try
+    } // close
+
+    /********************************************************************************
+     * Print the levels of the index and the runs on each.
+     */
+    public void print ()
+    {
+        out.println ("LsmTree " + base + ": memtable " + state.mem ().map.size () + " keys, "
+                     + state.frozen ().size () + " frozen");
+        var lv = state.levels ();
+        for (var i = 0; i < lv.size (); i++) {
+            var sb = new StringBuilder ("  level " + i + ":");
+            for (var r : lv.get (i)) sb.append (" run ").append (r.id).append (" (").append (r.filter.count ()).append (')');
+            out.println (sb);
+        } // for
+    } // print
+
+    //----------------------------------------------------------------------------------
+    // Private Methods
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Return the binary encoding of a key, which the index requires.
+     */
+    private static byte [] bytes (KeyType k)
+    {
+        var kb = k.toBytes ();
+        if (kb == null) throw new IllegalArgumentException ("LsmTree: key " + k + " has no binary encoding");
+        return kb;
+    } // bytes
+
+    /********************************************************************************
+     * Log an entry and put it in the memtable, freezing the memtable once it is full,
+     * then wait until the entry is synced.
+     */
+    private void write (byte [] kb, byte [] vb)
+    {
+        long seq;
+        lock.lock ();
+        try {
+            check ();
+            var m = state.mem ();
+            m.log.writeInt (kb.length);
+            m.log.write (kb);
+            m.log.writeInt ((vb == TOMBSTONE) ? -1 : vb.length);
+            m.log.write (vb);
+            seq = ++logged;
+            m.map.put (kb, vb);
+            m.bytes += kb.length + vb.length + 40;
+            if (m.bytes >= memBytes) {
+                while (state.frozen ().size () >= MAX_FROZEN) {             // let the flushes catch up
+                    flushed.awaitUninterruptibly ();
+                    check ();
+                } // while
+                freeze ();
+            } // if
+        } catch (IOException ex) {
+            throw new UncheckedIOException ("put: " + base, ex);
+        } finally {
+            lock.unlock ();
+        } // try
+        try {
+            sync (seq);
+        } catch (IOException ex) {
+            throw new UncheckedIOException ("put: " + base, ex);
+        } // try
+    } // write
+
+    /********************************************************************************
+     * Wait until the entries logged up to seq are synced:  unless a sync by another
+     * writer covers them, sync every entry logged so far (the group) in the log of the
+     * current memtable.  A frozen memtable's log is synced when it is frozen.
+     */
+    private void sync (long seq)
+        throws IOException
+    {
+        if (durable.get () >= seq) return;
+        syncLock.lock ();
+        try {
+            if (durable.get () >= seq) return;                              // synced with the group
+            FileOutputStream file;
+            long upto;
+            lock.lock ();
+            try {
+                var m = state.mem ();
+                m.log.flush ();
+                file = m.file;
+                upto = logged;
+            } finally {
+                lock.unlock ();
+            } // try
+            try {
+                file.getFD ().sync ();
+            } catch (IOException ex) {
+                if (durable.get () < upto) throw ex;                        // else frozen (synced) and closed
+            } // try
+            durable.accumulateAndGet (upto, Math::max);
+        } finally {
+            syncLock.unlock ();
+        } // try
+    } // sync
+
+    /********************************************************************************
+     * Freeze the memtable, start a new one and schedule the flush (holding the lock).
+     */
+    private void freeze ()
+        throws IOException
+    {
+        var s = state;
+        s.mem ().log.flush ();
+        s.mem ().file.getFD ().sync ();
+        durable.accumulateAndGet (logged, Math::max);                       // every entry logged so far
+        var frozen = new ArrayList <Memtable> ();
+        frozen.add (s.mem ());
+        frozen.addAll (s.frozen ());
+        var id = nextId++;
+        state  = new State (new Memtable (id, wal (id)), List.copyOf (frozen), s.levels ());
+        writeManifest ();
+        WORKER.execute (this::flushOldest);
+    } // freeze
+
+    /********************************************************************************
+     * Write the oldest frozen memtable as a run on level 0, then compact.
+     */
+    private void flushOldest ()
+    {
+        try {
+            Memtable m;
+            long id;
+            lock.lock ();
+            try {
+                var fr = state.frozen ();
+                if (fr.isEmpty ()) return;
+                m  = fr.get (fr.size () - 1);
+                id = nextId++;
+            } finally {
+                lock.unlock ();
+            } // try
+
+            var r = writeRun (id, m.map.entrySet ().iterator (), m.map.size ());
+            lock.lock ();
+            try {
+                var s      = state;
+                var frozen = new ArrayList <> (s.frozen ());
+                frozen.remove (m);
+                state = new State (s.mem (), List.copyOf (frozen), withRun (s.levels (), 0, r, List.of ()));
+                writeManifest ();
+                flushed.signalAll ();
+            } finally {
+                lock.unlock ();
+            } // try
+            m.log.close ();
+            Files.deleteIfExists (wal (m.id));
+            compact ();
+        } catch (IOException ex) {
+            fail (ex);
+        } // try
+    } // flushOldest
+
+    /********************************************************************************
+     * Merge the runs of each level holding FANOUT or more into one run on the next
+     * level.  Deletion markers are dropped when no older runs lie below.
+     */
+    private void compact ()
+        throws IOException
+    {
+        for (var i = 0; i < state.levels ().size (); i++) {
+            var lv = state.levels ();
+            if (lv.get (i).size () < FANOUT) continue;
+            var merging = List.copyOf (lv.get (i));
+            var deepest = true;
+            for (var j = i + 1; j < lv.size (); j++) deepest &= lv.get (j).isEmpty ();
+            var srcs = new ArrayList <Iterator <Map.Entry <byte [], byte []>>> ();
+            var n    = 0;
+            for (var r : merging) {
+                srcs.add (r.iterator ());
+                n += r.filter.count ();
+            } // for
+
+            long id;
+            lock.lock ();
+            try { id = nextId++; } finally { lock.unlock (); }
+            var r = writeRun (id, merge (srcs, deepest), n);
+            lock.lock ();
+            try {
+                var s = state;
+                state = new State (s.mem (), s.frozen (), withRun (s.levels (), i + 1, r, merging));
+                writeManifest ();
+            } finally {
+                lock.unlock ();
+            } // try
+            for (var old : merging) {
+                old.ch.close ();                                            // readers retry on the new state
+                Files.deleteIfExists (old.path);
+            } // for
+        } // for
+    } // compact
+
+    /********************************************************************************
+     * Return the levels with a run added in front of a level (and the merged runs taken
+     * off the level above it).
+     */
+    private static List <List <Run>> withRun (List <List <Run>> levels, int level, Run r, List <Run> merged)
+    {
+        var lv = new ArrayList <List <Run>> ();
+        for (var l : levels) {
+            var runs = new ArrayList <> (l);
+            runs.removeAll (merged);
+            lv.add (runs);
+        } // for
+        while (lv.size () <= level) lv.add (new ArrayList <> ());
+        lv.get (level).add (0, r);
+        var out = new ArrayList <List <Run>> ();
+        for (var l : lv) out.add (List.copyOf (l));
+        return List.copyOf (out);
+    } // withRun
+
+    /********************************************************************************
+     * Write sorted entries as a run file and open it.
+     * @param id       the run id
+     * @param sorted   the entries in key order
+     * @param n        about how many entries there are (to size the Bloom filter)
+     */
+    private Run writeRun (long id, Iterator <Map.Entry <byte [], byte []>> sorted, int n)
+        throws IOException
+    {
+        var path   = run (id);
+        var filter = new BloomFilter (n);
+        var keys   = new ArrayList <byte []> ();
+        var offs   = new ArrayList <Long> ();
+        byte [] max = new byte [0];
+        try (var fos = new FileOutputStream (path.toFile ())) {
+            var dos   = new DataOutputStream (new BufferedOutputStream (fos, 1 << 16));
+            var count = 0L;
+            while (sorted.hasNext ()) {
+                var e = sorted.next ();
+                var v = e.getValue ();
+                if (count++ % SPARSE == 0) {
+                    keys.add (e.getKey ());
+                    offs.add ((long) dos.size ());
+                } // if
+                filter.add (KeyType.hash64 (e.getKey ()));
+                dos.writeInt (e.getKey ().length);
+                dos.write (e.getKey ());
+                dos.writeInt ((v == TOMBSTONE) ? -1 : v.length);
+                dos.write (v);
+                max = e.getKey ();
+            } // while
+            long end = dos.size ();
+            dos.writeInt (keys.size ());
+            for (var i = 0; i < keys.size (); i++) {
+                dos.writeInt (keys.get (i).length);
+                dos.write (keys.get (i));
+                dos.writeLong (offs.get (i));
+            } // for
+            dos.writeInt (max.length);
+            dos.write (max);
+            long fOff = dos.size ();
+            filter.write (dos);
+            dos.writeLong (end);
+            dos.writeLong (fOff);
+            dos.writeLong (count);
+            dos.writeInt (MAGIC);
+            dos.flush ();
+            fos.getFD ().sync ();
+        } // try
+        return new Run (id, path);
+    } // writeRun
+
+    /********************************************************************************
+     * Return the entry for the key in the given state:  its tuple, TOMBSTONE, or null.
+     */
+    private static byte [] find (State s, byte [] kb, long h)
+        throws IOException
+    {
+        var v = s.mem ().map.get (kb);
+        if (v != null) return v;
+        for (var m : s.frozen ()) if ((v = m.map.get (kb)) != null) return v;
+        for (var level : s.levels ()) {
+            for (var r : level) if ((v = r.get (kb, h)) != null) return v;
+        } // for
+        return null;
+    } // find
+
+    /********************************************************************************
+     * Return the sources of a merge of the whole index, newest first:  the memtables,
+     * then the runs level by level.
+     */
+    private static List <Iterator <Map.Entry <byte [], byte []>>> sources (State s)
+    {
+        var srcs = new ArrayList <Iterator <Map.Entry <byte [], byte []>>> ();
+        srcs.add (s.mem ().map.entrySet ().iterator ());
+        for (var m : s.frozen ()) srcs.add (m.map.entrySet ().iterator ());
+        for (var level : s.levels ()) for (var r : level) srcs.add (r.iterator ());
+        return srcs;
+    } // sources
+
+    /********************************************************************************
+     * Merge sorted sources (newest first) into one sorted iterator keeping the newest
+     * entry of each key and, if dropDel, dropping deletion markers.
+     */
+    private static Iterator <Map.Entry <byte [], byte []>> merge (List <Iterator <Map.Entry <byte [], byte []>>> srcs,
+                                                                 boolean dropDel)
+    {
+        record Head (Map.Entry <byte [], byte []> e, int rank) { }
+        var heap = new PriorityQueue <Head> ((a, b) -> {
+            var c = ORDER.compare (a.e ().getKey (), b.e ().getKey ());
+            return (c != 0) ? c : Integer.compare (a.rank (), b.rank ());
+        });
+        for (var i = 0; i < srcs.size (); i++) if (srcs.get (i).hasNext ()) heap.add (new Head (srcs.get (i).next (), i));
+
+        return new Iterator <> () {
+            Map.Entry <byte [], byte []> nxt = advance ();
+
+            private Map.Entry <byte [], byte []> advance ()
+            {
+                while (! heap.isEmpty ()) {
+                    var top = heap.poll ();
+                    refill (top.rank ());
+                    while (! heap.isEmpty () && ORDER.compare (heap.peek ().e ().getKey (), top.e ().getKey ()) == 0) {
+                        refill (heap.poll ().rank ());                       // an older entry of the key
+                    } // while
+                    if (! dropDel || top.e ().getValue () != TOMBSTONE) return top.e ();
+                } // while
+                return null;
+            } // advance
+
+            private void refill (int rank)
+            {
+                var it = srcs.get (rank);
+                if (it.hasNext ()) heap.add (new Head (it.next (), rank));
+            } // refill
+
+            public boolean hasNext () { return nxt != null; }
+
+            public Map.Entry <byte [], byte []> next ()
+            {
+                if (nxt == null) throw new NoSuchElementException ();
+                var e = nxt;
+                nxt = advance ();
+                return e;
+            } // next
+        };
+    } // merge
+
+    /********************************************************************************
+     * Start empty, deleting the files of any earlier index at the base path.
+     */
+    private void discard ()
+        throws IOException
+    {
+        var man = Paths.get (base + ".lsm");
+        if (Files.exists (man)) {
+            try (var in = new DataInputStream (new BufferedInputStream (Files.newInputStream (man)))) {
+                if (in.readInt () == MAGIC) {
+                    var next = in.readLong ();
+                    for (var id = 1; id < next; id++) {
+                        Files.deleteIfExists (wal (id));
+                        Files.deleteIfExists (run (id));
+                    } // for
+                } // if
+            } // try
+        } // if
+        var id = nextId++;
+        state  = new State (new Memtable (id, wal (id)), List.of (), List.of ());
+        writeManifest ();
+    } // discard
+
+    /********************************************************************************
+     * Reopen the runs listed in the manifest and replay the logs not yet flushed into
+     * a new memtable (with its own log), so that no write is lost.
+     */
+    private void recover ()
+        throws IOException
+    {
+        var man = Paths.get (base + ".lsm");
+        if (! Files.exists (man)) {
+            discard ();
+            return;
+        } // if
+        long floor;
+        var levels = new ArrayList <List <Run>> ();
+        try (var in = new DataInputStream (new BufferedInputStream (Files.newInputStream (man)))) {
+            if (in.readInt () != MAGIC) throw new IOException ("recover: " + man + " is not a manifest");
+            nextId = in.readLong ();
+            floor  = in.readLong ();
+            var nl = in.readInt ();
+            for (var i = 0; i < nl; i++) {
+                var runs = new ArrayList <Run> ();
+                for (var n = in.readInt (); n > 0; n--) {
+                    var id = in.readLong ();
+                    runs.add (new Run (id, run (id)));
+                } // for
+                levels.add (List.copyOf (runs));
+            } // for
+        } // try
+
+        var id  = nextId++;
+        var mem = new Memtable (id, wal (id));
+        for (var w = floor; w < id; w++) {
+            if (! Files.exists (wal (w))) continue;
+            try (var in = new DataInputStream (new BufferedInputStream (Files.newInputStream (wal (w))))) {
+                for ( ; ; ) {
+                    byte [] kb, vb;
+                    try {
+                        kb = new byte [in.readInt ()];
+                        in.readFully (kb);
+                        var len = in.readInt ();
+                        vb = (len < 0) ? TOMBSTONE : new byte [len];
+                        in.readFully (vb);
+                    } catch (EOFException ex) {
+                        break;                                              // the end (or a torn last entry)
+                    } // try
+                    mem.log.writeInt (kb.length);
+                    mem.log.write (kb);
+                    mem.log.writeInt ((vb == TOMBSTONE) ? -1 : vb.length);
+                    mem.log.write (vb);
+                    mem.map.put (kb, vb);
+                    mem.bytes += kb.length + vb.length + 40;
+                } // for
+            } // try
+        } // for
+        mem.log.flush ();
+        mem.file.getFD ().sync ();
+        state = new State (mem, List.of (), List.copyOf (levels));
+        writeManifest ();
+        for (var w = floor; w < id; w++) Files.deleteIfExists (wal (w));
+    } // recover
+
+    /********************************************************************************
+     * Write the manifest (holding the lock):  the next id, the oldest log still needed
+     * and the runs of each level, replacing the old manifest atomically.
+     */
+    private void writeManifest ()
+        throws IOException
+    {
+        var s     = state;
+        var floor = s.mem ().id;
+        for (var m : s.frozen ()) floor = Math.min (floor, m.id);
+        var tmp = Paths.get (base + ".lsm.tmp");
+        try (var fos = new FileOutputStream (tmp.toFile ())) {
+            var dos = new DataOutputStream (new BufferedOutputStream (fos));
+            dos.writeInt (MAGIC);
+            dos.writeLong (nextId);
+            dos.writeLong (floor);
+            dos.writeInt (s.levels ().size ());
+            for (var level : s.levels ()) {
+                dos.writeInt (level.size ());
+                for (var r : level) dos.writeLong (r.id);
+            } // for
+            dos.flush ();
+            fos.getFD ().sync ();
+        } // try
+        Files.move (tmp, Paths.get (base + ".lsm"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } // writeManifest
+
+    /********************************************************************************
+     * Record a failure of the background worker and wake any waiting writers.
+     */
+    private void fail (IOException ex)
+    {
+        out.println ("LsmTree: " + base + ": " + ex);
+        failure = ex;
+        lock.lock ();
+        try { flushed.signalAll (); } finally { lock.unlock (); }
+    } // fail
+
+    /********************************************************************************
+     * Throw the background worker's failure, if any.
+     */
+    private void check ()
+        throws IOException
+    {
+        if (failure != null) throw new IOException ("LsmTree: background flush failed", failure);
+    } // check
+
+    /** Return the path of log i. */
+    private Path wal (long i) { return Paths.get (base + "-" + i + ".wal"); }
+
+    /** Return the path of run i. */
+    private Path run (long i) { return Paths.get (base + "-" + i + ".run"); }
+
+    /********************************************************************************
+     * The main method used for testing.
+     * @param  args the command-line arguments (args [0] gives number of keys to insert)
+     */
+    public static void main (String [] args)
+        throws IOException
+    {
+        var n   = (args.length > 0) ? Integer.parseInt (args [0]) : 200_000;
+        var lsm = new LsmTree ("store" + File.separator + "lsm_test", 1 << 20, false);
+        var t0  = System.nanoTime ();
+        for (var i = 0; i < n; i++) lsm.put (new KeyType (i), new Comparable [] { i, "event_" + i, (double) i });
+        out.printf ("put %d keys in %.1f ms%n", n, (System.nanoTime () - t0) / 1e6);
+        lsm.flush ();
+        lsm.print ();
+        t0 = System.nanoTime ();
+        var rnd = new Random ();
+        for (var i = 0; i < 10_000; i++) lsm.get (new KeyType (rnd.nextInt (2 * n)));
+        out.printf ("10000 lookups in %.1f ms%n", (System.nanoTime () - t0) / 1e6);
+        lsm.close ();
+    } // main
+
+} // LsmTree class
@@ -0,0 +1,384 @@
+package dbms;
+/************************************************************************************
+ * @file MappedTable.java
+ */
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/************************************************************************************
+ * The MappedTable class is a table read in place from a memory-mapped ".dbm" file
+ * (written by Table.saveMapped), so opening it costs a header read however large it
+ * is, and the pages of the file are shared through the OS page cache by every process
+ * that maps it.  A tuple is decoded from the mapping when first accessed and kept;
+ * key lookups binary search a sorted key section of the file without decoding.
+ * <p>
+ * The first write (or use of the tuple store, e.g., by a transaction) decodes the
+ * remaining tuples into the table's own tuple store and index, after which the table
+ * behaves as an ordinary one.
+ * <p>
+ * The file holds, after a header (magic, tuple count, the offsets of the two offset
+ * arrays and the schema):  the KeyType encoding of each tuple, the sorted key section
+ * (each entry a tuple number and the encoded key), and the offsets of the tuples and
+ * of the key entries (n + 1 each, so each length is the difference of neighbours).
+ *
+ * #usage var movie = Table.loadMapped ("movie");
+ */
+public class MappedTable
+       extends Table
+{
+    /** The file name extension of mapped tables
+     */
+    static final String EXT = ".dbm";
+
+    /** Marker identifying a mapped table file
+     */
+    private static final int MAGIC = 0x54424D31;                            // "TBM1"
+
+    /** The header and schema read when a file is opened
+     */
+    private record Header (MappedByteBuffer buf, int n, int offs, int keys, String name, String [] attrs,
+                           Class [] doms, String [] key) { }
+
+    /** The mapped file
+     */
+    private final transient MappedByteBuffer buf;
+
+    /** The number of tuples in the file
+     */
+    private final transient int n;
+
+    /** The positions of the tuple offsets and of the key entry offsets
+     */
+    private final transient int offs, keys;
+
+    /** The tuples decoded so far (by tuple number)
+     */
+    private transient volatile Comparable [][] decoded;
+
+    /** Whether the tuples have been moved into the tuple store
+     */
+    private transient volatile boolean promoted = false;
+
+    /** Serialises the move into the tuple store
+     */
+    private final transient ReentrantLock lock = new ReentrantLock ();
+
+    /********************************************************************************
+     * Construct a table over an opened file.
+     */
+    private MappedTable (Header h)
+    {
+        super (h.name (), h.attrs (), h.doms (), h.key ());
+        buf     = h.buf ();
+        n       = h.n ();
+        offs    = h.offs ();
+        keys    = h.keys ();
+        decoded = new Comparable [n][];
+    } // constructor
+
+    /********************************************************************************
+     * Map a table file and read its header.
+     * @param path  the path of the ".dbm" file
+     * @return  the table
+     * @throws IOException  if the file cannot be mapped or is not a mapped table
+     */
+    static MappedTable open (Path path)
+        throws IOException
+    {
+        try (var ch = FileChannel.open (path, StandardOpenOption.READ)) {
+            if (ch.size () > Integer.MAX_VALUE) throw new IOException ("open: " + path + " is too large to map");
+            var buf = ch.map (FileChannel.MapMode.READ_ONLY, 0, ch.size ());
+            if (buf.getInt (0) != MAGIC) throw new IOException ("open: " + path + " is not a mapped table");
+            var schema = new byte [buf.getInt (24)];
+            buf.get (28, schema);
+            var in    = new DataInputStream (new ByteArrayInputStream (schema));
+            var name  = in.readUTF ();
+            var attrs = new String [in.readShort ()];
+            for (var j = 0; j < attrs.length; j++) attrs [j] = in.readUTF ();
+            var doms  = new String [attrs.length];
+            for (var j = 0; j < doms.length; j++) doms [j] = in.readUTF ();
+            var key   = new String [in.readShort ()];
+            for (var j = 0; j < key.length; j++) key [j] = in.readUTF ();
+            return new MappedTable (new Header (buf, buf.getInt (4), (int) buf.getLong (8), (int) buf.getLong (16),
+                                                name, attrs, findClass (doms), key));
+        } // try
+    } // open
+
+    /********************************************************************************
+     * Write a table's visible tuples as a mapped table file (atomically replacing any
+     * old one).
+     * @param table  the table
+     * @param path   the path of the ".dbm" file
+     * @throws IOException  if the file cannot be written
+     */
+    static void write (Table table, Path path)
+        throws IOException
+    {
+        var rows = table.rows ();
+        var tups = new byte [rows.size ()][];
+        var kbs  = new byte [rows.size ()][];
+        for (var i = 0; i < tups.length; i++) {
+            tups [i] = KeyType.encode (rows.get (i));
+            kbs [i]  = table.keyOf (rows.get (i)).toBytes ();
+            if (tups [i] == null || kbs [i] == null) throw new IOException ("write: tuple " + i + " has no binary encoding");
+        } // for
+        var order = new Integer [tups.length];
+        for (var i = 0; i < order.length; i++) order [i] = i;
+        Arrays.sort (order, (a, b) -> Arrays.compareUnsigned (kbs [a], kbs [b]));
+
+        var schema = new ByteArrayOutputStream ();
+        var sdos   = new DataOutputStream (schema);
+        sdos.writeUTF (table.getName ());
+        sdos.writeShort (table.attributes ().length);
+        for (var a : table.attributes ()) sdos.writeUTF (a);
+        for (var d : table.getDomain ()) sdos.writeUTF (d.getSimpleName ());
+        sdos.writeShort (table.primaryKey ().length);
+        for (var k : table.primaryKey ()) sdos.writeUTF (k);
+
+        var tmp = Paths.get (path + ".tmp");
+        if (path.getParent () != null) Files.createDirectories (path.getParent ());
+        try (var fos = new FileOutputStream (tmp.toFile ())) {
+            var dos   = new DataOutputStream (new BufferedOutputStream (fos, 1 << 16));
+            var tOffs = new long [tups.length + 1];
+            var kOffs = new long [tups.length + 1];
+            var start = 28L + schema.size ();
+            var pos   = start;
+            for (var i = 0; i < tups.length; i++) { tOffs [i] = pos; pos += tups [i].length; }
+            tOffs [tups.length] = pos;
+            for (var i = 0; i < order.length; i++) { kOffs [i] = pos; pos += 4 + kbs [order [i]].length; }
+            kOffs [order.length] = pos;
+
+            dos.writeInt (MAGIC);
+            dos.writeInt (tups.length);
+            dos.writeLong (pos);                                            // the tuple offsets
+            dos.writeLong (pos + 8L * tOffs.length);                         // the key entry offsets
+            dos.writeInt (schema.size ());
+            schema.writeTo (dos);
+            for (var t : tups) dos.write (t);
+            for (var i : order) {
+                dos.writeInt (i);
+                dos.write (kbs [i]);
+            } // for
+            for (var o : tOffs) dos.writeLong (o);
+            for (var o : kOffs) dos.writeLong (o);
+            dos.flush ();
+            fos.getFD ().sync ();
+        } // try
+        Files.move (tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } // write
+
+    /********************************************************************************
+     * Return the number of tuples decoded from the mapping so far.
+     * @return  the decoded tuple count
+     */
+    public int decodedTuples ()
+    {
+        var d = decoded;
+        if (d == null) return n;
+        var c = 0;
+        for (var t : d) if (t != null) c++;
+        return c;
+    } // decodedTuples
+
+    /********************************************************************************
+     * Return the tuples held in memory (those decoded so far, or all once moved into
+     * the tuple store).
+     * @return  the resident tuples
+     */
+    List <Comparable []> resident ()
+    {
+        var d = decoded;
+        if (d == null) return super.rows ();
+        var rs = new ArrayList <Comparable []> ();
+        for (var t : d) if (t != null) rs.add (t);
+        return rs;
+    } // resident
+
+    /********************************************************************************
+     * Move the tuples into the tuple store, then insert.
+     */
+    public boolean insert (Comparable [] tup)
+    {
+        promote ();
+        return super.insert (tup);
+    } // insert
+
+    /********************************************************************************
+     * Move the tuples into the tuple store, then update.
+     */
+    public boolean update (KeyType keyVal, Comparable [] tup)
+    {
+        promote ();
+        return super.update (keyVal, tup);
+    } // update
+
+    /********************************************************************************
+     * Move the tuples into the tuple store, then update.
+     */
+    public int update (Predicate <Comparable []> predicate, UnaryOperator <Comparable []> fn)
+    {
+        promote ();
+        return super.update (predicate, fn);
+    } // update
+
+    /********************************************************************************
+     * Move the tuples into the tuple store, then delete.
+     */
+    public int delete (Predicate <Comparable []> predicate)
+    {
+        promote ();
+        return super.delete (predicate);
+    } // delete
+
+    /********************************************************************************
+     * Move the tuples into the tuple store, then save the table as a ".dbf" file.
+     */
+    public void save ()
+    {
+        promote ();
+        super.save ();
+    } // save
+
+    //----------------------------------------------------------------------------------
+    // Hooks used by Table and Transaction
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Return the tuples:  a view decoding them from the mapping on access (until the
+     * table is first written).
+     */
+    List <Comparable []> rows ()
+    {
+        if (promoted) return super.rows ();
+        return new Mapped ();
+    } // rows
+
+    /********************************************************************************
+     * Return the tuples, skipping blocks by zone maps only once they are in the tuple
+     * store (the mapped tuples have none).
+     */
+    List <Comparable []> rows (int col, TupleStore.Range range)
+    {
+        return promoted ? super.rows (col, range) : rows ();
+    } // rows
+
+    /********************************************************************************
+     * Return the store, first moving the tuples into it.
+     */
+    TupleStore store ()
+    {
+        promote ();
+        return super.store ();
+    } // store
+
+    /********************************************************************************
+     * Look up a key by binary search of the file's sorted key section.
+     */
+    Comparable [] lookup (KeyType keyVal)
+    {
+        if (promoted) return super.lookup (keyVal);
+        var kb = keyVal.toBytes ();
+        if (kb == null) return null;
+        var lo = 0;
+        var hi = n - 1;
+        while (lo <= hi) {
+            var mid = (lo + hi) >>> 1;
+            var at  = (int) buf.getLong (keys + 8 * mid);
+            var c   = compare (at + 4, (int) buf.getLong (keys + 8 * (mid + 1)) - at - 4, kb);
+            if (c == 0) return tuple (buf.getInt (at));
+            if (c < 0) lo = mid + 1; else hi = mid - 1;
+        } // while
+        return null;
+    } // lookup
+
+    /********************************************************************************
+     * Return whether the table can be looked up by key.
+     */
+    boolean indexed ()
+    {
+        return promoted ? super.indexed () : n > 0;
+    } // indexed
+
+    //----------------------------------------------------------------------------------
+    // Private Methods
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * The list of the mapped tuples, decoded on access.
+     */
+    private final class Mapped
+            extends AbstractList <Comparable []>
+            implements RandomAccess
+    {
+        public Comparable [] get (int i)
+        {
+            Objects.checkIndex (i, n);
+            return tuple (i);
+        } // get
+
+        public int size ()
+        {
+            return n;
+        } // size
+
+    } // Mapped inner class
+
+    /********************************************************************************
+     * Return tuple i, decoding it from the mapping on first access.
+     */
+    private Comparable [] tuple (int i)
+    {
+        var d = decoded;
+        if (d == null) return super.rows ().get (i);                         // promoted meanwhile
+        var t = d [i];
+        if (t == null) {
+            var at = (int) buf.getLong (offs + 8 * i);
+            var b  = new byte [(int) buf.getLong (offs + 8 * (i + 1)) - at];
+            buf.get (at, b);
+            d [i] = t = KeyType.decode (b);
+        } // if
+        return t;
+    } // tuple
+
+    /********************************************************************************
+     * Compare len mapped bytes at pos with a key (unsigned, as KeyType orders keys).
+     */
+    private int compare (int pos, int len, byte [] kb)
+    {
+        var m = Math.min (len, kb.length);
+        for (var j = 0; j < m; j++) {
+            var c = Integer.compare (buf.get (pos + j) & 0xFF, kb [j] & 0xFF);
+            if (c != 0) return c;
+        } // for
+        return Integer.compare (len, kb.length);
+    } // compare
+
+    /********************************************************************************
+     * Move the tuples into the tuple store and index (once), so the table can be
+     * written.
+     */
+    private void promote ()
+    {
+        if (promoted) return;
+        lock.lock ();
+        try {
+            if (promoted) return;
+            var all = new ArrayList <Comparable []> (n);
+            for (var i = 0; i < n; i++) all.add (tuple (i));
+            super.store ().replace (null, all);
+            for (var t : all) indexPut (keyOf (t), t);
+            promoted = true;
+            decoded  = null;
+        } finally {
+            lock.unlock ();
+        } // try
+    } // promote
+
+} // MappedTable class
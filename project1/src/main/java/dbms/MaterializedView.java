@@ -0,0 +1,654 @@
+package dbms;
+/************************************************************************************
+ * @file MaterializedView.java
+ */
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/************************************************************************************
+ * The MaterializedView class keeps the result of a join or an aggregation as a table
+ * that is maintained incrementally:  it is fed the changes (old and new tuples) of its
+ * base tables and applies to itself only the change those make to the result (the
+ * delta), never recomputing it.  Reading a view is therefore as cheap as reading a base
+ * table of its size, however large the base tables are.
+ * <p>
+ * A join view finds the partners of a changed tuple by probing the other table's index
+ * when the join attributes are that table's primary key, and otherwise through an index
+ * of the other table by join attributes that the view keeps itself.  An aggregate view
+ * keeps running accumulators per group (a count, sums, and multisets of values for min
+ * and max, so that deletes are handled too) and replaces only the tuples of the groups
+ * that changed.
+ * <p>
+ * Deltas are applied one at a time under the view's lock, each in one commit of the
+ * view's tuple store, while the writer of the base table still holds its locks.  The
+ * view passes its own changes on to its feeds, so views may be defined over views
+ * and replicated.  A view is read-only.
+ *
+ * #usage var cast = Table.materialize (MaterializedView.join (movie, "title year", starsIn, "movieTitle movieYear"));
+ *        var stats = Table.materialize (MaterializedView.aggregate (movie, "studioName", "count:* avg:length"));
+ */
+public abstract class MaterializedView
+       extends Table
+{
+    /********************************************************************************
+     * This interface is the definition of a view (a Join or an Aggregate).
+     */
+    public sealed interface Definition permits Join, Aggregate { }
+
+    /********************************************************************************
+     * The equi-join of two tables on the given attributes (space separated).
+     */
+    public record Join (Table left, String attributes1, Table right, String attributes2)
+           implements Definition { }
+
+    /********************************************************************************
+     * The grouping of a table by the given attributes (space separated, or "" for one
+     * group) with aggregates fn:attr, where fn is count, sum, min, max or avg.
+     */
+    public record Aggregate (Table base, String groupBy, String aggregates)
+           implements Definition { }
+
+    /** The tables the view is derived from
+     */
+    private final transient List <Table> bases;
+
+    /** The feeds the view has added to (the partitions of) its base tables
+     */
+    private final transient List <Map.Entry <Table, BiConsumer <List <Comparable []>, List <Comparable []>>>> subscriptions
+                                = new ArrayList <> ();
+
+    /** Serialises the application of deltas
+     */
+    private final transient ReentrantLock lock = new ReentrantLock ();
+
+    /** The changes of the delta being applied:  {old tuple, new tuple} by view key
+     */
+    private final transient Map <KeyType, Comparable [][]> pending = new LinkedHashMap <> ();
+
+    /********************************************************************************
+     * Define the join of two tables.
+     *
+     * #usage MaterializedView.join (movie, "studioName", studio, "name")
+     *
+     * @param left         the lhs table
+     * @param attributes1  its join attributes
+     * @param right        the rhs table
+     * @param attributes2  its join attributes
+     * @return  the view definition
+     */
+    public static Definition join (Table left, String attributes1, Table right, String attributes2)
+    {
+        return new Join (left, attributes1, right, attributes2);
+    } // join
+
+    /********************************************************************************
+     * Define the grouping of a table with aggregates.
+     *
+     * #usage MaterializedView.aggregate (movie, "studioName", "count:* sum:length max:year")
+     *
+     * @param base        the table
+     * @param groupBy     the grouping attributes
+     * @param aggregates  the aggregates fn:attr
+     * @return  the view definition
+     */
+    public static Definition aggregate (Table base, String groupBy, String aggregates)
+    {
+        return new Aggregate (base, groupBy, aggregates);
+    } // aggregate
+
+    /********************************************************************************
+     * Create, populate and start maintaining a view.
+     * @param def  the view definition
+     * @return  the view
+     */
+    static MaterializedView of (Definition def)
+    {
+        MaterializedView view = (def instanceof Join j) ? new JoinView (j) : new AggregateView ((Aggregate) def);
+        view.start ();
+        return view;
+    } // of
+
+    /********************************************************************************
+     * Construct an empty view over the given base tables.
+     */
+    private MaterializedView (String name, String [] attrs, Class [] doms, String [] key, List <Table> _bases)
+    {
+        super (name, attrs, doms, key);
+        bases = _bases;
+    } // constructor
+
+    /********************************************************************************
+     * Stop maintaining the view (it keeps its last contents).
+     */
+    public void close ()
+    {
+        lock.lock ();
+        try {
+            for (var e : subscriptions) e.getKey ().removeFeed (e.getValue ());
+            subscriptions.clear ();
+        } finally {
+            lock.unlock ();
+        } // try
+    } // close
+
+    /********************************************************************************
+     * A view is read-only.
+     */
+    public boolean insert (Comparable [] tup)
+    {
+        throw new UnsupportedOperationException ("insert: view " + getName () + " is read-only");
+    } // insert
+
+    /********************************************************************************
+     * A view is read-only.
+     */
+    public boolean update (KeyType keyVal, Comparable [] tup)
+    {
+        throw new UnsupportedOperationException ("update: view " + getName () + " is read-only");
+    } // update
+
+    /********************************************************************************
+     * A view is read-only.
+     */
+    public int update (Predicate <Comparable []> predicate, UnaryOperator <Comparable []> fn)
+    {
+        throw new UnsupportedOperationException ("update: view " + getName () + " is read-only");
+    } // update
+
+    /********************************************************************************
+     * A view is read-only.
+     */
+    public int delete (Predicate <Comparable []> predicate)
+    {
+        throw new UnsupportedOperationException ("delete: view " + getName () + " is read-only");
+    } // delete
+
+    /********************************************************************************
+     * A view is not saved (it is materialized again from its base tables).
+     */
+    public void save ()
+    {
+        throw new UnsupportedOperationException ("save: view " + getName () + " is not persistent");
+    } // save
+
+    //----------------------------------------------------------------------------------
+    // Delta Application
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Work out the delta of the view for a change to a base table, recording it with
+     * 'put'.
+     * @param base  the position of the base table in 'bases'
+     * @param olds  the tuples removed or replaced
+     * @param news  the tuples added
+     */
+    abstract void delta (int base, List <Comparable []> olds, List <Comparable []> news);
+
+    /********************************************************************************
+     * Return the current tuple of the view with the given key, including the changes
+     * of the delta being worked out.
+     * @param viewKey  the key in the view
+     * @return  the tuple or null if there is none
+     */
+    Comparable [] current (KeyType viewKey)
+    {
+        var p = pending.get (viewKey);
+        return (p != null) ? p [1] : lookup (viewKey);
+    } // current
+
+    /********************************************************************************
+     * Record that the view's tuple with the given key becomes tup (or is removed).
+     * @param viewKey  the key in the view
+     * @param tup      the new tuple (null to remove it)
+     */
+    void put (KeyType viewKey, Comparable [] tup)
+    {
+        var p = pending.get (viewKey);
+        if (p == null) pending.put (viewKey, new Comparable [][] { lookup (viewKey), tup });
+        else p [1] = tup;
+    } // put
+
+    /********************************************************************************
+     * Subscribe to the base tables and populate the view from their tuples, holding
+     * share locks on them (and the locks of base views) so that no change falls between
+     * the two.
+     */
+    private void start ()
+    {
+        var owner = new Object ();
+        var held  = new ArrayList <ReentrantLock> ();
+        try {
+            for (var b : bases) {
+                for (var part : b.partitions ()) Transaction.locks ().lockTable (owner, part, LockManager.Mode.S);
+                if (b instanceof MaterializedView v && ! held.contains (v.lock)) { v.lock.lock (); held.add (v.lock); }
+            } // for
+            lock.lock ();
+            try {
+                for (var i = bases.size () - 1; i >= 0; i--) {
+                    final var base = i;
+                    for (var part : bases.get (i).partitions ()) {
+                        BiConsumer <List <Comparable []>, List <Comparable []>> feed = (olds, news) -> apply (base, olds, news);
+                        part.addFeed (feed);
+                        subscriptions.add (Map.entry (part, feed));
+                        apply (base, List.of (), part.rows ());
+                    } // for
+                } // for
+            } finally {
+                lock.unlock ();
+            } // try
+        } finally {
+            for (var l : held) l.unlock ();
+            Transaction.locks ().releaseAll (owner);
+        } // try
+    } // start
+
+    /********************************************************************************
+     * Apply the delta for a change to a base table in one commit, then pass it on.
+     */
+    private void apply (int base, List <Comparable []> olds, List <Comparable []> news)
+    {
+        lock.lock ();
+        try {
+            pending.clear ();
+            delta (base, olds, news);
+            var ends  = Collections.newSetFromMap (new IdentityHashMap <Comparable [], Boolean> ());
+            var adds  = new ArrayList <Comparable []> ();
+            var pairs = new ArrayList <Comparable [][]> ();
+            for (var p : pending.values ()) {
+                if (p [0] == p [1]) continue;
+                if (p [0] != null) ends.add (p [0]);
+                if (p [1] != null) adds.add (p [1]);
+                pairs.add (p);
+            } // for
+            pending.clear ();
+            if (pairs.isEmpty ()) return;
+
+            store ().replace (ends.isEmpty () ? null : ends::contains, adds);
+            for (var p : pairs) if (p [0] != null) indexRemove (keyOf (p [0]));
+            for (var p : pairs) if (p [1] != null) indexPut (keyOf (p [1]), p [1]);
+            var dels = new ArrayList <Comparable []> ();
+            var ins  = new ArrayList <Comparable []> ();
+            var olds2 = new ArrayList <Comparable []> ();
+            var news2 = new ArrayList <Comparable []> ();
+            for (var p : pairs) {
+                if (p [1] == null) dels.add (p [0]);
+                else if (p [0] == null) ins.add (p [1]);
+                else { olds2.add (p [0]); news2.add (p [1]); }
+            } // for
+            emit (dels, List.of ());
+            emit (olds2, news2);
+            emit (List.of (), ins);
+        } finally {
+            lock.unlock ();
+        } // try
+        changed ();
+    } // apply
+
+    //----------------------------------------------------------------------------------
+    // Join Views
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * The JoinView class maintains an equi-join:  for a change to one side, the tuples
+     * with the old side tuples are removed and the new side tuples are joined with
+     * their partners on the other side.  Each view tuple is keyed by the keys of both
+     * sides, so joining a pair twice (when both sides change at once) is harmless.
+     */
+    private static final class JoinView
+            extends MaterializedView
+    {
+        /** The two sides (0 = left, 1 = right)
+         */
+        private final Table [] side;
+
+        /** The join attributes of each side
+         */
+        private final String [][] on;
+
+        /** The columns of the join attributes of each side
+         */
+        private final int [][] onCols;
+
+        /** Whether each side is probed through its own index (its key is joined on)
+         */
+        private final boolean [] probeIndex = new boolean [2];
+
+        /** The view's index of each side not probed through its own:  join values to
+         *  the side's tuples by key
+         */
+        private final List <Map <KeyType, Map <KeyType, Comparable []>>> byJoin = List.of (new HashMap <> (), new HashMap <> ());
+
+        /** The keys of the view tuples holding each side tuple (by its key)
+         */
+        private final List <Map <KeyType, Set <KeyType>>> holding = List.of (new HashMap <> (), new HashMap <> ());
+
+        /** The width of the left side's tuples
+         */
+        private final int width;
+
+        JoinView (Join def)
+        {
+            this (def, def.attributes1 ().trim ().split (" "), def.attributes2 ().trim ().split (" "));
+        } // constructor
+
+        private JoinView (Join def, String [] a1, String [] a2)
+        {
+            super (def.left ().getName () + "_join_" + def.right ().getName (), schema (def), concat (def.left ().getDomain (),
+                   def.right ().getDomain ()), viewKey (def), List.of (def.left (), def.right ()));
+            if (a1.length != a2.length) throw new IllegalArgumentException ("join: attribute lists differ in length");
+            side   = new Table [] { def.left (), def.right () };
+            on     = new String [][] { a1, a2 };
+            onCols = new int [2][];
+            for (var s = 0; s < 2; s++) {
+                onCols [s] = new int [on [s].length];
+                for (var j = 0; j < on [s].length; j++) {
+                    onCols [s][j] = side [s].col (on [s][j]);
+                    if (onCols [s][j] < 0) throw new IllegalArgumentException ("join: unknown attribute " + on [s][j]);
+                } // for
+                probeIndex [s] = Arrays.equals (on [s], side [s].primaryKey ());
+            } // for
+            width = side [0].attributes ().length;
+        } // constructor
+
+        /****************************************************************************
+         * Return the view's attributes:  those of the left side, then those of the
+         * right side with "2" appended to the names they share (as Table.join does).
+         */
+        private static String [] schema (Join def)
+        {
+            var left  = def.left ().attributes ();
+            var right = def.right ().attributes ().clone ();
+            for (var i = 0; i < right.length; i++) {
+                if (Arrays.asList (left).contains (right [i])) right [i] += "2";
+            } // for
+            return concat (left, right);
+        } // schema
+
+        /****************************************************************************
+         * Return the view's key:  the keys of both sides (as renamed in the view).
+         */
+        private static String [] viewKey (Join def)
+        {
+            var attrs = schema (def);
+            var lw    = def.left ().attributes ().length;
+            var key   = new ArrayList <> (Arrays.asList (def.left ().primaryKey ()));
+            for (var k : def.right ().primaryKey ()) key.add (attrs [lw + def.right ().col (k)]);
+            return key.toArray (new String [0]);
+        } // viewKey
+
+        void delta (int s, List <Comparable []> olds, List <Comparable []> news)
+        {
+            var table = side [s];
+            for (var t : olds) {
+                var k = table.keyOf (t);
+                if (! probeIndex [s]) {
+                    var m = byJoin.get (s).get (joinValues (s, t));
+                    if (m != null) m.remove (k);
+                } // if
+                var held = holding.get (s).remove (k);
+                if (held == null) continue;
+                for (var vk : held) {
+                    var v = current (vk);
+                    if (v == null) continue;
+                    put (vk, null);
+                    var other = holding.get (1 - s).get (sideKey (1 - s, v));
+                    if (other != null) other.remove (vk);
+                } // for
+            } // for
+
+            for (var t : news) {
+                var k  = table.keyOf (t);
+                var jv = joinValues (s, t);
+                if (! probeIndex [s]) byJoin.get (s).computeIfAbsent (jv, x -> new HashMap <> ()).put (k, t);
+                for (var u : partners (1 - s, jv)) {
+                    var v  = (s == 0) ? concat (t, u) : concat (u, t);
+                    var vk = keyOf (v);
+                    var c  = current (vk);
+                    if (c != null && Arrays.equals (c, v)) continue;
+                    put (vk, v);
+                    holding.get (0).computeIfAbsent (sideKey (0, v), x -> new HashSet <> ()).add (vk);
+                    holding.get (1).computeIfAbsent (sideKey (1, v), x -> new HashSet <> ()).add (vk);
+                } // for
+            } // for
+        } // delta
+
+        /****************************************************************************
+         * Return the tuples of side s whose join attributes have the given values.
+         */
+        private Collection <Comparable []> partners (int s, KeyType values)
+        {
+            if (probeIndex [s]) {
+                var u = side [s].lookup (values);
+                return (u == null) ? List.of () : List.<Comparable []>of (u);
+            } // if
+            var m = byJoin.get (s).get (values);
+            return (m == null) ? List.of () : m.values ();
+        } // partners
+
+        /****************************************************************************
+         * Return the values of the join attributes of a tuple of side s.
+         */
+        private KeyType joinValues (int s, Comparable [] t)
+        {
+            var vals = new Comparable [onCols [s].length];
+            for (var j = 0; j < vals.length; j++) vals [j] = t [onCols [s][j]];
+            return new KeyType (vals);
+        } // joinValues
+
+        /****************************************************************************
+         * Return the key of the side s tuple within a view tuple.
+         */
+        private KeyType sideKey (int s, Comparable [] v)
+        {
+            return side [s].keyOf ((s == 0) ? Arrays.copyOf (v, width) : Arrays.copyOfRange (v, width, v.length));
+        } // sideKey
+
+    } // JoinView class
+
+    //----------------------------------------------------------------------------------
+    // Aggregate Views
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * The AggregateView class maintains a grouping with aggregates:  each group keeps
+     * its count, the sums of its values and, for min and max, a multiset of its values,
+     * which removed tuples are subtracted from.  A group whose count drops to zero is
+     * removed.  As in SQL, sum, avg, min and max skip null values (and are null for a
+     * group with none), while count counts every tuple.  Aggregates are named as by the
+     * Coordinator (count, sum_x, avg_x, ...).
+     */
+    private static final class AggregateView
+            extends MaterializedView
+    {
+        /** The running accumulators of a group
+         */
+        private static final class Group
+        {
+            Comparable []                        values;                    // of the grouping attributes
+            long                                 count;
+            long []                              nonNull;                   // per aggregate, its non-null values
+            long []                              lsum;
+            double []                            dsum;
+            List <TreeMap <Comparable, Integer>> bag;                       // for min and max
+            Comparable []                        row;                       // the tuple in the view (or null)
+        } // Group class
+
+        /** The base table
+         */
+        private final Table table;
+
+        /** The columns of the grouping attributes
+         */
+        private final int [] gcols;
+
+        /** The aggregate functions and the columns they apply to (-1 for count)
+         */
+        private final String [] fns;
+        private final int []    acols;
+
+        /** Whether each aggregated column is integral (summed as a Long)
+         */
+        private final boolean [] integral;
+
+        /** The groups by grouping values
+         */
+        private final Map <KeyType, Group> groups = new HashMap <> ();
+
+        AggregateView (Aggregate def)
+        {
+            this (def, def.groupBy ().isBlank () ? new String [0] : def.groupBy ().trim ().split (" "),
+                  def.aggregates ().trim ().split (" "));
+        } // constructor
+
+        private AggregateView (Aggregate def, String [] by, String [] aggs)
+        {
+            super (def.base ().getName () + "_aggregate", schema (def.base (), by, aggs), domains (def.base (), by, aggs),
+                   (by.length > 0) ? by : schema (def.base (), by, aggs), List.of (def.base ()));
+            table    = def.base ();
+            gcols    = new int [by.length];
+            for (var j = 0; j < by.length; j++) gcols [j] = column (table, by [j]);
+            fns      = new String [aggs.length];
+            acols    = new int [aggs.length];
+            integral = new boolean [aggs.length];
+            for (var k = 0; k < aggs.length; k++) {
+                var fa = aggs [k].split (":");
+                fns [k]   = fa [0].toLowerCase ();
+                acols [k] = fns [k].equals ("count") ? -1 : column (table, fa [1]);
+                integral [k] = acols [k] >= 0 && isIntegral (table.getDomain () [acols [k]]);
+            } // for
+        } // constructor
+
+        /****************************************************************************
+         * Return the view's attributes:  the grouping attributes, then the aggregates.
+         */
+        private static String [] schema (Table base, String [] by, String [] aggs)
+        {
+            var attrs = Arrays.copyOf (by, by.length + aggs.length);
+            for (var k = 0; k < aggs.length; k++) {
+                var fa = aggs [k].split (":");
+                if (fa.length != 2) throw new IllegalArgumentException ("aggregate: bad aggregate " + aggs [k]);
+                attrs [by.length + k] = fa [0].equalsIgnoreCase ("count") ? "count" : fa [0].toLowerCase () + "_" + fa [1];
+            } // for
+            return attrs;
+        } // schema
+
+        /****************************************************************************
+         * Return the view's domains:  those of the grouping attributes, Long for count,
+         * Long or Double for sum (by the domain summed), Double for avg and the domain of
+         * the attribute for min and max.
+         */
+        private static Class [] domains (Table base, String [] by, String [] aggs)
+        {
+            var dom  = base.getDomain ();
+            var doms = new Class [by.length + aggs.length];
+            for (var j = 0; j < by.length; j++) doms [j] = dom [column (base, by [j])];
+            for (var k = 0; k < aggs.length; k++) {
+                var fa = aggs [k].split (":");
+                var fn = fa [0].toLowerCase ();
+                doms [by.length + k] = switch (fn) {
+                case "count"      -> Long.class;
+                case "sum"        -> isIntegral (dom [column (base, fa [1])]) ? Long.class : Double.class;
+                case "avg"        -> Double.class;
+                case "min", "max" -> dom [column (base, fa [1])];
+                default -> throw new IllegalArgumentException ("aggregate: unknown function " + fn);
+                }; // switch
+            } // for
+            return doms;
+        } // domains
+
+        void delta (int base, List <Comparable []> olds, List <Comparable []> news)
+        {
+            var touched = new LinkedHashSet <Group> ();
+            for (var t : olds) touched.add (accumulate (t, -1));
+            for (var t : news) touched.add (accumulate (t, 1));
+            for (var g : touched) {
+                if (g.row != null) put (keyOf (g.row), null);
+                if (g.count > 0) {
+                    g.row = result (g);
+                    put (keyOf (g.row), g.row);
+                } else {
+                    g.row = null;
+                    groups.remove (new KeyType (g.values));
+                } // if
+            } // for
+        } // delta
+
+        /****************************************************************************
+         * Add a tuple to (sign 1) or subtract it from (sign -1) its group.
+         */
+        @SuppressWarnings ("unchecked")
+        private Group accumulate (Comparable [] t, int sign)
+        {
+            var vals = new Comparable [gcols.length];
+            for (var j = 0; j < vals.length; j++) vals [j] = t [gcols [j]];
+            var g = groups.computeIfAbsent (new KeyType (vals), x -> {
+                var n = new Group ();
+                n.values  = vals;
+                n.nonNull = new long [fns.length];
+                n.lsum    = new long [fns.length];
+                n.dsum    = new double [fns.length];
+                n.bag     = new ArrayList <> ();
+                for (var k = 0; k < fns.length; k++) n.bag.add (new TreeMap <> ());
+                return n;
+            });
+            g.count += sign;
+            for (var k = 0; k < fns.length; k++) {
+                if (acols [k] < 0) continue;
+                var v = t [acols [k]];
+                if (v == null) continue;                                    // aggregates skip nulls, as in SQL
+                g.nonNull [k] += sign;
+                switch (fns [k]) {
+                case "sum", "avg" -> {
+                    if (integral [k]) g.lsum [k] += sign * ((Number) v).longValue ();
+                    else g.dsum [k] += sign * ((Number) v).doubleValue ();
+                }
+                default -> g.bag.get (k).merge (v, sign, (a, b) -> (a + b == 0) ? null : a + b);
+                } // switch
+            } // for
+            return g;
+        } // accumulate
+
+        /****************************************************************************
+         * Return the view tuple of a group.
+         */
+        private Comparable [] result (Group g)
+        {
+            var r = Arrays.copyOf (g.values, g.values.length + fns.length);
+            for (var k = 0; k < fns.length; k++) {
+                var sum = integral [k] ? (double) g.lsum [k] : g.dsum [k];
+                r [g.values.length + k] = switch (fns [k]) {
+                case "count" -> (Comparable) g.count;
+                case "sum"   -> (g.nonNull [k] == 0) ? null : integral [k] ? (Comparable) g.lsum [k] : (Comparable) g.dsum [k];
+                case "avg"   -> (g.nonNull [k] == 0) ? null : (Comparable) (sum / g.nonNull [k]);
+                case "min"   -> g.bag.get (k).isEmpty () ? null : g.bag.get (k).firstKey ();
+                default      -> g.bag.get (k).isEmpty () ? null : g.bag.get (k).lastKey ();
+                }; // switch
+            } // for
+            return r;
+        } // result
+
+        /****************************************************************************
+         * Return the column of an attribute, failing if the table has no such attribute.
+         */
+        private static int column (Table table, String attr)
+        {
+            var c = table.col (attr);
+            if (c < 0) throw new IllegalArgumentException ("aggregate: unknown attribute " + attr);
+            return c;
+        } // column
+
+        /****************************************************************************
+         * Return whether the domain holds integral numbers.
+         */
+        private static boolean isIntegral (Class dom)
+        {
+            return dom == Long.class || dom == Integer.class || dom == Short.class || dom == Byte.class;
+        } // isIntegral
+
+    } // AggregateView class
+
+} // MaterializedView class
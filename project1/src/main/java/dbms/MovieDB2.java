@@ -13,19 +13,20 @@ import static java.lang.System.out;
 class MovieDB2
 {
     /*************************************************************************************
-     * Main method for loading a previously saved Movie Database.
+     * Main method for loading a previously saved Movie Database (memory-mapping the
+     * tables saved with saveMapped).
      * @param args  the command-line arguments
      */
     public static void main (String [] args)
     {
         out.println ();
 
-        var movie     = Table.load ("movie");
-        var cinema    = Table.load ("cinema");
-        var movieStar = Table.load ("movieStar");
-        var starsIn   = Table.load ("starsIn");
-        var movieExec = Table.load ("movieExec");
-        var studio    = Table.load ("studio");
+        var movie     = Table.loadMapped ("movie");
+        var cinema    = Table.loadMapped ("cinema");
+        var movieStar = Table.loadMapped ("movieStar");
+        var starsIn   = Table.loadMapped ("starsIn");
+        var movieExec = Table.loadMapped ("movieExec");
+        var studio    = Table.loadMapped ("studio");
 
         movie.print ();
         cinema.print ();
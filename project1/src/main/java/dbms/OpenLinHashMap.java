@@ -0,0 +1,366 @@
+package dbms;
+/************************************************************************************
+ * @file OpenLinHashMap.java
+ */
+
+import java.io.*;
+import java.lang.reflect.Array;
+import static java.lang.System.out;
+import java.util.*;
+
+/************************************************************************************
+ * This class provides hash maps that use the Linear Hashing algorithm over a flat,
+ * open-addressed table.  Rather than chaining overflow buckets, the table is three
+ * parallel arrays: 64-bit hash fingerprints in a long [], and keys and values in
+ * reference arrays.  Bucket i owns slots [i * SLOTS, (i + 1) * SLOTS), i.e., one cache
+ * line of fingerprints, and a full bucket overflows into the following slots (linear
+ * probing, no wrap-around).  A lookup scans fingerprints from the start of its home
+ * bucket until it finds the key or an empty slot, so it usually touches one cache line
+ * and only compares keys whose full hash matches.
+ * <p>
+ * As with LinHashMap, the table grows one bucket at a time:  when the load factor is
+ * exceeded, bucket 'isplit' is split by re-addressing the run of slots that begins
+ * with it using the high resolution hash.  Appending a bucket never moves any other
+ * entry, so the physical arrays are simply doubled (copied) when they fill up.
+ */
+public class OpenLinHashMap <K, V>
+       extends AbstractMap <K, V>
+       implements Serializable, Cloneable, Map <K, V>
+{
+    /** The debug flag
+     */
+    private static final boolean DEBUG = false;
+
+    /** The number of slots per bucket (8 fingerprints fill a 64-byte cache line).
+     */
+    private static final int SLOTS = 8;
+
+    /** The threshold/upper bound on the load factor
+     */
+    private static final double THRESHOLD = .75;
+
+    /** The class for type K.
+     */
+    private final Class <K> classK;
+
+    /** The class for type V.
+     */
+    private final Class <V> classV;
+
+    /** The hash fingerprint for each slot (0 => empty slot).
+     */
+    private long [] fp;
+
+    /** The key stored in each slot.
+     */
+    private K [] key;
+
+    /** The value stored in each slot.
+     */
+    private V [] value;
+
+    /** The modulus for low resolution hashing
+     */
+    private int mod1;
+
+    /** The modulus for high resolution hashing
+     */
+    private int mod2;
+
+    /** The index of the next bucket to split.
+     */
+    private int isplit = 0;
+
+    /** Counter for the number buckets (cache lines) accessed (for performance testing).
+     */
+    private int count = 0;
+
+    /** The counter for the total number of keys in the map
+     */
+    private int keyCount = 0;
+
+    /********************************************************************************
+     * Construct a hash table that uses Linear Hashing over open-addressed arrays.
+     * @param _classK  the class for keys (K)
+     * @param _classV  the class for values (V)
+     */
+    public OpenLinHashMap (Class <K> _classK, Class <V> _classV)
+    {
+        classK = _classK;
+        classV = _classV;
+        mod1   = 4;                                                          // initial size
+        mod2   = 2 * mod1;
+        allocate (mod2 * SLOTS);                                             // room for a full phase
+    } // constructor
+
+    /********************************************************************************
+     * Return a set containing all the entries as pairs of keys and values.
+     * @return  the set view of the map
+     */
+    public Set <Map.Entry <K, V>> entrySet ()
+    {
+        var enSet = new HashSet <Map.Entry <K, V>> ();
+        for (var p = 0; p < fp.length; p++) {
+            if (fp [p] != 0) enSet.add (Map.entry (key [p], value [p]));
+        } // for
+        return enSet;
+    } // entrySet
+
+    /********************************************************************************
+     * Given the key, look up the value in the hash table.
+     * @param k  the key used for look up
+     * @return  the value associated with the key
+     */
+    public V get (Object k)
+    {
+        var p = find (k, hash (k), true);
+        return (p >= 0) ? value [p] : null;
+    } // get
+
+    /********************************************************************************
+     * Determine whether the hash table contains the given key.
+     * @param k  the key to look for
+     * @return  whether the key is present
+     */
+    public boolean containsKey (Object k)
+    {
+        return find (k, hash (k), false) >= 0;
+    } // containsKey
+
+    /********************************************************************************
+     * Put the key-value pair in the hash table, replacing any previous value for the
+     * key.  Split the 'isplit' bucket when the load factor is exceeded.
+     * @param k  the key to insert
+     * @param v  the value to insert
+     * @return  the old/previous value, null if none
+     */
+    public V put (K k, V v)
+    {
+        var h = hash (k);
+        var p = find (k, h, false);
+        if (p >= 0) {                                                        // key present => replace
+            var oldV = value [p];
+            value [p] = v;
+            return oldV;
+        } // if
+
+        place (k, v, h);
+        keyCount++;                                                          // increment the key count
+        var lf = loadFactor ();                                              // compute the load factor
+        if (DEBUG) out.println ("put: key = " + k + ", load factor = " + lf);
+        if (lf > THRESHOLD) split ();                                        // split beyond THRESHOLD
+        return null;
+    } // put
+
+    /********************************************************************************
+     * Remove the key (and its value) from the hash table.  The hole left behind is
+     * filled by shifting later entries of the same run back (no tombstones).
+     * @param k  the key to remove
+     * @return  the removed value, null if the key was not present
+     */
+    public V remove (Object k)
+    {
+        var p = find (k, hash (k), false);
+        if (p < 0) return null;
+        var oldV = value [p];
+        keyCount--;
+
+        for (var q = p + 1; ; q++) {                                         // backward shift
+            if (q == fp.length || fp [q] == 0) break;
+            if (home (fp [q]) * SLOTS <= p) {                                // entry q may move into hole p
+                fp [p] = fp [q]; key [p] = key [q]; value [p] = value [q];
+                p = q;
+            } // if
+        } // for
+        fp [p] = 0; key [p] = null; value [p] = null;
+        return oldV;
+    } // remove
+
+    /********************************************************************************
+     * Print the hash table.
+     */
+    public void print ()
+    {
+        out.println ("OpenLinHashMap");
+        out.println ("-------------------------------------------");
+
+        for (var i = 0; i < mod1 + isplit; i++) {
+            out.print ("Bucket [ " + i + " ] = [ ");
+            for (var p = i * SLOTS; p < (i + 1) * SLOTS; p++) {
+                if (fp [p] != 0) out.print (key [p] + (home (fp [p]) == i ? "" : "*") + " . ");
+            } // for
+            out.println ("]");
+        } // for
+
+        out.println ("-------------------------------------------");
+    } // print
+
+    /********************************************************************************
+     * Return the number of keys stored in the hash table.
+     * @return  the size of the hash table
+     */
+    public int size ()
+    {
+        return keyCount;
+    } // size
+
+    /********************************************************************************
+     * Split bucket 'isplit' by creating a new bucket 'mod1 + isplit' at the end of the
+     * hash table.  Every entry in the run of occupied slots starting at bucket 'isplit'
+     * is taken out and re-placed after the hash functions are updated, so keys whose
+     * high resolution hash selects the new bucket move there and the rest close up.
+     * Increment 'isplit'.  If the current split phase is complete, reset 'isplit' to
+     * zero, and update the hash functions.
+     */
+    @SuppressWarnings("unchecked")
+    private void split ()
+    {
+        if (DEBUG) out.println ("split: bucket " + isplit);
+        var nb = mod1 + isplit;                                              // new bucket
+        if ((nb + 1) * SLOTS > fp.length) grow ();
+
+        var run = new ArrayList <Integer> ();                                // slots to re-place
+        for (var p = isplit * SLOTS; p < fp.length && fp [p] != 0; p++) run.add (p);
+        var rk = (K []) Array.newInstance (classK, run.size ());
+        var rv = (V []) Array.newInstance (classV, run.size ());
+        var rh = new long [run.size ()];
+        for (var j = 0; j < run.size (); j++) {
+            int p = run.get (j);
+            rk [j] = key [p]; rv [j] = value [p]; rh [j] = fp [p];
+            fp [p] = 0; key [p] = null; value [p] = null;
+        } // for
+
+        if (++isplit == mod1) {
+            isplit = 0;
+            mod1   = mod2;
+            mod2   = 2 * mod1;
+        } // if
+
+        for (var j = 0; j < rh.length; j++) place (rk [j], rv [j], rh [j]);
+    } // split
+
+    /********************************************************************************
+     * Return the load factor for the hash table.
+     * @return  the load factor
+     */
+    private double loadFactor ()
+    {
+        return keyCount / (double) (SLOTS * (mod1 + isplit));
+    } // loadFactor
+
+    /********************************************************************************
+     * Find the slot holding the key by scanning from the start of its home bucket up
+     * to the first empty slot.
+     * @param k       the key to find
+     * @param h       the key's hash fingerprint
+     * @param by_get  whether 'find' is called from 'get' (performance monitored)
+     * @return  the slot holding the key, -1 if not found
+     */
+    private int find (Object k, long h, boolean by_get)
+    {
+        var p0 = home (h) * SLOTS;
+        if (by_get) count++;
+        for (var p = p0; p < fp.length && fp [p] != 0; p++) {
+            if (by_get && p != p0 && p % SLOTS == 0) count++;               // crossed into next line
+            if (fp [p] == h && key [p].equals (k)) return p;
+        } // for
+        return -1;
+    } // find
+
+    /********************************************************************************
+     * Store the key-value pair in the first empty slot at or after the start of its
+     * home bucket, growing the arrays if the run reaches their end.
+     * @param k  the key to store
+     * @param v  the value to store
+     * @param h  the key's hash fingerprint
+     */
+    private void place (K k, V v, long h)
+    {
+        var p = home (h) * SLOTS;
+        while (p < fp.length && fp [p] != 0) p++;
+        if (p == fp.length) grow ();
+        fp [p] = h; key [p] = k; value [p] = v;
+    } // place
+
+    /********************************************************************************
+     * Double the physical size of the arrays.  Slots keep their positions, so no entry
+     * needs to be rehashed.
+     */
+    private void grow ()
+    {
+        fp    = Arrays.copyOf (fp, 2 * fp.length);
+        key   = Arrays.copyOf (key, fp.length);
+        value = Arrays.copyOf (value, fp.length);
+    } // grow
+
+    /********************************************************************************
+     * Allocate empty arrays with the given number of slots.
+     * @param n  the number of slots
+     */
+    @SuppressWarnings("unchecked")
+    private void allocate (int n)
+    {
+        fp    = new long [n];
+        key   = (K []) Array.newInstance (classK, n);
+        value = (V []) Array.newInstance (classV, n);
+    } // allocate
+
+    /********************************************************************************
+     * Compute the home bucket for a hash fingerprint using the low resolution hash
+     * function, or the high resolution one for buckets already split in this phase.
+     * @param h  the hash fingerprint
+     * @return  the home bucket
+     */
+    private int home (long h)
+    {
+        var i = (int) (h & (mod1 - 1));
+        return (i < isplit) ? (int) (h & (mod2 - 1)) : i;
+    } // home
+
+    /********************************************************************************
+     * Hash the key to a non-zero 64-bit fingerprint.  KeyType supplies its own cached
+     * 64-bit hash; other keys have their hashCode spread over all 64 bits.
+     * @param k  the key to hash
+     * @return  the fingerprint
+     */
+    private static long hash (Object k)
+    {
+        long h;
+        if (k instanceof KeyType kt) {
+            h = kt.hash64 ();
+        } else {
+            h = k.hashCode () * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 32;
+        } // if
+        return (h == 0) ? 1 : h;
+    } // hash
+
+    /********************************************************************************
+     * The main method used for testing.
+     * @param  args the command-line arguments (args [0] gives number of keys to insert)
+     */
+    public static void main (String [] args)
+    {
+        var totalKeys = 15;
+        var RANDOMLY  = false;
+
+        OpenLinHashMap <Integer, Integer> ht = new OpenLinHashMap <> (Integer.class, Integer.class);
+        if (args.length == 1) totalKeys = Integer.valueOf (args [0]);
+
+        if (RANDOMLY) {
+            var rng = new Random ();
+            for (var i = 1; i <= totalKeys; i += 1) ht.put (rng.nextInt (2 * totalKeys), i * i);
+        } else {
+            for (var i = 1; i <= totalKeys; i += 1) ht.put (i, i * i);
+        } // if
+
+        ht.print ();
+        for (var i = 0; i <= totalKeys; i++) {
+            out.println ("key = " + i + " value = " + ht.get (i));
+        } // for
+        out.println ("-------------------------------------------");
+        out.println ("Average number of buckets accessed = " + ht.count / (double) totalKeys);
+    } // main
+
+} // OpenLinHashMap class
+
@@ -0,0 +1,213 @@
+package dbms;
+/************************************************************************************
+ * @file PageCache.java
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/************************************************************************************
+ * This class provides a bounded cache of fixed-size pages over a file.  Pages are read
+ * on first use, kept in least-recently-used order, and written back when they are
+ * evicted or the cache is flushed (if they were marked dirty).  Page numbers start at
+ * zero; a page past the end of the file reads as all zeros.
+ */
+public class PageCache
+       implements Closeable, Flushable
+{
+    /** The file channel holding the pages
+     */
+    private final FileChannel channel;
+
+    /** The size of each page in bytes
+     */
+    private final int pageSize;
+
+    /** The maximum number of pages kept in memory
+     */
+    private final int capacity;
+
+    /** The cached pages in LRU order (page number -> page)
+     */
+    private final LinkedHashMap <Integer, ByteBuffer> cache;
+
+    /** The cached pages that differ from their copy on disk
+     */
+    private final Set <Integer> dirty = new HashSet <> ();
+
+    /** The number of pages in the file (including pages not yet written)
+     */
+    private int nPages;
+
+    /** Counters for cache hits and page reads (for performance testing).
+     */
+    private long hits = 0, reads = 0;
+
+    /********************************************************************************
+     * Open (creating if needed) the page file at the given path.
+     * @param path       the path of the page file
+     * @param _pageSize  the size of each page in bytes
+     * @param _capacity  the maximum number of pages to cache
+     * @throws IOException  if the file cannot be opened
+     */
+    public PageCache (Path path, int _pageSize, int _capacity)
+        throws IOException
+    {
+        if (path.getParent () != null) Files.createDirectories (path.getParent ());
+        channel  = FileChannel.open (path, CREATE, READ, WRITE);
+        pageSize = _pageSize;
+        capacity = _capacity;
+        nPages   = (int) (channel.size () / pageSize);
+        cache    = new LinkedHashMap <> (16, .75f, true) {
+            protected boolean removeEldestEntry (Map.Entry <Integer, ByteBuffer> e)
+            {
+                if (size () <= capacity) return false;
+                writeBack (e.getKey (), e.getValue ());
+                return true;
+            } // removeEldestEntry
+        };
+    } // constructor
+
+    /********************************************************************************
+     * Return the page with the given number, reading it if it is not cached.
+     * @param pageNo  the page number
+     * @return  the page (positions are absolute; callers use the indexed get/put methods)
+     */
+    public synchronized ByteBuffer page (int pageNo)
+    {
+        var buf = cache.get (pageNo);
+        if (buf != null) { hits++; return buf; }
+
+        buf = ByteBuffer.allocate (pageSize);
+        if (pageNo < nPages) {
+            reads++;
+            try {
+                var pos = (long) pageNo * pageSize;
+                while (buf.hasRemaining ()) {
+                    if (channel.read (buf, pos + buf.position ()) < 0) break;
+                } // while
+            } catch (IOException ex) {
+                throw new UncheckedIOException ("page: cannot read page " + pageNo, ex);
+            } // try
+            buf.clear ();
+        } // if
+        cache.put (pageNo, buf);
+        return buf;
+    } // page
+
+    /********************************************************************************
+     * Store a modified page, marking it dirty so it is written back before it leaves
+     * the cache.  The page is re-cached if it was evicted while the caller held it.
+     * @param pageNo  the page number
+     * @param buf     the modified page (as returned by 'page')
+     */
+    public synchronized void put (int pageNo, ByteBuffer buf)
+    {
+        if (cache.get (pageNo) != buf) cache.put (pageNo, buf);
+        dirty.add (pageNo);
+        if (pageNo >= nPages) nPages = pageNo + 1;
+    } // put
+
+    /********************************************************************************
+     * Append a new, zeroed page to the end of the file.
+     * @return  the number of the new page
+     */
+    public synchronized int allocate ()
+    {
+        var pageNo = nPages;
+        var buf    = page (pageNo);
+        Arrays.fill (buf.array (), (byte) 0);
+        put (pageNo, buf);
+        return pageNo;
+    } // allocate
+
+    /********************************************************************************
+     * Return the number of pages in the file.
+     * @return  the page count
+     */
+    public synchronized int pageCount ()
+    {
+        return nPages;
+    } // pageCount
+
+    /********************************************************************************
+     * Return the size of each page in bytes.
+     * @return  the page size
+     */
+    public int pageSize ()
+    {
+        return pageSize;
+    } // pageSize
+
+    /********************************************************************************
+     * Drop every page and truncate the file to zero pages.
+     */
+    public synchronized void clear ()
+    {
+        cache.clear ();
+        dirty.clear ();
+        nPages = 0;
+        try {
+            channel.truncate (0);
+        } catch (IOException ex) {
+            throw new UncheckedIOException ("clear: cannot truncate page file", ex);
+        } // try
+    } // clear
+
+    /********************************************************************************
+     * Write all dirty pages back to the file and force them to the storage device.
+     */
+    public synchronized void flush ()
+    {
+        for (var e : cache.entrySet ()) writeBack (e.getKey (), e.getValue ());
+        try {
+            channel.force (false);
+        } catch (IOException ex) {
+            throw new UncheckedIOException ("flush: cannot force page file", ex);
+        } // try
+    } // flush
+
+    /********************************************************************************
+     * Flush the cache and close the file.
+     * @throws IOException  if the file cannot be closed
+     */
+    public synchronized void close ()
+        throws IOException
+    {
+        flush ();
+        channel.close ();
+    } // close
+
+    /********************************************************************************
+     * Return cache statistics (hits and page reads) as a string.
+     * @return  the statistics
+     */
+    public synchronized String stats ()
+    {
+        return "PageCache: " + cache.size () + " pages cached, " + hits + " hits, " + reads + " reads";
+    } // stats
+
+    /********************************************************************************
+     * Write the page back to the file if it is dirty.
+     * @param pageNo  the page number
+     * @param buf     the page
+     */
+    private void writeBack (int pageNo, ByteBuffer buf)
+    {
+        if (! dirty.remove (pageNo)) return;
+        try {
+            var src = ByteBuffer.wrap (buf.array ());
+            var pos = (long) pageNo * pageSize;
+            while (src.hasRemaining ()) channel.write (src, pos + src.position ());
+        } catch (IOException ex) {
+            throw new UncheckedIOException ("writeBack: cannot write page " + pageNo, ex);
+        } // try
+    } // writeBack
+
+} // PageCache class
+
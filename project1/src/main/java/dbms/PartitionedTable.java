@@ -0,0 +1,478 @@
+package dbms;
+/************************************************************************************
+ * @file PartitionedTable.java
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.lang.System.out;
+
+/************************************************************************************
+ * The PartitionedTable class divides a table's tuples among partitions by hash or range
+ * of some attributes (see Partitioning).  Each partition is an ordinary Table named
+ * 'name_p<i>' with its own tuple store, index and file, so:
+ * <p>
+ *   - select (condition) and key lookups visit only the partitions that can match
+ *     (partition pruning), and the partitions visited are scanned in parallel;
+ *   - writes to different partitions do not contend on one store's lock;
+ *   - save rewrites only the partitions changed since the last save.
+ * <p>
+ * The table reads as the union of its partitions at one snapshot time, so the other
+ * operators work on it unchanged.  An update that changes a tuple's partitioning
+ * attributes moves the tuple, ending it in one partition and inserting it into another
+ * in a second commit.
+ *
+ * #usage var movie = new PartitionedTable ("movie", "title year length", "String Integer Integer",
+ *                                          "title year", Partitioning.range ("year", 1950, 1980));
+ */
+public class PartitionedTable
+       extends Table
+{
+    /** How tuples are assigned to partitions
+     */
+    private final Partitioning scheme;
+
+    /** The column positions of the partitioning attributes
+     */
+    private final int [] cols;
+
+    /** The partitions (reloaded from their own files)
+     */
+    private transient Table [] parts;
+
+    /** The version of each partition when it was last saved or loaded
+     */
+    private transient long [] saved;
+
+    /** The number of partitions scanned by selections (for measuring pruning)
+     */
+    private transient AtomicLong scanned = new AtomicLong ();
+
+    /********************************************************************************
+     * Construct an empty partitioned table from the raw string specifications.
+     * @param _name       the name of the relation
+     * @param attributes  the string containing attributes names
+     * @param domains     the string containing attribute domains (data types)
+     * @param _key        the primary key
+     * @param _scheme     the partitioning scheme
+     */
+    public PartitionedTable (String _name, String attributes, String domains, String _key,
+                             Partitioning _scheme)
+    {
+        super (_name, attributes, domains, _key);
+        scheme = _scheme;
+        var attrs = Arrays.asList (attributes.split (" "));                 // col is overridable
+        cols   = new int [scheme.attributes ().length];
+        for (var j = 0; j < cols.length; j++) {
+            cols [j] = attrs.indexOf (scheme.attributes () [j]);
+            if (cols [j] < 0) throw new IllegalArgumentException ("PartitionedTable: unknown attribute "
+                                                                  + scheme.attributes () [j]);
+        } // for
+        parts = new Table [scheme.count ()];
+        saved = new long [parts.length];
+        for (var i = 0; i < parts.length; i++) {
+            parts [i] = new Table (_name + "_p" + i, attributes, domains, _key);    // as partName (i)
+            saved [i] = -1;
+        } // for
+        out.println ("DDL> partition " + _name + " by " + scheme);
+    } // constructor
+
+    /********************************************************************************
+     * Return the partitioning scheme.
+     * @return  the scheme
+     */
+    public Partitioning scheme ()
+    {
+        return scheme;
+    } // scheme
+
+    /********************************************************************************
+     * Return the number of partitions scanned by selections so far.
+     * @return  the partitions scanned
+     */
+    public long partitionsScanned ()
+    {
+        return scanned.get ();
+    } // partitionsScanned
+
+    /********************************************************************************
+     * Return the number of partitions changed since the table was last saved or loaded
+     * (those the next save will rewrite).
+     * @return  the dirty partition count
+     */
+    public int dirtyPartitions ()
+    {
+        var n = 0;
+        for (var i = 0; i < parts.length; i++) if (parts [i].version () != saved [i]) n++;
+        return n;
+    } // dirtyPartitions
+
+    /********************************************************************************
+     * Insert a tuple into the partition it belongs in.
+     * @param tup  the array of attribute values forming the tuple
+     * @return  whether insertion was successful
+     */
+    public boolean insert (Comparable [] tup)
+    {
+        if (! parts [route (tup)].insert (tup)) return false;
+        changed ();
+        return true;
+    } // insert
+
+    /********************************************************************************
+     * Update the tuple with the given primary key, moving it to another partition if
+     * its partitioning attributes change.
+     * @param keyVal  the primary key of the tuple to update
+     * @param tup     the new tuple
+     * @return  whether a tuple with that key was found and updated
+     */
+    public boolean update (KeyType keyVal, Comparable [] tup)
+    {
+        var from = locate (keyVal);
+        if (from < 0) return false;
+        var to = route (tup);
+        try {
+            if (from == to) return parts [from].update (keyVal, tup);
+            var old = parts [from].lookup (keyVal);
+            return old != null && parts [from].delete (t -> t == old) == 1 && parts [to].insert (tup);
+        } finally {
+            changed ();
+        } // try
+    } // update
+
+    /********************************************************************************
+     * Update the tuples satisfying the predicate in every partition, then move those
+     * whose partitioning attributes changed.
+     * @param predicate  the condition selecting the tuples to update
+     * @param fn         the function giving the new tuple for an old one
+     * @return  the number of tuples updated
+     */
+    public int update (Predicate <Comparable []> predicate, UnaryOperator <Comparable []> fn)
+    {
+        var n = 0;
+        try {
+            var updated = new boolean [parts.length];
+            for (var i = 0; i < parts.length; i++) {
+                var k = parts [i].update (predicate, fn);
+                updated [i] = k > 0;
+                n += k;
+            } // for
+            for (var i = 0; i < parts.length; i++) if (updated [i]) relocate (i);      // after all, so none updates twice
+        } finally {
+            changed ();
+        } // try
+        return n;
+    } // update
+
+    /********************************************************************************
+     * Delete the tuples satisfying the predicate from every partition.
+     * @param predicate  the condition selecting the tuples to delete
+     * @return  the number of tuples deleted
+     */
+    public int delete (Predicate <Comparable []> predicate)
+    {
+        var n = 0;
+        try {
+            for (var part : parts) n += part.delete (predicate);
+        } finally {
+            changed ();
+        } // try
+        return n;
+    } // delete
+
+    /********************************************************************************
+     * Select the tuples satisfying the predicate, scanning the partitions in parallel.
+     * A predicate is opaque, so no partition can be pruned.
+     * @param predicate  the check condition for tuples
+     * @return  a table with tuples satisfying the predicate
+     */
+    public Table select (Predicate <Comparable []> predicate)
+    {
+        out.println ("RA> " + getName () + ".select (" + predicate + ")");
+        var all = new boolean [parts.length];
+        Arrays.fill (all, true);
+        return derive (scan (all, predicate));
+    } // select
+
+    /********************************************************************************
+     * Select the tuples satisfying a simple condition 'attribute op value', scanning
+     * in parallel only the partitions that may hold matches.
+     * @param condition  the check condition as a string for tuples
+     * @return  a table with tuples satisfying the condition
+     */
+    public Table select (String condition)
+    {
+        var w = condition.split (" ");
+        if (w.length != 3 || col (w [0]) < 0) return super.select (condition);
+        out.println ("RA> " + getName () + ".select (" + condition + ")");
+        var ck = cached ("select (" + condition + ")", this);
+        if (ck.hit () != null) return ck.hit ();
+
+        var c = col (w [0]);
+        Comparable value;                                                   // compared as Table.select does
+        try {
+            value = Join.numeric (getDomain () [c]) ? parse (w [2], getDomain () [c]) : Integer.valueOf (w [2]);
+        } catch (NumberFormatException ex) {
+            value = w [2];
+        } // try
+        final var v = value;
+
+        boolean [] cand;
+        try {
+            cand = scheme.prune (w [0], w [1], parse (w [2], getDomain () [c]));
+        } catch (RuntimeException ex) {                                     // not a value of the domain
+            cand = new boolean [parts.length];
+            Arrays.fill (cand, true);
+        } // try
+        return toCache (ck, derive (scan (cand, t -> compareWithStringOp (t [c], w [1], v))));
+    } // select
+
+    /********************************************************************************
+     * Print the index of each partition.
+     */
+    public void printIndex ()
+    {
+        for (var part : parts) part.printIndex ();
+    } // printIndex
+
+    /********************************************************************************
+     * Save the partitions changed since the last save, then the table itself.
+     */
+    public void save ()
+    {
+        var n = 0;
+        for (var i = 0; i < parts.length; i++) {
+            var ver = parts [i].version ();
+            if (ver == saved [i]) continue;
+            parts [i].save ();
+            saved [i] = ver;
+            n++;
+        } // for
+        out.println ("save: " + getName () + " wrote " + n + " of " + parts.length + " partitions");
+        super.save ();
+    } // save
+
+    //----------------------------------------------------------------------------------
+    // Hooks used by Table and Transaction
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Return the tuples of all partitions at one snapshot time.
+     * @return  the visible tuples
+     */
+    List <Comparable []> rows ()
+    {
+        var owner = new Object ();
+        var ts    = VersionClock.pin (owner);
+        try {
+            var rows = new ArrayList <Comparable []> ();
+            for (var part : parts) rows.addAll (part.store ().snapshot (ts));
+            return rows;
+        } finally {
+            VersionClock.unpin (owner);
+        } // try
+    } // rows
+
+    /********************************************************************************
+     * Return the tuples of all partitions at one snapshot time (none are skipped).
+     * @param col    the column tested
+     * @param range  the test of a block's least and greatest values
+     * @return  the visible tuples
+     */
+    List <Comparable []> rows (int col, TupleStore.Range range)
+    {
+        return rows ();
+    } // rows
+
+    /********************************************************************************
+     * Return the latest version of any partition.
+     * @return  the version
+     */
+    long version ()
+    {
+        var ver = super.version ();
+        for (var part : parts) ver = Math.max (ver, part.version ());
+        return ver;
+    } // version
+
+    /********************************************************************************
+     * Return false:  the table's file holds only its scheme, and each partition logs
+     * its own changes.
+     * @return  whether saving is incremental
+     */
+    boolean incremental ()
+    {
+        return false;
+    } // incremental
+
+    /********************************************************************************
+     * Return this table itself to be written (its file holds only its scheme).
+     * @param rows  the snapshot of the tuples (unused)
+     * @return  the object to serialize
+     */
+    Table image (List <Comparable []> rows)
+    {
+        return this;
+    } // image
+
+    /********************************************************************************
+     * Return the partitions.
+     * @return  the partitions
+     */
+    List <Table> partitions ()
+    {
+        return List.of (parts);
+    } // partitions
+
+    /********************************************************************************
+     * Return the partition the tuple belongs in.
+     * @param tup  the tuple
+     * @return  its partition
+     */
+    Table partitionFor (Comparable [] tup)
+    {
+        return parts [route (tup)];
+    } // partitionFor
+
+    /********************************************************************************
+     * Look up the tuple with the given key, in just one partition when the partitioning
+     * attributes are part of the key.
+     * @param keyVal  the key value
+     * @return  the tuple with that key or null if there is none
+     */
+    Comparable [] lookup (KeyType keyVal)
+    {
+        var i = locate (keyVal);
+        return (i < 0) ? null : parts [i].lookup (keyVal);
+    } // lookup
+
+    /********************************************************************************
+     * Return whether any partition is indexed.
+     * @return  whether index lookups are possible
+     */
+    boolean indexed ()
+    {
+        for (var part : parts) if (part.indexed ()) return true;
+        return false;
+    } // indexed
+
+    //----------------------------------------------------------------------------------
+    // Private Methods
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Return the name of partition i.
+     */
+    private String partName (int i)
+    {
+        return getName () + "_p" + i;
+    } // partName
+
+    /********************************************************************************
+     * Return the partition number of the tuple.
+     */
+    private int route (Comparable [] tup)
+    {
+        var vals = new Comparable [cols.length];
+        for (var j = 0; j < cols.length; j++) vals [j] = tup [cols [j]];
+        return scheme.route (vals);
+    } // route
+
+    /********************************************************************************
+     * Return the partition holding the key, routing by the key when it contains the
+     * partitioning attributes and otherwise searching every partition; -1 if absent.
+     */
+    private int locate (KeyType keyVal)
+    {
+        var pk   = List.of (primaryKey ());
+        var kv   = keyVal.getKey ();
+        var vals = new Comparable [cols.length];
+        for (var j = 0; j < cols.length; j++) {
+            var p = pk.indexOf (scheme.attributes () [j]);
+            if (p < 0 || kv == null || p >= kv.length) { vals = null; break; }
+            vals [j] = kv [p];
+        } // for
+        if (vals != null) {
+            var i = scheme.route (vals);
+            return (parts [i].lookup (keyVal) != null) ? i : -1;
+        } // if
+        for (var i = 0; i < parts.length; i++) if (parts [i].lookup (keyVal) != null) return i;
+        return -1;
+    } // locate
+
+    /********************************************************************************
+     * Move the tuples of partition i that no longer belong there to their partitions.
+     */
+    private void relocate (int i)
+    {
+        var moved = parts [i].store ().expire (t -> route (t) != i);
+        if (moved.isEmpty ()) return;
+        for (var t : moved) parts [i].indexRemove (parts [i].keyOf (t));
+        parts [i].emit (moved, List.of ());
+        parts [i].changed ();
+        for (var t : moved) parts [route (t)].insert (t);
+    } // relocate
+
+    /********************************************************************************
+     * Scan the candidate partitions in parallel at one snapshot time, returning the
+     * matching tuples in partition order.  The scans run under the query's context,
+     * so they count against its budget and stop when it is aborted.
+     */
+    private List <Comparable []> scan (boolean [] cand, Predicate <Comparable []> predicate)
+    {
+        var owner = new Object ();
+        var ts    = VersionClock.pin (owner);
+        var ctx   = QueryContext.current ();
+        try {
+            IntFunction <List <Comparable []>> part = i -> filter (parts [i].store ().snapshot (ts), predicate);
+            var lists = IntStream.range (0, parts.length).parallel ()
+                                 .mapToObj (i -> cand [i] ? QueryContext.within (ctx, () -> part.apply (i))
+                                                          : List.<Comparable []>of ())
+                                 .collect (Collectors.toList ());
+            var rows = new ArrayList <Comparable []> ();
+            for (var l : lists) rows.addAll (l);
+            for (var c : cand) if (c) scanned.incrementAndGet ();
+            return rows;
+        } finally {
+            VersionClock.unpin (owner);
+        } // try
+    } // scan
+
+    /********************************************************************************
+     * Return the tuples of the list satisfying the predicate.
+     */
+    private static List <Comparable []> filter (List <Comparable []> tups, Predicate <Comparable []> predicate)
+    {
+        var rows = QueryContext.rows ();
+        for (var t : tups) {
+            QueryContext.check ();
+            if (predicate.test (t)) rows.add (t);
+        } // for
+        return rows;
+    } // filter
+
+    /********************************************************************************
+     * Reload the partitions from their own files after the table is read.
+     */
+    private void readObject (ObjectInputStream ois)
+        throws IOException, ClassNotFoundException
+    {
+        ois.defaultReadObject ();
+        scanned = new AtomicLong ();
+        parts   = new Table [scheme.count ()];
+        saved   = new long [parts.length];
+        for (var i = 0; i < parts.length; i++) {
+            parts [i] = Table.load (partName (i));
+            if (parts [i] == null) throw new InvalidObjectException ("readObject: missing partition " + partName (i));
+            saved [i] = parts [i].version ();
+        } // for
+    } // readObject
+
+} // PartitionedTable class
@@ -0,0 +1,161 @@
+package dbms;
+/************************************************************************************
+ * @file Partitioning.java
+ */
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/************************************************************************************
+ * The Partitioning class describes how a PartitionedTable divides its tuples:  by hash
+ * of one or more attributes into n partitions, or by range of one attribute given the
+ * sorted lower bounds of partitions 1 .. n-1 (partition i holds the values v with
+ * bound[i-1] <= v < bound[i]).  It routes tuples to partitions and prunes the partitions
+ * a simple condition 'attribute op value' cannot match.
+ *
+ * #usage Partitioning.range ("year", 1950, 1980, 2000)     // 4 partitions
+ *        Partitioning.hash (8, "title", "year")             // 8 partitions
+ */
+public class Partitioning
+       implements Serializable
+{
+    /** The kinds of partitioning
+     */
+    public enum Kind { HASH, RANGE }
+
+    /** The kind of partitioning
+     */
+    private final Kind kind;
+
+    /** The partitioning attributes (one for RANGE)
+     */
+    private final String [] attrs;
+
+    /** The number of partitions
+     */
+    private final int n;
+
+    /** The lower bounds of partitions 1 .. n-1 (for RANGE)
+     */
+    private final Comparable [] bounds;
+
+    /********************************************************************************
+     * Construct a partitioning scheme.
+     */
+    private Partitioning (Kind _kind, String [] _attrs, int _n, Comparable [] _bounds)
+    {
+        kind   = _kind;
+        attrs  = _attrs;
+        n      = _n;
+        bounds = _bounds;
+    } // constructor
+
+    /********************************************************************************
+     * Partition by hash of the given attributes.
+     * @param n      the number of partitions
+     * @param attrs  the attributes to hash
+     * @return  the partitioning scheme
+     */
+    public static Partitioning hash (int n, String... attrs)
+    {
+        if (n < 1 || attrs.length == 0) throw new IllegalArgumentException ("hash: need n >= 1 and an attribute");
+        return new Partitioning (Kind.HASH, attrs, n, null);
+    } // hash
+
+    /********************************************************************************
+     * Partition by range of the given attribute.
+     * @param attr    the attribute
+     * @param bounds  the sorted lower bounds of partitions 1 .. n-1
+     * @return  the partitioning scheme
+     */
+    @SuppressWarnings ("unchecked")
+    public static Partitioning range (String attr, Comparable... bounds)
+    {
+        for (var i = 1; i < bounds.length; i++) {
+            if (bounds [i - 1].compareTo (bounds [i]) >= 0) throw new IllegalArgumentException ("range: bounds must increase");
+        } // for
+        return new Partitioning (Kind.RANGE, new String [] { attr }, bounds.length + 1, bounds.clone ());
+    } // range
+
+    /********************************************************************************
+     * Return the number of partitions.
+     * @return  the partition count
+     */
+    public int count ()
+    {
+        return n;
+    } // count
+
+    /********************************************************************************
+     * Return the partitioning attributes.
+     * @return  the attributes
+     */
+    public String [] attributes ()
+    {
+        return attrs;
+    } // attributes
+
+    /********************************************************************************
+     * Return the partition for the values of the partitioning attributes.  Hashing uses
+     * KeyType's 64-bit hash, which is the same in every process.
+     * @param values  the values of the partitioning attributes
+     * @return  the partition number
+     */
+    @SuppressWarnings ("unchecked")
+    public int route (Comparable [] values)
+    {
+        if (kind == Kind.HASH) return (int) Math.floorMod (new KeyType (values).hash64 (), (long) n);
+        var lo = 0;
+        var hi = bounds.length;                                              // count bounds <= value
+        while (lo < hi) {
+            var mid = (lo + hi) >>> 1;
+            if (bounds [mid].compareTo (values [0]) <= 0) lo = mid + 1; else hi = mid;
+        } // while
+        return lo;
+    } // route
+
+    /********************************************************************************
+     * Return which partitions may hold tuples satisfying 'attr op value'.  Range
+     * partitioning prunes for the comparison operators on its attribute and hash
+     * partitioning for equality on a single hashed attribute; otherwise every partition
+     * is a candidate.
+     * @param attr   the attribute compared
+     * @param op     the operator (==, !=, <, <=, >, >=)
+     * @param value  the constant compared with
+     * @return  the candidate partitions
+     */
+    public boolean [] prune (String attr, String op, Comparable value)
+    {
+        var cand = new boolean [n];
+        if (! attrs [0].equals (attr) || (kind == Kind.HASH && attrs.length > 1)) {
+            Arrays.fill (cand, true);
+            return cand;
+        } // if
+
+        var p = route (new Comparable [] { value });
+        if (kind == Kind.HASH) {
+            if (op.equals ("==")) cand [p] = true; else Arrays.fill (cand, true);
+            return cand;
+        } // if
+
+        switch (op) {
+        case "=="       -> cand [p] = true;
+        case "<", "<="  -> Arrays.fill (cand, 0, p + 1, true);
+        case ">", ">="  -> Arrays.fill (cand, p, n, true);
+        default         -> Arrays.fill (cand, true);
+        } // switch
+        return cand;
+    } // prune
+
+    /********************************************************************************
+     * Return the scheme as a string, e.g., "RANGE (year) [1950, 1980]".
+     * @return  the description
+     */
+    public String toString ()
+    {
+        return kind + " (" + String.join (", ", attrs) + ") "
+               + ((kind == Kind.HASH) ? n + " partitions" : Arrays.toString (bounds));
+    } // toString
+
+} // Partitioning class
+
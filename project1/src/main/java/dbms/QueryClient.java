@@ -0,0 +1,243 @@
+package dbms;
+/************************************************************************************
+ * @file QueryClient.java
+ */
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.*;
+
+import static java.lang.System.out;
+
+/************************************************************************************
+ * The QueryClient class connects to a QueryServer.  'query' sends one query and waits
+ * for its answer; to pipeline, call 'send' for several queries, then 'flush', then
+ * 'receive' once per query (answers arrive in the order sent).  'load' ships tuples to
+ * a server table in bulk.
+ */
+public class QueryClient
+       implements Closeable
+{
+    /********************************************************************************
+     * The answer to a query:  the attribute names and domains and the tuples, or an
+     * error message (with no tuples).
+     */
+    public record Result (int id, String [] attributes, String [] domains,
+                          List <Comparable []> rows, String error)
+    {
+        /** Return whether the query failed. */
+        public boolean failed () { return error != null; }
+    } // Result
+
+    /** The connection to the server
+     */
+    private final Socket socket;
+
+    /** The streams to and from the server
+     */
+    private final DataInputStream  in;
+    private final DataOutputStream dos;
+
+    /** The id of the next request
+     */
+    private int nextId = 0;
+
+    /********************************************************************************
+     * Connect to a server on the loopback address.
+     * @param port  the server's port
+     * @throws IOException  if the connection fails
+     */
+    public QueryClient (int port)
+        throws IOException
+    {
+        this (InetAddress.getLoopbackAddress ().getHostAddress (), port);
+    } // constructor
+
+    /********************************************************************************
+     * Connect to a server on the given host.
+     * @param host  the server's host name or address
+     * @param port  the server's port
+     * @throws IOException  if the connection fails
+     */
+    public QueryClient (String host, int port)
+        throws IOException
+    {
+        socket = new Socket (host, port);
+        socket.setTcpNoDelay (true);
+        in  = new DataInputStream (new BufferedInputStream (socket.getInputStream (), 1 << 16));
+        dos = new DataOutputStream (new BufferedOutputStream (socket.getOutputStream ()));
+    } // constructor
+
+    /********************************************************************************
+     * Send a query and wait for its answer.
+     * @param query  the query
+     * @return  the result
+     * @throws IOException  if the connection fails
+     */
+    public Result query (String query)
+        throws IOException
+    {
+        send (query);
+        flush ();
+        return receive ();
+    } // query
+
+    /********************************************************************************
+     * Queue a query without waiting for its answer.
+     * @param query  the query
+     * @return  the request id
+     * @throws IOException  if the connection fails
+     */
+    public int send (String query)
+        throws IOException
+    {
+        return send (query, null);
+    } // send
+
+    /********************************************************************************
+     * Queue a query carrying tuples as its payload (for LOAD) without waiting for its
+     * answer.
+     * @param query  the query
+     * @param rows   the tuples (or null for none)
+     * @return  the request id
+     * @throws IOException  if the connection fails
+     */
+    public int send (String query, List <Comparable []> rows)
+        throws IOException
+    {
+        var bytes = new ByteArrayOutputStream ();
+        var bos   = new DataOutputStream (bytes);
+        bos.writeUTF (query);
+        if (rows != null) {
+            bos.writeInt (rows.size ());
+            for (var t : rows) {
+                var b = KeyType.encode (t);
+                bos.writeInt (b.length);
+                bos.write (b);
+            } // for
+        } // if
+        var id = nextId++;
+        dos.writeInt (4 + bytes.size ());
+        dos.writeInt (id);
+        bytes.writeTo (dos);
+        return id;
+    } // send
+
+    /********************************************************************************
+     * Insert tuples into a table on the server, in as many LOAD requests as needed to
+     * keep each under the server's request limit.
+     * @param table  the table to load
+     * @param rows   the tuples
+     * @return  the number of tuples loaded
+     * @throws IOException  if the connection fails or the server rejects a request
+     */
+    public int load (String table, List <Comparable []> rows)
+        throws IOException
+    {
+        var sent  = 0;
+        var start = 0;
+        var bytes = 0L;
+        for (var i = 0; i <= rows.size (); i++) {
+            if (i == rows.size () || bytes > QueryServer.MAX_REQUEST / 2) {
+                if (i > start || rows.isEmpty ()) { send ("LOAD " + table, rows.subList (start, i)); sent++; }
+                start = i;
+                bytes = 0;
+            } // if
+            if (i < rows.size ()) bytes += 8 + KeyType.encode (rows.get (i)).length;
+        } // for
+        flush ();
+        var n = 0;
+        String error = null;
+        for (var j = 0; j < sent; j++) {
+            var r = receive ();
+            if (r.failed ()) error = r.error (); else n += (Integer) r.rows ().get (0) [0];
+        } // for
+        if (error != null) throw new IOException ("load: " + error);
+        return n;
+    } // load
+
+    /********************************************************************************
+     * Send the queued queries.
+     * @throws IOException  if the connection fails
+     */
+    public void flush ()
+        throws IOException
+    {
+        dos.flush ();
+    } // flush
+
+    /********************************************************************************
+     * Read the answer to the next query sent, consuming its batches as they stream in.
+     * @return  the result
+     * @throws IOException  if the connection fails or the answer is malformed
+     */
+    public Result receive ()
+        throws IOException
+    {
+        String [] attrs = null, doms = null;
+        var rows = new ArrayList <Comparable []> ();
+        for ( ; ; ) {
+            var len  = in.readInt ();
+            var type = in.readByte ();
+            var id   = in.readInt ();
+            switch (type) {
+            case QueryServer.HEADER -> {
+                var n = in.readShort ();
+                attrs = new String [n];
+                doms  = new String [n];
+                for (var j = 0; j < n; j++) attrs [j] = in.readUTF ();
+                for (var j = 0; j < n; j++) doms [j] = in.readUTF ();
+            }
+            case QueryServer.ROWS -> {
+                var n = in.readInt ();
+                for (var i = 0; i < n; i++) {
+                    var b = new byte [in.readInt ()];
+                    in.readFully (b);
+                    rows.add (KeyType.decode (b));
+                } // for
+            }
+            case QueryServer.END -> {
+                in.readInt ();
+                return new Result (id, attrs, doms, rows, null);
+            }
+            case QueryServer.ERROR -> {
+                return new Result (id, null, null, List.of (), in.readUTF ());
+            }
+            default -> throw new IOException ("receive: bad frame type " + type + " (length " + len + ")");
+            } // switch
+        } // for
+    } // receive
+
+    /********************************************************************************
+     * Close the connection.
+     * @throws IOException  if the socket cannot be closed
+     */
+    public void close ()
+        throws IOException
+    {
+        socket.close ();
+    } // close
+
+    /********************************************************************************
+     * The main method runs a few pipelined queries against a server on the given port
+     * (or 5433).
+     * @param  args the command-line arguments
+     */
+    public static void main (String [] args)
+        throws IOException
+    {
+        try (var client = new QueryClient ((args.length > 0) ? Integer.parseInt (args [0]) : 5433)) {
+            var queries = List.of ("TABLES", "SCAN movie", "SELECT movie year < 1980", "PROJECT movie studioName");
+            for (var q : queries) client.send (q);
+            client.flush ();
+            for (var q : queries) {
+                var r = client.receive ();
+                out.println (q + " -> " + (r.failed () ? r.error () : Arrays.toString (r.attributes ())));
+                for (var t : r.rows ()) out.println ("    " + Arrays.toString (t));
+            } // for
+        } // try
+    } // main
+
+} // QueryClient class
+
@@ -0,0 +1,341 @@
+package dbms;
+/************************************************************************************
+ * @file QueryContext.java
+ */
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/************************************************************************************
+ * The QueryContext class governs the memory and running time of one query.  A query
+ * run through 'run' has a budget of (estimated) bytes and a deadline, and may be
+ * cancelled from another thread.  While it runs, the operators on its thread reserve
+ * memory for what they build (result lists, hash tables, filters), and check for
+ * cancellation in their long loops:  a query over its budget, past its deadline or
+ * cancelled stops with a QueryContext.Aborted exception, releasing what it reserved,
+ * rather than running the JVM out of memory or holding a thread for ever.
+ * <p>
+ * Reservations also draw on a pool shared by all queries (half the maximum heap), so
+ * queries that each fit their budgets cannot together exhaust the heap.  An operator
+ * able to spill (e.g., to partition its input to files) uses 'tryReserve' and spills
+ * when it is refused.  Outside a query (no context on the thread) nothing is governed.
+ *
+ * #usage var result = QueryContext.run (64L << 20, Duration.ofSeconds (10),
+ *                                       () -> movie.join ("studioName", "name", studio));
+ */
+public final class QueryContext
+       implements AutoCloseable
+{
+    /********************************************************************************
+     * This exception ends a query that exceeded its budget or deadline or was
+     * cancelled.
+     */
+    public static final class Aborted
+           extends RuntimeException
+    {
+        Aborted (String message)
+        {
+            super (message);
+        } // constructor
+
+    } // Aborted class
+
+    /** The bytes all queries may reserve together
+     */
+    static final long POOL = Runtime.getRuntime ().maxMemory () / 2;
+
+    /** The number of tuples added to a governed list between reservations
+     */
+    private static final int CHARGE_EVERY = 256;
+
+    /** The bytes reserved by all running queries
+     */
+    private static final AtomicLong pooled = new AtomicLong ();
+
+    /** The context of the query running on each thread
+     */
+    private static final ThreadLocal <QueryContext> CURRENT = new ThreadLocal <> ();
+
+    /** The budget of the query in bytes
+     */
+    private final long budget;
+
+    /** The deadline (System.nanoTime) of the query
+     */
+    private final long deadline;
+
+    /** The bytes reserved by the query
+     */
+    private final AtomicLong reserved = new AtomicLong ();
+
+    /** The most bytes the query has held reserved
+     */
+    private volatile long peak = 0;
+
+    /** Why the query was cancelled (null while it may run)
+     */
+    private volatile String cancelled = null;
+
+    /** The context this one replaced on its thread (for nested queries)
+     */
+    private QueryContext outer;
+
+    /********************************************************************************
+     * Construct a context for a query with a budget and a time limit.
+     * @param _budget  the bytes the query may reserve
+     * @param timeout  the time the query may run (null for no limit)
+     */
+    public QueryContext (long _budget, Duration timeout)
+    {
+        budget   = _budget;
+        deadline = (timeout == null) ? Long.MAX_VALUE : System.nanoTime () + timeout.toNanos ();
+    } // constructor
+
+    /********************************************************************************
+     * Run a query under a budget and a time limit.
+     * @param budget   the bytes the query may reserve
+     * @param timeout  the time the query may run (null for no limit)
+     * @param query    the query
+     * @return  the query's result
+     * @throws Aborted  if the query exceeds its budget or time limit, or is cancelled
+     */
+    public static <T> T run (long budget, Duration timeout, Supplier <T> query)
+    {
+        var ctx = new QueryContext (budget, timeout).open ();
+        try {
+            return query.get ();
+        } finally {
+            ctx.close ();
+        } // try
+    } // run
+
+    /********************************************************************************
+     * Make this the context of the queries run on the current thread until it is
+     * closed.
+     * @return  this context
+     */
+    public QueryContext open ()
+    {
+        outer = CURRENT.get ();
+        CURRENT.set (this);
+        return this;
+    } // open
+
+    /********************************************************************************
+     * Cancel the query (from any thread):  it stops at its next check.
+     */
+    public void cancel ()
+    {
+        cancelled = "query cancelled";
+    } // cancel
+
+    /********************************************************************************
+     * Return the bytes the query holds reserved.
+     * @return  the reserved bytes
+     */
+    public long reserved ()
+    {
+        return reserved.get ();
+    } // reserved
+
+    /********************************************************************************
+     * Return the most bytes the query has held reserved.
+     * @return  the peak reservation
+     */
+    public long peak ()
+    {
+        return peak;
+    } // peak
+
+    /********************************************************************************
+     * Release the query's reservations and restore the thread's previous context.
+     */
+    public void close ()
+    {
+        pooled.addAndGet (- reserved.getAndSet (0));
+        if (CURRENT.get () == this) {
+            if (outer == null) CURRENT.remove (); else CURRENT.set (outer);
+        } // if
+    } // close
+
+    //----------------------------------------------------------------------------------
+    // Used by operators
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Return the context of the query running on this thread (null if none).
+     * @return  the context
+     */
+    static QueryContext current ()
+    {
+        return CURRENT.get ();
+    } // current
+
+    /********************************************************************************
+     * Run part of a query on another thread (e.g., a partition scan on the common
+     * pool) under the query's context, restoring the thread's own context after.
+     * @param ctx   the context of the query (null for none)
+     * @param task  the part of the query
+     * @return  the task's result
+     */
+    static <T> T within (QueryContext ctx, Supplier <T> task)
+    {
+        var prev = CURRENT.get ();
+        if (ctx == null || ctx == prev) return task.get ();
+        CURRENT.set (ctx);
+        try {
+            return task.get ();
+        } finally {
+            if (prev == null) CURRENT.remove (); else CURRENT.set (prev);
+        } // try
+    } // within
+
+    /********************************************************************************
+     * Stop the query running on this thread if it has been cancelled or is past its
+     * deadline.
+     * @throws Aborted  if the query is to stop
+     */
+    static void check ()
+    {
+        var ctx = CURRENT.get ();
+        if (ctx != null) ctx.checkLive ();
+    } // check
+
+    /********************************************************************************
+     * Reserve memory for the query running on this thread.
+     * @param bytes  the bytes to reserve
+     * @throws Aborted  if the query's budget or the shared pool would be exceeded
+     */
+    static void reserve (long bytes)
+    {
+        var ctx = CURRENT.get ();
+        if (ctx != null && ! ctx.grant (bytes)) {
+            var why = ctx.reserved.get () + bytes > ctx.budget ? "its memory budget of " + ctx.budget + " bytes"
+                                                                : "the shared memory pool";
+            ctx.cancelled = "query exceeded " + why;
+            throw new Aborted (ctx.cancelled);
+        } // if
+    } // reserve
+
+    /********************************************************************************
+     * Try to reserve memory for the query running on this thread (an operator that
+     * can spill does so when refused).
+     * @param bytes  the bytes to reserve
+     * @return  whether the memory was reserved (always true outside a query)
+     */
+    static boolean tryReserve (long bytes)
+    {
+        var ctx = CURRENT.get ();
+        return ctx == null || ctx.grant (bytes);
+    } // tryReserve
+
+    /********************************************************************************
+     * Return the bytes the query running on this thread may still reserve (as its
+     * budget and the shared pool now allow).
+     * @return  the available bytes (Long.MAX_VALUE outside a query)
+     */
+    static long available ()
+    {
+        var ctx = CURRENT.get ();
+        if (ctx == null) return Long.MAX_VALUE;
+        return Math.max (0, Math.min (ctx.budget - ctx.reserved.get (), POOL - pooled.get ()));
+    } // available
+
+    /********************************************************************************
+     * Release memory reserved by the query running on this thread.
+     * @param bytes  the bytes to release
+     */
+    static void release (long bytes)
+    {
+        var ctx = CURRENT.get ();
+        if (ctx != null) {
+            ctx.reserved.addAndGet (- bytes);
+            pooled.addAndGet (- bytes);
+        } // if
+    } // release
+
+    /********************************************************************************
+     * Return a list for an operator's result tuples:  within a query, one that
+     * reserves memory for the tuples as they are added and checks the query is still
+     * live; otherwise a plain list.
+     * @return  the result list
+     */
+    static List <Comparable []> rows ()
+    {
+        var ctx = CURRENT.get ();
+        return (ctx == null) ? new ArrayList <> () : new Governed (ctx);
+    } // rows
+
+    //----------------------------------------------------------------------------------
+    // Private Methods
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Stop the query if it has been cancelled or is past its deadline.
+     */
+    private void checkLive ()
+    {
+        if (cancelled != null) throw new Aborted (cancelled);
+        if (System.nanoTime () - deadline > 0) {
+            cancelled = "query timed out";
+            throw new Aborted (cancelled);
+        } // if
+    } // checkLive
+
+    /********************************************************************************
+     * Reserve bytes if the budget and the pool allow, returning whether they did.
+     */
+    private boolean grant (long bytes)
+    {
+        checkLive ();
+        if (reserved.addAndGet (bytes) > budget) {
+            reserved.addAndGet (- bytes);
+            return false;
+        } // if
+        if (pooled.addAndGet (bytes) > POOL) {
+            pooled.addAndGet (- bytes);
+            reserved.addAndGet (- bytes);
+            return false;
+        } // if
+        var r = reserved.get ();
+        if (r > peak) peak = r;
+        return true;
+    } // grant
+
+    /********************************************************************************
+     * This inner class is a result list that reserves memory for its tuples every
+     * CHARGE_EVERY additions (estimating their size from the tuple added).
+     */
+    private static final class Governed
+            extends ArrayList <Comparable []>
+    {
+        private final QueryContext ctx;
+
+        Governed (QueryContext _ctx)
+        {
+            ctx = _ctx;
+        } // constructor
+
+        public boolean add (Comparable [] t)
+        {
+            if (size () % CHARGE_EVERY == 0) charge (CHARGE_EVERY, t);
+            return super.add (t);
+        } // add
+
+        public boolean addAll (Collection <? extends Comparable []> ts)
+        {
+            if (! ts.isEmpty ()) charge (ts.size (), ts.iterator ().next ());
+            return super.addAll (ts);
+        } // addAll
+
+        private void charge (int n, Comparable [] t)
+        {
+            if (ctx != CURRENT.get ()) return;                              // filled on another thread
+            reserve (n * (8 + ResultCache.tupleBytes (t)));
+        } // charge
+
+    } // Governed inner class
+
+} // QueryContext class
@@ -0,0 +1,583 @@
+package dbms;
+/************************************************************************************
+ * @file QueryServer.java
+ */
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.lang.System.out;
+
+/************************************************************************************
+ * The QueryServer class lets many clients share one in-memory database over a socket.
+ * It holds a catalog of tables and serves each connection on its own thread (a virtual
+ * thread when the runtime provides them, otherwise a pooled platform thread).
+ * <p>
+ * The protocol is length-prefixed binary.  A request frame is
+ *     int length, int requestId, UTF query [, int count, (int length, tuple) ...]
+ * where the optional payload carries the tuples of a LOAD, and the answer to it is a
+ * HEADER frame (attribute names and domains), zero or more ROWS frames of at most
+ * BATCH tuples each, and an END frame with the row count, or an ERROR frame (also in
+ * place of the rest of the answer, should a tuple not encode).  Every response frame is
+ *     int length, byte type, int requestId, body
+ * where tuples are encoded with KeyType.encode.  Clients may pipeline:  send several
+ * requests before reading; answers come back in request order, and responses are only
+ * flushed once no further request is waiting to be read.
+ * <p>
+ * Queries are simple commands over the catalog:
+ *     TABLES
+ *     SCAN table
+ *     COUNT table
+ *     SELECT table attribute op value [PROJECT attribute ...]
+ *     PROJECT table attribute ...
+ *     JOIN table1 table2 [attrs1 attrs2]       (natural join, or equi-join on a1,a2 = b1,b2)
+ *     GROUP table groupAttrs|* fn:attr ...     (fn is count, sum, min or max; e.g., count:*)
+ *     INSERT table value ...
+ *     CREATE table attrs domains key           (comma separated, e.g., CREATE s name,city String,String name)
+ *     DROP table
+ *     LOAD table                               (the tuples are the request's payload)
+ *     SHUFFLE table attrs dest host:port ...   (send each tuple to the peer its attrs hash to)
+ * String values may not contain spaces.  CREATE, LOAD and SHUFFLE let a Coordinator
+ * use servers as the workers holding the shards of its tables.
+ * <p>
+ * Each query runs under a QueryContext with the server's per-query memory budget and
+ * time limit (see 'limit'), so a query too large or too slow is answered with an ERROR
+ * frame rather than exhausting the heap shared by the other connections.
+ */
+public class QueryServer
+       implements Closeable
+{
+    /** Response frame types
+     */
+    static final byte HEADER = 1, ROWS = 2, END = 3, ERROR = 4;
+
+    /** The maximum number of tuples in a ROWS frame
+     */
+    static final int BATCH = 256;
+
+    /** The largest request frame accepted (in bytes)
+     */
+    static final int MAX_REQUEST = 1 << 20;
+
+    /** The catalog of tables served (name -> table)
+     */
+    private final Map <String, Table> catalog = new ConcurrentHashMap <> ();
+
+    /** The listening socket
+     */
+    private final ServerSocket server;
+
+    /** The threads serving connections
+     */
+    private final ExecutorService threads = connectionThreads ();
+
+    /** The open connections (closed with the server)
+     */
+    private final Set <Socket> connections = ConcurrentHashMap.newKeySet ();
+
+    /** The memory budget of each query (in bytes)
+     */
+    private volatile long budget = Runtime.getRuntime ().maxMemory () / 8;
+
+    /** The time limit of each query
+     */
+    private volatile Duration timeout = Duration.ofSeconds (60);
+
+    /********************************************************************************
+     * Start a server listening on the given port of the loopback address.
+     * @param port  the port (0 for any free port)
+     * @throws IOException  if the port cannot be bound
+     */
+    public QueryServer (int port)
+        throws IOException
+    {
+        this (port, InetAddress.getLoopbackAddress ());
+    } // constructor
+
+    /********************************************************************************
+     * Start a server listening on the given port of the given address (e.g., a wildcard
+     * address to serve other machines).
+     * @param port  the port (0 for any free port)
+     * @param bind  the local address to listen on
+     * @throws IOException  if the port cannot be bound
+     */
+    public QueryServer (int port, InetAddress bind)
+        throws IOException
+    {
+        server = new ServerSocket (port, 128, bind);
+        var acceptor = new Thread (this::accept, "QueryServer-accept");
+        acceptor.setDaemon (true);
+        acceptor.start ();
+    } // constructor
+
+    /********************************************************************************
+     * Add a table to the catalog (replacing any table with the same name).
+     * @param table  the table to serve
+     */
+    public void register (Table table)
+    {
+        catalog.put (table.getName (), table);
+    } // register
+
+    /********************************************************************************
+     * Set the memory budget and time limit each query runs under.
+     * @param _budget   the bytes a query may reserve
+     * @param _timeout  the time a query may run (null for no limit)
+     */
+    public void limit (long _budget, Duration _timeout)
+    {
+        budget  = _budget;
+        timeout = _timeout;
+    } // limit
+
+    /********************************************************************************
+     * Return the port the server listens on.
+     * @return  the port
+     */
+    public int port ()
+    {
+        return server.getLocalPort ();
+    } // port
+
+    /********************************************************************************
+     * Stop accepting connections and close the open ones.
+     * @throws IOException  if the listening socket cannot be closed
+     */
+    public void close ()
+        throws IOException
+    {
+        server.close ();
+        for (var s : connections) s.close ();
+        threads.shutdown ();
+    } // close
+
+    /********************************************************************************
+     * Return an executor that runs each task on a new virtual thread, falling back to
+     * cached platform threads on runtimes where virtual threads are not enabled.
+     */
+    private static ExecutorService connectionThreads ()
+    {
+        try {
+            var make = Executors.class.getMethod ("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) make.invoke (null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException ex) {
+            return Executors.newCachedThreadPool (r -> {
+                var t = new Thread (r, "QueryServer-connection");
+                t.setDaemon (true);
+                return t;
+            });
+        } // try
+    } // connectionThreads
+
+    /********************************************************************************
+     * Accept connections until the server is closed, serving each on its own thread.
+     */
+    private void accept ()
+    {
+        while (! server.isClosed ()) {
+            try {
+                var s = server.accept ();
+                s.setTcpNoDelay (true);
+                connections.add (s);
+                threads.execute (() -> serve (s));
+            } catch (IOException ex) {
+                if (! server.isClosed ()) out.println ("accept: " + ex);
+            } // try
+        } // while
+    } // accept
+
+    /********************************************************************************
+     * Serve the requests of one connection until the client closes it.
+     * @param s  the client's socket
+     */
+    private void serve (Socket s)
+    {
+        try (s) {
+            var in  = new DataInputStream (new BufferedInputStream (s.getInputStream ()));
+            var dos = new DataOutputStream (new BufferedOutputStream (s.getOutputStream (), 1 << 16));
+            for ( ; ; ) {
+                int len;
+                try {
+                    len = in.readInt ();
+                } catch (EOFException ex) {
+                    return;                                                  // client closed
+                } // try
+                if (len < 4 || len > MAX_REQUEST) throw new IOException ("serve: bad request length " + len);
+                var id    = in.readInt ();
+                var query = new byte [len - 4];
+                in.readFully (query);
+                var body  = new DataInputStream (new ByteArrayInputStream (query));
+                execute (id, body.readUTF (), body, dos);
+                if (in.available () == 0) dos.flush ();                      // no more pipelined requests
+            } // for
+        } catch (SocketException ex) {
+            // connection reset or server closed
+        } catch (IOException ex) {
+            out.println ("serve: " + ex);
+        } finally {
+            connections.remove (s);
+        } // try
+    } // serve
+
+    /********************************************************************************
+     * Run a query and stream its answer.
+     * @param id       the request id
+     * @param query    the query
+     * @param payload  the rest of the request (tuples for LOAD)
+     * @param dos      the stream to the client
+     */
+    private void execute (int id, String query, DataInputStream payload, DataOutputStream dos)
+        throws IOException
+    {
+        Table result;
+        var ctx = new QueryContext (budget, timeout).open ();
+        try {
+            result = run (query.trim ().split ("\\s+"), payload);
+        } catch (IOException | RuntimeException ex) {
+            var msg = (ex.getMessage () == null) ? ex.toString () : ex.getMessage ();
+            frame (dos, ERROR, id, body -> body.writeUTF (msg));
+            return;
+        } finally {
+            ctx.close ();
+        } // try
+
+        var attrs = result.attributes ();
+        var dom   = result.getDomain ();
+        for (var d : dom) {
+            if (! KeyType.encodable (d)) {
+                frame (dos, ERROR, id, body -> body.writeUTF ("execute: cannot send values of domain " + d.getSimpleName ()));
+                return;
+            } // if
+        } // for
+        frame (dos, HEADER, id, body -> {
+            body.writeShort (attrs.length);
+            for (var a : attrs) body.writeUTF (a);
+            for (var d : dom) body.writeUTF (d.getSimpleName ());
+        });
+
+        var rows = result.rows ();
+        for (var i = 0; i < rows.size (); i += BATCH) {
+            var batch = new byte [Math.min (rows.size (), i + BATCH) - i] [];
+            for (var j = 0; j < batch.length; j++) {
+                batch [j] = KeyType.encode (rows.get (i + j));
+                if (batch [j] == null) {
+                    var msg = "execute: cannot encode tuple " + Arrays.toString (rows.get (i + j));
+                    frame (dos, ERROR, id, body -> body.writeUTF (msg));
+                    return;
+                } // if
+            } // for
+            frame (dos, ROWS, id, body -> {
+                body.writeInt (batch.length);
+                for (var b : batch) {
+                    body.writeInt (b.length);
+                    body.write (b);
+                } // for
+            });
+        } // for
+        frame (dos, END, id, body -> body.writeInt (rows.size ()));
+    } // execute
+
+    /********************************************************************************
+     * Interpret a command, returning its result as a table.
+     * @param w        the words of the command
+     * @param payload  the rest of the request
+     * @return  the result
+     */
+    private Table run (String [] w, DataInputStream payload)
+        throws IOException
+    {
+        var cmd = w [0].toUpperCase ();
+        if (cmd.equals ("TABLES")) {
+            var rows = new ArrayList <Comparable []> ();
+            for (var name : new TreeSet <> (catalog.keySet ())) rows.add (new Comparable [] { name });
+            return new Table ("tables", new String [] { "name" }, new Class [] { String.class },
+                              new String [] { "name" }, rows);
+        } // if
+
+        if (w.length < 2) throw new IllegalArgumentException ("run: missing table name in " + cmd);
+        if (cmd.equals ("CREATE")) {
+            if (w.length != 5) throw new IllegalArgumentException ("run: CREATE table attrs domains key");
+            catalog.put (w [1], new Table (w [1], w [2].replace (',', ' '), w [3].replace (',', ' '),
+                                           w [4].replace (',', ' ')));
+            return count (0);
+        } // if
+        if (cmd.equals ("DROP")) return count ((catalog.remove (w [1]) == null) ? 0 : 1);
+
+        var table = table (w [1]);
+        return switch (cmd) {
+        case "SCAN"    -> table;
+        case "COUNT"   -> count (table.rows ().size ());
+        case "SELECT"  -> {
+            if (w.length != 5 && (w.length < 7 || ! w [5].equalsIgnoreCase ("PROJECT"))) {
+                throw new IllegalArgumentException ("run: SELECT table attribute op value [PROJECT attribute ...]");
+            } // if
+            if (table.col (w [2]) < 0) throw new IllegalArgumentException ("run: unknown attribute " + w [2]);
+            var sel = table.select (w [2] + " " + w [3] + " " + w [4]);
+            yield (w.length == 5) ? sel : sel.project (String.join (" ", Arrays.copyOfRange (w, 6, w.length)));
+        }
+        case "PROJECT" -> table.project (String.join (" ", Arrays.copyOfRange (w, 2, w.length)));
+        case "JOIN"    -> {
+            if (w.length == 5) yield table.join (w [3].replace (',', ' '), w [4].replace (',', ' '), table (w [2]));
+            if (w.length != 3) throw new IllegalArgumentException ("run: JOIN table1 table2 [attrs1 attrs2]");
+            yield table.join (table (w [2]));
+        }
+        case "GROUP"   -> {
+            if (w.length < 4) throw new IllegalArgumentException ("run: GROUP table groupAttrs|* fn:attr ...");
+            yield group (table, w [2].equals ("*") ? new String [0] : w [2].split (","),
+                         Arrays.copyOfRange (w, 3, w.length));
+        }
+        case "LOAD"    -> {
+            var rows = readRows (payload);
+            for (var t : rows) table.insert (t);
+            yield count (rows.size ());
+        }
+        case "SHUFFLE" -> {
+            if (w.length < 5) throw new IllegalArgumentException ("run: SHUFFLE table attrs dest host:port ...");
+            yield count (shuffle (table, w [2].split (","), w [3], Arrays.copyOfRange (w, 4, w.length)));
+        }
+        case "INSERT"  -> {
+            var dom = table.getDomain ();
+            if (w.length - 2 != dom.length) throw new IllegalArgumentException ("run: INSERT needs " + dom.length + " values");
+            var tup = new Comparable [dom.length];
+            for (var j = 0; j < dom.length; j++) tup [j] = Table.parse (w [j + 2], dom [j]);
+            table.insert (tup);
+            yield count (1);
+        }
+        default -> throw new IllegalArgumentException ("run: unknown command " + cmd);
+        }; // switch
+    } // run
+
+    /********************************************************************************
+     * Return a one-tuple table holding a count (the answer to a command that changes
+     * the catalog or a table).
+     */
+    private static Table count (int n)
+    {
+        return new Table ("count", new String [] { "count" }, new Class [] { Integer.class },
+                          new String [] { "count" }, List.<Comparable []>of (new Comparable [] { n }));
+    } // count
+
+    /********************************************************************************
+     * Group the tuples of a table and compute count, sum, min or max aggregates of each
+     * group.  Counts and sums of integral values are Longs, other sums Doubles.  Applied
+     * to one shard, this is the first phase of a distributed aggregation.
+     * @param table  the table to aggregate
+     * @param by     the grouping attributes (none for one group over the whole table)
+     * @param aggs   the aggregates, e.g., "count:*" or "sum:length"
+     * @return  a table of the grouping values followed by the aggregates
+     */
+    static Table group (Table table, String [] by, String [] aggs)
+    {
+        var dom   = table.getDomain ();
+        var gcols = new int [by.length];
+        for (var j = 0; j < by.length; j++) gcols [j] = column (table, by [j]);
+        var fns   = new String [aggs.length];
+        var acols = new int [aggs.length];
+        var attrs = Arrays.copyOf (by, by.length + aggs.length);
+        var doms  = new Class [attrs.length];
+        for (var j = 0; j < by.length; j++) doms [j] = dom [gcols [j]];
+        for (var k = 0; k < aggs.length; k++) {
+            var fa = aggs [k].split (":");
+            if (fa.length != 2) throw new IllegalArgumentException ("group: bad aggregate " + aggs [k]);
+            fns [k]   = fa [0].toLowerCase ();
+            acols [k] = (fns [k].equals ("count")) ? -1 : column (table, fa [1]);
+            attrs [by.length + k] = fns [k].equals ("count") ? "count" : fns [k] + "_" + fa [1];
+            doms [by.length + k]  = switch (fns [k]) {
+            case "count"      -> Long.class;
+            case "sum"        -> integral (dom [acols [k]]) ? Long.class : Double.class;
+            case "min", "max" -> dom [acols [k]];
+            default -> throw new IllegalArgumentException ("group: unknown function " + fns [k]);
+            }; // switch
+        } // for
+
+        var groups = new LinkedHashMap <KeyType, Comparable []> ();
+        for (var t : table.rows ()) {
+            var g = new Comparable [by.length];
+            for (var j = 0; j < by.length; j++) g [j] = t [gcols [j]];
+            var acc = groups.get (new KeyType (g));
+            if (acc == null) {
+                acc = Arrays.copyOf (g, attrs.length);
+                groups.put (new KeyType (g), acc);
+            } // if
+            for (var k = 0; k < aggs.length; k++) {
+                var v = (acols [k] < 0) ? null : t [acols [k]];
+                acc [by.length + k] = combine (fns [k], acc [by.length + k], (fns [k].equals ("count")) ? 1L : v);
+            } // for
+        } // for
+        return new Table (table.getName () + "_group", attrs, doms, (by.length > 0) ? by : attrs,
+                          new ArrayList <> (groups.values ()));
+    } // group
+
+    /********************************************************************************
+     * Combine an accumulated aggregate with a value (or a partial aggregate of the same
+     * function, so the same rule merges the partial results of shards).
+     * @param fn   the function (count, sum, min or max)
+     * @param acc  the accumulated aggregate (null at first)
+     * @param v    the value or partial aggregate (a count contributes 1 per tuple)
+     * @return  the new aggregate
+     */
+    @SuppressWarnings ("unchecked")
+    static Comparable combine (String fn, Comparable acc, Comparable v)
+    {
+        if (acc == null) return (fn.equals ("sum") && v instanceof Number n) ? widen (n) : v;
+        return switch (fn) {
+        case "count", "sum" -> (acc instanceof Long a && widen ((Number) v) instanceof Long b)
+                               ? (Comparable) (a + b) : (Comparable) (((Number) acc).doubleValue () + ((Number) v).doubleValue ());
+        case "min"          -> (v.compareTo (acc) < 0) ? v : acc;
+        default             -> (v.compareTo (acc) > 0) ? v : acc;
+        }; // switch
+    } // combine
+
+    /********************************************************************************
+     * Return a number as a Long if it is integral, otherwise as a Double.
+     */
+    private static Comparable widen (Number n)
+    {
+        return (n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte)
+               ? (Comparable) n.longValue () : (Comparable) n.doubleValue ();
+    } // widen
+
+    /********************************************************************************
+     * Return whether the domain holds integral numbers.
+     */
+    private static boolean integral (Class dom)
+    {
+        return dom == Long.class || dom == Integer.class || dom == Short.class || dom == Byte.class;
+    } // integral
+
+    /********************************************************************************
+     * Return the column of an attribute, failing if the table has no such attribute.
+     */
+    private static int column (Table table, String attr)
+    {
+        var c = table.col (attr);
+        if (c < 0) throw new IllegalArgumentException ("run: unknown attribute " + attr);
+        return c;
+    } // column
+
+    /********************************************************************************
+     * Send each tuple of the table to the peer its attributes hash to (as for a table
+     * hash-partitioned on them), loading it into the peer's dest table:  this server's
+     * part of repartitioning a table across the workers for a join.
+     * @param table  the table to repartition
+     * @param attrs  the attributes to hash
+     * @param dest   the table to load on each peer
+     * @param peers  the peers as host:port, in partition order
+     * @return  the number of tuples sent
+     */
+    private static int shuffle (Table table, String [] attrs, String dest, String [] peers)
+        throws IOException
+    {
+        var scheme = Partitioning.hash (peers.length, attrs);
+        var cols   = new int [attrs.length];
+        for (var j = 0; j < attrs.length; j++) cols [j] = column (table, attrs [j]);
+        var parts  = new ArrayList <List <Comparable []>> ();
+        for (var peer : peers) parts.add (new ArrayList <> ());
+        var rows   = table.rows ();
+        for (var t : rows) {
+            var vals = new Comparable [cols.length];
+            for (var j = 0; j < cols.length; j++) vals [j] = t [cols [j]];
+            parts.get (scheme.route (vals)).add (t);
+        } // for
+        for (var i = 0; i < peers.length; i++) {
+            var hp = peers [i].split (":");
+            try (var client = new QueryClient (hp [0], Integer.parseInt (hp [1]))) {
+                client.load (dest, parts.get (i));
+            } // try
+        } // for
+        return rows.size ();
+    } // shuffle
+
+    /********************************************************************************
+     * Read the tuples of a request payload:  a count, then each tuple's length and
+     * encoding.
+     */
+    private static List <Comparable []> readRows (DataInputStream payload)
+        throws IOException
+    {
+        var n    = payload.readInt ();
+        var rows = new ArrayList <Comparable []> (n);
+        for (var i = 0; i < n; i++) {
+            var b = new byte [payload.readInt ()];
+            payload.readFully (b);
+            rows.add (KeyType.decode (b));
+        } // for
+        return rows;
+    } // readRows
+
+    /********************************************************************************
+     * Return the table with the given name from the catalog.
+     */
+    private Table table (String name)
+    {
+        var t = catalog.get (name);
+        if (t == null) throw new IllegalArgumentException ("run: no table named " + name);
+        return t;
+    } // table
+
+    /********************************************************************************
+     * This interface writes the body of a frame.
+     */
+    private interface Body
+    {
+        void write (DataOutputStream body) throws IOException;
+    } // Body interface
+
+    /********************************************************************************
+     * Write a response frame:  its length, type, request id and body.
+     */
+    private static void frame (DataOutputStream dos, byte type, int id, Body body)
+        throws IOException
+    {
+        var bytes = new ByteArrayOutputStream ();
+        var bos   = new DataOutputStream (bytes);
+        bos.writeByte (type);
+        bos.writeInt (id);
+        body.write (bos);
+        dos.writeInt (bytes.size ());
+        bytes.writeTo (dos);
+    } // frame
+
+    /********************************************************************************
+     * The main method starts a server for the movie database on the given port (or 5433).
+     * With the argument "worker" it starts with an empty catalog, as a Coordinator's
+     * worker, and exits when its standard input is closed (i.e., when the process that
+     * launched it goes away).
+     * @param  args the command-line arguments
+     */
+    public static void main (String [] args)
+        throws IOException, InterruptedException
+    {
+        var port = (args.length > 0) ? Integer.parseInt (args [0]) : 5433;
+        if (args.length > 1 && args [1].equals ("worker")) {
+            var server = new QueryServer (port);
+            out.println ("QueryServer listening on port " + server.port ());
+            out.flush ();
+            while (System.in.read () >= 0) { }                              // until the launcher goes away
+            server.close ();
+            System.exit (0);
+        } // if
+
+        var movie = new Table ("movie", "title year length genre studioName producerNo",
+                                        "String Integer Integer String String Integer", "title year");
+        movie.insert (new Comparable [] { "Star_Wars", 1977, 124, "sciFi", "Fox", 12345 });
+        movie.insert (new Comparable [] { "Star_Wars_2", 1980, 124, "sciFi", "Fox", 12345 });
+        movie.insert (new Comparable [] { "Rocky", 1985, 200, "action", "Universal", 12125 });
+        movie.insert (new Comparable [] { "Rambo", 1978, 100, "action", "Universal", 32355 });
+
+        var server = new QueryServer (port);
+        server.register (movie);
+        out.println ("QueryServer listening on port " + server.port ());
+        Thread.currentThread ().join ();
+    } // main
+
+} // QueryServer class
+
@@ -0,0 +1,300 @@
+package dbms;
+/************************************************************************************
+ * @file Replica.java
+ */
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.lang.System.out;
+
+/************************************************************************************
+ * The Replica class is the read-only side of log-shipping replication.  It connects to
+ * a LogShipper, applies the log to its own copies of the published tables (with their
+ * own indices), acknowledges what it applied and serves reads of the copies, optionally
+ * through a QueryServer so other processes can query it.
+ * <p>
+ * Messages are applied in LSN order by one thread.  A heartbeat tells the replica that
+ * it has everything the primary had logged when the heartbeat was sent, so the time
+ * since the last heartbeat bounds how stale its tables are.  A read may demand a bound
+ * on staleness and waits briefly for the replica to catch up before failing; a reader
+ * that knows the LSN of its own write may wait for it (read your writes).
+ *
+ * #usage try (var replica = new Replica ("localhost", port)) {
+ *            replica.table ("movie", 200).select ("year == 1977").print ();
+ *        }
+ */
+public class Replica
+       implements Closeable
+{
+    /********************************************************************************
+     * This exception indicates that the replica could not meet a staleness bound.
+     */
+    public static class StaleReadException
+           extends RuntimeException
+    {
+        public StaleReadException (String msg) { super (msg); }
+    } // StaleReadException class
+
+    /** The connection to the primary's LogShipper
+     */
+    private final Socket socket;
+
+    /** The copies of the published tables by name
+     */
+    private final Map <String, Table> tables = new ConcurrentHashMap <> ();
+
+    /** The server to register the copies with (or null)
+     */
+    private final QueryServer server;
+
+    /** The LSN of the last log entry applied
+     */
+    private volatile long applied = 0;
+
+    /** The time (System.nanoTime) at which the replica last knew it was up to date
+     */
+    private volatile long freshAt;
+
+    /** Whether the replica has caught up with the primary at least once
+     */
+    private volatile boolean synced = false;
+
+    /** Set when the connection to the primary is lost
+     */
+    private volatile boolean lost = false;
+
+    /********************************************************************************
+     * Connect to a LogShipper and start applying its log.
+     * @param host  the primary's host
+     * @param port  the LogShipper's port
+     * @throws IOException  if the connection fails
+     */
+    public Replica (String host, int port)
+        throws IOException
+    {
+        this (host, port, null);
+    } // constructor
+
+    /********************************************************************************
+     * Connect to a LogShipper and start applying its log, registering each table copy
+     * with the given server as it is created.
+     * @param host     the primary's host
+     * @param port     the LogShipper's port
+     * @param _server  the server to serve the copies from (or null)
+     * @throws IOException  if the connection fails
+     */
+    public Replica (String host, int port, QueryServer _server)
+        throws IOException
+    {
+        server  = _server;
+        socket  = new Socket (host, port);
+        socket.setTcpNoDelay (true);
+        var dos = new DataOutputStream (socket.getOutputStream ());
+        dos.writeLong (1);                                                  // from the beginning
+        dos.flush ();
+        var t = new Thread (this::apply, "Replica-" + host + ":" + port);
+        t.setDaemon (true);
+        t.start ();
+    } // constructor
+
+    /********************************************************************************
+     * Return the copy of a table, however stale.
+     * @param name  the table name
+     * @return  the table, or null if it has not been published (yet)
+     */
+    public Table table (String name)
+    {
+        return tables.get (name);
+    } // table
+
+    /********************************************************************************
+     * Return the copy of a table once the replica is at most maxStaleMs behind the
+     * primary, waiting up to that long again for it to catch up.
+     * @param name        the table name
+     * @param maxStaleMs  the staleness bound (in milliseconds)
+     * @return  the table
+     * @throws StaleReadException  if the bound cannot be met (or the table is unknown)
+     */
+    public Table table (String name, long maxStaleMs)
+    {
+        var deadline = System.nanoTime () + maxStaleMs * 1_000_000;
+        while (staleness () > maxStaleMs || ! tables.containsKey (name)) {
+            if (lost || System.nanoTime () > deadline) {
+                throw new StaleReadException ("table: " + name + " is " + staleness () + " ms stale (bound "
+                                              + maxStaleMs + " ms)" + (lost ? ", primary lost" : ""));
+            } // if
+            pause ();
+        } // while
+        return tables.get (name);
+    } // table
+
+    /********************************************************************************
+     * Wait until the replica has applied the log up to the given LSN (e.g., that of a
+     * write whose effect the reader must see).
+     * @param lsn        the LSN to reach
+     * @param timeoutMs  the longest time to wait (in milliseconds)
+     * @return  whether the LSN was reached
+     */
+    public boolean await (long lsn, long timeoutMs)
+    {
+        var deadline = System.nanoTime () + timeoutMs * 1_000_000;
+        while (applied < lsn) {
+            if (lost || System.nanoTime () > deadline) return false;
+            pause ();
+        } // while
+        return true;
+    } // await
+
+    /********************************************************************************
+     * Return the LSN of the last log entry applied.
+     * @return  the applied LSN
+     */
+    public long applied ()
+    {
+        return applied;
+    } // applied
+
+    /********************************************************************************
+     * Return how stale the replica may be:  the time since it last knew it had applied
+     * everything the primary had logged (Long.MAX_VALUE until it first catches up).
+     * @return  the staleness (in milliseconds)
+     */
+    public long staleness ()
+    {
+        return synced ? (System.nanoTime () - freshAt) / 1_000_000 : Long.MAX_VALUE;
+    } // staleness
+
+    /********************************************************************************
+     * Disconnect from the primary (the copies remain readable).
+     * @throws IOException  if the socket cannot be closed
+     */
+    public void close ()
+        throws IOException
+    {
+        socket.close ();
+    } // close
+
+    //----------------------------------------------------------------------------------
+    // Private Methods
+    //----------------------------------------------------------------------------------
+
+    /********************************************************************************
+     * Apply the log as it arrives, acknowledging the LSN reached after each heartbeat.
+     */
+    private void apply ()
+    {
+        try {
+            var in  = new DataInputStream (new BufferedInputStream (socket.getInputStream (), 1 << 16));
+            var dos = new DataOutputStream (socket.getOutputStream ());
+            for ( ; ; ) {
+                in.readInt ();                                              // length
+                var type = in.readByte ();
+                var lsn  = in.readLong ();
+                switch (type) {
+                case LogShipper.SCHEMA    -> create (in);
+                case LogShipper.CHANGE    -> change (in);
+                case LogShipper.HEARTBEAT -> {
+                    freshAt = System.nanoTime ();
+                    synced  = true;
+                    dos.writeLong (applied);
+                    dos.flush ();
+                }
+                default -> throw new IOException ("apply: bad message type " + type);
+                } // switch
+                if (type != LogShipper.HEARTBEAT) applied = lsn;
+            } // for
+        } catch (SocketException | EOFException ex) {
+            // primary went away or replica closed
+        } catch (IOException ex) {
+            out.println ("apply: " + ex);
+        } finally {
+            lost = true;
+        } // try
+    } // apply
+
+    /********************************************************************************
+     * Create the copy of a newly published table (or replace it with an empty one
+     * when the primary sends a snapshot).
+     */
+    private void create (DataInputStream in)
+        throws IOException
+    {
+        var name  = in.readUTF ();
+        var attrs = new String [in.readShort ()];
+        for (var j = 0; j < attrs.length; j++) attrs [j] = in.readUTF ();
+        var doms  = new String [attrs.length];
+        for (var j = 0; j < doms.length; j++) doms [j] = in.readUTF ();
+        var key   = new String [in.readShort ()];
+        for (var j = 0; j < key.length; j++) key [j] = in.readUTF ();
+        var table = new Table (name, String.join (" ", attrs), String.join (" ", doms), String.join (" ", key));
+        tables.put (name, table);
+        if (server != null) server.register (table);
+    } // create
+
+    /********************************************************************************
+     * Apply a change to the copy of a table:  inserts, deletes (by key) or updates (old
+     * tuples replaced by the new ones in the same positions), each in one commit and
+     * found through the copy's index.
+     */
+    private void change (DataInputStream in)
+        throws IOException
+    {
+        var table = tables.get (in.readUTF ());
+        var olds  = readRows (in);
+        var news  = readRows (in);
+        if (table == null) throw new IOException ("change: no schema for table");
+        table.apply (olds, news);
+    } // change
+
+    /********************************************************************************
+     * Read tuples written by LogShipper.writeRows.
+     */
+    private static List <Comparable []> readRows (DataInputStream in)
+        throws IOException
+    {
+        var n    = in.readInt ();
+        var rows = new ArrayList <Comparable []> (n);
+        for (var i = 0; i < n; i++) {
+            var b = new byte [in.readInt ()];
+            in.readFully (b);
+            rows.add (KeyType.decode (b));
+        } // for
+        return rows;
+    } // readRows
+
+    /********************************************************************************
+     * Wait a little before checking the replica's progress again.
+     */
+    private static void pause ()
+    {
+        try {
+            Thread.sleep (5);
+        } catch (InterruptedException ex) {
+            Thread.currentThread ().interrupt ();
+            throw new StaleReadException ("interrupted while waiting for the replica");
+        } // try
+    } // pause
+
+    /********************************************************************************
+     * The main method runs a replica of the primary at host:port (args 0 and 1) and
+     * serves its tables on the given port (arg 2, default 5434).
+     * @param  args the command-line arguments
+     */
+    public static void main (String [] args)
+        throws IOException, InterruptedException
+    {
+        var server  = new QueryServer ((args.length > 2) ? Integer.parseInt (args [2]) : 5434);
+        var replica = new Replica (args [0], Integer.parseInt (args [1]), server);
+        out.println ("Replica of " + args [0] + ":" + args [1] + " serving on port " + server.port ());
+        while (! replica.lost) {
+            Thread.sleep (1000);
+            out.println ("Replica: applied LSN " + replica.applied () + ", " + replica.staleness () + " ms stale");
+        } // while
+        server.close ();
+    } // main
+
+} // Replica class
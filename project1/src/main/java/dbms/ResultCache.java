@@ -0,0 +1,408 @@
+package dbms;
+/************************************************************************************
+ * @file ResultCache.java
+ */
+
+import java.util.*;
+
+import static java.lang.System.out;
+
+/************************************************************************************
+ * The ResultCache class caches the tables produced by relational algebra operators.
+ * An entry's key is the canonical form of the operator applied (its name, arguments
+ * and the lineage of its inputs, i.e., the operator tree that produced them) together
+ * with the versions of its input tables, so a cached result is only returned while its
+ * inputs are unchanged.  When a table changes, the entries computed from it (directly
+ * or through other cached results) are invalidated, as is the entry holding it if it
+ * is itself a cached result (e.g., one a caller inserted into), so a result changed
+ * in place is never returned for the operator that produced it.
+ * <p>
+ * Eviction follows W-TinyLFU, weighted by size and cost:  new entries enter a small LRU
+ * window; an entry leaving the window is admitted to the main area (a segmented LRU of
+ * probation and protected parts) only if it scores higher than the victims it would
+ * displace.  The score of an entry is its estimated access frequency (from a count-min
+ * sketch of 4-bit counters that is periodically halved) times the time it took to
+ * compute, per byte it occupies, so cheap or bulky results give way to expensive
+ * compact ones.  Capacity is a budget of (estimated) bytes.
+ */
+public class ResultCache
+{
+    /** The segments an entry may be in
+     */
+    private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+    /********************************************************************************
+     * This inner class holds a cached result with its size, cost and inputs.
+     */
+    private static final class Entry
+    {
+        final String key;
+        final Table  table;
+        final long   bytes;
+        final long   cost;
+        final long [] inputs;
+        int segment = WINDOW;
+
+        Entry (String _key, Table _table, long _bytes, long _cost, long [] _inputs)
+        {
+            key = _key; table = _table; bytes = _bytes; cost = _cost; inputs = _inputs;
+        } // constructor
+
+    } // Entry inner class
+
+    /** The entries by key
+     */
+    private final HashMap <String, Entry> data = new HashMap <> ();
+
+    /** The entries of each segment in LRU order (eldest first)
+     */
+    private final List <LinkedHashMap <String, Entry>> lru = List.of (new LinkedHashMap <> (),
+                                                                      new LinkedHashMap <> (),
+                                                                      new LinkedHashMap <> ());
+
+    /** The bytes held by each segment
+     */
+    private final long [] used = new long [3];
+
+    /** The byte budgets of the whole cache, the window and the protected segment
+     */
+    private final long maxBytes, windowMax, protectedMax;
+
+    /** The keys of the entries computed from each table (by store id)
+     */
+    private final HashMap <Long, Set <String>> dependents = new HashMap <> ();
+
+    /** The count-min frequency sketch:  4 rows of 4-bit counters packed in longs
+     */
+    private final long [] sketch;
+
+    /** The number of sketch increments since the counters were last halved
+     */
+    private int samples = 0;
+
+    /** Statistics
+     */
+    private long hits = 0, misses = 0, evictions = 0, rejections = 0, invalidations = 0;
+
+    /********************************************************************************
+     * Construct a result cache with the given byte budget.
+     * @param _maxBytes  the maximum (estimated) bytes of cached results
+     */
+    public ResultCache (long _maxBytes)
+    {
+        maxBytes     = _maxBytes;
+        windowMax    = Math.max (1, maxBytes / 100);
+        protectedMax = (maxBytes - windowMax) * 4 / 5;
+        sketch       = new long [1024];                                       // 16K counters
+    } // constructor
+
+    /********************************************************************************
+     * Return the cached result for the key, or null.
+     * @param key  the canonical key
+     * @return  the cached table or null
+     */
+    public synchronized Table get (String key)
+    {
+        increment (key);
+        var e = data.get (key);
+        if (e == null) { misses++; return null; }
+        hits++;
+        if (e.segment == PROBATION) {
+            move (e, PROTECTED);                                             // promote
+            while (used [PROTECTED] > protectedMax) move (eldest (PROTECTED), PROBATION);
+        } else {
+            touch (e);
+        } // if
+        return e.table;
+    } // get
+
+    /********************************************************************************
+     * Cache a result, to be dropped when it or one of its inputs changes.
+     * @param key     the canonical key
+     * @param table   the result
+     * @param cost    the time taken to compute it (in nanoseconds)
+     * @param inputs  the store ids of the tables it was computed from
+     */
+    public synchronized void put (String key, Table table, long cost, long [] inputs)
+    {
+        var bytes = estimateBytes (table);
+        if (bytes > maxBytes || data.containsKey (key)) return;
+        var ids   = Arrays.copyOf (inputs, inputs.length + 1);
+        ids [inputs.length] = table.store ().id ();                         // the result itself
+        var e = new Entry (key, table, bytes, Math.max (1, cost), ids);
+        data.put (key, e);
+        lru.get (WINDOW).put (key, e);
+        used [WINDOW] += bytes;
+        for (var id : ids) dependents.computeIfAbsent (id, i -> new HashSet <> ()).add (key);
+        evict ();
+    } // put
+
+    /********************************************************************************
+     * Drop every entry computed, directly or through other cached results, from the
+     * table with the given store id.
+     * @param storeId  the id of the changed table's store
+     */
+    public synchronized void invalidate (long storeId)
+    {
+        var todo = new ArrayDeque <Long> ();
+        todo.add (storeId);
+        while (! todo.isEmpty ()) {
+            var keys = dependents.remove (todo.pop ());
+            if (keys == null) continue;
+            for (var k : keys) {
+                var e = data.get (k);
+                if (e == null) continue;
+                remove (e);
+                invalidations++;
+                todo.add (e.table.store ().id ());                            // results computed from it
+            } // for
+        } // while
+    } // invalidate
+
+    /********************************************************************************
+     * Return the fraction of lookups that hit.
+     * @return  the hit ratio
+     */
+    public synchronized double hitRatio ()
+    {
+        return (hits + misses == 0) ? 0.0 : (double) hits / (hits + misses);
+    } // hitRatio
+
+    /********************************************************************************
+     * Return the estimated bytes held by cached results.
+     * @return  the memory use
+     */
+    public synchronized long bytes ()
+    {
+        return used [WINDOW] + used [PROBATION] + used [PROTECTED];
+    } // bytes
+
+    /********************************************************************************
+     * Return the number of cached results.
+     * @return  the entry count
+     */
+    public synchronized int size ()
+    {
+        return data.size ();
+    } // size
+
+    /********************************************************************************
+     * Return cache statistics as a string.
+     * @return  the statistics
+     */
+    public synchronized String stats ()
+    {
+        return String.format ("ResultCache: %d entries, %d of %d bytes, hit ratio %.3f (%d hits, %d misses),"
+                              + " %d evictions, %d rejections, %d invalidations",
+                              data.size (), bytes (), maxBytes, hitRatio (), hits, misses,
+                              evictions, rejections, invalidations);
+    } // stats
+
+    /********************************************************************************
+     * Estimate the bytes retained by a table's tuples from a sample of them.
+     * @param table  the table
+     * @return  the estimated size in bytes
+     */
+    static long estimateBytes (Table table)
+    {
+        return estimateBytes (table.rows ());
+    } // estimateBytes
+
+    /********************************************************************************
+     * Estimate the bytes retained by a list of tuples from a sample of them.
+     * @param rows  the tuples
+     * @return  the estimated size in bytes
+     */
+    static long estimateBytes (List <Comparable []> rows)
+    {
+        var n    = rows.size ();
+        if (n == 0) return 64;
+        var step   = Math.max (1, n / 32);
+        var sample = 0L;
+        var k      = 0;
+        for (var i = 0; i < n; i += step, k++) sample += tupleBytes (rows.get (i));
+        return 64 + 8L * n + sample * n / k;
+    } // estimateBytes
+
+    /********************************************************************************
+     * Estimate the bytes retained by a tuple (its array and values).
+     * @param t  the tuple
+     * @return  the estimated size in bytes
+     */
+    static long tupleBytes (Comparable [] t)
+    {
+        var bytes = 16 + 4L * t.length;                                      // array header and references
+        for (var v : t) {
+            bytes += (v instanceof String s) ? 40 + 2L * s.length ()
+                   : (v instanceof Long || v instanceof Double) ? 24 : 16;
+        } // for
+        return bytes;
+    } // tupleBytes
+
+    /********************************************************************************
+     * Move entries out of the window, admitting each to the main area if it beats
+     * the probation victims it would displace, until the budgets are met.
+     */
+    private void evict ()
+    {
+        while (used [WINDOW] > windowMax) {
+            var cand = eldest (WINDOW);
+            move (cand, PROBATION);
+            while (bytes () > maxBytes) {
+                var victim = eldest (PROBATION);
+                if (victim == cand) victim = nextEldest (PROBATION, cand);
+                if (victim == null) victim = eldest (PROTECTED);
+                if (victim == null || victim == cand || score (cand) <= score (victim)) {
+                    remove (cand);                                           // not admitted
+                    rejections++;
+                    break;
+                } // if
+                remove (victim);
+                evictions++;
+            } // while
+        } // while
+    } // evict
+
+    /********************************************************************************
+     * Return the score of an entry:  frequency times cost per byte.
+     */
+    private double score (Entry e)
+    {
+        return (frequency (e.key) + 1.0) * e.cost / e.bytes;
+    } // score
+
+    /********************************************************************************
+     * Return the least recently used entry of a segment, or null if it is empty.
+     */
+    private Entry eldest (int seg)
+    {
+        var it = lru.get (seg).values ().iterator ();
+        return it.hasNext () ? it.next () : null;
+    } // eldest
+
+    /********************************************************************************
+     * Return the least recently used entry of a segment other than e, or null.
+     */
+    private Entry nextEldest (int seg, Entry e)
+    {
+        for (var x : lru.get (seg).values ()) if (x != e) return x;
+        return null;
+    } // nextEldest
+
+    /********************************************************************************
+     * Make the entry the most recently used of its segment.
+     */
+    private void touch (Entry e)
+    {
+        var m = lru.get (e.segment);
+        m.remove (e.key);
+        m.put (e.key, e);
+    } // touch
+
+    /********************************************************************************
+     * Move the entry to the most recently used end of another segment.
+     */
+    private void move (Entry e, int seg)
+    {
+        lru.get (e.segment).remove (e.key);
+        used [e.segment] -= e.bytes;
+        e.segment = seg;
+        lru.get (seg).put (e.key, e);
+        used [seg] += e.bytes;
+    } // move
+
+    /********************************************************************************
+     * Remove the entry from the cache.
+     */
+    private void remove (Entry e)
+    {
+        data.remove (e.key);
+        lru.get (e.segment).remove (e.key);
+        used [e.segment] -= e.bytes;
+        for (var id : e.inputs) {
+            var keys = dependents.get (id);
+            if (keys != null && keys.remove (e.key) && keys.isEmpty ()) dependents.remove (id);
+        } // for
+    } // remove
+
+    /********************************************************************************
+     * Record an access to the key in the frequency sketch, halving all counters after
+     * 10 samples per counter so that old popularity fades.
+     */
+    private void increment (String key)
+    {
+        var h = spread (key.hashCode ());
+        for (var row = 0; row < 4; row++) {
+            var i     = index (h, row);
+            var shift = counterShift (h, row);
+            if (((sketch [i] >>> shift) & 0xfL) < 15) sketch [i] += 1L << shift;
+        } // for
+        if (++samples >= 10 * 16 * sketch.length) {
+            for (var i = 0; i < sketch.length; i++) sketch [i] = (sketch [i] >>> 1) & 0x7777777777777777L;
+            samples /= 2;
+        } // if
+    } // increment
+
+    /********************************************************************************
+     * Return the estimated access frequency of the key (the minimum of its counters).
+     */
+    private int frequency (String key)
+    {
+        var h = spread (key.hashCode ());
+        var f = 15;
+        for (var row = 0; row < 4; row++) {
+            f = Math.min (f, (int) ((sketch [index (h, row)] >>> counterShift (h, row)) & 0xfL));
+        } // for
+        return f;
+    } // frequency
+
+    /********************************************************************************
+     * Return the long holding the key's counter in the given row of the sketch.
+     */
+    private int index (int h, int row)
+    {
+        var x = (h + row * 0x9e3779b9) * 0x85ebca6b;
+        return (x ^ (x >>> 16)) & (sketch.length - 1);
+    } // index
+
+    /********************************************************************************
+     * Return the bit offset of the key's counter within its long.
+     */
+    private static int counterShift (int h, int row)
+    {
+        return (((h >>> (row * 8)) & 3) + 4 * row) << 2;
+    } // counterShift
+
+    /********************************************************************************
+     * Spread the bits of a hash code.
+     */
+    private static int spread (int h)
+    {
+        h ^= h >>> 17;
+        h *= 0xed5ad4bb;
+        h ^= h >>> 11;
+        return h;
+    } // spread
+
+    /********************************************************************************
+     * The main method used for testing:  repeat a skewed mix of queries and report the
+     * hit ratio.
+     * @param  args the command-line arguments
+     */
+    public static void main (String [] args)
+    {
+        var movie = new Table ("movie", "title year length", "String Integer Integer", "title");
+        for (var i = 0; i < 200; i++) movie.insert (new Comparable [] { "film_" + i, 1900 + i % 50, 90 + i % 60 });
+        var cache = new ResultCache (1 << 20);
+        Table.useCache (cache);
+        var rng = new Random (1);
+        for (var i = 0; i < 2000; i++) {
+            var year = 1900 + (int) Math.min (49, Math.abs (rng.nextGaussian () * 5));
+            movie.select ("year == " + year).project ("title length");
+        } // for
+        Table.useCache (null);
+        out.println (cache.stats ());
+    } // main
+
+} // ResultCache class
+
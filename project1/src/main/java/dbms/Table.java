@@ -7,7 +7,9 @@ package dbms;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.*;
+import java.util.regex.Pattern;
 import java.util.stream.*;
 
 import static java.lang.Boolean.*;
@@ -17,15 +19,15 @@ import static java.lang.System.out;
 /****************************************************************************************
  * The Table class implements relational database tables (including attribute names, domains
  * and a list of tuples.  Five basic relational algebra operators are provided: project,
- * select, union, minus and join.  The insert data manipulation operator is also provided.
- * Missing are update and delete data manipulation operators.
+ * select, union, minus and join.  The insert, update and delete data manipulation
+ * operators are also provided.
  */
 public class Table
        implements Serializable
 {
     /** Relative path for storage directory
      */
-    private static final String DIR = "store" + File.separator;
+    static final String DIR = "store" + File.separator;
 
     /** Filename extension for database files
      */
@@ -50,9 +52,10 @@ public class Table
      */
     private final Class [] domain;
 
-    /** Collection of tuples (data storage).
+    /** Collection of tuples (data storage), kept as versions so that every operator
+     *  reads a consistent snapshot while inserts proceed concurrently.
      */
-    private final List <Comparable []> tuples;
+    private final TupleStore tuples;
 
     /** Primary key (the attributes forming). 
      */
@@ -62,22 +65,80 @@ public class Table
      */
     private final Map <KeyType, Comparable []> index;
 
+    /** Serialises access to index maps that are not thread-safe (a lock rather than a
+     *  monitor, so that virtual threads waiting for it free their carrier threads).
+     */
+    private final ReentrantLock indexLock = new ReentrantLock ();
+
     /** The supported map types.
      */
-    private enum MapType { NO_MAP, TREE_MAP, LINHASH_MAP, BPTREE_MAP }
+    private enum MapType { NO_MAP, TREE_MAP, LINHASH_MAP, OPEN_LINHASH_MAP,
+                           CONCURRENT_LINHASH_MAP, LINHASH_FILE, BPTREE_MAP, BPTREE_FILE }
 
     /** The map type to be used for indices.  Change as needed.
      */
     private static final MapType mType = MapType.LINHASH_MAP;
 
+    /** The optional cache of operator results (null when disabled).
+     */
+    private static volatile ResultCache cache = null;
+
+    /** Whether select, project and join run batch-at-a-time (see Batch).
+     */
+    private static volatile boolean batched = true;
+
+    /** A bound of a band join condition:  an attribute and an optional offset (e.g., "year2-2").
+     */
+    private static final Pattern BOUND = Pattern.compile ("(.+?)([+-]\\d+)?");
+
+    /** The canonical form of the operator tree that produced this table (null for a
+     *  base table).
+     */
+    private transient String lineage = null;
+
+    /** The receivers of the table's changes (old and new tuples), e.g., replication and
+     *  materialized views, or null for none.
+     */
+    private transient volatile List <BiConsumer <List <Comparable []>, List <Comparable []>>> feeds = null;
+
+    /** The Bloom filters built on the table's columns (by attributes), with the version
+     *  of the table each was built at.
+     */
+    private transient volatile Map <String, Built> blooms = null;
+
+    /** The log of changes since the last save, appended to the base file by the next
+     *  save (null until the table is first saved or loaded).
+     */
+    private transient volatile DeltaLog deltas = null;
+
+    /** A Bloom filter and the version of the table it was built at.
+     */
+    private record Built (long version, BloomFilter filter) { }
+
+    /** A pending cache lookup:  the key, the start time and input store ids of an
+     *  operator, and the cached result if there was one.
+     */
+    record Cached (ResultCache cache, String key, long start, long [] inputs, Table hit) { }
+
+    /** The lookup used when no cache is enabled.
+     */
+    private static final Cached NO_CACHE = new Cached (null, null, 0, null, null);
+
     /************************************************************************************
-     * Make a map (index) given the MapType.
+     * Make a map (index) given the MapType.  Disk-resident indices are kept in files
+     * named after the table in the storage directory.
+     *
+     * @param name  the name of the table the index is for
      */
-    private static Map <KeyType, Comparable []> makeMap ()
+    private static Map <KeyType, Comparable []> makeMap (String name)
     {
         return switch (mType) {
         case TREE_MAP    -> new TreeMap <> ();
         case LINHASH_MAP -> new LinHashMap <> (KeyType.class, Comparable [].class);
+        case OPEN_LINHASH_MAP -> new OpenLinHashMap <> (KeyType.class, Comparable [].class);
+        case CONCURRENT_LINHASH_MAP -> new ConcurrentLinHashMap <> (KeyType.class, Comparable [].class);
+        case LINHASH_FILE -> new LinHashFile (DIR + name);
+        case BPTREE_FILE -> new BpTreeFile (DIR + name);
 //      case BPTREE_MAP  -> new BpTreeMap <> (KeyType.class, Comparable [].class);
         default          -> null;
         }; // switch
@@ -101,6 +162,41 @@ public class Table
 
 
 
+    /************************************************************************************
+     * Enable the result cache for all tables (or disable it by passing null).
+     *
+     * @param _cache  the result cache to use
+     */
+    public static void useCache (ResultCache _cache)
+    {
+        cache = _cache;
+    } // useCache
+
+    /************************************************************************************
+     * Run select, project and join batch-at-a-time over column chunks (the default),
+     * or tuple-at-a-time.
+     *
+     * @param on  whether to use batches
+     */
+    public static void useBatches (boolean on)
+    {
+        batched = on;
+    } // useBatches
+
+    /************************************************************************************
+     * Materialize a view:  compute it once from its base tables and from then on keep it
+     * up to date with the deltas of their inserts, updates and deletes.
+     *
+     * #usage var cast = Table.materialize (MaterializedView.join (movie, "title year", starsIn, "movieTitle movieYear"))
+     *
+     * @param def  the view definition (a join or an aggregation)
+     * @return  the maintained view
+     */
+    public static MaterializedView materialize (MaterializedView.Definition def)
+    {
+        return MaterializedView.of (def);
+    } // materialize
+
     //-----------------------------------------------------------------------------------
     // Constructors
     //-----------------------------------------------------------------------------------
@@ -119,8 +215,8 @@ public class Table
         attribute = _attribute;
         domain    = _domain;
         key       = _key;
-        tuples    = new ArrayList <> ();
-        index     = makeMap ();
+        tuples    = new TupleStore ();
+        index     = makeMap (name);
     } // primary constructor
 
     /************************************************************************************
@@ -139,8 +235,30 @@ public class Table
         attribute = _attribute;
         domain    = _domain;
         key       = _key;
-        tuples    = _tuples;
-        index     = makeMap ();
+        tuples    = new TupleStore (_tuples);
+        index     = makeMap (name);
+    } // constructor
+
+    /************************************************************************************
+     * Construct a table holding the given tuples whose index is the given map (e.g., a
+     * disk-resident index that already holds them).
+     *
+     * @param _name       the name of the relation
+     * @param _attribute  the attribute names
+     * @param _domain     the attribute domains
+     * @param _key        the primary key
+     * @param _tuples     the tuples
+     * @param _index      the index
+     */
+    Table (String _name, String [] _attribute, Class [] _domain, String [] _key,
+           List <Comparable []> _tuples, Map <KeyType, Comparable []> _index)
+    {
+        name      = _name;
+        attribute = _attribute;
+        domain    = _domain;
+        key       = _key;
+        tuples    = new TupleStore (_tuples);
+        index     = _index;
     } // constructor
 
     /************************************************************************************
@@ -174,19 +292,28 @@ public class Table
     public Table project (String attributes)
     {
         out.println ("RA> " + name + ".project (" + attributes + ")");
+        var ck = cached ("project (" + attributes + ")", this);
+        if (ck.hit () != null) return ck.hit ();
         var attrs     = attributes.split (" ");
         var colDomain = extractDom (match (attrs), domain);
         var newKey    = (Arrays.asList (attrs).containsAll (Arrays.asList (key))) ? key : attrs;
 
-        List <Comparable []> rows = new ArrayList <> ();
+        List <Comparable []> rows = QueryContext.rows ();
 
         //  T O   B E   I M P L E M E N T E D 
 
+        if (batched && found (attrs)) {
+            var cols = new int [attrs.length];
+            for (var j = 0; j < attrs.length; j++) cols [j] = col (attrs [j]);
+            return toCache (ck, new Table (name + count++, attrs, colDomain, newKey, Batch.project (rows (), cols)));
+        } // if
+
         int atLen =attrs.length;
 // S is the new empty tuple so we will add all values for any attribute mentioned in attrs to S.
         // In order to do the projection.
 
-        for (Comparable[] tuple:tuples) {
+        for (Comparable[] tuple: rows ()) {
+            QueryContext.check ();
             Comparable[] S = new Comparable[atLen];
             int tuLen = attribute.length;
 
@@ -208,7 +335,7 @@ public class Table
                 rows.add(S);
             }
         }
-        return new Table (name + count++, attrs, colDomain, newKey, rows);
+        return toCache (ck, new Table (name + count++, attrs, colDomain, newKey, rows));
     } // project
 
     /************************************************************************************
@@ -224,7 +351,7 @@ public class Table
         out.println ("RA> " + name + ".select (" + predicate + ")");
 
         return new Table (name + count++, attribute, domain, key,
-                   tuples.stream ().filter (t -> predicate.test (t))
+                   rows ().stream ().filter (t -> predicate.test (t))
                                    .collect (Collectors.toList ()));
     } // select
 
@@ -247,8 +374,10 @@ public class Table
     public Table select (String condition)
     {
         out.println ("RA> " + name + ".select (" + condition + ")");
+        var ck = cached ("select (" + condition + ")", this);
+        if (ck.hit () != null) return ck.hit ();
 
-        List <Comparable []> rows = new ArrayList <> ();
+        List <Comparable []> rows = QueryContext.rows ();
 
         // First Split string by quotations
         // then split string by spaces
@@ -258,17 +387,36 @@ public class Table
         // second half of the condition
         String tempCondition2 = conditionSplit[2];
 
+        var tups = rows ();
+        if (found (tempCondition1)) {
+            var col = match (tempCondition1) [0];
+            Comparable value;
+            try {                                                           // a number of the column's domain
+                value = Join.numeric (domain [col]) ? parse (tempCondition2, domain [col]) : Integer.valueOf (tempCondition2);
+            } catch (NumberFormatException e) {
+                value = tempCondition2;
+            } // try
+            var op  = Batch.Op.of (conditionSplit [1]);
+            tups    = rows (col, op.range (value));                             // skip blocks by zone maps
+            var hits = batched ? Batch.select (tups, col, op, value) : null;
+            if (hits != null) return toCache (ck, new Table (name + count++, attribute, domain, key, hits));
+            for (var t : tups) {
+                QueryContext.check ();
+                if (compareWithStringOp (t [col], conditionSplit [1], value)) rows.add (t);
+            } // for
+            return toCache (ck, new Table (name + count++, attribute, domain, key, rows));
+        } // if
         // convert to int for comparison purposes if an int
         try {
             int condition2 = Integer.parseInt(String.valueOf(tempCondition2));
-            for (var t : tuples) {
+            for (var t : tups) {
                 // compare each tuple with the condition and if it passes the condition, add it to the new table
                 if (compareWithStringOp(this.extract(t,tempCondition1)[0], conditionSplit[1], condition2)) {
                     rows.add(t);
                 } // if
             } // for t
         } catch (NumberFormatException e) { // is not integer
-            for (var t : tuples) {
+            for (var t : tups) {
                 // compare each tuple with the condition and if it passes the condition, add it to the new table
                 if (compareWithStringOp(this.extract(t,tempCondition1)[0], conditionSplit[1], tempCondition2)) {
                     rows.add(t);
@@ -278,7 +426,7 @@ public class Table
 
 
 
-        return new Table (name + count++, attribute, domain, key, rows);
+        return toCache (ck, new Table (name + count++, attribute, domain, key, rows));
     } // select
 
     /************************************************************************************
@@ -291,10 +439,12 @@ public class Table
     public Table select (KeyType keyVal)
     {
         out.println ("RA> " + name + ".select (" + keyVal + ")");
+        var ck = cached ("select (" + keyVal + ")", this);
+        if (ck.hit () != null) return ck.hit ();
         List <Comparable []> rows = new ArrayList <> ();
         try {
             // try to access the tuple with the given keyVal
-            Comparable[] temp = this.index.get(keyVal);
+            Comparable[] temp = lookup (keyVal);
             // if it exists, add it to rows
             if (temp != null) {
                 out.println("I added a row!");
@@ -305,7 +455,7 @@ public class Table
             out.println("Error: " + e + "occurred in select(KeyType keyVal)");
         }
 
-        return new Table (name + count++, attribute, domain, key, rows);
+        return toCache (ck, new Table (name + count++, attribute, domain, key, rows));
     } // select
 
     /************************************************************************************
@@ -322,20 +472,22 @@ public class Table
     {
         out.println ("RA> " + name + ".union (" + table2.name + ")");
         if (! compatible (table2)) return null;
+        var ck = cached ("union", this, table2);
+        if (ck.hit () != null) return ck.hit ();
 
-        List <Comparable []> rows = new ArrayList <> ();
+        List <Comparable []> rows = QueryContext.rows ();
 
         // Adding all items of both tables
 
-        for (Comparable[] items: table2.tuples) {
+        for (Comparable[] items: table2.rows ()) {
             rows.add(items);
         }
 
-        for(Comparable [] items: this.tuples){
+        for(Comparable [] items: this.rows ()){
             rows.add(items);
         }
 
-        return new Table (name + count++, attribute, domain, key, rows);
+        return toCache (ck, new Table (name + count++, attribute, domain, key, rows));
     } // union
 
     /************************************************************************************
@@ -352,14 +504,18 @@ public class Table
         out.println ("RA> " + name + ".minus (" + table2.name + ")");
         // Check to make sure tables are compatible before proceeding
         if (! compatible (table2)) return null;
+        var ck = cached ("minus", this, table2);
+        if (ck.hit () != null) return ck.hit ();
 
         // create new list to populate with rows
-        List <Comparable []> rows = new ArrayList <> ();
+        List <Comparable []> rows = QueryContext.rows ();
 
         // Check each tuple in both tables and only if it is in table1 but not table 2 add the currentTuple to the new table
-        for (Comparable[] currentTuple: tuples) {
+        var tups2 = table2.rows ();
+        for (Comparable[] currentTuple: rows ()) {
+            QueryContext.check ();
             boolean inTable2 = false;
-            for (Comparable[] tuple2: table2.tuples ) {
+            for (Comparable[] tuple2: tups2 ) {
              if (currentTuple == tuple2) {
                  inTable2 = true;
                  break;
@@ -370,14 +526,15 @@ public class Table
             }
         }
 
-        return new Table (name + count++, attribute, domain, key, rows);
+        return toCache (ck, new Table (name + count++, attribute, domain, key, rows));
     } // minus
 
     /************************************************************************************
      * Join this table and table2 by performing an "equi-join".  Tuples from both tables
      * are compared requiring attributes1 to equal attributes2.  Disambiguate attribute
-     * names by appending "2" to the end of any duplicate attribute name.  Implement using
-     * a NESTED LOOP JOIN ALGORITHM.
+     * names by appending "2" to the end of any duplicate attribute name.  The join
+     * algorithm (nested loop, index, merge or hash join) is chosen at run time from the
+     * sizes of the tables and the indexes available (see Join).
      *
      * #usage movie.join ("studioName", "name", studio)
      *
@@ -390,18 +547,12 @@ public class Table
     {
         out.println ("RA> " + name + ".join (" + attributes1 + ", " + attributes2 + ", "
                         + table2.name + ")");
+        var ck = cached ("join (" + attributes1 + ", " + attributes2 + ")", this, table2);
+        if (ck.hit () != null) return ck.hit ();
 
         var t_attrs = attributes1.split (" ");
         var u_attrs = attributes2.split (" ");
-        var rows    = new ArrayList <Comparable []> ();
-        //Loop through every tuple in both tables and check if they are joinable - if joinable, add to rows
-        for (var t : tuples) {
-            for (var u : table2.tuples) {
-                if (this.joinAble(t, u, t_attrs, u_attrs, table2)) {
-                    rows.add(concat(t, u));
-                } // if
-            } // for u
-        } // for t
+        var rows    = equiJoin (t_attrs, u_attrs, table2);
 
         //Has to be cloned so that it doesn't overwrite the original table
         String[] tempAttr = table2.attribute.clone();
@@ -414,10 +565,136 @@ public class Table
                     tempAttr[i] = (attr + "2");
             }
         }
-        return new Table (name + count++, concat (attribute, tempAttr),
-                                          concat (domain, table2.domain), key, rows);
+        return toCache (ck, new Table (name + count++, concat (attribute, tempAttr),
+                                          concat (domain, table2.domain), key, rows));
     } // join
 
+    /************************************************************************************
+     * Return the tuples of the equi-join of this table and table2, choosing the join
+     * algorithm from the sizes of the tables and the indexes available (see Join):  an
+     * index join probes the index of a table whose key is exactly its join attributes
+     * (the smaller table probing when both are), a hash join builds on the smaller table.
+     * Except in a nested loop join (of small inputs), the probing tuples are first
+     * reduced by the other table's Bloom filter, so only those that may join probe.
+     *
+     * @param t_attrs  the attributes of this table to be compared
+     * @param u_attrs  the attributes of table2 to be compared
+     * @param table2   the rhs table in the join operation
+     * @return  the joined tuples
+     */
+    private List <Comparable []> equiJoin (String [] t_attrs, String [] u_attrs, Table table2)
+    {
+        var rows  = QueryContext.rows ();
+        var tups  = rows ();
+        var tups2 = table2.rows ();
+        var same  = t_attrs.length == u_attrs.length && found (t_attrs) && table2.found (u_attrs);
+        var alg   = Join.Algorithm.NESTED_LOOP;
+        int [] tCols = null, uCols = null, tKey = null, uKey = null;
+        if (same) {
+            tCols = match (t_attrs);
+            uCols = table2.match (u_attrs);
+            uKey  = table2.indexed () ? table2.keyCols (u_attrs, tCols) : null;
+            tKey  = indexed () ? keyCols (t_attrs, uCols) : null;
+            var lCols = tCols;
+            var rCols = uCols;
+            alg = Join.choose (tups.size (), tups2.size (), uKey != null || tKey != null,
+                               () -> sameDomains (lCols, table2, rCols) && Join.sorted (tups, lCols)
+                                                                        && Join.sorted (tups2, rCols));
+        } else {
+            Join.note (alg);
+        } // if
+
+        switch (alg) {
+        case INDEX -> {
+            if (uKey != null && (tKey == null || tups.size () <= tups2.size ())) {
+                indexJoin (reduce (tups, tCols, table2.bloom (u_attrs)), uKey, table2, false, rows);
+            } else {
+                indexJoin (table2.reduce (tups2, uCols, bloom (t_attrs)), tKey, this, true, rows);
+            } // if
+        }
+        case MERGE -> Join.merge (reduce (tups, tCols, table2.bloom (u_attrs)), tCols, tups2, uCols, rows);
+        case HASH -> {
+            if (tups2.size () <= tups.size ()) {
+                Join.hash (reduce (tups, tCols, table2.bloom (u_attrs)), tCols, tups2, uCols, false, rows);
+            } else {
+                Join.hash (table2.reduce (tups2, uCols, bloom (t_attrs)), uCols, tups, tCols, true, rows);
+            } // if
+        }
+        case NESTED_LOOP -> {
+            //Loop through every tuple in both tables and check if they are joinable - if joinable, add to rows
+            if (batched && same) {
+                Batch.probe (tups, tCols, tups2, uCols, rows);
+            } else {
+                for (var t : tups) {
+                    QueryContext.check ();
+                    for (var u : tups2) {
+                        if (this.joinAble(t, u, t_attrs, u_attrs, table2)) {
+                            rows.add(concat(t, u));
+                        } // if
+                    } // for u
+                } // for t
+            } // if
+        }
+        } // switch
+        return rows;
+    } // equiJoin
+
+    /************************************************************************************
+     * Join by looking up each outer tuple's join values in the index of the inner table,
+     * adding the concatenation (left tuple, right tuple) of each match.
+     *
+     * @param outer      the outer tuples
+     * @param keyCols    the outer tuples' columns holding the inner table's key values
+     * @param inner      the indexed table
+     * @param innerLeft  whether the inner table is the left one
+     * @param rows       the list to add the joined tuples to
+     */
+    private static void indexJoin (List <Comparable []> outer, int [] keyCols, Table inner, boolean innerLeft,
+                                   List <Comparable []> rows)
+    {
+        for (var t : outer) {
+            QueryContext.check ();
+            var u = inner.lookup (new KeyType (values (t, keyCols)));
+            if (u != null) rows.add (innerLeft ? concat (u, t) : concat (t, u));
+        } // for
+    } // indexJoin
+
+    /************************************************************************************
+     * Return, in the order of this table's key, the columns of the other table's tuples
+     * joined to the given attributes, or null if the attributes are not exactly the key
+     * (so the index cannot be used for the join).
+     *
+     * @param attrs      this table's join attributes
+     * @param otherCols  the other table's join columns (paired with attrs)
+     * @return  the other table's columns in key order, or null
+     */
+    private int [] keyCols (String [] attrs, int [] otherCols)
+    {
+        if (attrs.length != key.length) return null;
+        var cols = new int [key.length];
+        for (var k = 0; k < key.length; k++) {
+            var j = Arrays.asList (attrs).indexOf (key [k]);
+            if (j < 0) return null;
+            cols [k] = otherCols [j];
+        } // for
+        return cols;
+    } // keyCols
+
+    /************************************************************************************
+     * Return whether the given columns of this table and table2 have the same domains
+     * (so their values can be compared by a merge join).
+     *
+     * @param cols    this table's columns
+     * @param table2  the other table
+     * @param cols2   table2's columns
+     * @return  whether the domains agree
+     */
+    private boolean sameDomains (int [] cols, Table table2, int [] cols2)
+    {
+        for (var j = 0; j < cols.length; j++) if (domain [cols [j]] != table2.domain [cols2 [j]]) return false;
+        return true;
+    } // sameDomains
+
     /************************************************************************************
      * This method is used to check if two tuples are joinable based on a set of attributes
      * @param t The first tuple
@@ -439,7 +716,7 @@ public class Table
         var uValues = table2.extract(u, u_attrs);
         //Loop through the values of the attributes and check if even one is not equal
         for(int i = 0; i < tValues.length; i++) {
-            if(tValues[i] != uValues[i]) {
+            if(! tValues[i].equals(uValues[i])) {
                 return false;
             }
         }
@@ -451,9 +728,16 @@ public class Table
     /************************************************************************************
      * Join this table and table2 by performing a "theta-join".  Tuples from both tables
      * are compared attribute1 op attribute2.  Disambiguate attribute names by appending "2"
-     * to the end of any duplicate attribute name.  Implement using a Nested Loop Join algorithm.
+     * to the end of any duplicate attribute name.  An equality condition is run as an
+     * equi-join (choosing its algorithm).  An inequality on large tables is run as a range
+     * join (see Join), its rows coming in order of table2's attribute for each tuple;
+     * on small tables it uses a Nested Loop Join algorithm.  A band condition
+     *     attribute1 BETWEEN attribute2-k1 AND attribute2+k2
+     * (constant offsets k1, k2, either of which may be omitted) is always a range join.
      *
      * #usage movie.join ("studioName == name", studio)
+     * #usage movie.join ("year < year2", movie2)
+     * #usage movie.join ("year BETWEEN year2-2 AND year2+2", movie2)
      *
      * @param condition  the theta join condition
      * @param table2     the rhs table in the join operation
@@ -462,21 +746,46 @@ public class Table
     public Table join (String condition, Table table2)
     {
         out.println ("RA> " + name + ".join (" + condition + ", " + table2.name + ")");
-
-        var rows = new ArrayList <Comparable []> ();
         String[] conditionSplit = condition.split(" ");
+        if (conditionSplit.length == 5 && conditionSplit[1].equalsIgnoreCase ("BETWEEN")) {
+            return band (conditionSplit[0], conditionSplit[2], conditionSplit[4], condition, table2);
+        } // if
         String[] tempCondition1 = new String[] {conditionSplit[0]};
         String[] tempCondition2 = new String[] {conditionSplit[2]};
-
-        //  T O   B E   I M P L E M E N T E D
-        for (var t : tuples) {
-            for (var u : table2.tuples) {
-                //Run the comparison
-                if (compareWithStringOp(this.extract(t,tempCondition1)[0], conditionSplit[1], table2.extract(u,tempCondition2)[0])) {
-                    rows.add(concat(t, u));
-                } // if
-            } // for u
-        } // for t
+        if (Batch.Op.of (conditionSplit[1]) == Batch.Op.EQ && found (tempCondition1) && table2.found (tempCondition2)) {
+            return join (conditionSplit[0], conditionSplit[2], table2);      // an equi-join:  choose its algorithm
+        } // if
+        var ck = cached ("join (" + condition + ")", this, table2);
+        if (ck.hit () != null) return ck.hit ();
+
+        var rows = QueryContext.rows ();
+
+        var tups   = rows ();
+        var tups2  = table2.rows ();
+        var op     = Batch.Op.of (conditionSplit[1]);
+        var ranged = false;
+        if ((op == Batch.Op.LT || op == Batch.Op.GT) && (long) tups.size () * tups2.size () > Join.SMALL
+                && found (tempCondition1) && table2.found (tempCondition2)
+                && domain [col (conditionSplit[0])] == table2.domain [table2.col (conditionSplit[2])]) {
+            try {
+                Join.range (tups, col (conditionSplit[0]), op, tups2, table2.col (conditionSplit[2]), rows);
+                ranged = true;
+            } catch (ClassCastException ex) {
+                rows.clear ();                                          // values of mixed types:  compare pairwise
+            } // try
+        } // if
+        Join.note (ranged ? Join.Algorithm.RANGE : Join.Algorithm.NESTED_LOOP);
+        if (! ranged) {
+            for (var t : tups) {
+                QueryContext.check ();
+                for (var u : tups2) {
+                    //Run the comparison
+                    if (compareWithStringOp(this.extract(t,tempCondition1)[0], conditionSplit[1], table2.extract(u,tempCondition2)[0])) {
+                        rows.add(concat(t, u));
+                    } // if
+                } // for u
+            } // for t
+        } // if
 
         //Has to be cloned so that it doesn't overwrite the original table
         var tempAttr = table2.attribute.clone();
@@ -488,11 +797,67 @@ public class Table
                     tempAttr[i] = (attr + "2");
             }
         }
-        return new Table (name + count++, concat (attribute, tempAttr),
-                            concat (domain, table2.domain), key, rows);
+        return toCache (ck, new Table (name + count++, concat (attribute, tempAttr),
+                            concat (domain, table2.domain), key, rows));
     } // join
 
 
+    /************************************************************************************
+     * Join this table and table2 on a band condition
+     *     attribute1 BETWEEN attribute2+low AND attribute2+high
+     * using a range join (see Join).  Each bound is table2's attribute with an optional
+     * constant offset (e.g., "year2-2" or "year2").
+     *
+     * @param attribute1  the attribute of this table
+     * @param lower       the lower bound (e.g., "year2-2")
+     * @param upper       the upper bound (e.g., "year2+2")
+     * @param condition   the whole condition (for the cache key)
+     * @param table2      the rhs table in the join operation
+     * @return  a table with tuples satisfying the condition, or null if the condition
+     *          is malformed
+     */
+    private Table band (String attribute1, String lower, String upper, String condition, Table table2)
+    {
+        var lo = BOUND.matcher (lower);
+        var hi = BOUND.matcher (upper);
+        if (! lo.matches () || ! hi.matches () || ! lo.group (1).equals (hi.group (1))
+                || col (attribute1) < 0 || table2.col (lo.group (1)) < 0) {
+            out.println ("join ERROR: malformed band condition " + condition);
+            return null;
+        } // if
+        var col1 = col (attribute1);
+        var col2 = table2.col (lo.group (1));
+        long low, high;
+        try {
+            low  = (lo.group (2) == null) ? 0L : Long.parseLong (lo.group (2).replace ("+", ""));
+            high = (hi.group (2) == null) ? 0L : Long.parseLong (hi.group (2).replace ("+", ""));
+        } catch (NumberFormatException ex) {
+            out.println ("join ERROR: band condition " + condition + " has an offset out of range");
+            return null;
+        } // try
+        if (domain [col1] != table2.domain [col2]) {
+            out.println ("join ERROR: band condition " + condition + " compares different domains");
+            return null;
+        } // if
+        if ((low != 0 || high != 0) && ! Join.numeric (domain [col1])) {
+            out.println ("join ERROR: band condition " + condition + " offsets a non-numeric domain "
+                         + domain [col1].getSimpleName ());
+            return null;
+        } // if
+        var ck = cached ("join (" + condition + ")", this, table2);
+        if (ck.hit () != null) return ck.hit ();
+        Join.note (Join.Algorithm.RANGE);
+
+        var rows = QueryContext.rows ();
+        Join.band (rows (), col1, table2.rows (), col2, low, high, rows);
+        var tempAttr = table2.attribute.clone ();
+        for (var i = 0; i < tempAttr.length; i++) {
+            if (Arrays.asList (attribute).contains (tempAttr [i])) tempAttr [i] += "2";
+        } // for
+        return toCache (ck, new Table (name + count++, concat (attribute, tempAttr),
+                                          concat (domain, table2.domain), key, rows));
+    } // band
+
     /************************************************************************************
      * Takes in two comparable values with an operator and returns a boolean
      * value of the comparison of value1 and value2
@@ -536,37 +901,37 @@ public class Table
     public Table i_join (String attributes1, String attributes2, Table table2)
     {
         out.println ("RA> " + name + ".join (" + attributes1 + ", " + attributes2 + ", " + table2.name + ")");
-        var rows = new ArrayList <Comparable []> ();
+        var ck = cached ("i_join (" + attributes1 + ", " + attributes2 + ")", this, table2);
+        if (ck.hit () != null) return ck.hit ();
+        var rows = QueryContext.rows ();
         String[] attrs1 = attributes1.split(" ");
         String[] attr2 = attributes2.split(" ");
 
-        //Check if table2 is indexed
-        if(table2.index.size() <= 0) {
-            out.println("Table 2 is not indexed, running NFL Join instead");
+        //Check if table2 is indexed on the join attributes (its key)
+        var keyCols = (attrs1.length == attr2.length && found (attrs1) && table2.found (attr2))
+                    ? table2.keyCols (attr2, match (attrs1)) : null;
+        if(! table2.indexed () || keyCols == null) {
+            out.println("Table 2 is not indexed on " + attributes2 + ", choosing another join instead");
             return this.join(attributes1,attributes2, table2);
         }
-
-
-        //Loop through all the tuples in table 1
-        for (var t : tuples) {
+        Join.note (Join.Algorithm.INDEX);
+
+        //Loop through all the tuples in table 1, skipping the index lookup for keys that
+        //table2's Bloom filter rules out
+        var filter = table2.bloom (attr2);
+        var cols   = match (attrs1);
+        for (var t : rows ()) {
+            QueryContext.check ();
             //The Key of the tuple
-            var key = new KeyType(this.extract(t, attrs1));
+            if (! filter.mightContain (new KeyType(values(t, cols)))) continue;
             //Get the index of the key
-            var indexValue = table2.index.get(key);
+            var indexValue = table2.lookup (new KeyType(values(t, keyCols)));
             //If the indexValue is null, then there is no match
             if(indexValue != null) {
                 //They are a match
                 var newRow = concat(t, indexValue);
                 rows.add(newRow);
-                out.println("Match found add new row: ");
-                for(var item: newRow){
-                    System.out.print(item + " ");
-                }
             } // if
-            else {
-                out.println("No match found");
-            }
-            //
         } // for t
 
         //Add 2 to duplicate attribute names
@@ -580,16 +945,17 @@ public class Table
                     tempAttr[i] = (checkAttr + "2");
             }
         }
-        return new Table (name + count++, concat (attribute, tempAttr),
-                concat (domain, table2.domain), key, rows);
+        return toCache (ck, new Table (name + count++, concat (attribute, tempAttr),
+                concat (domain, table2.domain), key, rows));
     } // i_join
 
     public Object getIndexAt(Object key){
-        return index.get(key);
+        return (key instanceof KeyType k) ? lookup (k) : null;
     }
     /************************************************************************************
      * Join this table and table2 by performing an "equi-join".  Same as above, but implemented
-     * using a Hash Join algorithm.
+     * using a Hash Join algorithm.  The hash table is built on the smaller table and is
+     * spilled to disk by partitions when the query's budget cannot hold it (see Join).
      *
      * @param attributes1  the attributes of this table to be compared (Foreign Key)
      * @param attributes2  the attributes of table2 to be compared (Primary Key)
@@ -598,10 +964,33 @@ public class Table
      */
     public Table h_join (String attributes1, String attributes2, Table table2)
     {
+        out.println ("RA> " + name + ".h_join (" + attributes1 + ", " + attributes2 + ", " + table2.name + ")");
+        var t_attrs = attributes1.split (" ");
+        var u_attrs = attributes2.split (" ");
+        if (t_attrs.length != u_attrs.length || ! found (t_attrs) || ! table2.found (u_attrs)) {
+            return join (attributes1, attributes2, table2);
+        } // if
+        var ck = cached ("h_join (" + attributes1 + ", " + attributes2 + ")", this, table2);
+        if (ck.hit () != null) return ck.hit ();
+        Join.note (Join.Algorithm.HASH);
+
+        //Build on the smaller table, probe with the other
+        var rows  = QueryContext.rows ();
+        var tups  = rows ();
+        var tups2 = table2.rows ();
+        if (tups2.size () <= tups.size ()) {
+            Join.hash (tups, match (t_attrs), tups2, table2.match (u_attrs), false, rows);
+        } else {
+            Join.hash (tups2, table2.match (u_attrs), tups, match (t_attrs), true, rows);
+        } // if
 
-        //  D O   N O T   I M P L E M E N T
-
-        return null;
+        //Has to be cloned so that it doesn't overwrite the original table
+        var tempAttr = table2.attribute.clone ();
+        for (var i = 0; i < tempAttr.length; i++) {
+            if (Arrays.asList (attribute).contains (tempAttr [i])) tempAttr [i] += "2";
+        } // for
+        return toCache (ck, new Table (name + count++, concat (attribute, tempAttr),
+                                          concat (domain, table2.domain), key, rows));
     } // h_join
 
     /************************************************************************************
@@ -617,8 +1006,10 @@ public class Table
     public Table join (Table table2)
     {
         out.println ("RA> " + name + ".join (" + table2.name + ")");
+        var ck = cached ("join", this, table2);
+        if (ck.hit () != null) return ck.hit ();
 
-        var rows = new ArrayList <Comparable []> ();
+        var rows = QueryContext.rows ();
 
         //Find the common attributes
         StringBuilder CommonAttrBuilder = new StringBuilder();
@@ -657,13 +1048,13 @@ public class Table
         var newDomainArr = newDomainList.toArray(new Class[0]);
         //Remove Duplicate columns
         //Loop through every tuple and extract only the columns needed
-        for(var tup : joinedTable.tuples) {
+        for(var tup : joinedTable.rows ()) {
             var newTup = joinedTable.extract(tup, newAttrsArr);
             rows.add(newTup);
         } //for tup
         //Remove the common columns
-        return new Table (name + count++, newAttrsArr,
-                                          newDomainArr, key, rows);
+        return toCache (ck, new Table (name + count++, newAttrsArr,
+                                          newDomainArr, key, rows));
     } // join
 
     /************************************************************************************
@@ -686,6 +1077,8 @@ public class Table
      *
      * #usage movie.insert ("Star_Wars", 1977, 124, "T", "Fox", 12345)
      *
+     * The insert commits at once; use a Transaction to make several inserts atomic.
+     *
      * @param tup  the array of attribute values forming the tuple
      * @return  whether insertion was successful
      */
@@ -694,17 +1087,143 @@ public class Table
         out.println ("DML> insert into " + name + " values ( " + Arrays.toString (tup) + " )");
 
         if (typeCheck (tup)) {
-            tuples.add (tup);
-            var keyVal = new Comparable [key.length];
-            var cols   = match (key);
-            for (var j = 0; j < keyVal.length; j++) keyVal [j] = tup [cols [j]];
-            if (mType != MapType.NO_MAP) index.put (new KeyType (keyVal), tup);
+            var keyVal = keyOf (tup);
+            var owner  = new Object ();                                     // a single-statement transaction
+            try {
+                Transaction.locks ().lockKey (owner, this, keyVal, LockManager.Mode.X);
+                var old = replaces () ? lookup (keyVal) : null;
+                if (old != null && tuples.update (old, tup) != null) {     // replaces the old version
+                    indexPut (keyVal, tup);
+                    emit (List.<Comparable []>of (old), List.<Comparable []>of (tup));
+                } else {
+                    tuples.add (tup);                                       // commits a new version
+                    indexPut (keyVal, tup);
+                    emit (List.of (), List.<Comparable []>of (tup));
+                } // if
+            } finally {
+                Transaction.locks ().releaseAll (owner);
+            } // try
+            changed ();
             return true;
         } else {
             return false;
         } // if
     } // insert
 
+    /************************************************************************************
+     * Update the tuple with the given primary key, replacing it with tup.  The old
+     * version is ended (leaving a tombstone for background compaction) and the new one
+     * added in the same commit, and the index is updated (also if the key changes).  An
+     * update changing the key to that of another tuple is refused.
+     *
+     * #usage movie.update (new KeyType ("Rocky", 1985), new Comparable [] { "Rocky", 1985, 119, ... })
+     *
+     * @param keyVal  the primary key of the tuple to update
+     * @param tup     the new tuple
+     * @return  whether a tuple with that key was found and updated
+     */
+    public boolean update (KeyType keyVal, Comparable [] tup)
+    {
+        out.println ("DML> update " + name + " set " + Arrays.toString (tup) + " where key = " + keyVal);
+        if (! typeCheck (tup)) return false;
+
+        var newKey = keyOf (tup);
+        var owner  = new Object ();
+        try {
+            Transaction.locks ().lockKey (owner, this, keyVal, LockManager.Mode.X);
+            if (! newKey.equals (keyVal)) {
+                Transaction.locks ().lockKey (owner, this, newKey, LockManager.Mode.X);
+                if (lookup (newKey) != null) {
+                    out.println ("update ERROR: key " + newKey + " already exists in " + name);
+                    return false;
+                } // if
+            } // if
+            var old = lookup (keyVal);
+            if (old == null) return false;
+            var pair = tuples.update (old, tup);
+            if (pair == null) return false;
+            var pairs = List.<Comparable [][]> of (pair);
+            reindex (pairs);
+            emit (pairs);
+            return true;
+        } finally {
+            Transaction.locks ().releaseAll (owner);
+            changed ();
+        } // try
+    } // update
+
+    /************************************************************************************
+     * Update the tuples satisfying the predicate, replacing each with fn applied to it,
+     * in one commit.  The index is kept consistent with the new tuples.  An update
+     * giving two tuples the same key, or a tuple the key of another tuple not itself
+     * updated, is refused as a whole.
+     *
+     * #usage movie.update (t -> t[movie.col("studioName")].equals ("Fox"), t -> ...)
+     *
+     * @param predicate  the condition selecting the tuples to update
+     * @param fn         the function giving the new tuple for an old one
+     * @return  the number of tuples updated
+     */
+    public int update (Predicate <Comparable []> predicate, UnaryOperator <Comparable []> fn)
+    {
+        out.println ("DML> update " + name + " where " + predicate);
+        var owner = new Object ();
+        Transaction.locks ().lockTable (owner, this, LockManager.Mode.X);
+        try {
+            var olds = new ArrayList <Comparable []> ();
+            var news = new ArrayList <Comparable []> ();
+            for (var t : rows ()) {
+                if (predicate.test (t)) {
+                    olds.add (t);
+                    news.add (fn.apply (t));
+                } // if
+            } // for
+            var moved = new HashSet <KeyType> ();
+            for (var t : olds) moved.add (keyOf (t));
+            var made = new HashSet <KeyType> ();
+            for (var t : news) {
+                var newKey = keyOf (t);
+                if (! made.add (newKey) || ! moved.contains (newKey) && lookup (newKey) != null) {
+                    out.println ("update ERROR: key " + newKey + " would be duplicated in " + name);
+                    return 0;
+                } // if
+            } // for
+            var pairs = tuples.update (olds, news);
+            reindex (pairs);
+            emit (pairs);
+            return pairs.size ();
+        } finally {
+            Transaction.locks ().releaseAll (owner);
+            changed ();
+        } // try
+    } // update
+
+    /************************************************************************************
+     * Delete the tuples satisfying the predicate, in one commit.  Each deleted version
+     * is only stamped with an end time (a tombstone, O(1) per tuple); the tuples are
+     * removed from the index at once and from storage by background compaction.
+     *
+     * #usage movie.delete (t -> t[movie.col("year")].equals (1977))
+     *
+     * @param predicate  the condition selecting the tuples to delete
+     * @return  the number of tuples deleted
+     */
+    public int delete (Predicate <Comparable []> predicate)
+    {
+        out.println ("DML> delete from " + name + " where " + predicate);
+        var owner = new Object ();
+        Transaction.locks ().lockTable (owner, this, LockManager.Mode.X);
+        try {
+            var olds = tuples.expire (predicate);
+            for (var t : olds) indexRemove (keyOf (t));
+            emit (olds, List.of ());
+            return olds.size ();
+        } finally {
+            Transaction.locks ().releaseAll (owner);
+            changed ();
+        } // try
+    } // delete
+
     /************************************************************************************
      * Get the name of the table.
      *
@@ -730,7 +1249,7 @@ public class Table
         out.print ("|-");
         out.print ("---------------".repeat (attribute.length));
         out.println ("-|");
-        for (var tup : tuples) {
+        for (var tup : rows ()) {
             out.print ("| ");
             for (var attr : tup) out.printf ("%15s", attr);
             out.println (" |");
@@ -748,9 +1267,14 @@ public class Table
         out.println ("\n Index for " + name);
         out.println ("-------------------");
         if (mType != MapType.NO_MAP) {
-            for (var e : index.entrySet ()) {
-                out.println (e.getKey () + " -> " + Arrays.toString (e.getValue ()));
-            } // for
+            indexLock.lock ();
+            try {
+                for (var e : index.entrySet ()) {
+                    out.println (e.getKey () + " -> " + Arrays.toString (e.getValue ()));
+                } // for
+            } finally {
+                indexLock.unlock ();
+            } // try
         } // if
         out.println ("-------------------");
     } // printIndex
@@ -768,6 +1292,7 @@ public class Table
             ObjectInputStream ois = new ObjectInputStream (new FileInputStream (DIR + name + EXT));
             tab = (Table) ois.readObject ();
             ois.close ();
+            if (tab.incremental ()) tab.deltas = DeltaLog.replay (tab);
         } catch (IOException ex) {
             out.println ("load: IO Exception");
             ex.printStackTrace ();
@@ -779,24 +1304,547 @@ public class Table
     } // load
 
     /************************************************************************************
-     * Save this table in a file.
+     * Save this table in a file.  The first save writes the whole table; later ones
+     * append only the changes made since the previous save (see DeltaLog).
      */
     public void save ()
     {
         try {
-            var oos = new ObjectOutputStream (new FileOutputStream (DIR + name + EXT));
-            oos.writeObject (this);
-            oos.close ();
+            var log = deltas;
+            if (log != null) {
+                log.checkpoint ();
+            } else {
+                startLog ();                                                // log the changes from here on
+                DeltaLog.writeBase (this, rows (), 0);
+            } // if
+            Database.writeSchema (this);
         } catch (IOException ex) {
             out.println ("save: IO Exception");
             ex.printStackTrace ();
         } // try
     } // save
 
+    /************************************************************************************
+     * Checkpoint this table in the background:  write a snapshot of it as its file on
+     * the background I/O thread at the default bandwidth, while writers carry on.
+     *
+     * #usage movie.checkpoint ().join ();
+     *
+     * @return  the checkpoint's completion
+     */
+    public java.util.concurrent.CompletableFuture <Void> checkpoint ()
+    {
+        return checkpoint (DeltaLog.RATE);
+    } // checkpoint
+
+    /************************************************************************************
+     * Checkpoint this table in the background, writing at the given bandwidth.
+     *
+     * @param bytesPerSecond  the bandwidth to write at (0 for unthrottled)
+     * @return  the checkpoint's completion
+     */
+    public java.util.concurrent.CompletableFuture <Void> checkpoint (long bytesPerSecond)
+    {
+        if (! incremental ()) return java.util.concurrent.CompletableFuture.runAsync (this::save, DeltaLog.WORKER);
+        try {
+            startLog ();
+        } catch (IOException ex) {
+            return java.util.concurrent.CompletableFuture.failedFuture (ex);
+        } // try
+        return deltas.compact (bytesPerSecond);
+    } // checkpoint
+
+    /************************************************************************************
+     * Start logging this table's changes (once), discarding the segments of any old
+     * table of the same name.
+     *
+     * @throws IOException  if an old segment cannot be deleted
+     */
+    private synchronized void startLog ()
+        throws IOException
+    {
+        if (deltas != null || ! incremental ()) return;
+        DeltaLog.clear (name);
+        deltas = new DeltaLog (this, 0, 0, 0);
+    } // startLog
+
+    /************************************************************************************
+     * Return the object to write as the table's file given a snapshot of its tuples:
+     * a copy holding just those tuples, with its own index of them unless the index is
+     * kept in its own file, so writing it needs no lock and does not block writers.
+     *
+     * @param rows  the snapshot of the tuples
+     * @return  the object to serialize
+     */
+    Table image (List <Comparable []> rows)
+    {
+        var shared = index instanceof LinHashFile || index instanceof BpTreeFile;
+        var copy   = new Table (name, attribute, domain, key, rows, shared ? index : makeMap (name));
+        if (! shared) for (var t : rows) copy.indexPut (keyOf (t), t);
+        return copy;
+    } // image
+
+    /************************************************************************************
+     * Return whether saves of this table append its changes to the file rather than
+     * rewriting it (false for tables stored otherwise, e.g., in an LsmTree or in
+     * partitions).
+     *
+     * @return  whether saving is incremental
+     */
+    boolean incremental ()
+    {
+        return true;
+    } // incremental
+
+    /************************************************************************************
+     * Return whether an insert of an existing key replaces the tuple with that key
+     * (true for tables whose index keeps only the latest tuple per key, e.g., an
+     * LsmTree).
+     *
+     * @return  whether inserts replace
+     */
+    boolean replaces ()
+    {
+        return false;
+    } // replaces
+
+    /************************************************************************************
+     * Return the log of changes since the last save (null if not saved or loaded).
+     *
+     * @return  the delta log
+     */
+    DeltaLog deltas ()
+    {
+        return deltas;
+    } // deltas
+
+    /************************************************************************************
+     * Load the table with the given name by memory-mapping its ".dbm" file (see
+     * saveMapped):  only the header is read now, and tuples are decoded as they are
+     * accessed.  Falls back to load when the table has no mapped file.
+     *
+     * @param name  the name of the table to load
+     * @return the table with the name given by String name.
+     */
+    public static Table loadMapped (String name)
+    {
+        var path = java.nio.file.Paths.get (DIR + name + MappedTable.EXT);
+        if (! java.nio.file.Files.exists (path)) return load (name);
+        try {
+            return MappedTable.open (path);
+        } catch (IOException ex) {
+            out.println ("loadMapped: IO Exception");
+            ex.printStackTrace ();
+        } // try
+        return null;
+    } // loadMapped
+
+    /************************************************************************************
+     * Save this table's tuples in a file laid out to be memory-mapped by loadMapped.
+     */
+    public void saveMapped ()
+    {
+        try {
+            MappedTable.write (this, java.nio.file.Paths.get (DIR + name + MappedTable.EXT));
+            Database.writeSchema (this);
+        } catch (IOException ex) {
+            out.println ("saveMapped: IO Exception");
+            ex.printStackTrace ();
+        } // try
+    } // saveMapped
+
+    /************************************************************************************
+     * Invalidate the cached results computed from this table after it changes.
+     */
+    void changed ()
+    {
+        var c = cache;
+        if (c != null) c.invalidate (tuples.id ());
+    } // changed
+
+    /************************************************************************************
+     * Add a receiver of this table's changes.  Changes are passed on in commit order for
+     * each key, while the writer still holds its locks.
+     *
+     * @param feed  the receiver of the old and new tuples of each change
+     */
+    synchronized void addFeed (BiConsumer <List <Comparable []>, List <Comparable []>> feed)
+    {
+        var fs = (feeds == null) ? new ArrayList <BiConsumer <List <Comparable []>, List <Comparable []>>> ()
+                                 : new ArrayList <> (feeds);
+        fs.add (feed);
+        feeds = List.copyOf (fs);
+    } // addFeed
+
+    /************************************************************************************
+     * Remove a receiver of this table's changes.
+     *
+     * @param feed  the receiver to remove
+     */
+    synchronized void removeFeed (BiConsumer <List <Comparable []>, List <Comparable []>> feed)
+    {
+        if (feeds == null) return;
+        var fs = new ArrayList <> (feeds);
+        fs.remove (feed);
+        feeds = fs.isEmpty () ? null : List.copyOf (fs);
+    } // removeFeed
+
+    /************************************************************************************
+     * Pass a change on to the feeds (if any).
+     *
+     * @param olds  the tuples removed or replaced
+     * @param news  the tuples added (the replacements, in the same order)
+     */
+    void emit (List <Comparable []> olds, List <Comparable []> news)
+    {
+        var fs = feeds;
+        if (fs == null || (olds.isEmpty () && news.isEmpty ())) return;
+        for (var f : fs) f.accept (olds, news);
+    } // emit
+
+    /************************************************************************************
+     * Pass the pairs {old tuple, new tuple} of an update on to the feeds.
+     */
+    private void emit (List <Comparable [][]> pairs)
+    {
+        if (feeds == null) return;
+        var olds = new ArrayList <Comparable []> (pairs.size ());
+        var news = new ArrayList <Comparable []> (pairs.size ());
+        for (var p : pairs) { olds.add (p [0]); news.add (p [1]); }
+        emit (olds, news);
+    } // emit
+
+    /************************************************************************************
+     * Return the attribute names.
+     *
+     * @return  the attributes
+     */
+    String [] attributes ()
+    {
+        return attribute;
+    } // attributes
+
+    /************************************************************************************
+     * Return the tuples visible at the latest commit (a snapshot).  Every operator reads
+     * its inputs through this method.
+     *
+     * @return  the visible tuples
+     */
+    List <Comparable []> rows ()
+    {
+        return tuples.snapshot ();
+    } // rows
+
+    /************************************************************************************
+     * Return the tuples visible at the latest commit, less those in blocks whose zone
+     * maps show no value in the column passes the range test.
+     *
+     * @param col    the column tested
+     * @param range  the test of a block's least and greatest values in the column
+     * @return  the visible tuples that may pass
+     */
+    List <Comparable []> rows (int col, TupleStore.Range range)
+    {
+        return tuples.snapshot (col, range);
+    } // rows
+
+    /************************************************************************************
+     * Return the version of the table's contents (the commit time of its last change).
+     *
+     * @return  the version
+     */
+    long version ()
+    {
+        return tuples.version ();
+    } // version
+
+    /************************************************************************************
+     * Return the tables physically holding this table's tuples (just this table unless
+     * it is partitioned).
+     *
+     * @return  the partitions
+     */
+    List <Table> partitions ()
+    {
+        return List.of (this);
+    } // partitions
+
+    /************************************************************************************
+     * Return the partition the tuple belongs in (this table unless it is partitioned).
+     *
+     * @param tup  the tuple
+     * @return  the table to store it in
+     */
+    Table partitionFor (Comparable [] tup)
+    {
+        return this;
+    } // partitionFor
+
+    /************************************************************************************
+     * Make a temporary table with this table's schema holding the given tuples.
+     *
+     * @param rows  the tuples
+     * @return  the new table
+     */
+    Table derive (List <Comparable []> rows)
+    {
+        return new Table (name + count++, attribute, domain, key, rows);
+    } // derive
+
+    /************************************************************************************
+     * Return the primary key attributes.
+     *
+     * @return  the key
+     */
+    String [] primaryKey ()
+    {
+        return key;
+    } // primaryKey
+
+    /************************************************************************************
+     * Parse a value of the given domain from a string.
+     *
+     * @param s    the string
+     * @param dom  the domain (e.g., Integer.class)
+     * @return  the value
+     */
+    static Comparable parse (String s, Class dom)
+    {
+        return switch (dom.getSimpleName ()) {
+        case "Byte"      -> Byte.valueOf (s);
+        case "Short"     -> Short.valueOf (s);
+        case "Integer"   -> Integer.valueOf (s);
+        case "Long"      -> Long.valueOf (s);
+        case "Float"     -> Float.valueOf (s);
+        case "Double"    -> Double.valueOf (s);
+        case "Character" -> s.charAt (0);
+        default          -> s;
+        }; // switch
+    } // parse
+
+    /************************************************************************************
+     * Return the store holding this table's tuple versions.
+     *
+     * @return  the tuple store
+     */
+    TupleStore store ()
+    {
+        return tuples;
+    } // store
+
+    /************************************************************************************
+     * Return the primary key value of the tuple.
+     *
+     * @param tup  the tuple
+     * @return  its key
+     */
+    KeyType keyOf (Comparable [] tup)
+    {
+        var keyVal = new Comparable [key.length];
+        var cols   = match (key);
+        for (var j = 0; j < keyVal.length; j++) keyVal [j] = tup [cols [j]];
+        return new KeyType (keyVal);
+    } // keyOf
+
+    /************************************************************************************
+     * Add the tuple to the index under the given key (if the table is indexed).
+     *
+     * @param keyVal  the key value
+     * @param tup     the tuple
+     */
+    void indexPut (KeyType keyVal, Comparable [] tup)
+    {
+        if (mType == MapType.NO_MAP) return;
+        if (index instanceof ConcurrentLinHashMap || index instanceof LsmTree) {
+            index.put (keyVal, tup);
+        } else {
+            indexLock.lock ();
+            try { index.put (keyVal, tup); } finally { indexLock.unlock (); }
+        } // if
+    } // indexPut
+
+    /************************************************************************************
+     * Remove the given key from the index (if the table is indexed).
+     *
+     * @param keyVal  the key value
+     */
+    void indexRemove (KeyType keyVal)
+    {
+        if (mType == MapType.NO_MAP) return;
+        if (index instanceof ConcurrentLinHashMap || index instanceof LsmTree) {
+            index.remove (keyVal);
+        } else {
+            indexLock.lock ();
+            try { index.remove (keyVal); } finally { indexLock.unlock (); }
+        } // if
+    } // indexRemove
+
+    /************************************************************************************
+     * Apply a change made to another copy of this table (e.g., shipped to a Replica),
+     * in one commit:  the tuples with the keys of olds are replaced by news in the same
+     * positions (or deleted if there are no news), and news beyond the olds inserted.
+     * The tuples are found through the index, so the change costs O(its size).
+     *
+     * @param olds  the old tuples (as the other copy had them)
+     * @param news  the new tuples
+     */
+    void apply (List <Comparable []> olds, List <Comparable []> news)
+    {
+        var owner = new Object ();
+        try {
+            for (var t : olds) Transaction.locks ().lockKey (owner, this, keyOf (t), LockManager.Mode.X);
+            for (var t : news) Transaction.locks ().lockKey (owner, this, keyOf (t), LockManager.Mode.X);
+            var curs = new ArrayList <Comparable []> (olds.size ());
+            var reps = new ArrayList <Comparable []> (news.size ());
+            var adds = new ArrayList <Comparable []> ();
+            for (var i = 0; i < olds.size (); i++) {
+                var cur = lookup (keyOf (olds.get (i)));
+                if (cur != null) {
+                    curs.add (cur);
+                    if (! news.isEmpty ()) reps.add (news.get (i));
+                } else if (! news.isEmpty ()) {
+                    adds.add (news.get (i));                                // missing here:  insert it
+                } // if
+            } // for
+            if (news.size () > olds.size ()) adds.addAll (news.subList (olds.size (), news.size ()));
+            reps.addAll (adds);
+            var pairs = tuples.update (curs, reps);
+            var gone  = new ArrayList <Comparable []> (pairs.size ());
+            var made  = new ArrayList <Comparable []> (reps.size ());
+            for (var p : pairs) {
+                gone.add (p [0]);
+                if (p [1] != null) made.add (p [1]);
+            } // for
+            made.addAll (adds);
+            for (var t : gone) indexRemove (keyOf (t));
+            for (var t : made) indexPut (keyOf (t), t);
+            emit (gone, made);
+        } finally {
+            Transaction.locks ().releaseAll (owner);
+            changed ();
+        } // try
+    } // apply
+
+    /************************************************************************************
+     * Move the index entries of updated tuples from their old to their new versions.
+     *
+     * @param pairs  the pairs {old tuple, new tuple}
+     */
+    private void reindex (List <Comparable [][]> pairs)
+    {
+        for (var p : pairs) indexRemove (keyOf (p [0]));
+        for (var p : pairs) indexPut (keyOf (p [1]), p [1]);
+    } // reindex
+
     //----------------------------------------------------------------------------------
     // Private Methods
     //----------------------------------------------------------------------------------
 
+    /************************************************************************************
+     * Look up the result of an operator in the cache (if enabled).  The key is the
+     * operator with its arguments followed by the lineage and version of each input,
+     * so it names both the operator tree and the data it was applied to.
+     *
+     * @param op      the operator and its arguments
+     * @param inputs  the input tables
+     * @return  the pending lookup, holding the cached result if there was one
+     */
+    static Cached cached (String op, Table... inputs)
+    {
+        var c = cache;
+        if (c == null) return NO_CACHE;
+        var sb  = new StringBuilder (op);
+        var ids = new long [inputs.length];
+        for (var i = 0; i < inputs.length; i++) {
+            var in = inputs [i];
+            sb.append (" [").append ((in.lineage != null) ? in.lineage : in.name + "#" + in.tuples.id ())
+              .append (" @").append (in.version ()).append (']');
+            ids [i] = in.tuples.id ();
+        } // for
+        var key = sb.toString ();
+        return new Cached (c, key, System.nanoTime (), ids, c.get (key));
+    } // cached
+
+    /************************************************************************************
+     * Cache the result of an operator (if the cache is enabled) and return it.
+     *
+     * @param ck      the pending lookup
+     * @param result  the operator's result
+     * @return  the result
+     */
+    static Table toCache (Cached ck, Table result)
+    {
+        if (ck.cache () == null) return result;
+        result.lineage = ck.key ();
+        ck.cache ().put (ck.key (), result, System.nanoTime () - ck.start (), ck.inputs ());
+        return result;
+    } // toCache
+
+    /************************************************************************************
+     * Look up the tuple with the given key in the index.  Except for ConcurrentLinHashMap
+     * and LsmTree, the index maps are not thread-safe, so access to them is serialised.
+     *
+     * @param keyVal  the key value
+     * @return  the tuple with that key or null if there is none
+     */
+    Comparable [] lookup (KeyType keyVal)
+    {
+        if (index instanceof ConcurrentLinHashMap || index instanceof LsmTree) return index.get (keyVal);
+        indexLock.lock ();
+        try { return index.get (keyVal); } finally { indexLock.unlock (); }
+    } // lookup
+
+    /************************************************************************************
+     * Return a Bloom filter of the values of the given attributes in this table's
+     * tuples.  The filter is kept and reused until the table changes.
+     *
+     * @param attrs  the attributes (e.g., the join attributes or the primary key)
+     * @return  the filter
+     */
+    BloomFilter bloom (String [] attrs)
+    {
+        var m = blooms;
+        if (m == null) blooms = m = new java.util.concurrent.ConcurrentHashMap <> ();
+        var name  = String.join (" ", attrs);
+        var ver   = version ();
+        var built = m.get (name);
+        if (built != null && built.version () == ver) return built.filter ();
+
+        var rows   = rows ();                                               // at least as new as ver
+        var cols   = match (attrs);
+        var filter = new BloomFilter (rows.size ());
+        for (var t : rows) filter.add (new KeyType (values (t, cols)));
+        m.put (name, new Built (ver, filter));
+        return filter;
+    } // bloom
+
+    /************************************************************************************
+     * Return the tuples whose values in the given columns may pass the filter (a
+     * semi-join reduction of this table by the table the filter was built from).
+     *
+     * @param tups    the tuples of this table to reduce
+     * @param cols    the columns to test
+     * @param filter  the filter
+     * @return  the tuples passing the filter
+     */
+    List <Comparable []> reduce (List <Comparable []> tups, int [] cols, BloomFilter filter)
+    {
+        var kept = QueryContext.rows ();
+        for (var t : tups) if (filter.mightContain (new KeyType (values (t, cols)))) kept.add (t);
+        Join.reduced (tups.size () - kept.size ());
+        return kept;
+    } // reduce
+
+    /************************************************************************************
+     * Return whether the table's index holds any entries (so index lookups can be used).
+     *
+     * @return  whether the table is indexed
+     */
+    boolean indexed ()
+    {
+        return ! index.isEmpty ();
+    } // indexed
+
     /************************************************************************************
      * Determine whether the two tables (this and table2) are compatible, i.e., have
      * the same number of attributes each with the same corresponding domain.
@@ -845,6 +1893,32 @@ public class Table
         return colPos;
     } // match
 
+    /************************************************************************************
+     * Return whether all the given attributes are attributes of this table.
+     *
+     * @param column  the array of column names
+     * @return  whether each is found
+     */
+    private boolean found (String [] column)
+    {
+        for (var c : column) if (col (c) < 0) return false;
+        return true;
+    } // found
+
+    /************************************************************************************
+     * Return the values of tuple t at the given column positions.
+     *
+     * @param t     the tuple to take values from
+     * @param cols  the column positions
+     * @return  the values
+     */
+    private static Comparable [] values (Comparable [] t, int [] cols)
+    {
+        var vals = new Comparable [cols.length];
+        for (var j = 0; j < cols.length; j++) vals [j] = t [cols [j]];
+        return vals;
+    } // values
+
     /************************************************************************************
      * Extract the attributes specified by the column array from tuple t.
      *
@@ -881,7 +1955,7 @@ public class Table
      * @param className  the array of class name (e.g., {"Integer", "String"})
      * @return  an array of Java classes
      */
-    private static Class [] findClass (String [] className)
+    static Class [] findClass (String [] className)
     {
         var classArray = new Class [className.length];
 
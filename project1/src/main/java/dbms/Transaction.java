@@ -0,0 +1,228 @@
+package dbms;
+/************************************************************************************
+ * @file Transaction.java
+ */
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.System.out;
+
+/************************************************************************************
+ * The Transaction class groups inserts into one or more tables so that they take effect
+ * atomically:  either all of them become visible (at one commit time) or none do.
+ * <p>
+ * A transaction reads the snapshot taken when it began, plus its own inserts.  Each
+ * insert locks the tuple's key exclusively (with an intention lock on its table) under
+ * strict two-phase locking, so concurrent transactions inserting the same keys are
+ * serialised while those touching different keys proceed in parallel, and an insert
+ * whose key is already taken (checked under the key's lock) is refused.  If a lock
+ * request deadlocks or times out, the transaction is aborted and the DeadlockException
+ * is rethrown to the caller, who may retry.
+ *
+ * #usage try (var tx = Transaction.begin ()) {
+ *            tx.insert (movie, film);  tx.insert (starsIn, cast);  tx.commit ();
+ *        }
+ */
+public class Transaction
+       implements AutoCloseable
+{
+    /** The lock manager shared by all transactions (and single-statement inserts)
+     */
+    private static final LockManager LOCKS = new LockManager (10_000);
+
+    /** Source of transaction identifiers
+     */
+    private static final AtomicLong IDS = new AtomicLong ();
+
+    /** The transaction identifier
+     */
+    private final long id;
+
+    /** The time of the snapshot the transaction reads
+     */
+    private final long startTs;
+
+    /** The tuples inserted so far, by table or partition (in insertion order)
+     */
+    private final Map <Table, List <Comparable []>> inserts = new LinkedHashMap <> ();
+
+    /** The keys of the tuples inserted so far, by table or partition
+     */
+    private final Map <Table, Set <KeyType>> keys = new HashMap <> ();
+
+    /** The tables inserted into (whose cached results commit invalidates)
+     */
+    private final Set <Table> touched = new LinkedHashSet <> ();
+
+    /** Whether the transaction has neither committed nor aborted
+     */
+    private boolean active = true;
+
+    /********************************************************************************
+     * Construct a transaction, pinning its snapshot.
+     */
+    private Transaction ()
+    {
+        id      = IDS.incrementAndGet ();
+        startTs = VersionClock.pin (this);
+    } // constructor
+
+    /********************************************************************************
+     * Begin a new transaction.
+     * @return  the transaction
+     */
+    public static Transaction begin ()
+    {
+        return new Transaction ();
+    } // begin
+
+    /********************************************************************************
+     * Return the lock manager used by transactions (e.g., for its metrics).
+     * @return  the lock manager
+     */
+    public static LockManager locks ()
+    {
+        return LOCKS;
+    } // locks
+
+    /********************************************************************************
+     * Insert a tuple into a table as part of this transaction.  It is visible to this
+     * transaction at once and to others when the transaction commits.  The insert is
+     * refused if a tuple with the same key has been committed or inserted by this
+     * transaction (the key stays locked, so it cannot be committed meanwhile).
+     * @param table  the table to insert into
+     * @param tup    the tuple to insert
+     * @return  whether the tuple was inserted (false for a duplicate key)
+     */
+    public boolean insert (Table table, Comparable [] tup)
+    {
+        checkActive ();
+        var target = table.partitionFor (tup);
+        var key    = target.keyOf (tup);
+        try {
+            LOCKS.lockKey (this, target, key, LockManager.Mode.X);
+        } catch (LockManager.DeadlockException ex) {
+            abort ();
+            throw ex;
+        } // try
+        var mine = keys.computeIfAbsent (target, t -> new HashSet <> ());
+        if (mine.contains (key) || target.lookup (key) != null) {
+            out.println ("TX" + id + "> insert ERROR: duplicate key " + key + " in " + table.getName ());
+            return false;
+        } // if
+        mine.add (key);
+        inserts.computeIfAbsent (target, t -> new ArrayList <> ()).add (tup);
+        touched.add (table);
+        return true;
+    } // insert
+
+    /********************************************************************************
+     * Lock a whole table (every partition of it), e.g., in mode S to keep others from inserting into it, or X
+     * for a bulk load.
+     * @param table  the table to lock
+     * @param mode   the lock mode
+     */
+    public void lock (Table table, LockManager.Mode mode)
+    {
+        checkActive ();
+        try {
+            for (var part : table.partitions ()) LOCKS.lockTable (this, part, mode);
+        } catch (LockManager.DeadlockException ex) {
+            abort ();
+            throw ex;
+        } // try
+    } // lock
+
+    /********************************************************************************
+     * Return the tuples of the table as seen by this transaction:  its snapshot
+     * followed by its own inserts.
+     * @param table  the table to read
+     * @return  the visible tuples
+     */
+    public List <Comparable []> read (Table table)
+    {
+        checkActive ();
+        var rows = new ArrayList <Comparable []> ();
+        for (var part : table.partitions ()) {
+            rows.addAll (part.store ().snapshot (startTs));
+            rows.addAll (inserts.getOrDefault (part, List.of ()));
+        } // for
+        return rows;
+    } // read
+
+    /********************************************************************************
+     * Commit the transaction:  append all its inserts at one commit time, update the
+     * indices and release its locks.
+     */
+    public void commit ()
+    {
+        checkActive ();
+        try {
+            if (! inserts.isEmpty ()) {
+                var byStore = new IdentityHashMap <TupleStore, List <Comparable []>> ();
+                for (var e : inserts.entrySet ()) byStore.put (e.getKey ().store (), e.getValue ());
+                var ts = TupleStore.addAll (byStore);
+                for (var e : inserts.entrySet ()) {
+                    for (var tup : e.getValue ()) e.getKey ().indexPut (e.getKey ().keyOf (tup), tup);
+                    e.getKey ().emit (List.of (), e.getValue ());
+                    e.getKey ().changed ();
+                } // for
+                for (var t : touched) t.changed ();
+                out.println ("TX" + id + "> commit at " + ts);
+            } // if
+        } finally {
+            finish ();
+        } // try
+    } // commit
+
+    /********************************************************************************
+     * Abort the transaction, discarding its inserts and releasing its locks.
+     */
+    public void abort ()
+    {
+        if (! active) return;
+        out.println ("TX" + id + "> abort");
+        inserts.clear ();
+        keys.clear ();
+        touched.clear ();
+        finish ();
+    } // abort
+
+    /********************************************************************************
+     * Abort the transaction if it is still active (for try-with-resources).
+     */
+    public void close ()
+    {
+        abort ();
+    } // close
+
+    /********************************************************************************
+     * Return whether the transaction is still active.
+     * @return  whether it has neither committed nor aborted
+     */
+    public boolean isActive ()
+    {
+        return active;
+    } // isActive
+
+    /********************************************************************************
+     * End the transaction:  release its locks and its snapshot.
+     */
+    private void finish ()
+    {
+        active = false;
+        LOCKS.releaseAll (this);
+        VersionClock.unpin (this);
+    } // finish
+
+    /********************************************************************************
+     * Check that the transaction may still be used.
+     */
+    private void checkActive ()
+    {
+        if (! active) throw new IllegalStateException ("transaction " + id + " has ended");
+    } // checkActive
+
+} // Transaction class
+
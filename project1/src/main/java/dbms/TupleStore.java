@@ -0,0 +1,706 @@
+package dbms;
+/************************************************************************************
+ * @file TupleStore.java
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import static java.lang.System.out;
+
+/************************************************************************************
+ * The TupleStore class holds the tuples of a table as versions stamped with the commit
+ * times at which they began and ended (multi-version concurrency control).
+ * <p>
+ * Versions are kept in the arrays of a segment.  Writers (serialised by the store's
+ * lock) only append versions and stamp end times, publishing through volatile
+ * fields, and a grown or compacted segment is a new copy.  A reader therefore never
+ * locks:  'snapshot' pins the current segment and commit time and returns the versions
+ * visible at that time, unaffected by later inserts, deletes or garbage collection.
+ * When enough versions have ended, a background thread copies the live ones into a new
+ * segment (garbage collection of dead versions).
+ * <p>
+ * Only the versions visible at the time of serialization are saved.
+ * <p>
+ * Each segment is divided into blocks of BLOCK slots, and a zone map keeps, per block
+ * and column, the minimum and maximum values and the number of nulls of the versions
+ * appended there.  A scan with a range test ('snapshot (col, range)') skips the blocks
+ * whose values cannot satisfy it.  Ending a version leaves its block's zone as it was
+ * (still covering the live versions); garbage collection and reading a saved store
+ * rebuild the zones, so they need not be saved.
+ */
+public class TupleStore
+       implements Serializable
+{
+    /** The end time of a version that is still current
+     */
+    static final long NEVER = Long.MAX_VALUE;
+
+    /** The number of slots in a block of a segment's zone map
+     */
+    static final int BLOCK = 1024;
+
+    /** The minimum number of dead versions before garbage collection is scheduled
+     */
+    private static final int VACUUM_MIN = 1024;
+
+    /** The background thread that garbage collects dead versions
+     */
+    private static final ExecutorService VACUUM = Executors.newSingleThreadExecutor (r -> {
+        var t = new Thread (r, "TupleStore-vacuum");
+        t.setDaemon (true);
+        return t;
+    });
+
+    /********************************************************************************
+     * This interface tests whether a block may hold values satisfying a condition,
+     * given the least and greatest of its (non-null) values in the column tested.
+     */
+    @FunctionalInterface
+    public interface Range
+    {
+        boolean mayMatch (Comparable min, Comparable max);
+    } // Range interface
+
+    /********************************************************************************
+     * This inner class is the zone of a block:  per column, the least and greatest
+     * values, the number of nulls, and whether the values failed to compare (so the
+     * column cannot be used to skip the block).  A zone only widens, so a reader seeing
+     * it mid-update still sees a range covering the versions it can see.
+     */
+    private static final class Zone
+    {
+        final Comparable [] min;
+        final Comparable [] max;
+        final int []        nulls;
+        final boolean []    mixed;
+
+        Zone (int width)
+        {
+            min   = new Comparable [width];
+            max   = new Comparable [width];
+            nulls = new int [width];
+            mixed = new boolean [width];
+        } // constructor
+
+        @SuppressWarnings ("unchecked")
+        void add (Comparable [] t)
+        {
+            for (var j = 0; j < t.length && j < min.length; j++) {
+                var v = t [j];
+                if (v == null) { nulls [j]++; continue; }
+                if (mixed [j]) continue;
+                try {
+                    if (min [j] == null || v.compareTo (min [j]) < 0) min [j] = v;
+                    if (max [j] == null || v.compareTo (max [j]) > 0) max [j] = v;
+                } catch (ClassCastException ex) {
+                    mixed [j] = true;
+                } // try
+            } // for
+        } // add
+
+        boolean skip (int col, Range range)
+        {
+            if (col >= min.length || mixed [col] || nulls [col] > 0 || min [col] == null) return false;
+            try {
+                return ! range.mayMatch (min [col], max [col]);
+            } catch (RuntimeException ex) {
+                return false;                                               // let the scan decide
+            } // try
+        } // skip
+
+    } // Zone inner class
+
+    /********************************************************************************
+     * This inner class holds the version arrays and their zone map.  Slots below 'size'
+     * are complete.
+     */
+    private static final class Segment
+    {
+        final Comparable [][] row;
+        final long []         begin;
+        final long []         end;
+        final Zone []         zone;
+        volatile int          size;
+        volatile int          dead;
+
+        Segment (int cap)
+        {
+            row   = new Comparable [cap][];
+            begin = new long [cap];
+            end   = new long [cap];
+            zone  = new Zone [(cap + BLOCK - 1) / BLOCK];
+        } // constructor
+
+        Segment copy (int cap)
+        {
+            var s = new Segment (cap);
+            System.arraycopy (row, 0, s.row, 0, size);
+            System.arraycopy (begin, 0, s.begin, 0, size);
+            System.arraycopy (end, 0, s.end, 0, size);
+            System.arraycopy (zone, 0, s.zone, 0, zone.length);
+            s.dead = dead;
+            s.size = size;
+            return s;
+        } // copy
+
+        void note (int i, Comparable [] t)
+        {
+            var b = i / BLOCK;
+            if (zone [b] == null) zone [b] = new Zone (t.length);
+            zone [b].add (t);
+        } // note
+
+    } // Segment inner class
+
+    /********************************************************************************
+     * This inner class is the read-only view of a snapshot when it is a prefix of a
+     * segment (no version in it has ended), so taking it costs O(1).
+     */
+    private static final class Prefix
+            extends AbstractList <Comparable []>
+            implements RandomAccess
+    {
+        final Segment seg;
+        final int     size;
+
+        Prefix (Segment _seg, int _size)
+        {
+            seg  = _seg;
+            size = _size;
+        } // constructor
+
+        public Comparable [] get (int i)
+        {
+            Objects.checkIndex (i, size);
+            return seg.row [i];
+        } // get
+
+        public int size ()
+        {
+            return size;
+        } // size
+
+    } // Prefix inner class
+
+    /** Source of store identifiers, which fix the order in which stores are locked
+     */
+    private static final AtomicLong IDS = new AtomicLong ();
+
+    /** The current segment
+     */
+    private transient volatile Segment seg;
+
+    /** The lock serialising writers (appends, ends and garbage collection)
+     */
+    private transient ReentrantLock lock = new ReentrantLock ();
+
+    /** The identifier of this store
+     */
+    private transient long id = IDS.incrementAndGet ();
+
+    /** The commit time of the last change (0 if unchanged since construction)
+     */
+    private transient volatile long version;
+
+    /** Whether a garbage collection has been scheduled but not yet run
+     */
+    private transient boolean vacuumPending;
+
+    /** The number of blocks skipped by range scans (approximate under concurrency)
+     */
+    private transient volatile long skipped;
+
+    /********************************************************************************
+     * Construct an empty tuple store.
+     */
+    public TupleStore ()
+    {
+        seg = new Segment (16);
+    } // constructor
+
+    /********************************************************************************
+     * Construct a tuple store holding the given tuples, visible to every snapshot.
+     * @param tuples  the initial tuples
+     */
+    public TupleStore (List <Comparable []> tuples)
+    {
+        var s = new Segment (Math.max (16, tuples.size ()));
+        var i = 0;
+        for (var t : tuples) {
+            s.row [i] = t;
+            s.end [i] = NEVER;
+            s.note (i, t);
+            i++;
+        } // for
+        s.size = i;
+        seg    = s;
+    } // constructor
+
+    /********************************************************************************
+     * Return the tuples visible at the latest commit time.
+     * @return  an unmodifiable snapshot of the tuples
+     */
+    public List <Comparable []> snapshot ()
+    {
+        Segment s;
+        long    ts;
+        do {                                                                 // pin a segment and time
+            s  = seg;
+            ts = VersionClock.now ();
+        } while (s != seg);
+        return view (s, ts);
+    } // snapshot
+
+    /********************************************************************************
+     * Return the tuples visible at the given commit time.
+     * @param ts  the snapshot time
+     * @return  an unmodifiable snapshot of the tuples
+     */
+    public List <Comparable []> snapshot (long ts)
+    {
+        return view (seg, ts);
+    } // snapshot
+
+    /********************************************************************************
+     * Return the tuples visible at the latest commit time, skipping the blocks whose
+     * zones show that no value in the column satisfies the range test (the result
+     * holds all the visible tuples that may satisfy it, in order).
+     * @param col    the column tested
+     * @param range  the test of a block's least and greatest values
+     * @return  the visible tuples of the blocks not skipped
+     */
+    public List <Comparable []> snapshot (int col, Range range)
+    {
+        Segment s;
+        long    ts;
+        do {
+            s  = seg;
+            ts = VersionClock.now ();
+        } while (s != seg);
+        var n    = s.size;
+        var rows = new ArrayList <Comparable []> ();
+        for (var b = 0; b * BLOCK < n; b++) {
+            var z = s.zone [b];
+            if (z != null && z.skip (col, range)) {
+                skipped++;
+                continue;
+            } // if
+            for (var i = b * BLOCK; i < Math.min (n, (b + 1) * BLOCK); i++) {
+                if (s.begin [i] <= ts && ts < s.end [i]) rows.add (s.row [i]);
+            } // for
+        } // for
+        return rows;
+    } // snapshot
+
+    /********************************************************************************
+     * Return the number of blocks skipped by range scans (for performance testing).
+     * @return  the skipped block count
+     */
+    public long skipped ()
+    {
+        return skipped;
+    } // skipped
+
+    /********************************************************************************
+     * Append a tuple as a new version, committed immediately.
+     * @param tup  the tuple to add
+     */
+    public void add (Comparable [] tup)
+    {
+        lock.lock ();
+        try {
+            VersionClock.commit (ts -> append (List.<Comparable []>of (tup), ts));
+        } finally {
+            lock.unlock ();
+        } // try
+    } // add
+
+    /********************************************************************************
+     * Append the tuples buffered by a transaction to their stores, all in one commit,
+     * so that a snapshot sees either all of them or none.  The stores are locked in
+     * the order of their identifiers, so concurrent commits cannot deadlock.
+     * @param inserts  the tuples to append to each store
+     * @return  the commit timestamp
+     */
+    static long addAll (Map <TupleStore, List <Comparable []>> inserts)
+    {
+        var stores = new ArrayList <> (inserts.keySet ());
+        stores.sort (Comparator.comparingLong (st -> st.id));
+        var locked = 0;
+        try {
+            for (var st : stores) { st.lock.lock (); locked++; }
+            return VersionClock.commit (ts -> {
+                for (var st : stores) st.append (inserts.get (st), ts);
+            });
+        } finally {
+            for (var i = 0; i < locked; i++) stores.get (i).lock.unlock ();
+        } // try
+    } // addAll
+
+    /********************************************************************************
+     * End the current versions of the tuples satisfying the predicate, all in one commit
+     * (a delete).  Ending a version only stamps it, leaving a tombstone that garbage
+     * collection later removes; snapshots taken earlier still see it.
+     * @param predicate  the condition selecting the tuples to end
+     * @return  the tuples whose versions were ended
+     */
+    public List <Comparable []> expire (Predicate <Comparable []> predicate)
+    {
+        var pairs = change (predicate, null, List.of ());
+        var olds  = new ArrayList <Comparable []> (pairs.size ());
+        for (var p : pairs) olds.add (p [0]);
+        return olds;
+    } // expire
+
+    /********************************************************************************
+     * End the current versions of the tuples satisfying the predicate and append new
+     * tuples, all in one commit (e.g., to apply a delta to a materialized view).
+     * @param predicate  the condition selecting the tuples to end (null for none)
+     * @param adds       the tuples to append
+     * @return  the tuples whose versions were ended
+     */
+    public List <Comparable []> replace (Predicate <Comparable []> predicate, List <Comparable []> adds)
+    {
+        var pairs = change (predicate, null, adds);
+        var olds  = new ArrayList <Comparable []> (pairs.size ());
+        for (var p : pairs) olds.add (p [0]);
+        return olds;
+    } // replace
+
+    /********************************************************************************
+     * Replace the current versions of the tuples satisfying the predicate with new
+     * versions given by the function, all in one commit (an update).
+     * @param predicate  the condition selecting the tuples to update
+     * @param fn         the function computing the new tuple from the old one
+     * @return  the pairs {old tuple, new tuple}
+     */
+    public List <Comparable [][]> update (Predicate <Comparable []> predicate, UnaryOperator <Comparable []> fn)
+    {
+        return change (predicate, fn, List.of ());
+    } // update
+
+    /********************************************************************************
+     * Replace the current version of a known tuple (e.g., one found through an index)
+     * with a new tuple, in one commit.  The version is found by reference, without
+     * comparing the tuples' values, unless the tuple is a copy (as disk-resident
+     * indices return).
+     * @param old  the current tuple
+     * @param tup  the new tuple
+     * @return  the pair {old tuple, new tuple}, or null if old is no longer current
+     */
+    public Comparable [][] update (Comparable [] old, Comparable [] tup)
+    {
+        var pairs = update (List.<Comparable []>of (old), List.<Comparable []>of (tup));
+        return pairs.isEmpty () ? null : pairs.get (0);
+    } // update
+
+    /********************************************************************************
+     * Replace the current versions of known tuples with new tuples, all in one commit:
+     * olds [i] by news [i], appending the news beyond the olds, or, if there are no
+     * news, just ending the olds (a delete).  The versions are found as by update (old,
+     * tup), the olds no longer current being skipped.
+     * @param olds  the current tuples
+     * @param news  the new tuples
+     * @return  the pairs {old tuple, new tuple (null for a delete)} of the olds replaced
+     */
+    public List <Comparable [][]> update (List <Comparable []> olds, List <Comparable []> news)
+    {
+        lock.lock ();
+        try {
+            var s     = seg;
+            var slot  = find (s, olds);
+            var ps    = new int [olds.size ()];
+            var pairs = new ArrayList <Comparable [][]> ();
+            var adds  = new ArrayList <Comparable []> ();
+            for (var j = 0; j < olds.size (); j++) {
+                if (slot [j] < 0) continue;
+                var tup = news.isEmpty () ? null : news.get (j);
+                ps [pairs.size ()] = slot [j];
+                pairs.add (new Comparable [][] { s.row [slot [j]], tup });
+                if (tup != null) adds.add (tup);
+            } // for
+            if (news.size () > olds.size ()) adds.addAll (news.subList (olds.size (), news.size ()));
+            if (pairs.isEmpty () && adds.isEmpty ()) return pairs;
+
+            final var n = pairs.size ();
+            VersionClock.commit (ts -> {
+                for (var j = 0; j < n; j++) s.end [ps [j]] = ts;              // tombstones
+                s.dead  = s.dead + n;
+                version = ts;
+                if (! adds.isEmpty ()) append (adds, ts);
+            });
+            maybeVacuum (seg);
+            return pairs;
+        } finally {
+            lock.unlock ();
+        } // try
+    } // update
+
+    /********************************************************************************
+     * Return the slots of the current versions of tuples ts in segment s (-1 for one
+     * with none):  several are found by reference in one pass from the newest, then
+     * any left (copies) by value.
+     */
+    private static int [] find (Segment s, List <Comparable []> ts)
+    {
+        var slot = new int [ts.size ()];
+        Arrays.fill (slot, -1);
+        if (ts.size () == 1) {
+            slot [0] = find (s, ts.get (0));
+            return slot;
+        } // if
+        var at = new IdentityHashMap <Comparable [], Integer> ();
+        for (var j = 0; j < ts.size (); j++) at.put (ts.get (j), j);
+        var left = at.size ();
+        for (var i = s.size - 1; i >= 0 && left > 0; i--) {
+            if (s.end [i] != NEVER) continue;
+            var j = at.get (s.row [i]);
+            if (j != null && slot [j] < 0) { slot [j] = i; left--; }
+        } // for
+        for (var j = 0; j < slot.length; j++) if (slot [j] < 0 && at.get (ts.get (j)) == j) slot [j] = find (s, ts.get (j));
+        return slot;
+    } // find
+
+    /********************************************************************************
+     * Return the slot of the current version of tuple t in segment s (searching from
+     * the newest), or -1 if there is none.
+     */
+    private static int find (Segment s, Comparable [] t)
+    {
+        for (var i = s.size - 1; i >= 0; i--) if (s.row [i] == t && s.end [i] == NEVER) return i;
+        for (var i = s.size - 1; i >= 0; i--) if (s.end [i] == NEVER && Arrays.equals (s.row [i], t)) return i;
+        return -1;
+    } // find
+
+    /********************************************************************************
+     * End the matching versions and, if fn is given, append their replacements, then
+     * the extra tuples.
+     */
+    private List <Comparable [][]> change (Predicate <Comparable []> predicate, UnaryOperator <Comparable []> fn,
+                                           List <Comparable []> extra)
+    {
+        lock.lock ();
+        try {
+            var s     = seg;
+            var ps    = new int [s.size - s.dead];
+            var pairs = new ArrayList <Comparable [][]> ();
+            for (var i = 0; predicate != null && i < s.size; i++) {
+                if (s.end [i] != NEVER || ! predicate.test (s.row [i])) continue;
+                ps [pairs.size ()] = i;
+                pairs.add (new Comparable [][] { s.row [i], (fn == null) ? null : fn.apply (s.row [i]) });
+            } // for
+            if (pairs.isEmpty () && extra.isEmpty ()) return pairs;
+
+            var news = new ArrayList <Comparable []> ();
+            if (fn != null) for (var p : pairs) news.add (p [1]);
+            news.addAll (extra);
+            final var n = pairs.size ();
+            VersionClock.commit (ts -> {
+                for (var j = 0; j < n; j++) s.end [ps [j]] = ts;              // tombstones
+                s.dead  = s.dead + n;
+                version = ts;
+                if (! news.isEmpty ()) append (news, ts);
+            });
+            maybeVacuum (seg);
+            return pairs;
+        } finally {
+            lock.unlock ();
+        } // try
+    } // change
+
+    /********************************************************************************
+     * Return the identifier of this store (unique within the process).
+     * @return  the store id
+     */
+    public long id ()
+    {
+        return id;
+    } // id
+
+    /********************************************************************************
+     * Return the version of the store's contents:  the commit time of its last change.
+     * @return  the version
+     */
+    public long version ()
+    {
+        return version;
+    } // version
+
+    /********************************************************************************
+     * Return the number of versions stored (live and dead).
+     * @return  the version count
+     */
+    public int versions ()
+    {
+        return seg.size;
+    } // versions
+
+    /********************************************************************************
+     * Return the number of versions that have ended but not yet been collected.
+     * @return  the dead version count
+     */
+    public int dead ()
+    {
+        return seg.dead;
+    } // dead
+
+    /********************************************************************************
+     * Garbage collect:  copy the versions that may still be visible to some reader
+     * (those ending after the horizon) into a new segment and switch to it.  Readers
+     * holding the old segment are not disturbed.
+     */
+    public void vacuum ()
+    {
+        lock.lock ();
+        try {
+            vacuumLocked ();
+        } finally {
+            lock.unlock ();
+        } // try
+    } // vacuum
+
+    /********************************************************************************
+     * Garbage collect while holding the lock.
+     */
+    private void vacuumLocked ()
+    {
+        vacuumPending = false;
+        var s = seg;
+        if (s.dead == 0) return;
+        var h    = VersionClock.horizon ();
+        var keep = 0;
+        for (var i = 0; i < s.size; i++) if (s.end [i] > h) keep++;
+
+        var ns = new Segment (Math.max (16, keep + keep / 2));
+        var j  = 0;
+        for (var i = 0; i < s.size; i++) {
+            if (s.end [i] <= h) continue;
+            ns.row [j]   = s.row [i];
+            ns.begin [j] = s.begin [i];
+            ns.end [j]   = s.end [i];
+            ns.note (j, s.row [i]);
+            if (s.end [i] != NEVER) ns.dead++;
+            j++;
+        } // for
+        ns.size = j;
+        seg     = ns;
+    } // vacuumLocked
+
+    /********************************************************************************
+     * Append tuples as versions beginning at time ts, growing into a copy of the
+     * segment if needed.  Called holding the lock, while the clock is stamping ts.
+     */
+    private void append (List <Comparable []> tups, long ts)
+    {
+        var s0 = seg;
+        var n  = s0.size;
+        var s  = s0;
+        if (n + tups.size () > s0.row.length) {
+            s = s0.copy (Math.max (2 * s0.row.length, n + tups.size ()));
+        } // if
+        for (var t : tups) {
+            s.row [n]   = t;
+            s.begin [n] = ts;
+            s.end [n]   = NEVER;
+            s.note (n, t);
+            n++;
+        } // for
+        s.size  = n;
+        seg     = s;
+        version = ts;
+    } // append
+
+    /********************************************************************************
+     * Return the versions of segment s visible at time ts.  When no version in the
+     * segment has ended, this is a prefix of it (versions are appended in commit order).
+     */
+    private static List <Comparable []> view (Segment s, long ts)
+    {
+        var n = s.size;
+        if (s.dead == 0) {
+            while (n > 0 && s.begin [n - 1] > ts) n--;
+            return new Prefix (s, n);
+        } // if
+
+        var rows = new ArrayList <Comparable []> (n);
+        for (var i = 0; i < n; i++) {
+            if (s.begin [i] <= ts && ts < s.end [i]) rows.add (s.row [i]);
+        } // for
+        return Collections.unmodifiableList (rows);
+    } // view
+
+    /********************************************************************************
+     * Schedule a background garbage collection once enough versions are dead.
+     */
+    private void maybeVacuum (Segment s)
+    {
+        if (vacuumPending || s.dead < Math.max (VACUUM_MIN, s.size / 4)) return;
+        vacuumPending = true;
+        VACUUM.execute (this::vacuum);
+    } // maybeVacuum
+
+    /********************************************************************************
+     * Save the versions visible now, as a count followed by the tuples.
+     */
+    private void writeObject (ObjectOutputStream oos)
+        throws IOException
+    {
+        var rows = snapshot ();
+        oos.writeInt (rows.size ());
+        for (var t : rows) oos.writeObject (t);
+    } // writeObject
+
+    /********************************************************************************
+     * Restore the saved tuples as versions visible to every snapshot.
+     */
+    private void readObject (ObjectInputStream ois)
+        throws IOException, ClassNotFoundException
+    {
+        var n = ois.readInt ();
+        var s = new Segment (Math.max (16, n));
+        for (var i = 0; i < n; i++) {
+            s.row [i] = (Comparable []) ois.readObject ();
+            s.end [i] = NEVER;
+            s.note (i, s.row [i]);
+        } // for
+        s.size = n;
+        seg    = s;
+        lock   = new ReentrantLock ();
+        id     = IDS.incrementAndGet ();
+    } // readObject
+
+    /********************************************************************************
+     * The main method used for testing:  a writer appends tuples while a reader takes
+     * snapshots, each of which must be an unchanging prefix of the insert order.
+     * @param  args the command-line arguments
+     */
+    public static void main (String [] args)
+        throws InterruptedException
+    {
+        var store  = new TupleStore ();
+        var writer = new Thread (() -> {
+            for (var i = 0; i < 1_000_000; i++) store.add (new Comparable [] { i });
+        });
+        writer.start ();
+        var snaps = 0;
+        while (writer.isAlive ()) {
+            var rows = store.snapshot ();
+            var n    = rows.size ();
+            for (var i = 0; i < n; i++) {
+                if (! rows.get (i) [0].equals (i)) out.println ("inconsistent snapshot at " + i);
+            } // for
+            snaps++;
+        } // while
+        writer.join ();
+        out.println ("snapshots = " + snaps + ", versions = " + store.versions ());
+    } // main
+
+} // TupleStore class
+
@@ -0,0 +1,147 @@
+package dbms;
+/************************************************************************************
+ * @file VersionClock.java
+ */
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+/************************************************************************************
+ * The VersionClock class issues the commit timestamps used for multi-version
+ * concurrency control.  A version of a tuple is visible to a snapshot taken at time ts
+ * when begin <= ts < end.  Commits are numbered in order by an atomic counter and stamp
+ * their versions concurrently (each store serialises its own writers), and 'now' only
+ * advances past a timestamp once it and every earlier one are done, so a snapshot at
+ * 'now' never sees a commit half applied.  No lock is shared by all writers.
+ */
+public class VersionClock
+{
+    /** The last timestamp issued
+     */
+    private static final AtomicLong last = new AtomicLong ();
+
+    /** The timestamp of the latest commit such that it and all earlier ones are done
+     */
+    private static final AtomicLong committed = new AtomicLong ();
+
+    /** The timestamps of commits done out of order (after 'committed' + 1)
+     */
+    private static final Set <Long> done = ConcurrentHashMap.newKeySet ();
+
+    /** The lock held while pinning snapshot times and computing the horizon
+     */
+    private static final ReentrantLock PINS = new ReentrantLock ();
+
+    /** The snapshot times pinned by open transactions (by owner identity)
+     */
+    private static final Map <Object, Long> pinned = new ConcurrentHashMap <> ();
+
+    /************************************************************************************
+     * Return the timestamp of the latest completed commit (the time for a new snapshot).
+     * @return  the current snapshot time
+     */
+    public static long now ()
+    {
+        return committed.get ();
+    } // now
+
+    /************************************************************************************
+     * Return the oldest time any reader may still be looking at; versions that ended
+     * at or before it can be discarded.
+     * @return  the garbage collection horizon
+     */
+    public static long horizon ()
+    {
+        PINS.lock ();
+        try {
+            var h = committed.get ();
+            for (var ts : pinned.values ()) h = Math.min (h, ts);
+            return h;
+        } finally {
+            PINS.unlock ();
+        } // try
+    } // horizon
+
+    /************************************************************************************
+     * Take a snapshot time for a long-lived reader (e.g., a transaction) and keep the
+     * versions it can see from being garbage collected until it is unpinned.
+     * @param owner  the reader
+     * @return  the snapshot time
+     */
+    public static long pin (Object owner)
+    {
+        PINS.lock ();
+        try {
+            var ts = committed.get ();
+            pinned.put (new Owner (owner), ts);
+            return ts;
+        } finally {
+            PINS.unlock ();
+        } // try
+    } // pin
+
+    /************************************************************************************
+     * Release the snapshot time pinned by the owner.
+     * @param owner  the reader
+     */
+    public static void unpin (Object owner)
+    {
+        pinned.remove (new Owner (owner));
+    } // unpin
+
+    /************************************************************************************
+     * Commit a change:  issue the next timestamp, let 'stamp' write it into the new or
+     * ended versions, and then publish it, returning once it is the current snapshot
+     * time (i.e., every earlier commit is also done, so the committer reads its own
+     * change).  The caller holds the locks of the stores changed, so each store's
+     * commits are stamped in timestamp order.
+     * @param stamp  the action that stamps the versions with the commit timestamp
+     * @return  the commit timestamp
+     */
+    public static long commit (LongConsumer stamp)
+    {
+        var ts = last.incrementAndGet ();
+        try {
+            stamp.accept (ts);
+        } finally {
+            publish (ts);                                                   // later commits must not wait for ever
+        } // try
+        for (var spins = 0; committed.get () < ts; spins++) {               // earlier commits still stamping
+            if (spins < 64) Thread.onSpinWait (); else Thread.yield ();
+        } // for
+        return ts;
+    } // commit
+
+    /************************************************************************************
+     * Mark the commit at ts done and advance 'committed' over every run of done commits.
+     */
+    private static void publish (long ts)
+    {
+        done.add (ts);
+        for (var c = committed.get (); done.contains (c + 1); c = committed.get ()) {
+            if (committed.compareAndSet (c, c + 1)) done.remove (c + 1);
+        } // for
+    } // publish
+
+    /************************************************************************************
+     * A key comparing owners by identity.
+     */
+    private record Owner (Object owner)
+    {
+        public boolean equals (Object o)
+        {
+            return o instanceof Owner w && w.owner == owner;
+        } // equals
+
+        public int hashCode ()
+        {
+            return System.identityHashCode (owner);
+        } // hashCode
+
+    } // Owner record
+
+} // VersionClock class
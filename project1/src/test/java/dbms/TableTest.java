@@ -1,8 +1,34 @@
 package dbms;
 
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.DayOfWeek;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+import java.util.stream.Collectors;
 
 import static java.lang.System.out;
 import static org.junit.jupiter.api.Assertions.*;
@@ -12,6 +38,39 @@ import static org.junit.jupiter.api.Assertions.*;
  */
 class TableTest {
 
+    /** The files in the store directory before each test (those it adds are deleted)
+     */
+    private Set <Path> kept;
+
+    /**
+     * Note the files already in the store directory.
+     */
+    @BeforeEach
+    void listStore() throws IOException {
+        kept = storeFiles ();
+    }
+
+    /**
+     * Delete the files the test left in the store directory (tables, deltas, schemas,
+     * mapped and LSM-tree files), waiting first for background base writes.
+     */
+    @AfterEach
+    void cleanStore() throws Exception {
+        DeltaLog.WORKER.submit (() -> { }).get ();
+        for (var f : storeFiles ()) if (! kept.contains (f)) Files.deleteIfExists (f);
+    }
+
+    /**
+     * Return the files in the store directory (none if it does not exist).
+     */
+    private static Set <Path> storeFiles() throws IOException {
+        var dir = Paths.get (Table.DIR);
+        if (! Files.isDirectory (dir)) return new HashSet <> ();
+        try (var files = Files.list (dir)) {
+            return files.filter (Files::isRegularFile).collect (Collectors.toSet ());
+        } // try
+    }
+
     /**
      * Successfully create valid tables and perform union, selection, join, minus,
      * and projection operations without any errors.
@@ -119,6 +178,1233 @@ class TableTest {
         a_iselect.print ();
 
     }
+
+    /**
+     * Check that the binary form of KeyType orders keys the same way as the column values
+     * and that equal composite keys agree on equals, hashCode and their encoding.
+     */
+    @Test
+    void keyTypeEncoding() {
+        var k1 = new KeyType ("Star_Wars", 1977, "Carrie_Fisher");
+        var k2 = new KeyType ("Star_Wars", 1977, "Mark_Hamill");
+        var k3 = new KeyType ("Star_Wars_2", 1980, "Carrie_Fisher");
+        var k4 = new KeyType ("Star_Wars", -5, "Carrie_Fisher");
+
+        assertTrue (k1.compareTo (k2) < 0);
+        assertTrue (k1.compareTo (k3) < 0);
+        assertTrue (k4.compareTo (k1) < 0);
+        assertEquals (0, k1.compareTo (new KeyType ("Star_Wars", 1977, "Carrie_Fisher")));
+
+        var k5 = new KeyType ("Star_Wars", 1977, "Carrie_Fisher");
+        assertEquals (k1, k5);
+        assertEquals (k1.hashCode (), k5.hashCode ());
+        assertEquals (k1.hash64 (), k5.hash64 ());
+        assertNotEquals (k1.hash64 (), k2.hash64 ());
+
+        assertEquals (k3, KeyType.fromBytes (k3.toBytes ()));
+        assertEquals (0, new KeyType (-0.5, 'x').compareTo (KeyType.fromBytes (new KeyType (-0.5, 'x').toBytes ())));
+        assertTrue (new KeyType (-2.5).compareTo (new KeyType (1.0)) < 0);
+    }
+
+    /**
+     * Insert, overwrite and remove many keys in an OpenLinHashMap and check it against a
+     * HashMap after every operation batch (exercises splits, growth and backward shifts).
+     */
+    @Test
+    void openLinHashMap() {
+        var ht  = new OpenLinHashMap <> (KeyType.class, Integer.class);
+        var ref = new HashMap <KeyType, Integer> ();
+        var rng = new Random (42);
+
+        for (var i = 0; i < 20000; i++) {
+            var k = new KeyType ("movie" + rng.nextInt (5000), rng.nextInt (50));
+            if (rng.nextInt (4) == 0) {
+                assertEquals (ref.remove (k), ht.remove (k));
+            } else {
+                assertEquals (ref.put (k, i), ht.put (k, i));
+            } // if
+        } // for
+
+        assertEquals (ref.size (), ht.size ());
+        for (var e : ref.entrySet ()) assertEquals (e.getValue (), ht.get (e.getKey ()));
+        assertNull (ht.get (new KeyType ("movie-1", 0)));
+        assertEquals (ref.entrySet (), ht.entrySet ());
+    }
+
+    /**
+     * Run writer threads and lock-free reader threads against one ConcurrentLinHashMap;
+     * keys inserted before the threads start must never be missed while buckets split.
+     */
+    @Test
+    void concurrentLinHashMap() throws InterruptedException {
+        var ht = new ConcurrentLinHashMap <> (KeyType.class, Integer.class);
+        for (var i = 0; i < 2000; i++) ht.put (new KeyType ("old", i), i);
+
+        var misses  = new AtomicInteger ();
+        var threads = new ArrayList <Thread> ();
+        for (var t = 0; t < 4; t++) {
+            final var w = t;
+            threads.add (new Thread (() -> {
+                for (var i = w; i < 40000; i += 4) ht.put (new KeyType ("new", i), i);
+            }));
+            threads.add (new Thread (() -> {
+                var rng = new Random (w);
+                for (var i = 0; i < 40000; i++) {
+                    var k = rng.nextInt (2000);
+                    if (! Integer.valueOf (k).equals (ht.get (new KeyType ("old", k)))) misses.incrementAndGet ();
+                } // for
+            }));
+        } // for
+        for (var th : threads) th.start ();
+        for (var th : threads) th.join ();
+
+        assertEquals (0, misses.get ());
+        assertEquals (42000, ht.size ());
+        for (var i = 0; i < 40000; i++) assertEquals (i, ht.get (new KeyType ("new", i)));
+    }
+
+    /**
+     * Fill a disk-resident LinHashFile, serialize the map object as Table.save would,
+     * and check that the deserialized copy reopens the index files rather than
+     * rebuilding them.
+     */
+    @Test
+    void linHashFile() throws Exception {
+        var ht = new LinHashFile ("store" + File.separator + "linHashFileTest");
+        for (var i = 0; i < 5000; i++) {
+            ht.put (new KeyType ("Star_Wars_" + i, 1977 + i % 40), new Comparable [] { "Star_Wars_" + i, 1977 + i % 40, i });
+        } // for
+        for (var i = 0; i < 5000; i += 5) assertNotNull (ht.remove (new KeyType ("Star_Wars_" + i, 1977 + i % 40)));
+        ht.put (new KeyType ("Star_Wars_1", 1978), new Comparable [] { "Star_Wars_1", 1978, -1 });
+
+        var bytes = new ByteArrayOutputStream ();
+        try (var oos = new ObjectOutputStream (bytes)) { oos.writeObject (ht); }
+        ht.close ();
+        LinHashFile ht2;
+        try (var ois = new ObjectInputStream (new ByteArrayInputStream (bytes.toByteArray ()))) {
+            ht2 = (LinHashFile) ois.readObject ();
+        } // try
+
+        assertEquals (4000, ht2.size ());
+        for (var i = 0; i < 5000; i++) {
+            var t = ht2.get (new KeyType ("Star_Wars_" + i, 1977 + i % 40));
+            if (i % 5 == 0) assertNull (t);
+            else assertEquals ((i == 1) ? -1 : i, t [2]);
+        } // for
+        assertEquals (4000, ht2.entrySet ().size ());
+        ht2.close ();
+        Files.delete (Paths.get ("store", "linHashFileTest.lhi"));
+        Files.delete (Paths.get ("store", "linHashFileTest.lho"));
+    }
+
+    /**
+     * Check a disk-resident BpTreeFile against a TreeMap under random puts and removes,
+     * then rebuild it by bulk loading and check lookups and a range scan over the
+     * sibling-linked leaves.
+     */
+    @Test
+    void bpTreeFile() throws Exception {
+        var bt  = new BpTreeFile ("store" + File.separator + "bpTreeFileTest");
+        var ref = new TreeMap <KeyType, Comparable []> ();
+        var rng = new Random (7);
+        for (var i = 0; i < 20000; i++) {
+            var t = new Comparable [] { "movie_" + rng.nextInt (8000), 1900 + rng.nextInt (120), i };
+            var k = new KeyType (t [0], t [1]);
+            if (rng.nextInt (5) == 0) {
+                assertEquals (ref.remove (k) != null, bt.remove (k) != null);
+            } else {
+                ref.put (k, t);
+                bt.put (k, t);
+            } // if
+        } // for
+        assertEquals (ref.size (), bt.size ());
+        for (var e : ref.entrySet ()) assertArrayEquals (e.getValue (), bt.get (e.getKey ()));
+        assertEquals (new ArrayList <> (ref.keySet ()), new ArrayList <> (bt.keySet ()));
+
+        bt.bulkLoad (ref.entrySet ().iterator ());
+        bt.close ();
+        assertEquals (ref.size (), bt.size ());
+        for (var e : ref.entrySet ()) assertArrayEquals (e.getValue (), bt.get (e.getKey ()));
+
+        var lo = new KeyType ("movie_100", 1950);
+        var hi = new KeyType ("movie_2");
+        var expect = new ArrayList <> (ref.subMap (lo, hi).keySet ());
+        var actual = new ArrayList <KeyType> ();
+        for (var it = bt.scan (lo, hi); it.hasNext (); ) actual.add (it.next ().getKey ());
+        assertEquals (expect, actual);
+
+        bt.close ();
+        Files.delete (Paths.get ("store", "bpTreeFileTest.bpt"));
+    }
+
+    /**
+     * Append to a TupleStore while readers take snapshots; each snapshot must be a
+     * prefix of the insert order that does not change as later versions commit.
+     * Then end versions and check that older snapshots still see them until vacuum.
+     */
+    @Test
+    void tupleStoreSnapshots() throws InterruptedException {
+        var store  = new TupleStore ();
+        var errors = new AtomicInteger ();
+        var writer = new Thread (() -> {
+            for (var i = 0; i < 200000; i++) store.add (new Comparable [] { i });
+        });
+        var reader = new Thread (() -> {
+            while (writer.isAlive ()) {
+                var rows = store.snapshot ();
+                var n    = rows.size ();
+                for (var i = 0; i < n; i++) if (! rows.get (i) [0].equals (i)) errors.incrementAndGet ();
+                if (rows.size () != n) errors.incrementAndGet ();
+            } // while
+        });
+        writer.start ();
+        reader.start ();
+        writer.join ();
+        reader.join ();
+        assertEquals (0, errors.get ());
+        assertEquals (200000, store.snapshot ().size ());
+
+        var before = store.snapshot ();
+        assertEquals (100000, store.expire (t -> (Integer) t [0] % 2 == 0).size ());
+        var after = store.snapshot ();
+        assertEquals (200000, before.size ());
+        assertEquals (100000, after.size ());
+        assertEquals (1, after.get (0) [0]);
+
+        store.vacuum ();
+        assertEquals (0, store.dead ());
+        assertEquals (100000, store.versions ());
+        assertEquals (200000, before.size ());
+        assertEquals (after, store.snapshot ());
+    }
+
+    /**
+     * Insert into a table while other threads run selects and joins over it; readers
+     * work on snapshots, so no operator fails as the tuple list grows underneath it.
+     */
+    @Test
+    void mvccTable() throws InterruptedException {
+        var movie = new Table ("mvccMovie", "title year length", "String Integer Integer", "title");
+        var failures = new AtomicInteger ();
+        var writer = new Thread (() -> {
+            for (var i = 0; i < 3000; i++) movie.insert (new Comparable [] { "movie_" + i, 1900 + i % 100, i });
+        });
+        var reader = new Thread (() -> {
+            try {
+                while (writer.isAlive ()) {
+                    movie.select (t -> (Integer) t [2] % 7 == 0);
+                    movie.select ("year < 1950");
+                    movie.select (new KeyType ("movie_1"));
+                } // while
+            } catch (RuntimeException ex) {
+                failures.incrementAndGet ();
+            } // try
+        });
+        writer.start ();
+        reader.start ();
+        writer.join ();
+        reader.join ();
+        assertEquals (0, failures.get ());
+    }
+
+    /**
+     * Load movies and their cast in transactions while a reader checks that it never
+     * sees one table's half of a transaction without the other; then run two
+     * transactions that lock keys in opposite orders and check one is a deadlock victim.
+     */
+    @Test
+    void transactions() throws InterruptedException {
+        var movie   = new Table ("txMovie", "title year", "String Integer", "title");
+        var starsIn = new Table ("txStarsIn", "star title", "String String", "star title");
+        var errors  = new AtomicInteger ();
+        var writer  = new Thread (() -> {
+            for (var i = 0; i < 200; i++) {
+                try (var tx = Transaction.begin ()) {
+                    tx.insert (movie, new Comparable [] { "film_" + i, 1950 + i % 50 });
+                    tx.insert (starsIn, new Comparable [] { "star_" + i, "film_" + i });
+                    tx.insert (starsIn, new Comparable [] { "extra_" + i, "film_" + i });
+                    if (i % 10 == 9) tx.abort (); else tx.commit ();
+                } // try
+            } // for
+        });
+        var reader = new Thread (() -> {
+            while (writer.isAlive ()) {
+                try (var tx = Transaction.begin ()) {
+                    if (2 * tx.read (movie).size () != tx.read (starsIn).size ()) errors.incrementAndGet ();
+                } // try
+            } // while
+        });
+        writer.start ();
+        reader.start ();
+        writer.join ();
+        reader.join ();
+        assertEquals (0, errors.get ());
+        try (var tx = Transaction.begin ()) {
+            assertEquals (180, tx.read (movie).size ());
+            assertEquals (360, tx.read (starsIn).size ());
+            assertTrue (tx.read (movie).stream ().noneMatch (t -> t [0].equals ("film_9")));
+        } // try
+
+        var victims = new AtomicInteger ();
+        var latch   = new CountDownLatch (2);
+        var threads = new ArrayList <Thread> ();
+        for (var t = 0; t < 2; t++) {
+            final var first = "deadlock_" + t;
+            final var second = "deadlock_" + (1 - t);
+            threads.add (new Thread (() -> {
+                var tx = Transaction.begin ();
+                try {
+                    tx.insert (movie, new Comparable [] { first, 2000 });
+                    latch.countDown ();
+                    latch.await ();
+                    tx.insert (movie, new Comparable [] { second, 2001 });
+                    tx.commit ();
+                } catch (LockManager.DeadlockException ex) {
+                    victims.incrementAndGet ();
+                    assertFalse (tx.isActive ());
+                } catch (InterruptedException ex) {
+                    tx.abort ();
+                } // try
+            }));
+        } // for
+        var deadlocks = Transaction.locks ().deadlocks ();
+        for (var th : threads) th.start ();
+        for (var th : threads) th.join ();
+        assertTrue (victims.get () >= 1);
+        assertTrue (Transaction.locks ().deadlocks () > deadlocks);
+        out.println (Transaction.locks ().stats ());
+
+        // of two transactions inserting the same key, the second (waiting on its lock) is refused
+        var inserted = new AtomicInteger ();
+        var racers   = new ArrayList <Thread> ();
+        for (var t = 0; t < 2; t++) {
+            racers.add (new Thread (() -> {
+                try (var tx = Transaction.begin ()) {
+                    if (tx.insert (movie, new Comparable [] { "dup", 2002 })) inserted.incrementAndGet ();
+                    assertFalse (tx.insert (movie, new Comparable [] { "dup", 2003 }));
+                    tx.commit ();
+                } // try
+            }));
+        } // for
+        for (var th : racers) th.start ();
+        for (var th : racers) th.join ();
+        assertEquals (1, inserted.get ());
+        assertEquals (1, movie.rows ().stream ().filter (t -> t [0].equals ("dup")).count ());
+    }
+
+    /**
+     * Serve a movie table from a QueryServer and have several clients pipeline scans,
+     * selects, projections and inserts against it over local connections.
+     */
+    @Test
+    void queryServer() throws Exception {
+        var movie = new Table ("serverMovie", "title year studioName", "String Integer String", "title");
+        for (var i = 0; i < 200; i++) movie.insert (new Comparable [] { "film_" + i, 1900 + i % 20, "studio_" + i % 7 });
+        try (var server = new QueryServer (0)) {
+            server.register (movie);
+            var errors  = new AtomicInteger ();
+            var clients = new ArrayList <Thread> ();
+            for (var c = 0; c < 8; c++) {
+                final var me = c;
+                clients.add (new Thread (() -> {
+                    try (var client = new QueryClient (server.port ())) {
+                        client.send ("SCAN serverMovie");
+                        client.send ("SELECT serverMovie year < 1905");
+                        client.send ("INSERT serverMovie new_" + me + " 2020 studio_x");
+                        client.send ("SELECT serverMovie nope == 1");
+                        client.flush ();
+                        var scan = client.receive ();
+                        if (scan.rows ().size () < 200 || ! scan.attributes () [1].equals ("year")) errors.incrementAndGet ();
+                        if (! scan.domains () [1].equals ("Integer")) errors.incrementAndGet ();
+                        if (client.receive ().rows ().size () != 50) errors.incrementAndGet ();
+                        if (client.receive ().failed ()) errors.incrementAndGet ();
+                        if (! client.receive ().failed ()) errors.incrementAndGet ();
+                    } catch (IOException ex) {
+                        errors.incrementAndGet ();
+                    } // try
+                }));
+            } // for
+            for (var th : clients) th.start ();
+            for (var th : clients) th.join ();
+            assertEquals (0, errors.get ());
+
+            try (var client = new QueryClient (server.port ())) {
+                var r = client.query ("SCAN serverMovie");
+                assertEquals (208, r.rows ().size ());
+                assertArrayEquals (new Comparable [] { "film_3", 1903, "studio_3" }, r.rows ().get (3));
+                assertArrayEquals (new String [] { "studioName" }, client.query ("PROJECT serverMovie studioName").attributes ());
+            } // try
+
+            // values that cannot be encoded are answered with an ERROR, and the connection lives on
+            var flag = new Table ("serverFlag", "id on", "Integer Boolean", "id");
+            flag.insert (new Comparable [] { 1, true });
+            var odd = new Table ("serverOdd", "id day", "Integer String", "id");
+            odd.insert (new Comparable [] { 1, "monday" });
+            odd.insert (new Comparable [] { 2, DayOfWeek.TUESDAY });                // not a String
+            server.register (flag);
+            server.register (odd);
+            try (var client = new QueryClient (server.port ())) {
+                assertTrue (client.query ("SCAN serverFlag").failed ());
+                assertTrue (client.query ("SCAN serverOdd").failed ());
+                assertEquals (208, client.query ("SCAN serverMovie").rows ().size ());
+            } // try
+        } // try
+    }
+
+    /**
+     * Repeat a select/project chain with the result cache enabled:  repeats return the
+     * cached tables, an insert invalidates the chain, and a small budget forces evictions.
+     */
+    @Test
+    void resultCache() {
+        var movie = new Table ("cacheMovie", "title year length", "String Integer Integer", "title");
+        for (var i = 0; i < 100; i++) movie.insert (new Comparable [] { "film_" + i, 1900 + i % 10, 90 + i });
+        var cache = new ResultCache (1 << 20);
+        Table.useCache (cache);
+        try {
+            var r1 = movie.select ("year == 1903").project ("title length");
+            var r2 = movie.select ("year == 1903").project ("title length");
+            assertSame (r1, r2);
+            assertEquals (2, cache.size ());
+            assertEquals (0.5, cache.hitRatio (), 1e-9);
+            assertTrue (cache.bytes () > 0);
+
+            movie.insert (new Comparable [] { "film_new", 1903, 120 });
+            assertEquals (0, cache.size ());
+            var r3 = movie.select ("year == 1903").project ("title length");
+            assertNotSame (r1, r3);
+            assertEquals (11, r3.store ().snapshot ().size ());
+            assertSame (r3, movie.select ("year == 1903").project ("title length"));
+
+            var sel = movie.select ("year == 1904");                        // changing a result drops it
+            sel.insert (new Comparable [] { "film_extra", 1904, 1 });
+            var again = movie.select ("year == 1904");
+            assertNotSame (sel, again);
+            assertEquals (10, again.rows ().size ());
+
+            var small = new ResultCache (4000);
+            Table.useCache (small);
+            for (var round = 0; round < 5; round++) {
+                for (var y = 1900; y < 1910; y++) movie.select ("year == " + y);
+                movie.select ("year == 1900");
+            } // for
+            assertTrue (small.bytes () <= 4000);
+            assertTrue (small.hitRatio () > 0);
+            out.println (small.stats ());
+        } finally {
+            Table.useCache (null);
+        } // try
+    }
+
+    /**
+     * Update tuples by key and by predicate and delete by predicate; check the visible
+     * tuples, the index, snapshots taken before the changes, and compaction.
+     */
+    @Test
+    void updateDelete() {
+        var movie = new Table ("udMovie", "title year length", "String Integer Integer", "title");
+        for (var i = 0; i < 40; i++) movie.insert (new Comparable [] { "film_" + i, 1900 + i % 4, 90 + i });
+        var before = movie.store ().snapshot ();
+
+        assertTrue (movie.update (new KeyType ("film_3"), new Comparable [] { "film_3", 1999, 150 }));
+        assertFalse (movie.update (new KeyType ("no_film"), new Comparable [] { "no_film", 1999, 150 }));
+        assertTrue (movie.update (new KeyType ("film_5"), new Comparable [] { "film_5b", 1901, 95 }));
+        assertNull (movie.getIndexAt (new KeyType ("film_5")));
+        assertEquals (95, ((Comparable []) movie.getIndexAt (new KeyType ("film_5b"))) [2]);
+        assertEquals (150, ((Comparable []) movie.getIndexAt (new KeyType ("film_3"))) [2]);
+        assertFalse (movie.update (new KeyType ("film_4"), new Comparable [] { "film_3", 1999, 1 }));   // key taken
+        assertEquals (150, ((Comparable []) movie.getIndexAt (new KeyType ("film_3"))) [2]);
+        assertEquals (94, ((Comparable []) movie.getIndexAt (new KeyType ("film_4"))) [2]);
+
+        assertEquals (10, movie.update (t -> t [1].equals (1900), t -> new Comparable [] { t [0], t [1], 0 }));
+        assertEquals (0, ((Comparable []) movie.getIndexAt (new KeyType ("film_8"))) [2]);
+        assertEquals (0, movie.update (t -> t [1].equals (1903), t -> new Comparable [] { "same", t [1], t [2] }));
+        assertEquals (0, movie.update (t -> t [0].equals ("film_7"), t -> new Comparable [] { "film_8", t [1], t [2] }));
+        assertEquals (40, movie.store ().snapshot ().size ());
+        assertEquals (0, ((Comparable []) movie.getIndexAt (new KeyType ("film_8"))) [2]);
+        assertEquals (97, ((Comparable []) movie.getIndexAt (new KeyType ("film_7"))) [2]);
+        assertNull (movie.getIndexAt (new KeyType ("same")));
+        assertEquals (2, movie.update (t -> t [0].equals ("film_6") || t [0].equals ("film_7"),
+                                       t -> new Comparable [] { t [0].equals ("film_6") ? "film_7" : "film_6", t [1], t [2] }));
+        assertEquals (96, ((Comparable []) movie.getIndexAt (new KeyType ("film_7"))) [2]);
+
+        assertEquals (10, movie.delete (t -> t [1].equals (1902)));
+        assertNull (movie.getIndexAt (new KeyType ("film_2")));
+        var rows = movie.store ().snapshot ();
+        assertEquals (30, rows.size ());
+        assertTrue (rows.stream ().noneMatch (t -> t [1].equals (1902)));
+        assertEquals (40, before.size ());
+        assertEquals (92, before.get (2) [2]);
+
+        assertTrue (movie.store ().dead () > 0);
+        movie.store ().vacuum ();
+        assertEquals (0, movie.store ().dead ());
+        assertEquals (30, movie.store ().versions ());
+        assertEquals (rows, movie.store ().snapshot ());
+    }
+
+    /**
+     * Partition movies by range of year and by hash of title; check pruning, key
+     * lookups, moving updates, transactions and that save rewrites only the partitions
+     * that changed.
+     */
+    @Test
+    void partitioning() throws IOException {
+        var movie = new PartitionedTable ("ptMovie", "title year length", "String Integer Integer", "title year",
+                                          Partitioning.range ("year", 1925, 1950, 1975));
+        for (var i = 0; i < 100; i++) movie.insert (new Comparable [] { "film_" + i, 1900 + i, 90 + i % 30 });
+        assertEquals (4, movie.partitions ().size ());
+        assertEquals (25, movie.partitions ().get (1).rows ().size ());
+        assertEquals (100, movie.rows ().size ());
+
+        var scanned = movie.partitionsScanned ();
+        assertEquals (1, movie.select ("year == 1930").rows ().size ());
+        assertEquals (scanned + 1, movie.partitionsScanned ());
+        assertEquals (10, movie.select ("year > 1989").rows ().size ());
+        assertEquals (scanned + 2, movie.partitionsScanned ());
+        assertEquals (30, movie.select ("year < 1930").rows ().size ());
+        assertEquals (scanned + 4, movie.partitionsScanned ());
+        assertEquals (40, movie.select (t -> (Integer) t [2] < 100).rows ().size ());
+        assertEquals (scanned + 8, movie.partitionsScanned ());
+        assertThrows (QueryContext.Aborted.class, () -> QueryContext.run (1, null, () -> movie.select (t -> true)),
+                      "the partition scans count against the query's budget");
+
+        assertEquals (1, movie.select (new KeyType ("film_42", 1942)).rows ().size ());
+        assertTrue (movie.update (new KeyType ("film_42", 1942), new Comparable [] { "film_42", 1980, 100 }));
+        assertNull (movie.getIndexAt (new KeyType ("film_42", 1942)));
+        assertNotNull (movie.getIndexAt (new KeyType ("film_42", 1980)));
+        assertEquals (26, movie.partitions ().get (3).rows ().size ());
+        assertEquals (5, movie.update (t -> (Integer) t [1] < 1905, t -> new Comparable [] { t [0], 1999, t [2] }));
+        assertEquals (31, movie.partitions ().get (3).rows ().size ());
+        assertEquals (100, movie.rows ().size ());
+        assertEquals (10, movie.delete (t -> (Integer) t [1] >= 1960 && (Integer) t [1] < 1970));
+        assertEquals (90, movie.rows ().size ());
+
+        try (var tx = Transaction.begin ()) {
+            tx.insert (movie, new Comparable [] { "tx_1", 1901, 90 });
+            tx.insert (movie, new Comparable [] { "tx_2", 1990, 90 });
+            assertEquals (92, tx.read (movie).size ());
+            assertEquals (90, movie.rows ().size ());
+            tx.commit ();
+        } // try
+        assertEquals (92, movie.rows ().size ());
+        assertNotNull (movie.getIndexAt (new KeyType ("tx_2", 1990)));
+
+        var byTitle = new PartitionedTable ("ptTitle", "title year", "String Integer", "title",
+                                            Partitioning.hash (8, "title"));
+        for (var i = 0; i < 200; i++) byTitle.insert (new Comparable [] { "t" + i, 2000 });
+        assertTrue (byTitle.partitions ().stream ().allMatch (p -> p.rows ().size () > 0));
+        scanned = byTitle.partitionsScanned ();
+        assertEquals (1, byTitle.select ("title == t77").rows ().size ());
+        assertEquals (scanned + 1, byTitle.partitionsScanned ());
+        assertEquals (2000, ((Comparable []) byTitle.getIndexAt (new KeyType ("t77"))) [1]);
+
+        Files.createDirectories (Paths.get ("store"));
+        movie.save ();
+        assertEquals (0, movie.dirtyPartitions ());
+        movie.insert (new Comparable [] { "film_new", 1930, 100 });
+        assertEquals (1, movie.dirtyPartitions ());
+        movie.save ();
+        var loaded = (PartitionedTable) Table.load ("ptMovie");
+        assertEquals (93, loaded.rows ().size ());
+        assertEquals (0, loaded.dirtyPartitions ());
+        assertEquals (1, loaded.select ("year == 1930").rows ().size () - 1);
+        Files.delete (Paths.get ("store", "ptMovie.dbf"));
+        for (var i = 0; i < 4; i++) Files.delete (Paths.get ("store", "ptMovie_p" + i + ".dbf"));
+    }
+
+    /**
+     * Shard movies, studios and cast across three worker processes; check pushed-down
+     * select/project, two-phase aggregation and the three join plans against the same
+     * queries on local tables.
+     */
+    @Test
+    void coordinator() throws IOException {
+        var movies  = new ArrayList <Comparable []> ();
+        var studios = new ArrayList <Comparable []> ();
+        var cast    = new ArrayList <Comparable []> ();
+        for (var i = 0; i < 120; i++) movies.add (new Comparable [] { "film_" + i, 1970 + i % 10, 90 + i, "studio_" + i % 4 });
+        for (var i = 0; i < 4; i++) studios.add (new Comparable [] { "studio_" + i, "street_" + i });
+        for (var i = 0; i < 150; i++) cast.add (new Comparable [] { "film_" + i % 120, "star_" + i, 1970 + i % 10 });
+        var movie = new Table ("coMovie", "title year length studioName", "String Integer Integer String", "title");
+        var stars = new Table ("coCast", "movieTitle star year", "String String Integer", "star");
+        for (var t : movies) movie.insert (t);
+        for (var t : cast) stars.insert (t);
+
+        try (var c = Coordinator.launch (3)) {
+            c.create ("movie", "title year length studioName", "String Integer Integer String", "title", "title");
+            c.create ("studio", "name address", "String String", "name", "name");
+            c.create ("cast", "movieTitle star year", "String String Integer", "star", "movieTitle");
+            assertEquals (120, c.insert ("movie", movies));
+            c.insert ("studio", studios);
+            c.insert ("cast", cast);
+            assertEquals (120, c.count ("movie"));
+
+            var sel = c.select ("movie", "year == 1977", "title length");
+            assertEquals (12, sel.rows ().size ());
+            assertArrayEquals (new String [] { "title", "length" }, sel.attributes ());
+
+            var agg = c.aggregate ("movie", "year", "count:* sum:length min:length avg:length");
+            assertEquals (10, agg.rows ().size ());
+            for (var t : agg.rows ()) {
+                var year = (Integer) t [0];
+                var mine = movie.select (u -> u [1].equals (year)).rows ();
+                var sum  = mine.stream ().mapToLong (u -> (Integer) u [2]).sum ();
+                assertEquals ((long) mine.size (), t [1]);
+                assertEquals (sum, t [2]);
+                assertEquals (90 + year - 1970, t [3]);
+                assertEquals ((double) sum / mine.size (), (Double) t [4], 1e-9);
+            } // for
+            assertEquals (120L, c.aggregate ("movie", "", "count:*").rows ().get (0) [0]);
+
+            assertEquals (120, c.join ("movie", "studioName", "studio", "name").rows ().size ());
+            assertEquals ("broadcast studio", c.lastPlan ());
+            assertEquals (150, c.join ("cast", "movieTitle", "movie", "title").rows ().size ());
+            assertEquals ("co-located", c.lastPlan ());
+            var byYear = c.join ("movie", "year", "cast", "year");
+            assertEquals ("repartition movie cast", c.lastPlan ());
+            assertEquals (movie.join ("year", "year", stars).rows ().size (), byYear.rows ().size ());
+        } // try
+    }
+
+    /**
+     * Replicate a table to two replicas:  they receive its existing tuples and then its
+     * inserts, updates, deletes and transactions, report their lag and staleness, and
+     * refuse reads whose staleness bound they cannot meet once the primary is gone.
+     */
+    @Test
+    void replication() throws Exception {
+        var movie = new Table ("repMovie", "title year length", "String Integer Integer", "title");
+        for (var i = 0; i < 50; i++) movie.insert (new Comparable [] { "film_" + i, 1900 + i % 5, 90 + i });
+        try (var shipper = new LogShipper (0);
+             var r1 = new Replica ("localhost", shipper.port ());
+             var r2 = new Replica ("localhost", shipper.port ())) {
+            shipper.publish (movie);
+            for (var i = 50; i < 100; i++) movie.insert (new Comparable [] { "film_" + i, 1900 + i % 5, 90 + i });
+            movie.update (new KeyType ("film_7"), new Comparable [] { "film_7", 2000, 1 });
+            movie.update (t -> t [1].equals (1901), t -> new Comparable [] { t [0], t [1], 0 });
+            movie.delete (t -> t [1].equals (1902));
+            try (var tx = Transaction.begin ()) {
+                tx.insert (movie, new Comparable [] { "tx_1", 1999, 99 });
+                tx.insert (movie, new Comparable [] { "tx_2", 1999, 99 });
+                tx.commit ();
+            } // try
+
+            var lsn = shipper.lsn ();
+            assertTrue (r1.await (lsn, 5000));
+            assertTrue (r2.await (lsn, 5000));
+            for (var r : List.of (r1, r2)) {
+                var copy = r.table ("repMovie", 1000);
+                assertEquals (movie.rows ().size (), copy.rows ().size ());
+                assertEquals (83, copy.rows ().size ());
+                assertEquals (1, ((Comparable []) copy.getIndexAt (new KeyType ("film_7"))) [2]);
+                assertEquals (0, ((Comparable []) copy.getIndexAt (new KeyType ("film_11"))) [2]);
+                assertNull (copy.getIndexAt (new KeyType ("film_12")));
+                assertEquals (2, copy.select ("year == 1999").rows ().size ());
+                assertTrue (r.staleness () < 1000);
+            } // for
+
+            var deadline = System.currentTimeMillis () + 5000;
+            while (shipper.lag ().values ().stream ().anyMatch (l -> l > 0) && System.currentTimeMillis () < deadline) {
+                Thread.onSpinWait ();
+            } // while
+            assertEquals (2, shipper.lag ().size ());
+            assertTrue (shipper.lag ().values ().stream ().allMatch (l -> l == 0));
+
+            deadline = System.currentTimeMillis () + 5000;                  // acknowledged entries are dropped
+            while (shipper.oldest () <= lsn && System.currentTimeMillis () < deadline) Thread.onSpinWait ();
+            assertEquals (lsn + 1, shipper.oldest ());
+            try (var r3 = new Replica ("localhost", shipper.port ())) {     // so a new replica gets a snapshot
+                assertTrue (r3.await (lsn, 5000));
+                assertEquals (83, r3.table ("repMovie", 1000).rows ().size ());
+                assertEquals (1, ((Comparable []) r3.table ("repMovie").getIndexAt (new KeyType ("film_7"))) [2]);
+            } // try
+
+            shipper.close ();
+            Thread.sleep (100);
+            assertThrows (Replica.StaleReadException.class, () -> r1.table ("repMovie", 50));
+            assertEquals (83, r1.table ("repMovie").rows ().size ());
+        } // try
+        movie.insert (new Comparable [] { "after", 2001, 1 });                     // no longer fed
+    }
+
+    /**
+     * Materialize join and aggregate views and keep them up to date through inserts,
+     * updates and deletes of their base tables, including a view over another view.
+     */
+    @Test
+    void materializedViews() {
+        var movie   = new Table ("mvMovie", "title year length studioName", "String Integer Integer String", "title year");
+        var starsIn = new Table ("mvStarsIn", "movieTitle movieYear starName", "String Integer String", "movieTitle movieYear starName");
+        var studio  = new Table ("mvStudio", "name city", "String String", "name");
+        for (var i = 0; i < 5; i++) studio.insert (new Comparable [] { "studio_" + i, "city_" + i });
+        for (var i = 0; i < 40; i++) movie.insert (new Comparable [] { "film_" + i, 1990 + i % 4, 80 + i, "studio_" + i % 5 });
+        for (var i = 0; i < 60; i++) starsIn.insert (new Comparable [] { "film_" + i % 30, 1990 + i % 30 % 4, "star_" + i });
+
+        var cast   = Table.materialize (MaterializedView.join (movie, "title year", starsIn, "movieTitle movieYear"));
+        var where  = Table.materialize (MaterializedView.join (movie, "studioName", studio, "name"));
+        var stats  = Table.materialize (MaterializedView.aggregate (movie, "studioName", "count:* sum:length min:year max:length avg:length"));
+        var stars  = Table.materialize (MaterializedView.aggregate (cast, "studioName", "count:*"));
+        assertEquals (60, cast.rows ().size ());
+        assertEquals (40, where.rows ().size ());
+        assertEquals (5, stats.rows ().size ());
+        assertArrayEquals (new Comparable [] { "studio_0", 8L, 780L, 1990, 115, 97.5 },
+                           (Comparable []) stats.getIndexAt (new KeyType ("studio_0")));
+
+        movie.insert (new Comparable [] { "film_40", 1990, 200, "studio_0" });
+        starsIn.insert (new Comparable [] { "film_40", 1990, "star_new" });
+        starsIn.insert (new Comparable [] { "film_99", 1990, "star_orphan" });            // no movie (yet)
+        movie.update (new KeyType ("film_1", 1991), new Comparable [] { "film_1", 1991, 1, "studio_4" });
+        movie.update (t -> t [3].equals ("studio_2"), t -> new Comparable [] { t [0], t [1], t [2], "studio_3" });
+        movie.delete (t -> t [0].equals ("film_0"));
+        starsIn.delete (t -> t [2].equals ("star_31"));
+        studio.delete (t -> t [0].equals ("studio_4"));
+        try (var tx = Transaction.begin ()) {
+            tx.insert (movie, new Comparable [] { "film_99", 1990, 99, "studio_1" });
+            tx.commit ();
+        } // try
+
+        var join = movie.join ("title year", "movieTitle movieYear", starsIn);
+        assertEquals (join.rows ().size (), cast.rows ().size ());
+        var expect = new HashSet <String> ();
+        for (var t : join.rows ()) expect.add (Arrays.toString (t));
+        for (var t : cast.rows ()) assertTrue (expect.contains (Arrays.toString (t)));
+        assertEquals (movie.join ("studioName", "name", studio).rows ().size (), where.rows ().size ());
+        assertEquals (0, where.select (t -> t [3].equals ("studio_4")).rows ().size ());
+
+        var group = QueryServer.group (movie, new String [] { "studioName" }, new String [] { "count:*", "sum:length", "min:year", "max:length" });
+        assertEquals (group.rows ().size (), stats.rows ().size ());
+        assertNull (stats.getIndexAt (new KeyType ("studio_2")));
+        for (var g : group.rows ()) {
+            var v = (Comparable []) stats.getIndexAt (new KeyType (g [0]));
+            assertArrayEquals (g, Arrays.copyOf (v, 5));
+            assertEquals (((Long) g [2]).doubleValue () / (Long) g [1], v [5]);
+        } // for
+        var perStudio = QueryServer.group (join, new String [] { "studioName" }, new String [] { "count:*" });
+        assertEquals (perStudio.rows ().size (), stars.rows ().size ());
+        for (var g : perStudio.rows ()) assertArrayEquals (g, (Comparable []) stars.getIndexAt (new KeyType (g [0])));
+
+        assertThrows (UnsupportedOperationException.class, () -> cast.insert (join.rows ().get (0)));
+        cast.close ();
+        movie.delete (t -> true);
+        assertEquals (join.rows ().size (), cast.rows ().size ());                // no longer maintained
+        assertEquals (0, stats.rows ().size ());
+        assertEquals (0, where.rows ().size ());
+
+        // aggregates skip null values, and are null for a group with none
+        var rating = new Table ("mvRating", "id grade score", "Integer String Integer", "id");
+        var graded = Table.materialize (MaterializedView.aggregate (rating, "grade", "count:* sum:score min:score avg:score"));
+        rating.insert (new Comparable [] { 1, "a", 4 });
+        rating.insert (new Comparable [] { 2, "a", null });
+        rating.insert (new Comparable [] { 3, "b", null });
+        assertArrayEquals (new Comparable [] { "a", 2L, 4L, 4, 4.0 }, (Comparable []) graded.getIndexAt (new KeyType ("a")));
+        assertArrayEquals (new Comparable [] { "b", 1L, null, null, null }, (Comparable []) graded.getIndexAt (new KeyType ("b")));
+        rating.delete (t -> t [0].equals (1));
+        assertArrayEquals (new Comparable [] { "a", 1L, null, null, null }, (Comparable []) graded.getIndexAt (new KeyType ("a")));
+    }
+
+    /**
+     * Check a Bloom filter's false positive rate, then join through the filter of the
+     * build side and check it is reused until the table changes.
+     */
+    @Test
+    void bloomFilter() {
+        var filter = new BloomFilter (10_000);
+        for (var i = 0; i < 10_000; i++) filter.add (new KeyType ("key_" + i, i));
+        for (var i = 0; i < 10_000; i++) assertTrue (filter.mightContain (new KeyType ("key_" + i, i)));
+        var fp = 0;
+        for (var i = 0; i < 100_000; i++) if (filter.mightContain (new KeyType ("other_" + i, i))) fp++;
+        assertTrue (fp < 3_000, "false positives: " + fp);                        // about 1% expected
+        assertEquals (10_000, filter.count ());
+
+        var movie   = new Table ("bfMovie", "title year length", "String Integer Integer", "title year");
+        var starsIn = new Table ("bfStarsIn", "movieTitle movieYear starName", "String Integer String", "movieTitle movieYear starName");
+        for (var i = 0; i < 20; i++) movie.insert (new Comparable [] { "film_" + i, 2000 + i % 3, 90 + i });
+        for (var i = 0; i < 400; i++) starsIn.insert (new Comparable [] { "film_" + i % 200, 2000 + i % 200 % 3, "star_" + i });
+        var join  = starsIn.join ("movieTitle movieYear", "title year", movie);
+        var ijoin = starsIn.i_join ("movieTitle movieYear", "title year", movie);
+        assertEquals (40, join.rows ().size ());
+        assertEquals (40, ijoin.rows ().size ());
+        for (var t : join.rows ()) assertEquals (t [0], t [3]);
+
+        var key = new String [] { "title", "year" };
+        assertSame (movie.bloom (key), movie.bloom (key));                       // reused until the table changes
+        var before = movie.bloom (key);
+        movie.insert (new Comparable [] { "film_150", 2000, 1 });
+        assertNotSame (before, movie.bloom (key));
+        assertEquals (42, starsIn.join ("movieTitle movieYear", "title year", movie).rows ().size ());
+        assertEquals (42, starsIn.i_join ("movieTitle movieYear", "title year", movie).rows ().size ());
+    }
+
+    /**
+     * Write, delete and overwrite keys in an LSM-tree until its runs are compacted, then
+     * reopen it from its logs as after a crash, and save and reload an LsmTable.
+     */
+    @Test
+    void lsmTree() throws IOException {
+        var lsm = new LsmTree ("store" + File.separator + "lsmTest", 8 << 10, false);
+        for (var i = 0; i < 5000; i++) lsm.put (new KeyType (i), new Comparable [] { i, "event_" + i });
+        for (var i = 0; i < 5000; i += 3) lsm.remove (new KeyType (i));
+        for (var i = 0; i < 5000; i += 5) lsm.put (new KeyType (i), new Comparable [] { i, "again_" + i });
+        for (var i = 0; i < 5000; i++) {
+            var t = lsm.get (new KeyType (i));
+            if (i % 5 == 0) assertEquals ("again_" + i, t [1]);
+            else if (i % 3 == 0) assertNull (t);
+            else assertEquals ("event_" + i, t [1]);
+        } // for
+        lsm.flush ();
+        assertTrue (Arrays.stream (lsm.levels ()).sum () > 0);
+        assertTrue (lsm.levels ().length > 1, "runs were compacted");
+        var expected = 5000 - 1667 + 334;
+        assertEquals (expected, lsm.size ());
+        KeyType prev = null;
+        for (var e : lsm.entrySet ()) {
+            assertTrue (prev == null || prev.compareTo (e.getKey ()) < 0);
+            prev = e.getKey ();
+        } // for
+        lsm.put (new KeyType (-1), new Comparable [] { -1, "logged" });             // only in the log
+
+        var again = LsmTree.open ("store" + File.separator + "lsmTest");    // as after a crash
+        assertEquals ("logged", again.get (new KeyType (-1)) [1]);
+        assertEquals ("again_10", again.get (new KeyType (10)) [1]);
+        assertNull (again.get (new KeyType (9)));
+        assertEquals (expected + 1, again.size ());
+        again.close ();
+
+        var event = new LsmTable ("lsmEvent", "id kind", "Long String", "id");
+        for (var i = 0L; i < 300; i++) event.insert (new Comparable [] { i, "k" + i % 4 });
+        event.update (new KeyType (7L), new Comparable [] { 7L, "changed" });
+        event.delete (t -> t [1].equals ("k3"));
+        assertEquals ("changed", event.select (new KeyType (7L)).rows ().get (0) [1]);
+        assertEquals (0, event.select (new KeyType (3L)).rows ().size ());
+        event.insert (new Comparable [] { 8L, "replaced" });                     // an existing key
+        assertEquals (226, event.rows ().size ());
+        assertEquals (1, event.rows ().stream ().filter (t -> t [0].equals (8L)).count ());
+        assertEquals ("replaced", event.select (new KeyType (8L)).rows ().get (0) [1]);
+        event.save ();
+        event.insert (new Comparable [] { 1000L, "after save" });
+        event.close ();
+        var loaded = Table.load ("lsmEvent");
+        assertInstanceOf (LsmTable.class, loaded);
+        assertEquals (227, loaded.rows ().size ());
+        assertEquals ("after save", loaded.select (new KeyType (1000L)).rows ().get (0) [1]);
+        assertEquals ("changed", loaded.select (new KeyType (7L)).rows ().get (0) [1]);
+        ((LsmTable) loaded).close ();
+    }
+
+    /**
+     * Save a table to be memory-mapped, load it lazily, and write to it.
+     */
+    @Test
+    void mappedTable() {
+        var movie = new Table ("mappedMovie", "title year length studioName",
+                "String Integer Integer String", "title year");
+        for (var i = 0; i < 500; i++) movie.insert (new Comparable [] { "film_" + i, 1950 + i % 70, 80 + i % 60, "studio_" + i % 7 });
+        movie.saveMapped ();
+
+        var loaded = Table.loadMapped ("mappedMovie");
+        assertInstanceOf (MappedTable.class, loaded);
+        var mapped = (MappedTable) loaded;
+        assertEquals (0, mapped.decodedTuples ());
+        assertEquals ("studio_3", loaded.select (new KeyType ("film_10", 1960)).rows ().get (0) [3]);
+        assertEquals (0, loaded.select (new KeyType ("film_10", 1961)).rows ().size ());
+        assertTrue (mapped.decodedTuples () <= 1, "a key lookup decodes only its tuple");
+        for (var i = 0; i < 500; i++) assertArrayEquals (movie.rows ().get (i), loaded.rows ().get (i));
+        assertEquals (72, loaded.select ("studioName == studio_0").rows ().size ());
+        var studio = new Table ("mappedStudio", "name", "String", "name");
+        studio.insert (new Comparable [] { "studio_1" });
+        assertEquals (72, loaded.join ("studioName", "name", studio).rows ().size ());
+
+        loaded.insert (new Comparable [] { "film_new", 2024, 90, "studio_1" });
+        assertEquals (501, loaded.rows ().size ());
+        assertEquals (2024, loaded.select (new KeyType ("film_new", 2024)).rows ().get (0) [1]);
+        assertEquals ("studio_3", loaded.select (new KeyType ("film_10", 1960)).rows ().get (0) [3]);
+        assertEquals ("film_0", Table.loadMapped ("mappedMovie").rows ().get (0) [0]);
+    }
+
+    /**
+     * List tables from their headers, open them on demand and evict them under a budget.
+     */
+    @Test
+    void database() {
+        var names = new String [] { "catalogA", "catalogB", "catalogC" };
+        for (var j = 0; j < names.length; j++) {
+            var t = new Table (names [j], "id name", "Integer String", "id");
+            for (var i = 0; i < 2000; i++) t.insert (new Comparable [] { i, names [j] + "_" + i });
+            if (j == 0) t.saveMapped (); else t.save ();
+        } // for
+
+        var db = new Database (300_000);
+        assertTrue (db.tables ().containsAll (List.of (names)));
+        var schema = db.schema ("catalogB");
+        assertArrayEquals (new String [] { "id", "name" }, schema.attributes ());
+        assertEquals (Integer.class, schema.domains () [0]);
+        assertEquals (2000, schema.tuples ());
+        assertFalse (db.isOpen ("catalogB"), "the schema is read without opening the table");
+
+        var a = db.table ("catalogA");
+        assertInstanceOf (MappedTable.class, a);
+        assertEquals ("catalogA_5", a.select (new KeyType (5)).rows ().get (0) [1]);
+        assertTrue (db.memory ("catalogA") < 10_000, "only decoded tuples are counted");
+
+        db.table ("catalogB").update (new KeyType (7), new Comparable [] { 7, "changed" });
+        assertTrue (db.memory ("catalogB") > 100_000);
+        db.table ("catalogC");
+        assertFalse (db.isOpen ("catalogB"), "the least recently used table is evicted");
+        assertTrue (db.isOpen ("catalogC"));
+        assertTrue (db.memory () <= 300_000);
+        assertEquals ("changed", db.table ("catalogB").select (new KeyType (7)).rows ().get (0) [1]);
+        db.close ();
+        assertFalse (db.isOpen ("catalogB"));
+    }
+
+    /**
+     * Save a table's changes as delta segments, load it by replaying them, and compact.
+     */
+    @Test
+    void deltaSave() {
+        var dir = Paths.get ("store");
+        var t = new Table ("deltaMovie", "title year length", "String Integer Integer", "title year");
+        for (var i = 0; i < 3000; i++) t.insert (new Comparable [] { "film_" + i, 1900 + i % 100, 90 });
+        t.save ();
+        var base = dir.resolve ("deltaMovie.dbf").toFile ();
+        var size = base.length ();
+
+        t.insert (new Comparable [] { "film_new", 2024, 100 });
+        t.update (new KeyType ("film_5", 1905), new Comparable [] { "film_5", 1905, 200 });
+        t.delete (tup -> tup [0].equals ("film_6"));
+        t.save ();
+        assertEquals (size, base.length (), "the base is not rewritten");
+        assertEquals (1, t.deltas ().segments ());
+        assertTrue (dir.resolve ("deltaMovie.0.dlt").toFile ().length () < 200);
+
+        var loaded = Table.load ("deltaMovie");
+        assertEquals (3000, loaded.rows ().size ());
+        assertEquals (200, loaded.select (new KeyType ("film_5", 1905)).rows ().get (0) [2]);
+        assertEquals (0, loaded.select (new KeyType ("film_6", 1906)).rows ().size ());
+        assertEquals (100, loaded.select (new KeyType ("film_new", 2024)).rows ().get (0) [2]);
+        loaded.deltas ().close ();
+
+        for (var i = 0; i < DeltaLog.MAX_SEGMENTS; i++) {
+            t.update (new KeyType ("film_" + i, 1900 + i), new Comparable [] { "film_" + i, 1900 + i, i });
+            t.save ();
+        } // for
+        t.deltas ().await ();
+        assertTrue (t.deltas ().segments () < DeltaLog.MAX_SEGMENTS, "segments were compacted");
+        var again = Table.load ("deltaMovie");
+        assertEquals (3000, again.rows ().size ());
+        assertEquals (7, again.select (new KeyType ("film_7", 1907)).rows ().get (0) [2]);
+        assertEquals (100, again.select (new KeyType ("film_new", 2024)).rows ().get (0) [2]);
+        again.deltas ().close ();
+    }
+
+    /**
+     * Checkpoint a table in the background while inserts carry on.
+     */
+    @Test
+    void checkpoint() {
+        var t = new Table ("ckptMovie", "title year length", "String Integer Integer", "title year");
+        for (var i = 0; i < 20000; i++) t.insert (new Comparable [] { "film_" + i, 1900 + i % 100, 90 });
+        var gate = new CountDownLatch (1);
+        DeltaLog.WORKER.execute (() -> {                                    // hold the I/O thread
+            try { gate.await (); } catch (InterruptedException ex) { Thread.currentThread ().interrupt (); }
+        });
+        var done = t.checkpoint (1 << 20);
+        for (var i = 20000; i < 20100; i++) t.insert (new Comparable [] { "film_" + i, 1900 + i % 100, 90 });
+        assertFalse (done.isDone (), "inserts do not wait for the checkpoint");  // it cannot have started
+        gate.countDown ();
+        done.join ();
+        var loaded = Table.load ("ckptMovie");
+        assertTrue (loaded.rows ().size () >= 20000);
+        assertEquals (90, loaded.select (new KeyType ("film_19999", 1999)).rows ().get (0) [2]);
+        loaded.deltas ().close ();
+
+        t.save ();                                                          // appends the later inserts
+        var again = Table.load ("ckptMovie");
+        assertEquals (20100, again.rows ().size ());
+        assertEquals (20100, again.select ("length == 90").rows ().size ());
+        again.deltas ().close ();
+    }
+
+    /**
+     * Run select, project and join batch-at-a-time and tuple-at-a-time, and compare.
+     */
+    @Test
+    void batches() {
+        var movie = new Table ("batchMovie", "title year length studioName", "String Integer Integer String", "title year");
+        for (var i = 0; i < 5000; i++) movie.insert (new Comparable [] { "film_" + i, 1900 + i % 100, 60 + i % 90, "studio_" + i % 13 });
+        var studio = new Table ("batchStudio", "name year", "String Integer", "name");
+        for (var i = 0; i < 13; i += 2) studio.insert (new Comparable [] { "studio_" + i, 1900 + i });
+        var conditions = new String [] { "year > 1950", "year >= 1950", "year < 1910", "year == 1977", "length <= 70",
+                                         "title < film_2", "studioName == studio_4", "year != 1977" };
+        try {
+            for (var c : conditions) {
+                Table.useBatches (true);
+                var fast = movie.select (c).rows ();
+                Table.useBatches (false);
+                var slow = movie.select (c).rows ();
+                assertEquals (slow.size (), fast.size (), c);
+                for (var i = 0; i < slow.size (); i++) assertSame (slow.get (i), fast.get (i), c);
+            } // for
+            Table.useBatches (true);
+            var fastP = movie.project ("studioName year").rows ();
+            var fastJ = movie.join ("studioName", "name", studio).rows ();
+            var fast2 = movie.join ("studioName year", "name year", studio).rows ();
+            Table.useBatches (false);
+            var slowP = movie.project ("studioName year").rows ();
+            var slowJ = movie.join ("studioName", "name", studio).rows ();
+            var slow2 = movie.join ("studioName year", "name year", studio).rows ();
+            assertEquals (5000, fastP.size ());
+            for (var i = 0; i < slowP.size (); i++) assertArrayEquals (slowP.get (i), fastP.get (i));
+            assertEquals (slowJ.size (), fastJ.size ());
+            for (var i = 0; i < slowJ.size (); i++) assertArrayEquals (slowJ.get (i), fastJ.get (i));
+            assertEquals (slow2.size (), fast2.size ());
+            assertTrue (fast2.size () > 0);
+        } finally {
+            Table.useBatches (true);
+        } // try
+        var sel = new int [Batch.SIZE];
+        assertEquals (2, Batch.select (new int [] { 5, 1, 7, 3 }, 4, Batch.Op.of (">"), 3, sel));
+        assertEquals (0, sel [0]);
+        assertEquals (2, sel [1]);
+        assertEquals (1, Batch.select (new double [] { -0.0, 0.0, Double.NaN }, 3, Batch.Op.of ("=="), 0.0, sel));
+        assertEquals (1, sel [0]);
+
+        // the long and double kernels give the rows of the tuple-at-a-time loop
+        var event = new Table ("batchEvent", "id big small ratio score", "Long Long Short Double Float", "id");
+        for (var i = 0; i < 3000; i++) {
+            event.insert (new Comparable [] { (long) i, 1L << 40 | i % 50, (short) (i % 70), i % 9 / 4.0, (float) (i % 11) });
+        } // for
+        var typed = new String [] { "big > 1099511627796", "big == 1099511627786", "small < 7", "small == 33",
+                                    "ratio > 1.0", "ratio == 0.5", "score < 3.5", "score == 10" };
+        try {
+            for (var c : typed) {
+                Table.useBatches (true);
+                var fast = event.select (c).rows ();
+                Table.useBatches (false);
+                var slow = event.select (c).rows ();
+                assertTrue (slow.size () > 0, c);
+                assertEquals (slow, fast, c);
+            } // for
+            var other = new Table ("batchOther", "oid big2", "Long Long", "oid");
+            for (var i = 0; i < 20; i++) other.insert (new Comparable [] { (long) i, 1L << 40 | i });
+            Table.useBatches (true);
+            var fastJ = event.join ("big", "big2", other).rows ();
+            Table.useBatches (false);
+            var slowJ = event.join ("big", "big2", other).rows ();
+            assertEquals (1200, slowJ.size ());
+            assertEquals (slowJ.size (), fastJ.size ());
+        } finally {
+            Table.useBatches (true);
+        } // try
+    }
+
+    /**
+     * Skip blocks of tuples loaded in year order by their zone maps.
+     */
+    @Test
+    void zoneMaps() {
+        var movie = new Table ("zoneMovie", "title year length", "String Integer Integer", "title year");
+        for (var i = 0; i < 50000; i++) movie.insert (new Comparable [] { "film_" + i, 1900 + i / 500, 60 + i % 90 });
+        var store  = movie.store ();
+        var before = store.skipped ();
+        var blocks = (50000 + TupleStore.BLOCK - 1) / TupleStore.BLOCK;
+        assertEquals (2500, movie.select ("year > 1994").rows ().size ());
+        assertTrue (store.skipped () - before >= blocks * 9 / 10, "recent years skip over 90% of blocks");
+        assertEquals (500, movie.select ("year == 1950").rows ().size ());
+        assertEquals (0, movie.select ("year == 2050").rows ().size ());
+        assertEquals (1000, movie.select ("year < 1902").rows ().size ());
+        var lengths = movie.select ("length < 70").rows ().size ();                     // no skipping possible
+        Table.useBatches (false);
+        try {
+            assertEquals (2500, movie.select ("year > 1994").rows ().size ());
+            assertEquals (lengths, movie.select ("length < 70").rows ().size ());
+        } finally {
+            Table.useBatches (true);
+        } // try
+
+        movie.delete (t -> (Integer) t [1] > 1997);                               // ends versions, zones still cover
+        movie.insert (new Comparable [] { "film_new", 2020, 100 });
+        assertEquals (1501, movie.select ("year > 1994").rows ().size ());
+        store.vacuum ();
+        assertEquals (1501, movie.select ("year > 1994").rows ().size ());
+        assertEquals (1, movie.select ("year > 2000").rows ().size ());
+    }
+
+    /**
+     * Run queries under budgets and time limits:  a join over its budget, a nested-loop
+     * join past its deadline and a cancelled join stop with QueryContext.Aborted, and
+     * the tables can still be queried afterwards.
+     */
+    @Test
+    void queryGovernor() throws Exception {
+        var movie = new Table ("govMovie", "title year length studioName", "String Integer Integer String", "title year");
+        for (var i = 0; i < 4000; i++) movie.insert (new Comparable [] { "film_" + i, 1900 + i % 100, 60 + i % 90, "studio_" + i % 2 });
+        var studio = new Table ("govStudio", "name city", "String String", "name");
+        for (var i = 0; i < 2; i++) studio.insert (new Comparable [] { "studio_" + i, "city_" + i });
+        var branch = new Table ("govBranch", "name city", "String String", "city");
+        for (var i = 0; i < 2000; i++) branch.insert (new Comparable [] { "studio_0", "city_" + i });
+        var remake = new Table ("govRemake", "title2 year2", "String Integer", "title2");
+        for (var i = 0; i < 4000; i++) remake.insert (new Comparable [] { "remake_" + i, 1900 + i % 100 });
+
+        // a join producing 4000 rows fits 64 MB, but one producing 4M rows does not fit 1 MB
+        var ok = QueryContext.run (64L << 20, null, () -> movie.join ("studioName", "name", studio));
+        assertEquals (4000, ok.rows ().size ());
+        var big = assertThrows (QueryContext.Aborted.class,
+                                () -> QueryContext.run (1L << 20, null, () -> movie.join ("studioName", "name", branch)));
+        assertNotNull (big.getMessage ());
+        assertThrows (QueryContext.Aborted.class,
+                      () -> QueryContext.run (64L << 10, null, () -> movie.project ("title year length")));
+        assertNull (QueryContext.current (), "the context is gone once the query ends");
+
+        // a theta join producing 8M rows is stopped by its deadline
+        var start = System.nanoTime ();
+        var slow  = assertThrows (QueryContext.Aborted.class,
+                                  () -> QueryContext.run (Long.MAX_VALUE, Duration.ofMillis (20),
+                                                          () -> movie.join ("year < year2", remake)));
+        assertEquals ("query timed out", slow.getMessage ());
+        assertTrue (System.nanoTime () - start < 5_000_000_000L);
+
+        // and a cancelled one stops at its next check
+        var ctx  = new QueryContext (Long.MAX_VALUE, null);
+        var open = new CountDownLatch (1);
+        var run  = CompletableFuture.supplyAsync (() -> {
+            try (var c = ctx.open ()) {
+                open.countDown ();
+                return movie.join ("year < year2", remake);
+            } // try
+        });
+        open.await ();
+        ctx.cancel ();
+        var ex = assertThrows (ExecutionException.class, run::get);
+        assertInstanceOf (QueryContext.Aborted.class, ex.getCause ());
+        assertEquals (0, ctx.reserved ());
+
+        // outside a query nothing is governed
+        assertEquals (4000, movie.project ("title year length").rows ().size ());
+        assertEquals (4000, movie.join ("studioName", "name", studio).rows ().size ());
+    }
+
+    /**
+     * Let join choose its algorithm:  nested loop for small tables, the index when the
+     * join attributes are a key, merge join for sorted tables and hash join otherwise
+     * (spilling under a small budget), each giving the nested loop join's rows, and
+     * check index and hash joins probe only the tuples passing the Bloom filter.
+     */
+    @Test
+    void joinSelection() {
+        var rnd = new Random (49);
+        var movie = new Table ("selMovie", "title year studioName", "String Integer String", "title");
+        for (var i = 0; i < 6000; i++) movie.insert (new Comparable [] { "film_" + i, 1900 + rnd.nextInt (100), "studio_" + rnd.nextInt (80) });
+        var studio = new Table ("selStudio", "name city", "String String", "name");
+        for (var i = 0; i < 60; i++) studio.insert (new Comparable [] { "studio_" + i, "city_" + i % 7 });
+        var award = new Table ("selAward", "award ayear", "String Integer", "award");
+        for (var i = 0; i < 3000; i++) award.insert (new Comparable [] { "award_" + i, 1900 + rnd.nextInt (150) });
+        var ranked = new Table ("selRanked", "rank ryear", "Integer Integer", "rank");
+        for (var i = 0; i < 4000; i++) ranked.insert (new Comparable [] { i, 1900 + i / 40 });
+        var sorted = new Table ("selSorted", "sid syear", "Integer Integer", "sid");
+        for (var i = 0; i < 3000; i++) sorted.insert (new Comparable [] { i, 1950 + i / 20 });
+        var before = new long [Join.Algorithm.values ().length];
+        for (var a : Join.Algorithm.values ()) before [a.ordinal ()] = Join.chosen (a);
+
+        var small = studio.select ("name < studio_3").join ("name", "name", studio);      // 23 x 60 pairs
+        assertEquals (1, Join.chosen (Join.Algorithm.NESTED_LOOP) - before [0]);
+        assertEquals (23, small.rows ().size ());
+
+        var filtered = Join.reduced ();
+        var indexed = movie.join ("studioName", "name", studio);                         // studio's key is name
+        assertEquals (1, Join.chosen (Join.Algorithm.INDEX) - before [1]);
+        assertTrue (Join.reduced () - filtered > 1000);                                 // studios 60..79 filtered out
+        var nested = new ArrayList <Comparable []> ();
+        for (var t : movie.rows ()) for (var u : studio.rows ()) if (t [2].equals (u [0])) nested.add (Table.concat (t, u));
+        assertEquals (nested.size (), indexed.rows ().size ());
+        for (var i = 0; i < nested.size (); i++) assertArrayEquals (nested.get (i), indexed.rows ().get (i));
+
+        var merged = ranked.join ("ryear", "syear", sorted);                             // both in year order
+        assertEquals (1, Join.chosen (Join.Algorithm.MERGE) - before [2]);
+        nested.clear ();
+        for (var t : ranked.rows ()) for (var u : sorted.rows ()) if (t [1].equals (u [1])) nested.add (Table.concat (t, u));
+        assertEquals (nested.size (), merged.rows ().size ());
+        for (var i = 0; i < nested.size (); i++) assertArrayEquals (nested.get (i), merged.rows ().get (i));
+
+        var hashed = movie.join ("year", "ayear", award);                                // unsorted, no index
+        assertEquals (1, Join.chosen (Join.Algorithm.HASH) - before [3]);
+        var expect = new HashSet <String> ();
+        for (var t : movie.rows ()) for (var u : award.rows ()) if (t [1].equals (u [1])) expect.add (Arrays.toString (Table.concat (t, u)));
+        assertEquals (expect.size (), hashed.rows ().size ());
+        for (var r : hashed.rows ()) assertTrue (expect.contains (Arrays.toString (r)));
+        assertEquals (expect.size (), movie.h_join ("year", "ayear", award).rows ().size ());
+        assertEquals (expect.size (), movie.join ("year == ayear", award).rows ().size ());
+        assertEquals (expect.size (), movie.i_join ("year", "ayear", award).rows ().size ());   // ayear is not award's key
+
+        // under a budget too small for the hash table the join spills, with the same rows
+        var big = new Table ("selBig", "bid byear", "Integer Integer", "bid");
+        for (var i = 0; i < 8000; i++) big.insert (new Comparable [] { i, 1900 + rnd.nextInt (200000) });
+        filtered   = Join.reduced ();
+        var free   = movie.join ("year", "byear", big);                                  // big probes movie's table
+        assertTrue (Join.reduced () - filtered > 7000);                                 // few byears are movie years
+        var spills = Join.spills ();
+        var spilt  = QueryContext.run (400L << 10, null, () -> movie.h_join ("year", "byear", big));
+        assertEquals (spills + 1, Join.spills ());
+        assertTrue (free.rows ().size () > 0);
+        assertEquals (free.rows ().size (), spilt.rows ().size ());
+        var rows = new HashSet <String> ();
+        for (var r : free.rows ()) rows.add (Arrays.toString (r));
+        for (var r : spilt.rows ()) assertTrue (rows.contains (Arrays.toString (r)));
+        assertTrue (Join.stats ().contains ("spilled"));
+    }
+
+    /**
+     * Run inequality and band theta joins as range joins and check they give the rows
+     * of the nested loop join.
+     */
+    @Test
+    void rangeJoin() {
+        var rnd = new Random (50);
+        var movie = new Table ("rangeMovie", "title year", "String Integer", "title");
+        for (var i = 0; i < 3000; i++) movie.insert (new Comparable [] { "film_" + i, 1900 + rnd.nextInt (120) });
+        var award = new Table ("rangeAward", "award ayear", "String Integer", "award");
+        for (var i = 0; i < 800; i++) award.insert (new Comparable [] { "award_" + i, 1900 + rnd.nextInt (120) });
+        BiPredicate <Integer, Integer> [] tests = new BiPredicate [] {
+            (BiPredicate <Integer, Integer>) (y, a) -> y < a,
+            (BiPredicate <Integer, Integer>) (y, a) -> y > a,
+            (BiPredicate <Integer, Integer>) (y, a) -> a - 2 <= y && y <= a + 2,
+            (BiPredicate <Integer, Integer>) (y, a) -> a <= y && y <= a + 3 };
+        var conditions = new String [] { "year < ayear", "year > ayear", "year BETWEEN ayear-2 AND ayear+2",
+                                         "year between ayear AND ayear+3" };
+        for (var c = 0; c < conditions.length; c++) {
+            var ranges = Join.chosen (Join.Algorithm.RANGE);
+            var joined = movie.join (conditions [c], award).rows ();
+            assertEquals (ranges + 1, Join.chosen (Join.Algorithm.RANGE), conditions [c]);
+            var expect = new HashSet <String> ();
+            for (var t : movie.rows ()) {
+                for (var u : award.rows ()) {
+                    if (tests [c].test ((Integer) t [1], (Integer) u [1])) expect.add (Arrays.toString (Table.concat (t, u)));
+                } // for
+            } // for
+            assertEquals (expect.size (), joined.size (), conditions [c]);
+            for (var r : joined) assertTrue (expect.contains (Arrays.toString (r)), conditions [c]);
+        } // for
+        assertEquals (movie.join ("year < ayear", award).rows ().size (),
+                      movie.join ("year <= ayear", award).rows ().size (), "<= compares as <, as compareWithStringOp does");
+
+        // a "released before this one" self join, in order of the earlier year for each movie
+        var before = movie.join ("year > year", movie).rows ();
+        for (var i = 1; i < before.size (); i++) {
+            if (before.get (i) [0] == before.get (i - 1) [0]) assertTrue ((Integer) before.get (i - 1) [3] <= (Integer) before.get (i) [3]);
+        } // for
+
+        // small joins keep the nested loop;  malformed bands are rejected
+        var loops = Join.chosen (Join.Algorithm.NESTED_LOOP);
+        var early = award.select ("ayear < 1910");
+        var late  = movie.select ("year > 2010");
+        assertEquals (early.rows ().size () * late.rows ().size (), early.join ("ayear < year", late).rows ().size ());
+        assertEquals (loops + 1, Join.chosen (Join.Algorithm.NESTED_LOOP));
+        assertNull (movie.join ("year BETWEEN ayear-2 AND award+2", award));
+        assertNull (movie.join ("title BETWEEN ayear AND ayear", award));
+        assertNull (movie.join ("title BETWEEN award-1 AND award+1", award), "strings cannot be offset");
+        assertEquals (0, movie.join ("title BETWEEN award AND award", award).rows ().size ());
+    }
 //
 //    /**
 //     * Create 2 valid tables of movies and perform the union operation.